@@ -25,10 +25,18 @@ android {
             )
         }
     }
+    buildFeatures {
+        // BuildConfig.DEBUG sets the compile-time level of MatchLog.
+        buildConfig = true
+    }
     compileOptions {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        // Host unit tests exercise core classes that log through android.util.Log.
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -1,7 +1,5 @@
 package org.labcitrus.avagenclient.accessibility;
 
-import static org.labcitrus.avagenclient.core.NodeFinder.findNodes;
-
 import android.accessibilityservice.AccessibilityService;
 import android.graphics.PixelFormat;
 import android.os.Handler;
@@ -16,12 +14,17 @@ import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
 
+import org.labcitrus.avagenclient.BuildConfig;
 import org.labcitrus.avagenclient.R;
 import org.labcitrus.avagenclient.agent.ConversationAgent;
 import org.labcitrus.avagenclient.agent.ServerCommunicator;
 import org.labcitrus.avagenclient.agent.ToolCallManager;
+import org.labcitrus.avagenclient.core.MatchLog;
+import org.labcitrus.avagenclient.core.NodeFinder;
 import org.labcitrus.avagenclient.core.NodeQuery;
 import org.labcitrus.avagenclient.core.ActionPerformer;
+import org.labcitrus.avagenclient.core.UiIdleDetector;
+import org.labcitrus.avagenclient.core.UiSnapshot;
 import org.labcitrus.avagenclient.core.Utils;
 import org.labcitrus.avagenclient.stt.SpeechRecognizerManager;
 import org.labcitrus.avagenclient.ui.FloatingPopupManager;
@@ -30,8 +33,15 @@ import com.google.gson.Gson;
 
 import org.labcitrus.avagenclient.actionplan.ActionPlan;
 import org.labcitrus.avagenclient.actionplan.ActionPlanExecutor;
+import org.labcitrus.avagenclient.actionplan.ActionPlanRepository;
+import org.labcitrus.avagenclient.actionplan.CompiledPlan;
+import org.labcitrus.avagenclient.actionplan.PlanCompilationException;
+import org.labcitrus.avagenclient.actionplan.PlanEngine;
+import org.labcitrus.avagenclient.actionplan.PlanHandle;
+import org.labcitrus.avagenclient.actionplan.PlanPrefetcher;
 
-import java.util.List;
+import java.io.File;
+import java.util.Arrays;
 
 
 
@@ -41,6 +51,10 @@ import java.util.List;
 public class AVAGenService extends AccessibilityService {
 
     public static final String TAG = "AVAGenServiceSA";
+
+    /** Chrome trace of recent plans under getFilesDir(), written after each plan in debug builds. */
+    private static final String TRACE_FILE = "traces/plan-trace.json";
+
     private static ActionPerformer actionPerformer;
     private static AVAGenService instance; // Static reference
     private SpeechRecognizerManager speechManager;
@@ -58,6 +72,12 @@ public class AVAGenService extends AccessibilityService {
     private String lastNonOverlayPackage = null;
     // NEW:
     private ActionPlanExecutor actionPlanExecutor;
+    // Runs plans one at a time on its own thread; lets us cancel a running plan
+    private PlanEngine planEngine;
+    // Warms the plan cache for the app the user switches to
+    private PlanPrefetcher planPrefetcher;
+    // Fed from onAccessibilityEvent; tells the executor when the UI has settled after a step
+    private UiIdleDetector uiIdleDetector;
     private final Gson gson = new Gson();
 
     // private AppTask handler;
@@ -69,6 +89,7 @@ public class AVAGenService extends AccessibilityService {
 
     @Override
     protected void onServiceConnected() {
+        MatchLog.refreshFromSystemProperties();
         showGlobalActionBar();
         configureTest2vaImageView();
 
@@ -80,7 +101,13 @@ public class AVAGenService extends AccessibilityService {
         instance = this;
 
         // ActionPlan executor (JSON → plan → UI actions)
-        actionPlanExecutor = new ActionPlanExecutor(this);
+        uiIdleDetector = new UiIdleDetector(getPackageName());
+        actionPlanExecutor = new ActionPlanExecutor(this, uiIdleDetector);
+        planEngine = new PlanEngine(actionPlanExecutor);
+        // Pick up rewritten plan files without restarting the service
+        ActionPlanRepository.getInstance().startWatching(this);
+        planPrefetcher = new PlanPrefetcher(this, ActionPlanRepository.getInstance(),
+                actionPlanExecutor.getUsageStats());
 
         // Instantiate the SpeechRecognizerManager
         speechManager = new SpeechRecognizerManager(this);
@@ -116,6 +143,8 @@ public class AVAGenService extends AccessibilityService {
         popupManager.setSpeechListenerDelegate(new FloatingPopupManager.SpeechListenerDelegate() {
             @Override
             public void onMicTriggered() {
+                // The user is speaking again: abort whatever plan is still driving the UI
+                planEngine.cancelAll();
 
                 speechManager.startListening(new SpeechRecognizerManager.SpeechResultListener() {
                     @Override
@@ -185,10 +214,34 @@ public class AVAGenService extends AccessibilityService {
                                         return;
                                     }
 
-                                    Log.i(TAG, "[ACTION_PLAN] Running plan: " + planToRun.getMethodName());
+                                    // Compile actions and node queries once, before execution starts;
+                                    // a plan with broken steps is rejected here instead of failing mid-run.
+                                    // Always the plan the user confirmed; PlanPrefetcher only warms caches
+                                    // (e.g. NodeQueryCompiler) this compile can hit
+                                    CompiledPlan compiledPlan;
+                                    try {
+                                        compiledPlan = CompiledPlan.compile(planToRun, null);
+                                    } catch (PlanCompilationException e) {
+                                        Log.w(TAG, "[ACTION_PLAN] " + e.getMessage());
+                                        popupManager.addMessage("Action plan is invalid: "
+                                                + String.join("; ", e.getProblems()), false);
+                                        return;
+                                    }
 
-                                    // Execute on background thread (avoid blocking main / accessibility)
-                                    new Thread(() -> actionPlanExecutor.executePlan(appIdForExec, planToRun)).start();
+                                    Log.i(TAG, "[ACTION_PLAN] Running plan: " + compiledPlan.getMethodName());
+
+                                    // Execute on the plan engine's thread (avoid blocking main / accessibility)
+                                    PlanHandle handle = planEngine.submit(appIdForExec, compiledPlan);
+                                    handle.getCompletion().whenComplete((ok, error) -> {
+                                        Log.i(TAG, "[ACTION_PLAN] Done: " + handle
+                                                + (error != null ? " (" + error + ")" : ""));
+                                        // Debug builds: keep the latest spans for ui.perfetto.dev
+                                        // (adb shell run-as <pkg> cat files/traces/plan-trace.json)
+                                        if (BuildConfig.DEBUG) {
+                                            actionPlanExecutor.getTracer().exportChromeTrace(
+                                                    new File(getFilesDir(), TRACE_FILE));
+                                        }
+                                    });
 
                                 } catch (Exception e) {
                                     Log.e(TAG, "[ACTION_PLAN] Failed to parse/execute", e);
@@ -263,7 +316,7 @@ public class AVAGenService extends AccessibilityService {
 
 
     /**
-     * Wrapper method that retrieves nodes using `retrieveNodes()` and finds matching nodes based on provided queries.
+     * Wrapper method that snapshots the current tree and finds matching nodes based on provided queries.
      *
      * <p>Usage Example:</p>
      * <pre>{@code
@@ -286,22 +339,24 @@ public class AVAGenService extends AccessibilityService {
             return null;
         }
 
-        // Retrieve the all valid nodes to search
-        List<AccessibilityNodeInfo> allNodes = Utils.retrieveAllChildrenFromNode(service.getRootNode());
+        // Flatten the current tree once; all query evaluation runs on the snapshot
+        UiSnapshot snapshot = UiSnapshot.capture(service.getRootNode());
 
-        // Use NodeFinder.findNodes() to filter based on provided queries
-        List<AccessibilityNodeInfo> foundNodes = findNodes(allNodes, queries);
+        // Only two matches are needed to tell "one" from "more than one", so stop there
+        NodeQuery[] validQueries = Arrays.copyOf(queries, queries.length + 1);
+        validQueries[queries.length] = NodeQuery.isValidNode();
+        int[] foundNodes = NodeFinder.findTopK(snapshot, 2, validQueries);
 
-        if (foundNodes.isEmpty()) {
+        if (foundNodes.length == 0) {
             Log.i(TAG,"findNode: no node meet the searching criteria.");
             return null;
         }
-        else if (foundNodes.size() > 1) {
+        else if (foundNodes.length > 1) {
             Log.i(TAG,"findNode: more than one nodes meet the searching criteria.");
-            return foundNodes.get(0);
+            return snapshot.getNode(foundNodes[0]);
         } else {
             Log.i(TAG,"findNode: found one node meet the searching criteria.");
-            return foundNodes.get(0);
+            return snapshot.getNode(foundNodes[0]);
         }
     }
 
@@ -368,6 +423,10 @@ public class AVAGenService extends AccessibilityService {
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (uiIdleDetector != null) {
+            uiIdleDetector.onAccessibilityEvent(event);
+        }
+
         int type = event.getEventType();
         if (type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
                 || type == AccessibilityEvent.TYPE_WINDOWS_CHANGED) {
@@ -382,6 +441,9 @@ public class AVAGenService extends AccessibilityService {
                 // exclude our own client and system UI overlays.
                 if (!getPackageName().equals(pkgName) && !"com.android.systemui".equals(pkgName)) {
                     lastNonOverlayPackage = pkgName;
+                    if (planPrefetcher != null) {
+                        planPrefetcher.onForegroundAppChanged(pkgName);
+                    }
                 }
             }
         }
@@ -422,6 +484,13 @@ public class AVAGenService extends AccessibilityService {
     public void onDestroy() {
         super.onDestroy();
         instance = null; // Clear instance when service stops
+        if (planEngine != null) {
+            planEngine.shutdown();
+        }
+        ActionPlanRepository.getInstance().stopWatching();
+        if (planPrefetcher != null) {
+            planPrefetcher.shutdown();
+        }
         if (popupManager != null) {
             popupManager.removePopupWindow();
         }
@@ -1,21 +1,32 @@
 package org.labcitrus.avagenclient.actionplan;
 
 import android.accessibilityservice.AccessibilityService;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.accessibility.AccessibilityNodeInfo;
 
+import org.labcitrus.avagenclient.actionplan.CompiledPlan.CompiledStep;
 import org.labcitrus.avagenclient.core.ActionPerformer;
-import org.labcitrus.avagenclient.core.NodeFinder;
+import org.labcitrus.avagenclient.core.ExecutionTracer;
 import org.labcitrus.avagenclient.core.NodeQuery;
-import org.labcitrus.avagenclient.core.StringMatcher;
+import org.labcitrus.avagenclient.core.NodeScroller;
+import org.labcitrus.avagenclient.core.NodeWaiter;
+import org.labcitrus.avagenclient.core.ScrollSearch;
+import org.labcitrus.avagenclient.core.UiIdleDetector;
+import org.labcitrus.avagenclient.core.UiSnapshot;
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Executes an ActionPlan step-by-step.
  *
- * JSON → ActionPlan → ActionStep → StepMatcher → NodeQuery → NodeFinder → AccessibilityNodeInfo → ActionPerformer
+ * JSON → ActionPlan → CompiledPlan (at load time) → CompiledStep → UiSnapshot/NodeFinder → AccessibilityNodeInfo → ActionPerformer
  *
  * Compatible with JSON shape:
  * {
@@ -44,6 +55,18 @@ public class ActionPlanExecutor {
     private static final String TAG = "ActionPlanExecutor";
     private static final long DEFAULT_POST_ACTION_DELAY_MS = 1000L;
 
+    /** Cap on the idle wait after scrolls, which fling and load more content. */
+    private static final long SCROLL_MAX_WAIT_MS = 5000L;
+
+    /** Learned settle times, under getFilesDir(). */
+    private static final String SETTLE_MODEL_FILE = "settle_model.json";
+
+    /** Plan run counters, under getFilesDir(). */
+    private static final String USAGE_STATS_FILE = "plan_usage.json";
+
+    /** Upper bound on waiting for a dispatched gesture to report completion or cancellation. */
+    private static final long GESTURE_TIMEOUT_MS = 3000L;
+
     /** The AccessibilityService instance is the bridge for:
      *   - getRootInActiveWindow()
      *   - performGlobalAction()
@@ -54,113 +77,233 @@ public class ActionPlanExecutor {
     /** Performs actual UI events: click, input, scroll, back */
     private final ActionPerformer performer;
 
+    /** Signals when the UI has settled after a step; fed by AVAGenService.onAccessibilityEvent. */
+    private final UiIdleDetector idleDetector;
+
+    /** Re-evaluates a step's queries on UI events until its target appears. */
+    private final NodeWaiter nodeWaiter;
+
+    /** Scrolls containers with accessibility actions; swipes are the fallback. */
+    private final NodeScroller nodeScroller;
+
+    /** Scrolls until the next step's target is on screen (see {@link CompiledStep#getSearchQueries()}). */
+    private final ScrollSearch scrollSearch;
+
+    /** Spans for the plan, each step and its phases (find, action, settle); see {@link #getTracer()}. */
+    private final ExecutionTracer tracer = new ExecutionTracer();
+
+    /**
+     * Compatibility mode: sleep the old fixed delays (1 s per step, 5 s after scrolls)
+     * instead of waiting for the UI to go idle. Off by default.
+     */
+    private volatile boolean fixedDelayMode;
+
+    /**
+     * Pipelined mode: while a step settles, resolve the next step's target on every UI change,
+     * so it is usually ready once the UI is idle (and used as is while the screen stays unchanged).
+     * On by default; has no effect in fixed-delay mode.
+     */
+    private volatile boolean pipelined = true;
+
+    private volatile long quietWindowMs = UiIdleDetector.DEFAULT_QUIET_WINDOW_MS;
+    private volatile long maxWaitMs = UiIdleDetector.DEFAULT_MAX_WAIT_MS;
+
+    /**
+     * Adaptive mode: size each step's idle wait from the settle times learned for that app and
+     * step, instead of the fixed quiet window / cap above (which remain the fallback until a step
+     * has history). On by default.
+     */
+    private volatile boolean adaptiveSettle = true;
+
+    /** Learned settle times, persisted under the files dir. */
+    private final SettleTimeModel settleModel;
+
+    /** How often each plan runs, persisted under the files dir; see {@link #getUsageStats()}. */
+    private final PlanUsageStats usageStats;
+
+    /** How long the current step's target lookup had to wait. Plan thread only. */
+    private long lastTargetWaitMs;
+
     public ActionPlanExecutor(AccessibilityService service) {
+        this(service, new UiIdleDetector(service.getPackageName()));
+    }
+
+    public ActionPlanExecutor(AccessibilityService service, UiIdleDetector idleDetector) {
         this.service = service;
         this.performer = new ActionPerformer(service);
+        this.idleDetector = idleDetector;
+        this.nodeWaiter = new NodeWaiter(service, idleDetector, tracer);
+        this.nodeScroller = new NodeScroller(idleDetector);
+        this.scrollSearch = new ScrollSearch(nodeWaiter, nodeScroller, idleDetector);
+        this.settleModel = new SettleTimeModel(new File(service.getFilesDir(), SETTLE_MODEL_FILE));
+        this.usageStats = new PlanUsageStats(new File(service.getFilesDir(), USAGE_STATS_FILE));
+    }
+
+    /** The spans of recent plans, for export; disable it to skip recording. */
+    public ExecutionTracer getTracer() {
+        return tracer;
+    }
+
+    /** Run counts per (appId, method), e.g. to prefetch an app's most used plans. */
+    public PlanUsageStats getUsageStats() {
+        return usageStats;
+    }
+
+    /** Opt in to the old fixed post-step sleeps. */
+    public void setFixedDelayMode(boolean enabled) {
+        this.fixedDelayMode = enabled;
+    }
+
+    /** Enable or disable pipelined target resolution. */
+    public void setPipelined(boolean enabled) {
+        this.pipelined = enabled;
+    }
+
+    /** Enable or disable per-app learned idle waits. */
+    public void setAdaptiveSettle(boolean enabled) {
+        this.adaptiveSettle = enabled;
+    }
+
+    /**
+     * Tune the idle wait: the UI counts as settled after {@code quietWindowMs} without events,
+     * and no step waits longer than {@code maxWaitMs} (scrolls get at least 5 s).
+     */
+    public void setIdleWait(long quietWindowMs, long maxWaitMs) {
+        this.quietWindowMs = quietWindowMs;
+        this.maxWaitMs = maxWaitMs;
     }
 
     /**
      * Execute all steps for one VA method.
      * Example from JSON:
      *   "startSleep": { "steps": [...] }
+     *
+     * Each step runs to completion (gestures until the system reports them performed) and the
+     * UI is allowed to settle before the next one starts. A failed step (target not found,
+     * action rejected, gesture cancelled) stops the plan, since later steps would act on the
+     * wrong screen.
+     *
+     * Blocks; call from a worker thread, never the main thread (gesture callbacks run there).
+     * Normally called by {@link PlanEngine}, which owns that thread.
+     *
+     * @return true if every step succeeded.
+     */
+    public boolean executePlan(String appId, ActionPlan plan) {
+        CompiledPlan compiled;
+        try {
+            compiled = CompiledPlan.compile(plan, null);
+        } catch (PlanCompilationException e) {
+            Log.w(TAG, "executePlan: appId=" + appId + " " + e.getMessage());
+            return false;
+        }
+        return executePlan(appId, compiled, null);
+    }
+
+    /**
+     * As {@link #executePlan(String, ActionPlan)} for a plan compiled at load time, reporting
+     * progress to {@code handle} and stopping before the next step once it is cancelled. Every
+     * wait in a step (idle, target, gesture, sleep) returns early when the thread is interrupted,
+     * which is how {@link PlanHandle#cancel()} wakes a running plan.
      */
-    public void executePlan(String appId, ActionPlan plan) {
+    boolean executePlan(String appId, CompiledPlan plan, PlanHandle handle) {
         if (plan == null) {
             Log.w(TAG, "executePlan: plan is null for appId=" + appId);
-            return;
-        }
-        if (plan.isEmpty()) {
-            Log.w(TAG, "executePlan: empty plan for appId=" + appId +
-                    " method=" + plan.getMethodName());
-            return;
+            return false;
         }
 
         Log.i(TAG, "executePlan: appId=" + appId +
                 " method=" + plan.getMethodName() +
-                " steps=" + plan.getSteps().size());
-
-        List<ActionStep> steps = plan.getSteps();
-        for (int i = 0; i < steps.size(); i++) {
-            ActionStep step = steps.get(i);
-            Log.i(TAG, "executePlan: step[" + i + "] = " + step);
-            executeStep(step);
-
-            // Auto-wait logic after each step, with special handling for scroll actions.
-            if (i < steps.size() - 1) {
-                ActionStep next = steps.get(i + 1);
-                String nextRaw = (next != null) ? next.getActionRaw() : null;
-                boolean nextIsSleep = nextRaw != null && nextRaw.equalsIgnoreCase("sleep");
-
-                // Determine if current action is scroll-related
-                String currentAction = (step != null ? step.getActionRaw() : null);
-                boolean isScroll = false;
-                if (currentAction != null) {
-                    String lower = currentAction.toLowerCase();
-                    isScroll = lower.contains("scroll") || lower.contains("scrolldown") || lower.contains("scrollup");
+                " steps=" + plan.size());
+        usageStats.record(appId, plan.getMethodName());
+
+        List<CompiledStep> steps = plan.getSteps();
+        try (ExecutionTracer.Span planSpan = tracer.begin("plan " + plan.getMethodName())) {
+            planSpan.arg("steps", steps.size());
+            NodeWaiter.Result prefetched = null; // next step's target, resolved while this one settled
+            Settled previous = null;             // the wait before this step, recorded once it ran
+            for (int i = 0; i < steps.size(); i++) {
+                if (isCancelled(handle)) {
+                    Log.i(TAG, "executePlan: cancelled before step[" + i + "] method=" + plan.getMethodName());
+                    return false;
                 }
 
-                if (!nextIsSleep) {
-                    long delay = DEFAULT_POST_ACTION_DELAY_MS;
-
-                    // Add an additional 2 seconds after scroll operations
-                    if (isScroll) {
-                        delay += 2000;
-                        Log.i(TAG, "executePlan: scroll action detected — extending wait by 2000 ms");
-                        sleepSafely(DEFAULT_POST_ACTION_DELAY_MS+delay);
-                    }
+                CompiledStep step = steps.get(i);
+                Log.i(TAG, "executePlan: " + step);
+                boolean ok;
+                lastTargetWaitMs = 0;
+                try (ExecutionTracer.Span ignored = tracer.begin("step[" + i + "] " + step.getType())) {
+                    ok = executeStep(step, prefetched);
+                }
+                prefetched = null;
+                if (previous != null && ok) {
+                    // Only now is it known whether that wait was long enough for this step.
+                    settleModel.record(appId, plan.getMethodName(), steps.get(i - 1), previous.observed,
+                            previous.quietWindowMs, lastTargetWaitMs);
+                }
+                previous = null;
+                if (isCancelled(handle)) {
+                    Log.i(TAG, "executePlan: cancelled during step[" + i + "] method=" + plan.getMethodName());
+                    return false;
+                }
+                if (!ok) {
+                    Log.w(TAG, "executePlan: step[" + i + "] failed, stopping method="
+                            + plan.getMethodName() + " (" + (steps.size() - i - 1) + " step(s) not run)");
+                    return false;
+                }
+                if (handle != null) {
+                    handle.onStepCompleted(i);
+                }
 
-                    if (!nextIsSleep) {
-                        Log.i(TAG, "executePlan: auto-wait " + DEFAULT_POST_ACTION_DELAY_MS + " ms before next step");
-                        sleepSafely(DEFAULT_POST_ACTION_DELAY_MS);
+                // Auto-wait after each step (policy precomputed by CompiledPlan).
+                if (step.getWaitAfter() != CompiledPlan.WaitPolicy.NONE) {
+                    try (ExecutionTracer.Span span = tracer.begin("settle")) {
+                        Settled settled = waitForSettle(appId, plan.getMethodName(), step, steps.get(i + 1));
+                        prefetched = settled.prefetched;
+                        if (settled.observed != null && !isCancelled(handle)) {
+                            previous = settled;
+                            span.arg("quiet_ms", settled.quietWindowMs)
+                                    .arg("activity_ms", settled.observed.getActivityMs())
+                                    .arg("max_gap_ms", settled.observed.getMaxGapMs());
+                        }
                     }
                 }
             }
+            return true;
+        } finally {
+            settleModel.save();
+            usageStats.save();
         }
     }
 
     /**
      * Execute a single step.
-     * JSON: step["action"] → enum ActionType
+     *
+     * @param prefetched The step's target as resolved while the previous step settled, or null.
+     * @return false if the step failed.
      */
-    private void executeStep(ActionStep step) {
-        if (step == null) {
-            Log.w(TAG, "executeStep: step is null");
-            return;
-        }
-
-        ActionType type = step.getActionType();
-        Log.i(TAG, "executeStep: actionType=" + type + " raw=" + step.getActionRaw());
-
-        switch (type) {
+    private boolean executeStep(CompiledStep step, NodeWaiter.Result prefetched) {
+        switch (step.getType()) {
             case SLEEP:
-                executeSleep(step);
-                break;
+                return executeSleep(step);
             case CLICK:
-                executeClick(step);
-                break;
+                return executeClick(step, prefetched);
             case INPUT_TEXT:
-                executeInputText(step);
-                break;
+                return executeInputText(step, prefetched);
             case SCROLL:
-                executeScroll(step);
-                break;
             case SCROLL_DOWN:
-                executeScrollDown(step);
-                break;
+                return executeScroll(step, prefetched);
             case SWIPE_LEFT:
-                executeSwipeLeft(step);
-                break;
+                return executeSwipeLeft(step);
             case SWIPE_RIGHT:
-                executeSwipeRight(step);
-                break;
+                return executeSwipeRight(step);
             case GLOBAL_BACK:
-                executeGlobalBack(step);
-                break;
+                return executeGlobalBack(step);
 
-            case UNKNOWN:
             default:
-                Log.w(TAG, "executeStep: UNKNOWN action for step=" + step);
-                break;
+                // CompiledPlan rejects actions it cannot run, so this is a new ActionType
+                // without a handler.
+                Log.w(TAG, "executeStep: no handler for " + step);
+                return false;
         }
     }
 
@@ -168,63 +311,115 @@ public class ActionPlanExecutor {
     // region: individual action handlers
     // ---------------------------------------------------------------------------------------------
 
-    private void executeSleep(ActionStep step) {
-        Long millis = step.getMillis();
-        long duration = (millis != null && millis > 0) ? millis : 1000L;
+    private boolean executeSleep(CompiledStep step) {
+        long duration = step.getSleepMillis();
 
         // Example: {"action":"sleep","millis":2000}
         Log.i(TAG, "executeSleep: millis=" + duration);
 
-        sleepSafely(duration);
+        return sleepSafely(duration);
     }
 
-    private void executeClick(ActionStep step) {
-        AccessibilityNodeInfo node = findNodeForStep(step);
+    private boolean executeClick(CompiledStep step, NodeWaiter.Result prefetched) {
+        AccessibilityNodeInfo node = findNodeForStep(step, prefetched);
         if (node == null) {
-            Log.w(TAG, "executeClick: no node found for step=" + step);
-            return;
+            Log.w(TAG, "executeClick: no node found for " + step);
+            return false;
         }
-        performer.performClick(node);
+        return awaitGesture("executeClick", performer.performClick(node));
     }
 
-    private void executeInputText(ActionStep step) {
-        AccessibilityNodeInfo node = findNodeForStep(step);
+    private boolean executeInputText(CompiledStep step, NodeWaiter.Result prefetched) {
+        AccessibilityNodeInfo node = findNodeForStep(step, prefetched);
         if (node == null) {
-            Log.w(TAG, "executeInputText: no node found for step=" + step);
-            return;
+            Log.w(TAG, "executeInputText: no node found for " + step);
+            return false;
         }
         String text = step.getText();
-        if (text == null) {
-            Log.w(TAG, "executeInputText: text is null for step=" + step);
-            return;
+        boolean ok;
+        try (ExecutionTracer.Span ignored = tracer.begin("action")) {
+            ok = performer.performInput(node, text);
         }
-        boolean ok = performer.performInput(node, text);
         Log.i(TAG, "executeInputText: result=" + ok + " text=" + text);
+        return ok;
     }
 
-    private void executeScroll(ActionStep step) {
-        Log.i(TAG, "executeScroll: executing generic scrollDown()");
-        performer.performScrollDown();
-    }
+    /**
+     * Scroll the step's container (its node_query / matchers; if it has none or they match
+     * nothing within the step's timeout, the largest visible scrollable) with ACTION_SCROLL_TO_POSITION if the step has a position and the container
+     * is a collection, else ACTION_SCROLL_FORWARD / BACKWARD. Either must be confirmed by a
+     * TYPE_VIEW_SCROLLED event; otherwise (no container, action refused, no event) falls back to
+     * a full-screen swipe.
+     *
+     * A page scroll that leads to a click / input instead scrolls until that step's target is
+     * on screen, possibly not at all; see {@link ScrollSearch}.
+     *
+     * Example: {"action":"scroll","direction":"up"}
+     *          {"action":"scroll","node_query":"withId(\"list\")","position":40}
+     */
+    private boolean executeScroll(CompiledStep step, NodeWaiter.Result prefetched) {
+        boolean forward = step.isScrollForward();
+        AccessibilityNodeInfo container = null;
+        if (step.needsTarget()) {
+            container = findNodeForStep(step, prefetched);
+            if (container == null) {
+                Log.w(TAG, "executeScroll: no container found for " + step + ", using the main scrollable");
+            }
+        }
+        if (container == null) {
+            container = findScrollContainer();
+        }
+
+        if (container != null && step.getSearchQueries() != null) {
+            ScrollSearch.Outcome outcome;
+            try (ExecutionTracer.Span span = tracer.begin("scroll search")) {
+                outcome = scrollSearch.scrollUntilFound(container, forward, step.getSearchScrolls(),
+                        SystemClock.uptimeMillis() + CompiledPlan.DEFAULT_SEARCH_TIMEOUT_MS, step.getSearchQueries());
+                span.arg("scrolls", outcome.getScrolls()).arg("found", outcome.isFound() ? 1 : 0);
+            }
+            Log.i(TAG, "executeScroll: search for the next target " + outcome);
+            if (outcome.isFound() || outcome.getScrolls() > 0) {
+                // Not found: the next step reports the missing target.
+                return true;
+            }
+        }
 
-    private void executeScrollDown(ActionStep step) {
-        Log.i(TAG, "executeScrollDown: scrollDown()");
-        performer.performScrollDown();
+        if (container != null) {
+            try (ExecutionTracer.Span span = tracer.begin("action")) {
+                boolean scrolled = false;
+                if (step.getScrollPosition() >= 0) {
+                    scrolled = nodeScroller.scrollToPosition(container, step.getScrollPosition());
+                }
+                if (!scrolled) {
+                    scrolled = nodeScroller.scrollBy(container, forward);
+                }
+                span.arg("node_scroll", scrolled ? 1 : 0);
+                if (scrolled) {
+                    return true;
+                }
+            }
+        }
+
+        Log.i(TAG, "executeScroll: node scroll unavailable, falling back to a "
+                + (forward ? "scroll-down" : "scroll-up") + " swipe");
+        return awaitGesture("executeScroll", forward ? performer.performScrollDown() : performer.performScrollUp());
     }
 
-    private void executeSwipeLeft(ActionStep step) {
+    private boolean executeSwipeLeft(CompiledStep step) {
         Log.i(TAG, "executeSwipeLeft: full-screen swipe left");
-        performer.performSwipeLeft();
+        return awaitGesture("executeSwipeLeft", performer.performSwipeLeft());
     }
 
-    private void executeSwipeRight(ActionStep step) {
+    private boolean executeSwipeRight(CompiledStep step) {
         Log.i(TAG, "executeSwipeRight: full-screen swipe right");
-        performer.performSwipeRight();
+        return awaitGesture("executeSwipeRight", performer.performSwipeRight());
     }
 
-    private void executeGlobalBack(ActionStep step) {
+    private boolean executeGlobalBack(CompiledStep step) {
         Log.i(TAG, "executeGlobalBack: pressBack()");
-        performer.pressBack();
+        try (ExecutionTracer.Span ignored = tracer.begin("action")) {
+            return performer.pressBack();
+        }
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -232,168 +427,177 @@ public class ActionPlanExecutor {
     // ---------------------------------------------------------------------------------------------
 
     /**
-     * Resolve a target node for the given step.
-     *
-     * Priority:
-     *  1) If step.node_query is present (string DSL), parse it via NodeQuery.parseList(...)
-     *     and use the full, possibly nested query:
+     * Resolve a target node for the given step from its compiled queries (see
+     * {@link CompiledPlan} for how node_query / matchers become NodeQuery[]).
      *
-     *     Examples (from server JSON):
-     *       "node_query": "withText(\"YES\"), withId(\"button1\")"
-     *       "node_query": "withParent(withId(\"Amount\"), hasDescendant(withId(\"TaType\")))"
+     * compiled NodeQuery[] → NodeWaiter/NodeFinder → AccessibilityNodeInfo.
      *
-     *  2) Otherwise, fall back to the flat "matchers" array and build a conjunction
-     *     of NodeQuery predicates:
+     * If the target is not on screen yet, waits for it up to the step's "timeout_ms" (default 5 s),
+     * re-evaluating on UI events; returns null only once that deadline has passed.
      *
-     *     Examples:
-     *       "matchers": [
-     *         { "type": "text", "value": "Statistics", "mode": "equalsIgnoreCase" },
-     *         { "type": "id",   "value": "title",      "mode": "equalsIgnoreCase" }
-     *       ]
-     *
-     * JSON → ActionStep.node_query / matchers → NodeQuery[] → NodeFinder → AccessibilityNodeInfo.
+     * A {@code prefetched} match (pipelined mode) is used as is only if no UI event arrived
+     * since it was found (see {@link NodeWaiter#revalidate(NodeWaiter.Result)}), so it is always
+     * the node a fresh search would return; otherwise the search below runs as usual.
      */
-    private AccessibilityNodeInfo findNodeForStep(ActionStep step) {
-        if (step == null) {
-            Log.w(TAG, "findNodeForStep: step is null");
-            return null;
-        }
-
-        // 1) Prefer the node_query DSL if provided (this can express nested structure using
-        //    withParent(...), withChild(...), hasDescendant(...), etc.).
-        NodeQuery[] queries = null;
-        String nodeQueryExpr = step.getNodeQuery();
-        if (nodeQueryExpr != null && !nodeQueryExpr.trim().isEmpty()) {
-            Log.i(TAG, "findNodeForStep: using node_query=" + nodeQueryExpr);
-            queries = NodeQuery.parseList(nodeQueryExpr);
-
-            if (queries == null || queries.length == 0) {
-                Log.w(TAG, "findNodeForStep: NodeQuery.parseList produced no queries, will fall back to matchers.");
-            }
+    private AccessibilityNodeInfo findNodeForStep(CompiledStep step, NodeWaiter.Result prefetched) {
+        try (ExecutionTracer.Span span = tracer.begin("find")) {
+            AccessibilityNodeInfo node = resolveNode(step, prefetched);
+            span.arg("found", node != null ? 1 : 0);
+            return node;
         }
+    }
 
-        // 2) If node_query is missing or failed to parse, fall back to the flat matchers.
-        if (queries == null || queries.length == 0) {
-            List<StepMatcher> matchers = step.getMatchers();
-            if (matchers == null || matchers.isEmpty()) {
-                Log.w(TAG, "findNodeForStep: no node_query and no matchers for step=" + step);
-                return null;
+    private AccessibilityNodeInfo resolveNode(CompiledStep step, NodeWaiter.Result prefetched) {
+        if (prefetched != null && prefetched.isFound()) {
+            boolean valid;
+            try (ExecutionTracer.Span ignored = tracer.begin("revalidate")) {
+                valid = nodeWaiter.revalidate(prefetched);
             }
-
-            Log.i(TAG, "findNodeForStep: building NodeQuery from matchers=" + matchers);
-            queries = buildQueriesFromMatchers(matchers);
-
-            if (queries.length == 0) {
-                Log.w(TAG, "findNodeForStep: no valid NodeQuery built for step=" + step);
-                return null;
+            if (valid) {
+                AccessibilityNodeInfo node = prefetched.getNode();
+                Log.i(TAG, "findNodeForStep: using prefetched node=" + node);
+                return node;
             }
+            Log.i(TAG, "findNodeForStep: screen changed since the prefetch, searching again");
         }
 
-        // 3) Execute the NodeQuery chain against the current accessibility tree.
-        AccessibilityNodeInfo root = service.getRootInActiveWindow();
-        if (root == null) {
-            Log.w(TAG, "findNodeForStep: rootInActiveWindow is null");
-            return null;
-        }
-
-        List<AccessibilityNodeInfo> allNodes = NodeFinder.getAllNodes(root);
-        List<AccessibilityNodeInfo> matches = NodeFinder.findNodes(allNodes, queries);
+        // Execute the NodeQuery chain against the accessibility tree, re-evaluating on UI
+        // events until the target appears or the step's deadline passes. Each attempt copies
+        // the tree once; the queries read the snapshot, not the live tree.
+        long timeout = step.getFindTimeoutMs();
+        NodeWaiter.Result result = nodeWaiter.waitForNode(SystemClock.uptimeMillis() + timeout, step.getQueries());
 
-        if (matches.isEmpty()) {
-            Log.w(TAG, "findNodeForStep: no matching nodes for step=" + step);
+        if (!result.isFound()) {
+            Log.w(TAG, "findNodeForStep: no matching nodes within " + timeout + " ms ("
+                    + result + ") for " + step);
             return null;
         }
 
-        AccessibilityNodeInfo node = matches.get(0);
-        Log.i(TAG, "findNodeForStep: found node=" + node);
+        // Only the winning node goes back to a live AccessibilityNodeInfo.
+        if (result.getAttempts() > 1) {
+            lastTargetWaitMs = result.getElapsedMs();
+        }
+        AccessibilityNodeInfo node = result.getNode();
+        Log.i(TAG, "findNodeForStep: found node=" + node + " (" + result + ")");
         return node;
     }
 
-    /**
-     * Fallback: build a flat conjunction of NodeQuery predicates from the "matchers" array
-     * when no node_query DSL is present on the step.
-     *
-     * Example matchers from JSON:
-     *   {"type":"id","value":"title","mode":"equalsIgnoreCase"}
-     *   {"type":"text","value":"Statistics","mode":"equalsIgnoreCase"}
-     *
-     * These become:
-     *   NodeQuery.withId(equalsIgnoreCase("title"))
-     *   NodeQuery.withText(equalsIgnoreCase("Statistics"))
-     * which are then combined by NodeFinder.findNodes(...).
-     */
-    private NodeQuery[] buildQueriesFromMatchers(List<StepMatcher> matchers) {
-        List<NodeQuery> result = new ArrayList<>();
-
-        for (StepMatcher m : matchers) {
-            if (m == null) continue;
-
-            String type = m.getType();     // "text", "id", "contentDescription"
-            String value = m.getValue();   // "Statistics"
-            String mode = m.getMode();     // equalsIgnoreCase, contains, etc.
+    /** The largest visible scrollable node on screen, or null. */
+    private AccessibilityNodeInfo findScrollContainer() {
+        try (ExecutionTracer.Span ignored = tracer.begin("find")) {
+            UiSnapshot snapshot = nodeWaiter.captureNow();
+            int container = snapshot != null ? NodeScroller.findScrollContainer(snapshot) : UiSnapshot.NO_NODE;
+            if (container == UiSnapshot.NO_NODE) {
+                Log.i(TAG, "findScrollContainer: nothing scrollable on screen");
+                return null;
+            }
+            AccessibilityNodeInfo node = snapshot.getNode(container);
+            Log.i(TAG, "findScrollContainer: using " + node.getClassName() + " " + node.getViewIdResourceName());
+            return node;
+        }
+    }
 
-            StringMatcher sm = toStringMatcher(value, mode);
-            NodeQuery q = toNodeQuery(type, sm);
+    // ---------------------------------------------------------------------------------------------
+    // region: utilities
+    // ---------------------------------------------------------------------------------------------
 
-            if (q != null) {
-                result.add(q);
-            }
+    /** Outcome of the wait between two steps. */
+    private static final class Settled {
+        /** The next step's target, resolved speculatively during the wait, or null. */
+        final NodeWaiter.Result prefetched;
+        /** What the idle wait saw; null in fixed-delay mode. */
+        final UiIdleDetector.Settle observed;
+        final long quietWindowMs;
+
+        Settled(NodeWaiter.Result prefetched, UiIdleDetector.Settle observed, long quietWindowMs) {
+            this.prefetched = prefetched;
+            this.observed = observed;
+            this.quietWindowMs = quietWindowMs;
         }
-        return result.toArray(new NodeQuery[0]);
     }
 
     /**
-     * Map StepMatcher.mode + value → StringMatcher.
+     * Wait between steps: until the UI is idle, or the old fixed delays in compatibility mode.
+     * In adaptive mode the quiet window and cap come from {@link SettleTimeModel}.
+     * In pipelined mode, {@code next}'s target is resolved on every UI change meanwhile.
      */
-    private StringMatcher toStringMatcher(String value, String mode) {
-        if (mode == null) return StringMatcher.equalsIgnoreCase(value);
-
-        switch (mode) {
-            case "equals":
-            case "equalsIgnoreCase":  return StringMatcher.equalsIgnoreCase(value);
-            case "contains":
-            case "containsIgnoreCase": return StringMatcher.containsIgnoreCase(value);
-            case "startsWith":
-            case "startsWithIgnoreCase": return StringMatcher.startsWithIgnoreCase(value);
-            case "endsWith":
-            case "endsWithIgnoreCase": return StringMatcher.endsWithIgnoreCase(value);
-            case "regex": return StringMatcher.regex(value);
+    private Settled waitForSettle(String appId, String method, CompiledStep step, CompiledStep next) {
+        boolean afterScroll = step.getWaitAfter() == CompiledPlan.WaitPolicy.SETTLE_AFTER_SCROLL;
+        if (fixedDelayMode) {
+            if (afterScroll) {
+                // Add an additional 2 seconds after scroll operations
+                long delay = DEFAULT_POST_ACTION_DELAY_MS + 2000;
+                Log.i(TAG, "executePlan: scroll action detected — extending wait by 2000 ms");
+                sleepSafely(DEFAULT_POST_ACTION_DELAY_MS + delay);
+            }
+            Log.i(TAG, "executePlan: auto-wait " + DEFAULT_POST_ACTION_DELAY_MS + " ms before next step");
+            sleepSafely(DEFAULT_POST_ACTION_DELAY_MS);
+            return new Settled(null, null, 0);
+        }
 
-            default:
-                Log.w(TAG, "toStringMatcher: unknown mode=" + mode + " → default equalsIgnoreCase");
-                return StringMatcher.equalsIgnoreCase(value);
+        long quiet = quietWindowMs;
+        long cap = afterScroll ? Math.max(maxWaitMs, SCROLL_MAX_WAIT_MS) : maxWaitMs;
+        if (adaptiveSettle) {
+            SettleTimeModel.Budget budget = settleModel.budgetFor(appId, method, step, quiet, cap);
+            quiet = budget.getQuietWindowMs();
+            cap = budget.getMaxWaitMs();
+            Log.i(TAG, "executePlan: waiting for UI idle, " + budget);
+        } else {
+            Log.i(TAG, "executePlan: waiting for UI idle (quiet " + quiet + " ms, cap " + cap + " ms)");
         }
+
+        NodeQuery[] nextQueries = pipelined ? next.getQueries() : null;
+        if (nextQueries == null) {
+            return new Settled(null, idleDetector.awaitSettle(quiet, cap, null), quiet);
+        }
+
+        AtomicReference<NodeWaiter.Result> latest = new AtomicReference<>();
+        Runnable speculate = () -> latest.set(nodeWaiter.evaluateNow(nextQueries));
+        speculate.run(); // the screen may not change at all (same-screen click / input)
+        UiIdleDetector.Settle observed = idleDetector.awaitSettle(quiet, cap, speculate);
+
+        NodeWaiter.Result result = latest.get();
+        Log.i(TAG, "executePlan: next target " + (result.isFound() ? "prefetched" : "not on screen yet"));
+        return new Settled(result, observed, quiet);
     }
 
     /**
-     * Convert matcher type → NodeQuery builder.
-     * Supported types (matching JSON):
-     *   text, id, contentDescription, className
+     * Block until a gesture (or click) future completes. A cancelled, undispatched or
+     * timed-out gesture fails the step.
      */
-    private NodeQuery toNodeQuery(String type, StringMatcher matcher) {
-        if (type == null || matcher == null) return null;
-
-        switch (type) {
-            case "text":               return NodeQuery.withText(matcher);
-            case "id":                 return NodeQuery.withId(matcher);
-            case "contentDescription": return NodeQuery.withContentDescription(matcher);
-            case "className":          return NodeQuery.withClassName(matcher);
-            default:
-                Log.w(TAG, "toNodeQuery: unsupported matcher type=" + type);
-                return null;
+    private boolean awaitGesture(String caller, CompletableFuture<Boolean> gesture) {
+        try (ExecutionTracer.Span ignored = tracer.begin("action")) {
+            boolean performed = gesture.get(GESTURE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (!performed) {
+                Log.w(TAG, caller + ": gesture was cancelled or not dispatched");
+            }
+            return performed;
+        } catch (TimeoutException e) {
+            Log.w(TAG, caller + ": no gesture result after " + GESTURE_TIMEOUT_MS + " ms");
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, caller + ": interrupted while waiting for gesture", e);
+            return false;
+        } catch (ExecutionException e) {
+            Log.w(TAG, caller + ": gesture failed", e);
+            return false;
         }
     }
 
-    // ---------------------------------------------------------------------------------------------
-    // region: utilities
-    // ---------------------------------------------------------------------------------------------
-
-    private void sleepSafely(long millis) {
+    /** @return false if interrupted (the interrupt flag is kept). */
+    private boolean sleepSafely(long millis) {
         try {
             Thread.sleep(millis);
+            return true;
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             Log.w(TAG, "sleepSafely: interrupted", e);
+            return false;
         }
     }
+
+    private static boolean isCancelled(PlanHandle handle) {
+        return Thread.currentThread().isInterrupted() || (handle != null && handle.isCancelled());
+    }
 }
\ No newline at end of file
@@ -1,20 +1,31 @@
 package org.labcitrus.avagenclient.actionplan;
 
 import android.accessibilityservice.AccessibilityService;
+import android.os.FileObserver;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.gson.Gson;
-import com.google.gson.annotations.SerializedName;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.util.Collections;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
 
 /**
- * Loads and caches ActionPlans from:
+ * Loads, compiles and caches ActionPlans from:
  *
  *   workspace/actionplan/{appId}_actionplan.json
  *
@@ -32,17 +43,214 @@ import java.util.Map;
  *     }
  *   }
  * }
+ *
+ * Opening an app's file only indexes it ({@link PlanFileIndex}: method name → byte range);
+ * a plan is decoded and compiled into a {@link CompiledPlan} the first time it is requested, so
+ * a file with hundreds of methods opens in one scan and only the plans in use stay in memory.
+ * Plans that fail to compile are logged with their diagnostics and never start running.
+ *
+ * <p>The JSON is the source of truth, but after the first load it is rarely read: a background
+ * thread writes every compiled plan to a binary image in the cache dir ({@link CompiledPlanFile}),
+ * and later loads (e.g. after a service restart) map that image and restore plans from it
+ * without parsing. An image older than its JSON is ignored and rewritten.</p>
+ *
+ * <pre>
+ *   load ──→ image exists and matches the JSON's length + mtime? ──yes──→ map image
+ *              │no
+ *              └─→ index the JSON, and write a new image in the background
+ * </pre>
+ *
+ * <p>Plan files can be replaced while the service runs. Each cached app remembers the
+ * {@link PlanFileStamp} (length, mtime, CRC) of the JSON version it was loaded from; a
+ * {@link FileObserver} on the plan directory (see {@link #startWatching}) and a throttled check
+ * on access notice a new version, which is loaded on a background thread, pre-decoded and then
+ * swapped in under the lock:</p>
+ * <pre>
+ *   file written ──→ FileObserver / access check ──→ content differs? ──no──→ keep
+ *                                                      │yes
+ *   background: load new version, decode the plans in use ──→ swap cache entry
+ * </pre>
+ * Callers keep the {@link CompiledPlan} they already got, so a running plan finishes on the
+ * version it started with; the next getPlan returns the new one.
+ *
+ * <p>The cache is safe to use from any thread and bounded in memory:</p>
+ * <pre>
+ *   getPlan ──→ cached? ──yes──→ hit (entry becomes most recently used)
+ *                  │no
+ *                  ├─ another thread already loading this appId? ──→ wait for its result
+ *                  └─ index the file, insert, evict least recently used apps
+ *                     until the total weight fits the budget
+ * </pre>
+ * An app's weight is its index plus the JSON size of each plan decoded so far, which is roughly
+ * proportional to the compiled plans it holds. See {@link #setMaxWeightBytes(long)} and {@link #getStats()}.
  */
 public class ActionPlanRepository {
 
     private static final String TAG = "ActionPlanRepository";
     private static ActionPlanRepository INSTANCE;
 
-    // appId -> (methodName -> ActionPlan)
-    private final Map<String, Map<String, ActionPlan>> cache = new HashMap<>();
+    /** Default cache budget: the plan files of a dozen typical apps. */
+    public static final long DEFAULT_MAX_WEIGHT_BYTES = 1024L * 1024L;
+
+    /** Weight charged for an app without a plan file, so negative entries are bounded too. */
+    private static final long MIN_ENTRY_WEIGHT_BYTES = 256L;
+
+    /** getPlan checks a cached app's plan file for changes at most this often. */
+    public static final long CHECK_INTERVAL_MS = 1000L;
+
+    private static final String PLAN_FILE_SUFFIX = "_actionplan.json";
+
     private final Gson gson = new Gson();
+    private final LongSupplier clock;
+
+    private final Object lock = new Object();
+    // Guarded by lock. appId -> plans, in access order (eldest = least recently used).
+    private final LinkedHashMap<String, AppPlans> cache = new LinkedHashMap<>(16, 0.75f, true);
+    // Guarded by lock. appId -> load in progress, so concurrent misses parse the file once.
+    private final Map<String, CompletableFuture<AppPlans>> loading = new HashMap<>();
+    private long cachedWeight;
+    private long maxWeightBytes = DEFAULT_MAX_WEIGHT_BYTES;
+
+    // Guarded by lock.
+    private long hits;
+    private long misses;
+    private long coalesced;
+    private long loads;
+    private long evictions;
+    private long loadNanos;
+
+    private long imageLoads;
+    private long reloads;
+    private long decodes;
+    private long decodeNanos;
+
+    // Guarded by lock. appIds whose binary image is being written / whose file is being reloaded.
+    private final Set<String> writingImages = new HashSet<>();
+    private final Set<String> reloading = new HashSet<>();
+    // Guarded by lock.
+    private FileObserver observer;
+    // Image writes and reloads.
+    private final Executor background;
 
-    private ActionPlanRepository() {}
+    /**
+     * One app's plan source (the binary image, else the JSON index), the plans decoded from it so
+     * far, and their cache weight.
+     */
+    private static final class AppPlans {
+        final File jsonFile;
+        final File imageFile;
+        /** Null if plans come from the image or the app has no readable plan file. */
+        final PlanFileIndex index;
+        /** Null if the app has no current binary image. */
+        final CompiledPlanFile image;
+        /** The JSON version these plans came from; null if there was no readable file. */
+        volatile PlanFileStamp stamp;
+        volatile long lastCheckMs;
+        // Guarded by this AppPlans (serializes decoding within one app).
+        final Map<String, CompiledPlan> compiled = new HashMap<>();
+        final Set<String> rejected = new HashSet<>();
+        // Guarded by the repository lock.
+        long weight;
+
+        AppPlans(File jsonFile, File imageFile, PlanFileStamp stamp, PlanFileIndex index, CompiledPlanFile image) {
+            this.jsonFile = jsonFile;
+            this.imageFile = imageFile;
+            this.stamp = stamp;
+            this.index = index;
+            this.image = image;
+            long sourceWeight = image != null ? image.getWeight() : index != null ? index.getWeight() : 0;
+            this.weight = Math.max(MIN_ENTRY_WEIGHT_BYTES, sourceWeight);
+        }
+
+        boolean contains(String methodName) {
+            return image != null ? image.contains(methodName) : index != null && index.contains(methodName);
+        }
+
+        Set<String> methodNames() {
+            return image != null ? image.getMethodNames()
+                    : index != null ? index.getMethodNames() : Collections.<String>emptySet();
+        }
+
+        int size() {
+            return methodNames().size();
+        }
+
+        /** Bytes a decoded plan adds to the weight. */
+        long sizeOf(String methodName) {
+            return image != null ? image.getRecordLength(methodName) : index != null ? index.getSpanLength(methodName) : 0;
+        }
+
+        /** True if plans can no longer be decoded: the JSON was rewritten under the index, or the image was deleted. */
+        boolean isStale() {
+            return image != null ? !image.exists() : index != null && index.isStale();
+        }
+    }
+
+    /** Cache counters, as of {@link #getStats()}. */
+    public static final class Stats {
+        public final long hits;
+        public final long misses;
+        /** Misses that waited for another thread's load instead of loading. */
+        public final long coalesced;
+        /** Files loaded (binary image or JSON index). */
+        public final long loads;
+        /** Loads served by a binary image instead of the JSON. */
+        public final long imageLoads;
+        /** New file versions swapped in by hot reload. */
+        public final long reloads;
+        public final long evictions;
+        public final long totalLoadMs;
+        /** Plans decoded and compiled on demand. */
+        public final long decodes;
+        public final long totalDecodeMs;
+        public final int cachedApps;
+        public final long cachedWeightBytes;
+        public final long maxWeightBytes;
+
+        Stats(long hits, long misses, long coalesced, long loads, long imageLoads, long reloads,
+              long evictions, long totalLoadMs, long decodes, long totalDecodeMs, int cachedApps, long cachedWeightBytes, long maxWeightBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.coalesced = coalesced;
+            this.loads = loads;
+            this.imageLoads = imageLoads;
+            this.reloads = reloads;
+            this.evictions = evictions;
+            this.totalLoadMs = totalLoadMs;
+            this.decodes = decodes;
+            this.totalDecodeMs = totalDecodeMs;
+            this.cachedApps = cachedApps;
+            this.cachedWeightBytes = cachedWeightBytes;
+            this.maxWeightBytes = maxWeightBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{hits=" + hits + ", misses=" + misses + " (" + coalesced + " coalesced)"
+                    + ", loads=" + loads + " (" + imageLoads + " from image), avgLoadMs=" + (loads > 0 ? totalLoadMs / loads : 0)
+                    + ", reloads=" + reloads + ", decodes=" + decodes + ", avgDecodeMs=" + (decodes > 0 ? totalDecodeMs / decodes : 0)
+                    + ", evictions=" + evictions + ", apps=" + cachedApps
+                    + ", weight=" + cachedWeightBytes + "/" + maxWeightBytes + '}';
+        }
+    }
+
+    private ActionPlanRepository() {
+        this(SystemClock::uptimeMillis, Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "PlanLoader");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }));
+    }
+
+    /**
+     * @param clock      Uptime in ms, for the change-check throttle.
+     * @param background Runs image writes and reloads; tests pass a direct executor to run them inline.
+     */
+    ActionPlanRepository(LongSupplier clock, Executor background) {
+        this.clock = clock;
+        this.background = background;
+    }
 
     public static synchronized ActionPlanRepository getInstance() {
         if (INSTANCE == null) {
@@ -52,10 +260,13 @@ public class ActionPlanRepository {
     }
 
     /**
-     * Get an ActionPlan for (appId, methodName).
-     * This will lazy-load and cache the JSON file for that appId.
+     * Get the compiled plan for (appId, methodName).
+     * This will lazily open the app's binary image (or index its JSON file), then restore or
+     * decode and compile just this plan, and cache it. Safe to call from any thread; a miss
+     * blocks while the file is opened (by this or another caller). A hit may start a background
+     * reload if the file changed, and still returns the current version.
      */
-    public ActionPlan getPlan(AccessibilityService service,
+    public CompiledPlan getPlan(AccessibilityService service,
                               String appId,
                               String methodName) {
         if (appId == null || methodName == null) {
@@ -63,13 +274,15 @@ public class ActionPlanRepository {
             return null;
         }
 
-        Map<String, ActionPlan> plansForApp = cache.get(appId);
-        if (plansForApp == null) {
-            plansForApp = loadPlansForApp(service, appId);
-            cache.put(appId, plansForApp);
+        AppPlans app = plansFor(service, appId);
+        checkForChange(appId, app);
+        CompiledPlan plan = planFor(appId, app, methodName);
+        if (plan == null && app.isStale()) {
+            // The file was rewritten since it was loaded: load it again.
+            Log.i(TAG, "getPlan: plan file for appId=" + appId + " changed, reloading");
+            invalidate(appId);
+            plan = planFor(appId, plansFor(service, appId), methodName);
         }
-
-        ActionPlan plan = plansForApp.get(methodName);
         if (plan == null) {
             Log.w(TAG, "getPlan: no plan for appId=" + appId +
                     " methodName=" + methodName);
@@ -78,82 +291,452 @@ public class ActionPlanRepository {
     }
 
     /**
-     * Load all plans for a given appId from:
-     *   filesDir/workspace/actionplan/{appId}_actionplan.json
+     * Warm the cache for an app before its plans are asked for: open its plan file, then decode
+     * and compile the {@code preferred} methods first and the rest after them, up to
+     * {@code limit} plans. Blocks while it works, so call it off the main thread.
      *
-     * Adjust the base directory if your generator writes elsewhere.
+     * @return How many of the app's plans are now ready.
      */
-    private Map<String, ActionPlan> loadPlansForApp(AccessibilityService service,
-                                                    String appId) {
+    public int prefetch(AccessibilityService service, String appId, List<String> preferred, int limit) {
+        if (appId == null) {
+            return 0;
+        }
+        AppPlans app = plansFor(service, appId);
+        checkForChange(appId, app);
+        Set<String> order = new LinkedHashSet<>(preferred);
+        order.addAll(app.methodNames());
+        int ready = 0;
+        for (String methodName : order) {
+            if (ready >= limit || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (app.contains(methodName) && planFor(appId, app, methodName) != null) {
+                ready++;
+            }
+        }
+        return ready;
+    }
+
+    private AppPlans plansFor(AccessibilityService service, String appId) {
+        CompletableFuture<AppPlans> pending;
+        synchronized (lock) {
+            AppPlans cached = cache.get(appId);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            pending = loading.get(appId);
+            if (pending != null) {
+                coalesced++;
+            } else {
+                loading.put(appId, new CompletableFuture<>());
+            }
+        }
+        if (pending != null) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                // The loading thread failed; it has already rethrown the same exception.
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+
+        long start = System.nanoTime();
+        AppPlans loaded;
         try {
-            // workspace/actionplan under internal files dir
-            File workspaceDir = new File(service.getFilesDir(), "workspace");
-            File actionPlanDir = new File(workspaceDir, "actionplan");
-            File jsonFile = new File(actionPlanDir, appId + "_actionplan.json");
+            loaded = loadPlansForApp(service, appId);
+        } catch (RuntimeException | Error e) {
+            // Cache nothing: the next call tries again.
+            CompletableFuture<AppPlans> failed;
+            synchronized (lock) {
+                failed = loading.remove(appId);
+            }
+            failed.completeExceptionally(e);
+            throw e;
+        }
 
-            if (!jsonFile.exists()) {
-                Log.w(TAG, "loadPlansForApp: file not found: " + jsonFile.getAbsolutePath());
-                return Collections.emptyMap();
+        CompletableFuture<AppPlans> done;
+        synchronized (lock) {
+            long elapsed = System.nanoTime() - start;
+            loads++;
+            if (loaded.image != null) {
+                imageLoads++;
             }
+            loadNanos += elapsed;
+            Log.i(TAG, "plansFor: loaded appId=" + appId + " (" + loaded.size() + " plan(s) from "
+                    + (loaded.image != null ? "binary image" : "JSON") + ") in "
+                    + elapsed / 1_000L + " us");
+            done = loading.remove(appId);
+            AppPlans previous = cache.put(appId, loaded);
+            cachedWeight += loaded.weight - (previous != null ? previous.weight : 0);
+            evictOverBudget();
+        }
+        done.complete(loaded);
+        return loaded;
+    }
 
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader br = new BufferedReader(new FileReader(jsonFile))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    sb.append(line);
+    /** Restore (from the image) or decode and compile (from the JSON) one plan on first use. */
+    private CompiledPlan planFor(String appId, AppPlans app, String methodName) {
+        CompiledPlan plan;
+        long start = System.nanoTime();
+        synchronized (app) {
+            plan = app.compiled.get(methodName);
+            if (plan != null || app.rejected.contains(methodName) || !app.contains(methodName)) {
+                return plan;
+            }
+            try {
+                if (app.image != null) {
+                    plan = app.image.read(methodName);
+                } else {
+                    // If generator forgot method_name, the JSON key is used.
+                    plan = CompiledPlan.compile(app.index.decode(methodName, gson), methodName);
+                    if (!methodName.equals(plan.getMethodName())) {
+                        Log.w(TAG, "planFor: appId=" + appId + " key '" + methodName
+                                + "' has method_name '" + plan.getMethodName() + "'");
+                    }
                 }
+                app.compiled.put(methodName, plan);
+            } catch (PlanCompilationException e) {
+                Log.e(TAG, "planFor: appId=" + appId + " " + e.getMessage());
+                app.rejected.add(methodName);
+            } catch (IOException e) {
+                Log.e(TAG, "planFor: cannot decode appId=" + appId + " method=" + methodName, e);
+                if (app.image != null) {
+                    // A corrupt image: drop it, so the reload below falls back to the JSON.
+                    app.image.delete();
+                }
+                return null;
+            } catch (RuntimeException e) {
+                // A bug or an input the compiler does not expect: never let it reach the caller,
+                // which may be the loader thread. Reject the plan like one that fails to compile.
+                Log.e(TAG, "planFor: cannot compile appId=" + appId + " method=" + methodName, e);
+                app.rejected.add(methodName);
             }
-            String json = sb.toString();
-            Log.i(TAG, "loadPlansForApp: loading plans for appId=" + appId);
-
-            // Parse top-level structure:
-            // { "app_id": "...", "action_plans": { methodName -> ActionPlan } }
-            ActionPlanFileWrapper wrapper = gson.fromJson(json, ActionPlanFileWrapper.class);
+        }
 
-            if (wrapper == null || wrapper.actionPlans == null) {
-                Log.w(TAG, "loadPlansForApp: wrapper/actionPlans is null for appId=" + appId);
-                return Collections.emptyMap();
+        long added = app.sizeOf(methodName);
+        synchronized (lock) {
+            decodes++;
+            decodeNanos += System.nanoTime() - start;
+            if (cache.get(appId) == app) {
+                app.weight += added;
+                cachedWeight += added;
+                evictOverBudget();
             }
+        }
+        return plan;
+    }
 
-            Map<String, ActionPlan> result = new HashMap<>();
+    // Caller holds lock. The most recently used entry is always kept.
+    private void evictOverBudget() {
+        while (cachedWeight > maxWeightBytes && cache.size() > 1) {
+            Map.Entry<String, AppPlans> eldest = cache.entrySet().iterator().next();
+            cache.remove(eldest.getKey());
+            cachedWeight -= eldest.getValue().weight;
+            evictions++;
+            Log.i(TAG, "evict: appId=" + eldest.getKey() + " (" + eldest.getValue().weight + " bytes), "
+                    + "cache now " + cachedWeight + "/" + maxWeightBytes + " bytes");
+        }
+    }
 
-            // Ensure map key and ActionPlan.methodName are consistent; if methodName is missing,
-            // fall back to the map key.
-            for (Map.Entry<String, ActionPlan> entry : wrapper.actionPlans.entrySet()) {
-                String methodKey = entry.getKey();
-                ActionPlan plan = entry.getValue();
-                if (plan == null) continue;
+    /** Set the cache budget, evicting at once if the cache is over it. */
+    public void setMaxWeightBytes(long maxWeightBytes) {
+        synchronized (lock) {
+            this.maxWeightBytes = maxWeightBytes;
+            evictOverBudget();
+        }
+    }
 
-                String planName = plan.getMethodName();
-                if (planName == null || planName.isEmpty()) {
-                    // If generator forgot method_name, use the JSON key
-                    // (you can add a setter if you want to store it back).
-                    planName = methodKey;
-                }
-                result.put(planName, plan);
+    /** Drop an app's plans, e.g. after its plan file changed. */
+    public void invalidate(String appId) {
+        synchronized (lock) {
+            AppPlans removed = cache.remove(appId);
+            if (removed != null) {
+                cachedWeight -= removed.weight;
             }
+        }
+    }
 
-            return result;
+    /** Drop every cached plan. Counters are kept. */
+    public void clear() {
+        synchronized (lock) {
+            cache.clear();
+            cachedWeight = 0;
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "loadPlansForApp: error loading plans for appId=" + appId, e);
-            return Collections.emptyMap();
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(hits, misses, coalesced, loads, imageLoads, reloads, evictions, loadNanos / 1_000_000L,
+                    decodes, decodeNanos / 1_000_000L, cache.size(), cachedWeight, maxWeightBytes);
         }
     }
 
     /**
-     * Top-level JSON wrapper for one app's file.
+     * Load all plans for a given appId from:
+     *   filesDir/workspace/actionplan/{appId}_actionplan.json
+     * or from its binary image, if that is up to date:
+     *   cacheDir/actionplan/{appId}_actionplan.bin
      *
-     * {
-     *   "app_id": "hu.vmiklos.plees_tracker",
-     *   "action_plans": { "methodName": { ... } }
-     * }
+     * Adjust the base directory if your generator writes elsewhere.
      */
-    private static class ActionPlanFileWrapper {
-        @SerializedName("app_id")
-        String appId;
+    private AppPlans loadPlansForApp(AccessibilityService service, String appId) {
+        File jsonFile = new File(planDir(service), appId + PLAN_FILE_SUFFIX);
+        File imageFile = new File(new File(service.getCacheDir(), "actionplan"), appId + "_actionplan.bin");
+        return load(appId, jsonFile, imageFile);
+    }
+
+    // workspace/actionplan under internal files dir
+    private static File planDir(AccessibilityService service) {
+        File workspaceDir = new File(service.getFilesDir(), "workspace");
+        return new File(workspaceDir, "actionplan");
+    }
+
+    private AppPlans load(String appId, File jsonFile, File imageFile) {
+        AppPlans app = open(appId, jsonFile, imageFile);
+        app.lastCheckMs = clock.getAsLong();
+        return app;
+    }
+
+    private AppPlans open(String appId, File jsonFile, File imageFile) {
+        if (!jsonFile.exists()) {
+            Log.w(TAG, "loadPlansForApp: file not found: " + jsonFile.getAbsolutePath());
+            return new AppPlans(jsonFile, imageFile, null, null, null);
+        }
+
+        if (imageFile.exists()) {
+            try {
+                CompiledPlanFile image = CompiledPlanFile.open(imageFile);
+                PlanFileStamp stamp = image.getSourceStamp();
+                if (!stamp.isCleanFor(jsonFile)) {
+                    // Metadata changed or too recent to trust: compare content. A file touched or
+                    // copied again with the same content still matches the image.
+                    PlanFileStamp current = PlanFileStamp.of(jsonFile);
+                    stamp = current.sameContent(stamp) ? current : null;
+                }
+                if (stamp != null) {
+                    return new AppPlans(jsonFile, imageFile, stamp, null, image);
+                }
+                Log.i(TAG, "loadPlansForApp: " + imageFile.getName() + " is older than its JSON");
+            } catch (IOException e) {
+                Log.w(TAG, "loadPlansForApp: ignoring " + imageFile + ": " + e.getMessage());
+            }
+        }
+
+        // Only the top-level structure is read here:
+        // { "app_id": "...", "action_plans": { methodName -> byte range of its ActionPlan } }
+        try {
+            PlanFileIndex index = PlanFileIndex.build(jsonFile);
+            if (index.getAppId() != null && !appId.equals(index.getAppId())) {
+                Log.w(TAG, "loadPlansForApp: " + jsonFile.getName() + " has app_id=" + index.getAppId());
+            }
+            writeImageLater(appId, index, imageFile);
+            return new AppPlans(jsonFile, imageFile, index.getStamp(), index, null);
+        } catch (IOException e) {
+            Log.e(TAG, "loadPlansForApp: error indexing plans for appId=" + appId, e);
+            return new AppPlans(jsonFile, imageFile, null, null, null);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: hot reload
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Watch the plan directory, so a plan file that is written, moved in or deleted is reloaded
+     * at once instead of at the next access check. Call when the service connects.
+     */
+    public void startWatching(AccessibilityService service) {
+        File dir = planDir(service);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "startWatching: cannot create " + dir);
+            return;
+        }
+        int mask = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE;
+        synchronized (lock) {
+            if (observer != null) {
+                observer.stopWatching();
+            }
+            // The File constructor needs API 29.
+            observer = new FileObserver(dir.getPath(), mask) {
+                @Override
+                public void onEvent(int event, String path) {
+                    onPlanFileEvent(path);
+                }
+            };
+            observer.startWatching();
+        }
+        Log.i(TAG, "startWatching: " + dir);
+    }
+
+    public void stopWatching() {
+        synchronized (lock) {
+            if (observer != null) {
+                observer.stopWatching();
+                observer = null;
+            }
+        }
+    }
+
+    // Runs on the FileObserver thread.
+    private void onPlanFileEvent(String name) {
+        if (name == null || !name.endsWith(PLAN_FILE_SUFFIX)) {
+            return;
+        }
+        String appId = name.substring(0, name.length() - PLAN_FILE_SUFFIX.length());
+        AppPlans app;
+        synchronized (lock) {
+            app = peek(appId);
+        }
+        // Apps not in the cache load the new version when they are next used.
+        if (app != null) {
+            app.lastCheckMs = clock.getAsLong();
+            reloadLater(appId, app);
+        }
+    }
 
-        @SerializedName("action_plans")
-        Map<String, ActionPlan> actionPlans;
+    /** Cheap check on access: metadata only, at most every {@link #CHECK_INTERVAL_MS}. */
+    private void checkForChange(String appId, AppPlans app) {
+        long now = clock.getAsLong();
+        if (app.jsonFile == null || now - app.lastCheckMs < CHECK_INTERVAL_MS) {
+            return;
+        }
+        app.lastCheckMs = now;
+        PlanFileStamp stamp = app.stamp;
+        boolean exists = app.jsonFile.exists();
+        if (stamp == null ? !exists : exists && stamp.isCleanFor(app.jsonFile)) {
+            return;
+        }
+        // Metadata changed or the stamp is too recent to trust: let the loader hash the file.
+        reloadLater(appId, app);
+    }
+
+    private void reloadLater(String appId, AppPlans app) {
+        if (app.jsonFile == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (!reloading.add(appId)) {
+                return;
+            }
+        }
+        background.execute(() -> {
+            try {
+                reload(appId, app);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "reload: failed for appId=" + appId + ", keeping the loaded version", e);
+            } finally {
+                synchronized (lock) {
+                    reloading.remove(appId);
+                }
+            }
+        });
+    }
+
+    // Runs on the loader thread.
+    private void reload(String appId, AppPlans old) {
+        PlanFileStamp current = null;
+        if (old.jsonFile.exists()) {
+            try {
+                current = PlanFileStamp.of(old.jsonFile);
+            } catch (IOException e) {
+                Log.w(TAG, "reload: cannot read " + old.jsonFile + ": " + e.getMessage());
+                return;
+            }
+        }
+        if (current == null ? old.stamp == null : current.sameContent(old.stamp)) {
+            // Touched or rewritten with the same content: keep the plans, trust the new metadata.
+            old.stamp = current;
+            return;
+        }
+
+        long start = System.nanoTime();
+        AppPlans fresh = load(appId, old.jsonFile, old.imageFile);
+        // Decode the plans that were in use, so the swap does not leave them cold.
+        List<String> inUse;
+        synchronized (old) {
+            inUse = new ArrayList<>(old.compiled.keySet());
+        }
+        long warmed = 0;
+        for (String methodName : inUse) {
+            if (planFor(appId, fresh, methodName) != null) {
+                warmed += fresh.sizeOf(methodName);
+            }
+        }
+
+        synchronized (lock) {
+            if (cache.get(appId) != old) {
+                return; // Evicted, invalidated or already replaced meanwhile.
+            }
+            fresh.weight += warmed;
+            cache.put(appId, fresh);
+            cachedWeight += fresh.weight - old.weight;
+            reloads++;
+            evictOverBudget();
+        }
+        Log.i(TAG, "reload: appId=" + appId + " now " + fresh.size() + " plan(s) (" + inUse.size()
+                + " pre-decoded) in " + (System.nanoTime() - start) / 1_000_000L
+                + " ms; running plans keep the previous version");
+    }
+
+    // Caller holds lock. Looks an app up without changing the access order.
+    private AppPlans peek(String appId) {
+        for (Map.Entry<String, AppPlans> e : cache.entrySet()) {
+            if (e.getKey().equals(appId)) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: binary image
+    // ---------------------------------------------------------------------------------------------
+
+    /** Compile every plan in {@code index} and write the image, on the loader thread. */
+    private void writeImageLater(String appId, PlanFileIndex index, File imageFile) {
+        synchronized (lock) {
+            if (!writingImages.add(appId)) {
+                return;
+            }
+        }
+        background.execute(() -> {
+            try {
+                writeImage(appId, index, imageFile);
+            } finally {
+                synchronized (lock) {
+                    writingImages.remove(appId);
+                }
+            }
+        });
+    }
+
+    private void writeImage(String appId, PlanFileIndex index, File imageFile) {
+        long start = System.nanoTime();
+        Map<String, CompiledPlan> plans = new HashMap<>();
+        Map<String, List<String>> rejected = new HashMap<>();
+        try {
+            for (String methodName : index.getMethodNames()) {
+                try {
+                    plans.put(methodName, CompiledPlan.compile(index.decode(methodName, gson), methodName));
+                } catch (PlanCompilationException e) {
+                    rejected.put(methodName, e.getProblems());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "writeImage: cannot compile appId=" + appId + " method=" + methodName, e);
+                    rejected.put(methodName, Collections.singletonList("cannot compile: " + e));
+                }
+            }
+            // The image records the JSON as it was indexed: if it changed meanwhile, the image
+            // is stale on arrival and ignored.
+            CompiledPlanFile.write(imageFile, index.getStamp(), plans, rejected);
+            Log.i(TAG, "writeImage: appId=" + appId + " " + plans.size() + " plan(s), " + rejected.size()
+                    + " rejected, " + imageFile.length() + " bytes in " + (System.nanoTime() - start) / 1_000_000L + " ms");
+        } catch (IOException e) {
+            Log.w(TAG, "writeImage: no image for appId=" + appId + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "writeImage: no image for appId=" + appId, e);
+        }
     }
-}
\ No newline at end of file
+}
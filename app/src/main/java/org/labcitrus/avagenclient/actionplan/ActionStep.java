@@ -37,17 +37,31 @@ public class ActionStep {
     @SerializedName("millis")
     private Long millis;
 
-    // String NodeQuery expression from generator (not used for matching right now,
-    // but kept for debugging / future extensions).
+    // For CLICK / INPUT_TEXT: how long to wait for the target to appear (optional)
+    @SerializedName("timeout_ms")
+    private Long timeoutMs;
+
+    // For SCROLL: "forward" / "down" (default) or "backward" / "up" (optional)
+    @SerializedName("direction")
+    private String direction;
+
+    // For SCROLL / SCROLL_DOWN: row to bring into view in a list with CollectionInfo (optional)
+    @SerializedName("position")
+    private Integer position;
+
+    // String NodeQuery expression from generator, e.g. withContentDescription("More options").
     @SerializedName("node_query")
     private String nodeQuery;
 
-    // ---- getters used by ActionPlanExecutor ----
+    // ---- getters used by CompiledPlan ----
 
     public String getActionRaw() {
         return actionRaw;
     }
 
+    /**
+     * Normalize and map the raw action string. Called once per step by {@link CompiledPlan}.
+     */
     public ActionType getActionType() {
         if (actionRaw == null) {
             return ActionType.UNKNOWN;
@@ -119,6 +133,18 @@ public class ActionStep {
         return millis;
     }
 
+    public Long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public Integer getPosition() {
+        return position;
+    }
+
     public String getNodeQuery() {
         return nodeQuery;
     }
@@ -130,6 +156,9 @@ public class ActionStep {
                 ", matchers=" + matchers +
                 ", text='" + text + '\'' +
                 ", millis=" + millis +
+                (timeoutMs != null ? ", timeoutMs=" + timeoutMs : "") +
+                (direction != null ? ", direction='" + direction + '\'' : "") +
+                (position != null ? ", position=" + position : "") +
                 ", nodeQuery='" + nodeQuery + '\'' +
                 '}';
     }
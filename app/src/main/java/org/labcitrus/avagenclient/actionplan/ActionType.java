@@ -13,7 +13,7 @@ public enum ActionType {
     // node-based actions
     CLICK("click", true),
     INPUT_TEXT("input_text", true),
-    SCROLL("scroll", true),          // generic node scroll if you use it
+    SCROLL("scroll", true),          // container scroll (container query optional)
 
     // global actions
     GLOBAL_BACK("global_back", false),
@@ -0,0 +1,522 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.util.Log;
+
+import org.labcitrus.avagenclient.core.CompiledQuery;
+import org.labcitrus.avagenclient.core.NodeQuery;
+import org.labcitrus.avagenclient.core.NodeQueryCompiler;
+import org.labcitrus.avagenclient.core.NodeQueryParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An ActionPlan resolved once, when it is loaded, into everything the executor needs:
+ *
+ * <pre>
+ *   ActionStep (JSON strings)              CompiledStep
+ *   ─────────────────────────              ────────────────────────────────────
+ *   "action": " Click "             ──→    ActionType.CLICK
+ *   "node_query" / "matchers"       ──→    NodeQuery[] (node_query if present, else matchers)
+ *   "millis", "timeout_ms"          ──→    sleep / find timeout with defaults applied
+ *   "direction", "position"         ──→    scroll direction / target row
+ *   (position in the plan)          ──→    WaitPolicy after the step
+ *   scroll(s) followed by a target  ──→    scroll-until-found search for that target
+ * </pre>
+ *
+ * Execution then does no string processing at all. Problems that would otherwise surface in
+ * the middle of a run (unknown action, node_query that does not compile, target step without a
+ * usable query, input without text) are collected and reported together by
+ * {@link PlanCompilationException}. A broken node_query rejects the plan even if the step also
+ * has matchers: they may be a looser description of the target and find another node.
+ *
+ * <p>Compiled plans are also stored in a binary cache ({@link CompiledPlanFile}) and restored
+ * from it without reading the JSON; such steps have no {@link CompiledStep#getSource()}.</p>
+ */
+public final class CompiledPlan {
+
+    private static final String TAG = "CompiledPlan";
+
+    /** Default duration of a sleep step without "millis". */
+    static final long DEFAULT_SLEEP_MS = 1000L;
+
+    /** How long click / input steps wait for their target unless the step sets timeout_ms. */
+    static final long DEFAULT_FIND_TIMEOUT_MS = 5000L;
+
+    /** Most pages a scroll step scrolls while searching for the next step's target. */
+    static final int DEFAULT_SEARCH_SCROLLS = 10;
+
+    /** Time budget of that search. */
+    static final long DEFAULT_SEARCH_TIMEOUT_MS = 15000L;
+
+    /** What the executor does between a step and the next one. */
+    public enum WaitPolicy {
+        /** Last step, or the next step is an explicit sleep. */
+        NONE,
+        /** Wait for UI idle. */
+        SETTLE,
+        /** Wait for UI idle with the longer scroll cap (flings, lazy loading). */
+        SETTLE_AFTER_SCROLL
+    }
+
+    /** One step, ready to run. */
+    public static final class CompiledStep {
+        private final int index;
+        private final ActionType type;
+        private final ActionStep source;
+        private final NodeQuery[] queries;
+        private final List<NodeQueryParser.QueryExpr> queryAst;
+        private final String text;
+        private final long sleepMillis;
+        private final long findTimeoutMs;
+        private final boolean scrollForward;
+        private final int scrollPosition;
+        private WaitPolicy waitAfter = WaitPolicy.NONE;
+        private NodeQuery[] searchQueries;
+        private int searchScrolls;
+
+        private CompiledStep(int index, ActionType type, ActionStep source, Target target,
+                             String text, long sleepMillis, long findTimeoutMs,
+                             boolean scrollForward, int scrollPosition) {
+            this.index = index;
+            this.type = type;
+            this.source = source;
+            this.queries = target != null ? target.queries : null;
+            this.queryAst = target != null ? target.ast : null;
+            this.text = text;
+            this.sleepMillis = sleepMillis;
+            this.findTimeoutMs = findTimeoutMs;
+            this.scrollForward = scrollForward;
+            this.scrollPosition = scrollPosition;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public ActionType getType() {
+            return type;
+        }
+
+        /** The JSON step this was compiled from, or null if the step was restored from the binary cache. */
+        public ActionStep getSource() {
+            return source;
+        }
+
+        /**
+         * The target query: always set for CLICK / INPUT_TEXT, set for scrolls that name their
+         * container, null otherwise. Do not modify.
+         */
+        public NodeQuery[] getQueries() {
+            return queries;
+        }
+
+        public boolean needsTarget() {
+            return queries != null;
+        }
+
+        /** The AST {@link #getQueries()} was compiled from, for the binary cache. */
+        List<NodeQueryParser.QueryExpr> getQueryAst() {
+            return queryAst;
+        }
+
+        /** Text to enter (INPUT_TEXT). */
+        public String getText() {
+            return text;
+        }
+
+        /** Sleep duration (SLEEP), default applied. */
+        public long getSleepMillis() {
+            return sleepMillis;
+        }
+
+        /** How long to wait for the target to appear, default applied. */
+        public long getFindTimeoutMs() {
+            return findTimeoutMs;
+        }
+
+        /** Scroll direction (SCROLL / SCROLL_DOWN): true for forward (down / right). */
+        public boolean isScrollForward() {
+            return scrollForward;
+        }
+
+        /** Row to scroll to (SCROLL / SCROLL_DOWN), or -1 to scroll one page. */
+        public int getScrollPosition() {
+            return scrollPosition;
+        }
+
+        /**
+         * For a page scroll that leads to a click / input: that step's target, to scroll until it
+         * is on screen instead of scrolling once blindly. Null otherwise. Do not modify.
+         */
+        public NodeQuery[] getSearchQueries() {
+            return searchQueries;
+        }
+
+        /** Scroll budget of the search (see {@link #getSearchQueries()}). */
+        public int getSearchScrolls() {
+            return searchScrolls;
+        }
+
+        public WaitPolicy getWaitAfter() {
+            return waitAfter;
+        }
+
+        @Override
+        public String toString() {
+            return "step[" + index + "] " + type + (source != null ? " " + source : "");
+        }
+    }
+
+    private final String methodName;
+    private final List<CompiledStep> steps;
+
+    private CompiledPlan(String methodName, List<CompiledStep> steps) {
+        this.methodName = methodName;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public List<CompiledStep> getSteps() {
+        return steps;
+    }
+
+    public int size() {
+        return steps.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledPlan{" + methodName + ", steps=" + steps.size() + '}';
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: compiler
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compile a plan parsed from JSON.
+     *
+     * @param plan         The parsed plan.
+     * @param fallbackName Name to use if the plan has no method_name (e.g. its JSON key); may be null.
+     * @throws PlanCompilationException listing every problem, if any step cannot be executed.
+     */
+    public static CompiledPlan compile(ActionPlan plan, String fallbackName) {
+        String name = plan != null ? plan.getMethodName() : null;
+        if (name == null || name.isEmpty()) {
+            name = fallbackName;
+        }
+        List<String> problems = new ArrayList<>();
+        if (plan == null || plan.isEmpty()) {
+            problems.add("plan has no steps");
+            throw new PlanCompilationException(name, problems);
+        }
+
+        List<ActionStep> source = plan.getSteps();
+        List<CompiledStep> steps = new ArrayList<>(source.size());
+        for (int i = 0; i < source.size(); i++) {
+            CompiledStep step = compileStep(i, source.get(i), problems);
+            if (step != null) {
+                steps.add(step);
+            }
+        }
+        if (!problems.isEmpty()) {
+            throw new PlanCompilationException(name, problems);
+        }
+
+        linkScrollSearches(steps);
+        for (int i = 0; i < steps.size() - 1; i++) {
+            CompiledStep step = steps.get(i);
+            if (steps.get(i + 1).type == ActionType.SLEEP) {
+                step.waitAfter = WaitPolicy.NONE;
+            } else if (step.type == ActionType.SCROLL || step.type == ActionType.SCROLL_DOWN) {
+                step.waitAfter = WaitPolicy.SETTLE_AFTER_SCROLL;
+            } else {
+                step.waitAfter = WaitPolicy.SETTLE;
+            }
+        }
+        return new CompiledPlan(name, steps);
+    }
+
+    /**
+     * Turn blind page scrolls into searches. In a run of page scrolls in one direction (sleeps
+     * in between allowed) that ends at a click / input, every scroll searches for that step's
+     * target: the first one scrolls as far as needed and the rest find it already on screen and
+     * do nothing, so the plan takes as many scrolls as the target needs, not as many as the
+     * generator guessed.
+     */
+    private static void linkScrollSearches(List<CompiledStep> steps) {
+        for (int i = 0; i < steps.size(); i++) {
+            CompiledStep first = steps.get(i);
+            if (!isPageScroll(first)) {
+                continue;
+            }
+            int scrolls = 0;
+            int j = i;
+            for (; j < steps.size(); j++) {
+                CompiledStep s = steps.get(j);
+                if (isPageScroll(s) && s.scrollForward == first.scrollForward) {
+                    scrolls++;
+                } else if (s.type != ActionType.SLEEP) {
+                    break;
+                }
+            }
+            if (j < steps.size() && (steps.get(j).type == ActionType.CLICK || steps.get(j).type == ActionType.INPUT_TEXT)) {
+                for (int k = i; k < j; k++) {
+                    CompiledStep s = steps.get(k);
+                    if (s.type != ActionType.SLEEP) {
+                        s.searchQueries = steps.get(j).queries;
+                        s.searchScrolls = Math.max(DEFAULT_SEARCH_SCROLLS, 2 * scrolls);
+                    }
+                }
+            }
+            i = j - 1;
+        }
+    }
+
+    private static boolean isPageScroll(CompiledStep step) {
+        return (step.type == ActionType.SCROLL || step.type == ActionType.SCROLL_DOWN) && step.scrollPosition < 0;
+    }
+
+    private static CompiledStep compileStep(int index, ActionStep step, List<String> problems) {
+        String label = "step[" + index + "]";
+        if (step == null) {
+            problems.add(label + ": step is null");
+            return null;
+        }
+
+        ActionType type = step.getActionType();
+        if (type == ActionType.UNKNOWN) {
+            problems.add(label + ": unknown action '" + step.getActionRaw() + "'");
+            return null;
+        }
+        label += " " + type.getRaw();
+
+        Target target = null;
+        if (type == ActionType.CLICK || type == ActionType.INPUT_TEXT) {
+            target = compileQueries(label, step, problems);
+        }
+        if (type == ActionType.INPUT_TEXT && step.getText() == null) {
+            problems.add(label + ": no text to input");
+        }
+
+        boolean scrollForward = true;
+        int scrollPosition = -1;
+        if (type == ActionType.SCROLL || type == ActionType.SCROLL_DOWN) {
+            // The container is optional; without one the executor picks the main scrollable.
+            if (hasQuery(step)) {
+                target = compileQueries(label, step, problems);
+            }
+            if (type == ActionType.SCROLL) {
+                Boolean forward = parseDirection(step.getDirection());
+                if (forward == null) {
+                    problems.add(label + ": unknown direction '" + step.getDirection() + "'");
+                } else {
+                    scrollForward = forward;
+                }
+            }
+            Integer position = step.getPosition();
+            if (position != null) {
+                if (position < 0) {
+                    problems.add(label + ": negative position " + position);
+                } else {
+                    scrollPosition = position;
+                }
+            }
+        }
+
+        Long millis = step.getMillis();
+        Long timeout = step.getTimeoutMs();
+        return new CompiledStep(index, type, step, target, step.getText(),
+                (millis != null && millis > 0) ? millis : DEFAULT_SLEEP_MS,
+                (timeout != null && timeout >= 0) ? timeout : DEFAULT_FIND_TIMEOUT_MS,
+                scrollForward, scrollPosition);
+    }
+
+    private static boolean hasQuery(ActionStep step) {
+        String expr = step.getNodeQuery();
+        return (expr != null && !expr.trim().isEmpty()) || !step.getMatchers().isEmpty();
+    }
+
+    /** "forward" / "down" / "right" (or absent) → true, "backward" / "up" / "left" → false. */
+    private static Boolean parseDirection(String direction) {
+        if (direction == null) {
+            return true;
+        }
+        switch (direction.trim().toLowerCase()) {
+            case "":
+            case "forward":
+            case "down":
+            case "right":
+                return true;
+            case "backward":
+            case "up":
+            case "left":
+                return false;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The target query of a step: its node_query (which can express nested structure using
+     * withParent(...), withChild(...), hasDescendant(...), etc.), else a flat conjunction built
+     * from its matchers. Matchers are used only when there is no node_query; one that does not
+     * compile is a problem, not a reason to fall back.
+     *
+     *     Examples (from server JSON):
+     *       "node_query": "withText(\"YES\"), withId(\"button1\")"
+     *       "node_query": "withParent(withId(\"Amount\"), hasDescendant(withId(\"TaType\")))"
+     *       "matchers": [
+     *         { "type": "text", "value": "Statistics", "mode": "equalsIgnoreCase" },
+     *         { "type": "id",   "value": "title",      "mode": "equalsIgnoreCase" }
+     *       ]
+     */
+    private static Target compileQueries(String label, ActionStep step, List<String> problems) {
+        String nodeQueryExpr = step.getNodeQuery();
+        if (nodeQueryExpr != null && !nodeQueryExpr.trim().isEmpty()) {
+            try {
+                CompiledQuery compiled = NodeQueryCompiler.compile(nodeQueryExpr);
+                if (!compiled.isEmpty()) {
+                    return new Target(compiled.getAst(), compiled.getQueries());
+                }
+                problems.add(label + ": node_query is empty");
+            } catch (IllegalArgumentException e) {
+                // NodeQuerySyntaxException, or anything else the compiler rejects.
+                problems.add(label + ": node_query " + e.getMessage());
+            }
+            return null;
+        }
+
+        // No node_query: use the flat matchers.
+        List<StepMatcher> matchers = step.getMatchers();
+        Target fromMatchers = buildQueriesFromMatchers(label, matchers);
+        if (fromMatchers.queries.length > 0) {
+            return fromMatchers;
+        }
+        if (matchers.isEmpty()) {
+            problems.add(label + ": no node_query and no matchers");
+        } else {
+            problems.add(label + ": no usable matchers in " + matchers);
+        }
+        return null;
+    }
+
+    /** A step's target query and the AST it was compiled from. */
+    private static final class Target {
+        final List<NodeQueryParser.QueryExpr> ast;
+        final NodeQuery[] queries;
+
+        Target(List<NodeQueryParser.QueryExpr> ast, NodeQuery[] queries) {
+            this.ast = ast;
+            this.queries = queries;
+        }
+    }
+
+    /**
+     * Build a flat conjunction of NodeQuery predicates from the "matchers" array.
+     *
+     * Example matchers from JSON:
+     *   {"type":"id","value":"title","mode":"equalsIgnoreCase"}
+     *   {"type":"text","value":"Statistics","mode":"equalsIgnoreCase"}
+     *
+     * These become the same AST a node_query would produce:
+     *   withId(equalsIgnoreCase("title")), withText(equalsIgnoreCase("Statistics"))
+     * which is then compiled into NodeQuery predicates combined by NodeFinder.
+     */
+    private static Target buildQueriesFromMatchers(String label, List<StepMatcher> matchers) {
+        List<NodeQueryParser.QueryExpr> ast = new ArrayList<>();
+        List<NodeQuery> result = new ArrayList<>();
+
+        for (StepMatcher m : matchers) {
+            if (m == null) continue;
+
+            NodeQueryParser.Attribute attribute = toAttribute(label, m.getType()); // "text", "id", ...
+            if (attribute == null) continue;
+
+            NodeQueryParser.QueryExpr expr = NodeQueryParser.attribute(attribute,
+                    toMatchMode(label, m.getMode()), m.getValue());
+            NodeQuery q;
+            try {
+                q = NodeQueryCompiler.toNodeQuery(expr);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, label + ": skipping matcher " + m + ": " + e.getMessage());
+                continue;
+            }
+            ast.add(expr);
+            result.add(q);
+        }
+        return new Target(ast, result.toArray(new NodeQuery[0]));
+    }
+
+    /**
+     * Map StepMatcher.mode → match mode.
+     */
+    private static NodeQueryParser.MatchMode toMatchMode(String label, String mode) {
+        if (mode == null) return NodeQueryParser.MatchMode.EQUALS_IGNORE_CASE;
+
+        switch (mode) {
+            case "equals":
+            case "equalsIgnoreCase":  return NodeQueryParser.MatchMode.EQUALS_IGNORE_CASE;
+            case "contains":
+            case "containsIgnoreCase": return NodeQueryParser.MatchMode.CONTAINS_IGNORE_CASE;
+            case "startsWith":
+            case "startsWithIgnoreCase": return NodeQueryParser.MatchMode.STARTS_WITH_IGNORE_CASE;
+            case "endsWith":
+            case "endsWithIgnoreCase": return NodeQueryParser.MatchMode.ENDS_WITH_IGNORE_CASE;
+            case "regex": return NodeQueryParser.MatchMode.REGEX;
+
+            default:
+                Log.w(TAG, label + ": unknown matcher mode=" + mode + " → default equalsIgnoreCase");
+                return NodeQueryParser.MatchMode.EQUALS_IGNORE_CASE;
+        }
+    }
+
+    /**
+     * Map StepMatcher.type → node attribute.
+     * Supported types (matching JSON):
+     *   text, id, contentDescription, className
+     */
+    private static NodeQueryParser.Attribute toAttribute(String label, String type) {
+        if (type == null) return null;
+
+        switch (type) {
+            case "text":               return NodeQueryParser.Attribute.TEXT;
+            case "id":                 return NodeQueryParser.Attribute.ID;
+            case "contentDescription": return NodeQueryParser.Attribute.CONTENT_DESCRIPTION;
+            case "className":          return NodeQueryParser.Attribute.CLASS_NAME;
+            default:
+                Log.w(TAG, label + ": unsupported matcher type=" + type);
+                return null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: restore from the binary cache
+    // ---------------------------------------------------------------------------------------------
+
+    /** Rebuild a step stored by {@link CompiledPlanFile}. */
+    static CompiledStep restoreStep(int index, ActionType type, CompiledQuery target, String text,
+                                    long sleepMillis, long findTimeoutMs, boolean scrollForward,
+                                    int scrollPosition, WaitPolicy waitAfter) {
+        CompiledStep step = new CompiledStep(index, type, null,
+                target != null ? new Target(target.getAst(), target.getQueries()) : null,
+                text, sleepMillis, findTimeoutMs, scrollForward, scrollPosition);
+        step.waitAfter = waitAfter;
+        return step;
+    }
+
+    /** Re-link a restored scroll step to the step whose target it searches for. */
+    static void restoreSearch(CompiledStep step, CompiledStep target, int searchScrolls) {
+        step.searchQueries = target.queries;
+        step.searchScrolls = searchScrolls;
+    }
+
+    static CompiledPlan restore(String methodName, List<CompiledStep> steps) {
+        return new CompiledPlan(methodName, steps);
+    }
+}
@@ -0,0 +1,445 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import org.labcitrus.avagenclient.core.CompiledQuery;
+import org.labcitrus.avagenclient.core.NodeQueryParser;
+import org.labcitrus.avagenclient.core.QueryBytecode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary image of one app's compiled plans, read through a {@link MappedByteBuffer} so a plan
+ * can be restored after a restart without reading or parsing the JSON:
+ *
+ * <pre>
+ *   header       magic "AVPB", version, schema, source stamp (length, mtime, CRC,
+ *                hash time), string count + offset, plan count + offset        (60 bytes)
+ *   directory    plan count × (i32 name, i32 record offset, i32 record length)
+ *   strings      string count × i32 offset, then (i32 length, UTF-8 bytes)*
+ *   records      per method:
+ *                  u8 0, i32 name, u16 steps, steps × step        compiled plan
+ *                  u8 1, i32 name, u16 problems, problems × i32   rejected plan
+ *   step         u8 type, u8 wait after, u8 flags, i32 index, i32 text,
+ *                i64 sleep, i64 find timeout, i32 scroll position,
+ *                i16 search target step, u16 search scrolls, [query bytecode]
+ * </pre>
+ *
+ * Strings are stored once and referenced by index; queries are {@link QueryBytecode}. The JSON
+ * file stays the source of truth: the header records the {@link PlanFileStamp} of the version
+ * the image was compiled from, and the repository only uses an image whose stamp still matches
+ * the JSON (else it falls back to the JSON and writes a new image). Enums
+ * are stored by ordinal, and the header's schema fingerprint (a hash of their names) rejects an
+ * image written by a build where any of them differ. A count too large for its field fails the
+ * write, and a record that breaks what compilation guarantees (a wait after the last step, a
+ * search for a step that does not follow) fails the read, both with an IOException.
+ */
+final class CompiledPlanFile {
+
+    static final int MAGIC = 0x41565042; // "AVPB"
+    /** Bumped whenever the layout or the compile rules change, so old images are recompiled. */
+    static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 60;
+    private static final int DIRECTORY_ENTRY_SIZE = 12;
+
+    private static final int RECORD_PLAN = 0;
+    private static final int RECORD_REJECTED = 1;
+
+    private static final int FLAG_FORWARD = 1;
+    private static final int FLAG_TARGET = 2;
+
+    private static final int SCHEMA = schemaFingerprint();
+
+    private final File file;
+    private final ByteBuffer buffer;
+    private final PlanFileStamp sourceStamp;
+    private final int stringTable;
+    private final String[] strings;
+    private final Map<String, int[]> records;
+
+    private CompiledPlanFile(File file, ByteBuffer buffer, PlanFileStamp sourceStamp,
+                             int stringTable, int stringCount) {
+        this.file = file;
+        this.buffer = buffer;
+        this.sourceStamp = sourceStamp;
+        this.stringTable = stringTable;
+        this.strings = new String[stringCount];
+        this.records = new HashMap<>();
+    }
+
+    Set<String> getMethodNames() {
+        return records.keySet();
+    }
+
+    boolean contains(String methodName) {
+        return records.containsKey(methodName);
+    }
+
+    /** Size of a plan's record in bytes, or 0 if the image has no such plan. */
+    long getRecordLength(String methodName) {
+        int[] record = records.get(methodName);
+        return record != null ? record[1] : 0;
+    }
+
+    /** Rough heap footprint of the directory (the mapped bytes are not on the heap). */
+    long getWeight() {
+        long weight = 64 + 8L * strings.length;
+        for (String name : records.keySet()) {
+            weight += 48 + 2L * name.length();
+        }
+        return weight;
+    }
+
+    /** The version of the JSON this image was compiled from. */
+    PlanFileStamp getSourceStamp() {
+        return sourceStamp;
+    }
+
+    /** False once the image was deleted (e.g. found corrupt). */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /** Delete the image, e.g. because it is corrupt; it is written again from the JSON. */
+    void delete() {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Restore one plan.
+     *
+     * @return The plan, or null if the image has no such method.
+     * @throws PlanCompilationException if the plan was rejected when the image was written.
+     * @throws IOException if the record is corrupt.
+     */
+    CompiledPlan read(String methodName) throws IOException {
+        int[] record = records.get(methodName);
+        if (record == null) {
+            return null;
+        }
+        // Each read works on its own view, so readers do not share a position.
+        ByteBuffer in = buffer.duplicate();
+        try {
+            in.position(record[0]);
+            int kind = in.get();
+            String name = string(in.getInt());
+            if (kind == RECORD_REJECTED) {
+                int count = in.getShort() & 0xFFFF;
+                List<String> problems = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    problems.add(string(in.getInt()));
+                }
+                throw new PlanCompilationException(name, problems);
+            }
+            if (kind != RECORD_PLAN) {
+                throw new IOException("bad record kind " + kind);
+            }
+            return readPlan(in, name);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("truncated record for '" + methodName + "' in " + file, e);
+        } catch (PlanCompilationException e) {
+            throw e;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("corrupt record for '" + methodName + "' in " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private CompiledPlan readPlan(ByteBuffer in, String name) {
+        ActionType[] types = ActionType.values();
+        CompiledPlan.WaitPolicy[] policies = CompiledPlan.WaitPolicy.values();
+
+        int count = in.getShort() & 0xFFFF;
+        List<CompiledPlan.CompiledStep> steps = new ArrayList<>(count);
+        int[] searchTargets = new int[count];
+        int[] searchScrolls = new int[count];
+        for (int i = 0; i < count; i++) {
+            ActionType type = types[checkIndex(in.get(), types.length)];
+            CompiledPlan.WaitPolicy waitAfter = policies[checkIndex(in.get(), policies.length)];
+            int flags = in.get();
+            int index = in.getInt();
+            int text = in.getInt();
+            long sleepMillis = in.getLong();
+            long findTimeoutMs = in.getLong();
+            int scrollPosition = in.getInt();
+            searchTargets[i] = in.getShort();
+            searchScrolls[i] = in.getShort() & 0xFFFF;
+            CompiledQuery target = (flags & FLAG_TARGET) != 0 ? QueryBytecode.read(in, this::string) : null;
+            steps.add(CompiledPlan.restoreStep(index, type, target, text >= 0 ? string(text) : null,
+                    sleepMillis, findTimeoutMs, (flags & FLAG_FORWARD) != 0, scrollPosition, waitAfter));
+        }
+        // What compile() guarantees: nothing waits after the last step, and a scroll searches for
+        // the target of a later step.
+        if (count > 0 && steps.get(count - 1).getWaitAfter() != CompiledPlan.WaitPolicy.NONE) {
+            throw new IllegalArgumentException("last step waits " + steps.get(count - 1).getWaitAfter());
+        }
+        for (int i = 0; i < count; i++) {
+            int target = searchTargets[i];
+            if (target == -1) {
+                continue;
+            }
+            if (target <= i || target >= count || steps.get(target).getQueries() == null) {
+                throw new IllegalArgumentException("step " + i + " searches for step " + target);
+            }
+            CompiledPlan.restoreSearch(steps.get(i), steps.get(target), searchScrolls[i]);
+        }
+        return CompiledPlan.restore(name, steps);
+    }
+
+    private String string(int index) {
+        String s = strings[checkIndex(index, strings.length)];
+        if (s == null) {
+            // Racing readers may both decode a string; they produce equal values.
+            ByteBuffer in = buffer.duplicate();
+            in.position(in.getInt(stringTable + 4 * index));
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IllegalArgumentException("string " + index + " has bad length " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    private static int checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("index " + index + " out of range [0, " + size + ")");
+        }
+        return index;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: open
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Map an image and read its directory.
+     *
+     * @throws IOException if the file cannot be read, is not an image, or was written by a
+     *                     build with a different format.
+     */
+    static CompiledPlanFile open(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileInputStream in = new FileInputStream(file); FileChannel channel = in.getChannel()) {
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a compiled plan file");
+            }
+            if (buffer.getInt(4) != VERSION || buffer.getInt(8) != SCHEMA) {
+                throw new IOException(file + " was written by a different format version");
+            }
+            int stringCount = buffer.getInt(44);
+            if (stringCount < 0 || stringCount > buffer.limit() / 4) {
+                throw new IOException(file + ": bad string count " + stringCount);
+            }
+            PlanFileStamp sourceStamp = new PlanFileStamp(buffer.getLong(12), buffer.getLong(20),
+                    buffer.getLong(28), buffer.getLong(36));
+            CompiledPlanFile image = new CompiledPlanFile(file, buffer, sourceStamp, buffer.getInt(48),
+                    stringCount);
+            int planCount = buffer.getInt(52);
+            int directory = buffer.getInt(56);
+            for (int i = 0; i < planCount; i++) {
+                int entry = directory + i * DIRECTORY_ENTRY_SIZE;
+                int offset = buffer.getInt(entry + 4);
+                int length = buffer.getInt(entry + 8);
+                if (offset < HEADER_SIZE || length < 0 || offset > buffer.limit() - length) {
+                    throw new IOException(file + ": record " + i + " out of bounds");
+                }
+                image.records.put(image.string(buffer.getInt(entry)), new int[] {offset, length});
+            }
+            return image;
+        } catch (IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + " is corrupt", e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: write
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Write the image of {@code source}. Writes a temp file and renames it, so readers never map
+     * a half-written image.
+     *
+     * @param source             The version of the JSON the plans were compiled from.
+     * @param plans              Compiled plans by method name.
+     * @param rejected           Problems of the plans that failed to compile, by method name.
+     */
+    static void write(File file, PlanFileStamp source, Map<String, CompiledPlan> plans, Map<String, List<String>> rejected) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        List<String> names = new ArrayList<>(plans.keySet());
+        names.addAll(rejected.keySet());
+        for (String name : names) {
+            intern(strings, name);
+        }
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordBytes);
+        int[] offsets = new int[names.size()];
+        int[] lengths = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            offsets[i] = records.size();
+            CompiledPlan plan = plans.get(name);
+            if (plan != null) {
+                writePlan(records, strings, name, plan);
+            } else {
+                List<String> problems = rejected.get(name);
+                records.writeByte(RECORD_REJECTED);
+                records.writeInt(strings.get(name));
+                records.writeShort(u16(problems.size(), "problems of '" + name + "'"));
+                for (String problem : problems) {
+                    records.writeInt(intern(strings, problem));
+                }
+            }
+            lengths[i] = records.size() - offsets[i];
+        }
+        records.flush();
+
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream stringData = new DataOutputStream(stringBytes);
+        int[] stringOffsets = new int[strings.size()];
+        int s = 0;
+        for (String value : strings.keySet()) {
+            stringOffsets[s++] = stringData.size();
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            stringData.writeInt(bytes.length);
+            stringData.write(bytes);
+        }
+        stringData.flush();
+
+        int directory = HEADER_SIZE;
+        int stringTable = directory + DIRECTORY_ENTRY_SIZE * names.size();
+        int stringBase = stringTable + 4 * strings.size();
+        int recordBase = stringBase + stringBytes.size();
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(SCHEMA);
+            out.writeLong(source.getLength());
+            out.writeLong(source.getLastModified());
+            out.writeLong(source.getCrc());
+            out.writeLong(source.getHashedAtMs());
+            out.writeInt(strings.size());
+            out.writeInt(stringTable);
+            out.writeInt(names.size());
+            out.writeInt(directory);
+            for (int i = 0; i < names.size(); i++) {
+                out.writeInt(strings.get(names.get(i)));
+                out.writeInt(recordBase + offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+            for (int offset : stringOffsets) {
+                out.writeInt(stringBase + offset);
+            }
+            stringBytes.writeTo(out);
+            recordBytes.writeTo(out);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void writePlan(DataOutputStream out, Map<String, Integer> strings, String name,
+                                  CompiledPlan plan) throws IOException {
+        List<CompiledPlan.CompiledStep> steps = plan.getSteps();
+        out.writeByte(RECORD_PLAN);
+        out.writeInt(intern(strings, plan.getMethodName() != null ? plan.getMethodName() : name));
+        out.writeShort(u16(steps.size(), "steps of '" + name + "'"));
+        for (int i = 0; i < steps.size(); i++) {
+            CompiledPlan.CompiledStep step = steps.get(i);
+            List<NodeQueryParser.QueryExpr> ast = step.getQueryAst();
+            int flags = (step.isScrollForward() ? FLAG_FORWARD : 0) | (ast != null ? FLAG_TARGET : 0);
+            out.writeByte(step.getType().ordinal());
+            out.writeByte(step.getWaitAfter().ordinal());
+            out.writeByte(flags);
+            out.writeInt(step.getIndex());
+            out.writeInt(step.getText() != null ? intern(strings, step.getText()) : -1);
+            out.writeLong(step.getSleepMillis());
+            out.writeLong(step.getFindTimeoutMs());
+            out.writeInt(step.getScrollPosition());
+            int target = searchTarget(steps, i);
+            if (target > Short.MAX_VALUE) {
+                throw new IOException("'" + name + "' step " + i + ": search target " + target + " does not fit the image");
+            }
+            out.writeShort(target);
+            out.writeShort(u16(step.getSearchScrolls(), "search scrolls of '" + name + "' step " + i));
+            if (ast != null) {
+                QueryBytecode.write(ast, value -> intern(strings, value), out);
+            }
+        }
+    }
+
+    /** The step whose target {@code steps[i]} searches for, or -1. */
+    private static int searchTarget(List<CompiledPlan.CompiledStep> steps, int i) {
+        Object searchQueries = steps.get(i).getSearchQueries();
+        if (searchQueries != null) {
+            for (int j = i + 1; j < steps.size(); j++) {
+                if (steps.get(j).getQueries() == searchQueries) {
+                    return j;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** {@code value} if it fits an unsigned 16-bit field; writeShort would silently wrap it. */
+    private static int u16(int value, String what) throws IOException {
+        if (value < 0 || value > 0xFFFF) {
+            throw new IOException(what + ": " + value + " does not fit the image");
+        }
+        return value;
+    }
+
+    private static int intern(Map<String, Integer> strings, String value) {
+        Integer index = strings.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.put(value, index);
+        }
+        return index;
+    }
+
+    /** Hash of the names of every enum stored by ordinal. */
+    private static int schemaFingerprint() {
+        List<Object[]> enums = Arrays.asList(ActionType.values(), CompiledPlan.WaitPolicy.values(),
+                NodeQueryParser.Attribute.values(), NodeQueryParser.MatchMode.values(),
+                NodeQueryParser.Relation.values(), NodeQueryParser.Position.values());
+        int hash = 1;
+        for (Object[] values : enums) {
+            hash = 31 * hash + Arrays.toString(values).hashCode();
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,31 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when an ActionPlan cannot be compiled into a {@link CompiledPlan}.
+ * Lists every problem found (not just the first), each prefixed with its step index, so the
+ * generator output can be fixed in one pass.
+ */
+public class PlanCompilationException extends IllegalArgumentException {
+
+    private final String methodName;
+    private final List<String> problems;
+
+    public PlanCompilationException(String methodName, List<String> problems) {
+        super("plan '" + methodName + "' rejected: " + String.join("; ", problems));
+        this.methodName = methodName;
+        this.problems = Collections.unmodifiableList(problems);
+    }
+
+    /** The method whose plan failed. */
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /** One entry per problem, e.g. {@code step[2] click: no node_query or matchers}. */
+    public List<String> getProblems() {
+        return problems;
+    }
+}
@@ -0,0 +1,136 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs compiled ActionPlans one at a time on a single worker thread.
+ *
+ * <pre>
+ *   submit() ──→ [ bounded queue ] ──→ "PlanEngine" thread ──→ ActionPlanExecutor.executePlan()
+ *      │
+ *      └──→ PlanHandle: state, progress, cancel(), completion future
+ * </pre>
+ *
+ * Plans never overlap, so two plans cannot drive the UI at the same time. When the queue is full
+ * the submission is rejected and its handle fails at once instead of blocking the caller.
+ */
+public final class PlanEngine {
+
+    private static final String TAG = "PlanEngine";
+
+    /** Queued plans (not counting the running one) before submissions are rejected. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private final ActionPlanExecutor executor;
+    private final ThreadPoolExecutor worker;
+
+    // Handles that are queued or running, in submission order. Guarded by itself.
+    private final List<PlanHandle> active = new ArrayList<>();
+
+    public PlanEngine(ActionPlanExecutor executor) {
+        this(executor, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public PlanEngine(ActionPlanExecutor executor, int queueCapacity) {
+        this.executor = executor;
+        this.worker = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "PlanEngine");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * Queue a plan. Returns immediately.
+     *
+     * @return The plan's handle. If the queue is full or the engine is shut down, the handle's
+     *         completion fails with {@link RejectedExecutionException}.
+     */
+    public PlanHandle submit(String appId, CompiledPlan plan) {
+        PlanHandle handle = new PlanHandle(appId, plan);
+        synchronized (active) {
+            active.add(handle);
+        }
+        handle.getCompletion().whenComplete((ok, error) -> {
+            synchronized (active) {
+                active.remove(handle);
+            }
+        });
+
+        try {
+            worker.execute(() -> run(handle));
+            Log.i(TAG, "submit: queued " + handle + " (" + worker.getQueue().size() + " waiting)");
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "submit: rejected " + handle + ", queue full or engine shut down");
+            handle.reject(e);
+        }
+        return handle;
+    }
+
+    private void run(PlanHandle handle) {
+        if (!handle.start()) {
+            Log.i(TAG, "run: skipping cancelled " + handle);
+            return;
+        }
+        boolean ok = false;
+        try {
+            ok = executor.executePlan(handle.getAppId(), handle.getPlan(), handle);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "run: plan threw, " + handle, e);
+        } finally {
+            handle.complete(ok);
+            Log.i(TAG, "run: finished " + handle);
+        }
+    }
+
+    /** The plan running now, or null. */
+    public PlanHandle getCurrent() {
+        synchronized (active) {
+            for (PlanHandle handle : active) {
+                if (handle.getState() == PlanHandle.State.RUNNING) {
+                    return handle;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Cancel the running plan and everything queued behind it, e.g. when the user speaks again.
+     *
+     * @return Number of plans cancelled.
+     */
+    public int cancelAll() {
+        List<PlanHandle> toCancel;
+        synchronized (active) {
+            toCancel = new ArrayList<>(active);
+        }
+        // Newest first, the running plan last: cancelling it first would let the worker start
+        // the next queued plan before that one is cancelled.
+        int cancelled = 0;
+        for (int i = toCancel.size() - 1; i >= 0; i--) {
+            if (toCancel.get(i).cancel()) {
+                cancelled++;
+            }
+        }
+        if (cancelled > 0) {
+            Log.i(TAG, "cancelAll: cancelled " + cancelled + " plan(s)");
+        }
+        return cancelled;
+    }
+
+    /** Cancel everything and stop the worker thread. */
+    public void shutdown() {
+        cancelAll();
+        worker.shutdownNow();
+    }
+}
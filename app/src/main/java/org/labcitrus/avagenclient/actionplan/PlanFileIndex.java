@@ -0,0 +1,320 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Byte-offset index of one {@code {appId}_actionplan.json}, so a single plan can be decoded
+ * without parsing the others:
+ *
+ * <pre>
+ *   { "app_id": "...",
+ *     "action_plans": {
+ *       "accessStatistics": {  ...  },     ──→  "accessStatistics" → [start, end)
+ *       "startSleep":       {  ...  },     ──→  "startSleep"       → [start, end)
+ *       ...
+ *     } }
+ * </pre>
+ *
+ * {@link #build(File)} makes one pass over the raw bytes, tracking only nesting and string
+ * boundaries; nothing inside the plans is decoded. {@link #decode(String, Gson)} then reads one
+ * value's bytes and binds them with Gson's {@link JsonReader}. The same pass stamps the file
+ * ({@link PlanFileStamp}) for change detection.
+ *
+ * <p>Lookups use the keys of "action_plans". The generator writes each plan's method_name equal
+ * to its key; a plan without method_name takes its key when compiled.</p>
+ */
+final class PlanFileIndex {
+
+    private final File file;
+    private final PlanFileStamp stamp;
+    private final String appId;
+    private final Map<String, long[]> spans;
+
+    private PlanFileIndex(File file, PlanFileStamp stamp, String appId, Map<String, long[]> spans) {
+        this.file = file;
+        this.stamp = stamp;
+        this.appId = appId;
+        this.spans = spans;
+    }
+
+    /** The file's "app_id", or null if it has none. */
+    String getAppId() {
+        return appId;
+    }
+
+    Set<String> getMethodNames() {
+        return spans.keySet();
+    }
+
+    boolean contains(String methodName) {
+        return spans.containsKey(methodName);
+    }
+
+    /** Size of a plan's JSON in bytes, or 0 if the file has no such plan. */
+    long getSpanLength(String methodName) {
+        long[] span = spans.get(methodName);
+        return span != null ? span[1] - span[0] : 0;
+    }
+
+    /** Rough memory footprint of the index itself. */
+    long getWeight() {
+        long weight = 64;
+        for (String name : spans.keySet()) {
+            weight += 48 + 2L * name.length();
+        }
+        return weight;
+    }
+
+    /** The version of the file that was indexed. */
+    PlanFileStamp getStamp() {
+        return stamp;
+    }
+
+    /** True if the file was modified or replaced since it was indexed. */
+    boolean isStale() {
+        return !stamp.matchesMetadata(file);
+    }
+
+    /**
+     * Decode one plan.
+     *
+     * @return The plan, or null if the file has no such method.
+     * @throws IOException if the file changed since it was indexed or cannot be read.
+     */
+    ActionPlan decode(String methodName, Gson gson) throws IOException {
+        long[] span = spans.get(methodName);
+        if (span == null) {
+            return null;
+        }
+        if (isStale()) {
+            throw new IOException(file + " changed since it was indexed");
+        }
+        byte[] bytes = new byte[(int) (span[1] - span[0])];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(span[0]);
+            raf.readFully(bytes);
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            return gson.fromJson(reader, ActionPlan.class);
+        } catch (JsonParseException e) {
+            throw new IOException("plan '" + methodName + "' in " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: indexing scan
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Index {@code file}.
+     *
+     * @throws IOException if the file cannot be read or is not a plan file.
+     */
+    static PlanFileIndex build(File file) throws IOException {
+        long hashedAt = System.currentTimeMillis();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        CheckedInputStream checked = new CheckedInputStream(new FileInputStream(file), new CRC32());
+        try (InputStream in = new BufferedInputStream(checked, 16 * 1024)) {
+            Scanner scanner = new Scanner(in);
+            String appId = null;
+            Map<String, long[]> spans = Collections.emptyMap();
+
+            scanner.expect('{');
+            if (scanner.peekNonSpace() == '}') {
+                scanner.next();
+            } else {
+                while (true) {
+                    String key = scanner.readString();
+                    scanner.expect(':');
+                    if ("app_id".equals(key) && scanner.peekNonSpace() == '"') {
+                        appId = scanner.readString();
+                    } else if ("action_plans".equals(key) && scanner.peekNonSpace() == '{') {
+                        spans = indexPlans(scanner);
+                    } else {
+                        scanner.skipValue();
+                    }
+                    if (!scanner.nextMember()) {
+                        break;
+                    }
+                }
+            }
+            // Hash trailing bytes too, so the CRC covers the whole file.
+            byte[] rest = new byte[1024];
+            while (in.read(rest) > 0) {
+                // drain
+            }
+            PlanFileStamp stamp = new PlanFileStamp(length, lastModified, checked.getChecksum().getValue(), hashedAt);
+            return new PlanFileIndex(file, stamp, appId, spans);
+        }
+    }
+
+    private static Map<String, long[]> indexPlans(Scanner scanner) throws IOException {
+        Map<String, long[]> spans = new HashMap<>();
+        scanner.expect('{');
+        if (scanner.peekNonSpace() == '}') {
+            scanner.next();
+            return spans;
+        }
+        while (true) {
+            String name = scanner.readString();
+            scanner.expect(':');
+            scanner.peekNonSpace();
+            long start = scanner.position();
+            scanner.skipValue();
+            spans.put(name, new long[] {start, scanner.position()});
+            if (!scanner.nextMember()) {
+                return spans;
+            }
+        }
+    }
+
+    /** Minimal JSON byte scanner: one byte of lookahead and the offset of the next byte. */
+    private static final class Scanner {
+        private final InputStream in;
+        private long position;
+        private int peeked = -2;
+
+        Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        long position() {
+            return position;
+        }
+
+        int peek() throws IOException {
+            if (peeked == -2) {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        int next() throws IOException {
+            int c = peek();
+            if (c < 0) {
+                throw new IOException("unexpected end of file at byte " + position);
+            }
+            peeked = -2;
+            position++;
+            return c;
+        }
+
+        int peekNonSpace() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                next();
+                c = peek();
+            }
+            return c;
+        }
+
+        int nextNonSpace() throws IOException {
+            peekNonSpace();
+            return next();
+        }
+
+        void expect(char c) throws IOException {
+            int got = nextNonSpace();
+            if (got != c) {
+                throw new IOException("expected '" + c + "' at byte " + (position - 1) + ", got '" + (char) got + "'");
+            }
+        }
+
+        /** After an object member: true on ',' (another member follows), false on '}'. */
+        boolean nextMember() throws IOException {
+            int c = nextNonSpace();
+            if (c == ',') {
+                return true;
+            }
+            if (c == '}') {
+                return false;
+            }
+            throw new IOException("expected ',' or '}' at byte " + (position - 1) + ", got '" + (char) c + "'");
+        }
+
+        /** Read a string token, unescaping it if needed. */
+        String readString() throws IOException {
+            expect('"');
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            boolean escaped = false;
+            while (true) {
+                int c = next();
+                if (c == '"') {
+                    break;
+                }
+                raw.write(c);
+                if (c == '\\') {
+                    escaped = true;
+                    raw.write(next());
+                }
+            }
+            String s = new String(raw.toByteArray(), StandardCharsets.UTF_8);
+            if (!escaped) {
+                return s;
+            }
+            try (JsonReader reader = new JsonReader(new StringReader('"' + s + '"'))) {
+                return reader.nextString();
+            }
+        }
+
+        /** Skip one value of any kind, leaving the position just past it. */
+        void skipValue() throws IOException {
+            int c = peekNonSpace();
+            if (c == '"') {
+                readString();
+                return;
+            }
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                boolean inString = false;
+                while (true) {
+                    int b = next();
+                    if (inString) {
+                        if (b == '\\') {
+                            next();
+                        } else if (b == '"') {
+                            inString = false;
+                        }
+                    } else if (b == '"') {
+                        inString = true;
+                    } else if (b == '{' || b == '[') {
+                        depth++;
+                    } else if (b == '}' || b == ']') {
+                        if (--depth == 0) {
+                            return;
+                        }
+                    }
+                }
+            }
+            // Literal: number, true, false, null.
+            while (true) {
+                int b = peek();
+                if (b < 0 || b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                    return;
+                }
+                next();
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Identifies one version of a plan file by its length, modification time and CRC-32:
+ *
+ * <pre>
+ *   length + mtime equal, stamp not racy ──→ unchanged (no read)
+ *   otherwise ──→ hash the content ──equal──→ unchanged (touched or rewritten identically)
+ *                                  └─differs─→ changed
+ * </pre>
+ *
+ * Modification times are coarse (a second or more on some file systems), so a file rewritten
+ * with the same length shortly after it was hashed would look unchanged. Like git's "racily
+ * clean" entries, a stamp whose mtime is within {@link #RACY_WINDOW_MS} of the time it was
+ * hashed is not trusted on metadata alone; the next check hashes again.
+ */
+final class PlanFileStamp {
+
+    /** Coarsest mtime granularity we expect (FAT / some FUSE mounts: 2 s). */
+    static final long RACY_WINDOW_MS = 2000L;
+
+    private final long length;
+    private final long lastModified;
+    private final long crc;
+    private final long hashedAtMs;
+
+    PlanFileStamp(long length, long lastModified, long crc, long hashedAtMs) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.crc = crc;
+        this.hashedAtMs = hashedAtMs;
+    }
+
+    /** Stamp {@code file} as it is now (reads the whole file). */
+    static PlanFileStamp of(File file) throws IOException {
+        long hashedAt = System.currentTimeMillis();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return new PlanFileStamp(length, lastModified, crc.getValue(), hashedAt);
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    long getCrc() {
+        return crc;
+    }
+
+    long getHashedAtMs() {
+        return hashedAtMs;
+    }
+
+    /** True if {@code file} still has this length and mtime. */
+    boolean matchesMetadata(File file) {
+        return file.length() == length && file.lastModified() == lastModified;
+    }
+
+    /**
+     * True if {@code file} is this version without reading it: same metadata, and the stamp was
+     * hashed long enough after the last write that a same-second rewrite would show.
+     */
+    boolean isCleanFor(File file) {
+        return matchesMetadata(file) && lastModified < hashedAtMs - RACY_WINDOW_MS;
+    }
+
+    /** True if both stamps describe the same content. */
+    boolean sameContent(PlanFileStamp other) {
+        return other != null && length == other.length && crc == other.crc;
+    }
+
+    @Override
+    public String toString() {
+        return length + " bytes, mtime " + lastModified + ", crc " + Long.toHexString(crc);
+    }
+}
@@ -0,0 +1,161 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.util.Log;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A plan submitted to the {@link PlanEngine}: its state, its progress, a way to cancel it and a
+ * future that completes when it is done.
+ *
+ * <pre>
+ *   QUEUED ──→ RUNNING ──┬─→ SUCCEEDED   completion: true
+ *     │           │      └─→ FAILED      completion: false (a step failed)
+ *     ├───────────┴───────→ CANCELLED   completion: CancellationException
+ *     └─ rejected ──────────→ FAILED      completion: RejectedExecutionException
+ * </pre>
+ */
+public final class PlanHandle {
+
+    private static final String TAG = "PlanHandle";
+
+    public enum State { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    private final String appId;
+    private final CompiledPlan plan;
+    private final int totalSteps;
+    private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+
+    private final Object lock = new Object();
+    // Guarded by lock.
+    private State state = State.QUEUED;
+    private Thread runner;
+
+    private volatile int completedSteps;
+    private volatile boolean cancelRequested;
+
+    PlanHandle(String appId, CompiledPlan plan) {
+        this.appId = appId;
+        this.plan = plan;
+        this.totalSteps = plan != null ? plan.size() : 0;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public CompiledPlan getPlan() {
+        return plan;
+    }
+
+    public State getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    /** Steps finished so far. */
+    public int getCompletedSteps() {
+        return completedSteps;
+    }
+
+    public int getTotalSteps() {
+        return totalSteps;
+    }
+
+    /**
+     * Completes with true if every step succeeded, false if a step failed, or is cancelled
+     * (CancellationException) if the plan was cancelled before finishing.
+     */
+    public CompletableFuture<Boolean> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Cancel the plan. A queued plan never starts; a running plan is interrupted, which wakes
+     * whatever wait it is in, and stops before its next step.
+     *
+     * @return false if the plan had already finished.
+     */
+    public boolean cancel() {
+        boolean wasQueued;
+        synchronized (lock) {
+            if (state != State.QUEUED && state != State.RUNNING) {
+                return false;
+            }
+            cancelRequested = true;
+            wasQueued = state == State.QUEUED;
+            if (wasQueued) {
+                state = State.CANCELLED;
+            } else {
+                runner.interrupt();
+            }
+        }
+        Log.i(TAG, "cancel: " + this);
+        if (wasQueued) {
+            completion.cancel(false);
+        }
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelRequested;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: engine / executor side
+    // ---------------------------------------------------------------------------------------------
+
+    /** Mark the plan as running on the current thread; false if it was cancelled while queued. */
+    boolean start() {
+        synchronized (lock) {
+            if (state != State.QUEUED) {
+                return false;
+            }
+            state = State.RUNNING;
+            runner = Thread.currentThread();
+            return true;
+        }
+    }
+
+    /** The engine would not take the plan (queue full, shut down). */
+    void reject(Exception reason) {
+        synchronized (lock) {
+            state = State.FAILED;
+        }
+        completion.completeExceptionally(reason);
+    }
+
+    void onStepCompleted(int index) {
+        completedSteps = index + 1;
+    }
+
+    /**
+     * Record the outcome and detach from the runner thread. The runner's interrupt flag is
+     * cleared so a late cancel() does not leak into the next plan.
+     */
+    void complete(boolean succeeded) {
+        State outcome;
+        synchronized (lock) {
+            runner = null;
+            outcome = cancelRequested ? State.CANCELLED : succeeded ? State.SUCCEEDED : State.FAILED;
+            state = outcome;
+        }
+        Thread.interrupted();
+
+        // Outside the lock: dependents of the future run synchronously here.
+        if (outcome == State.CANCELLED) {
+            completion.cancel(false);
+        } else {
+            completion.complete(outcome == State.SUCCEEDED);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PlanHandle{" + (plan != null ? plan.getMethodName() : null)
+                + ", appId=" + appId
+                + ", state=" + getState()
+                + ", progress=" + completedSteps + "/" + totalSteps + '}';
+    }
+}
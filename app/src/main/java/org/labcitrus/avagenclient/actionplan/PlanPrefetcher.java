@@ -0,0 +1,100 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.accessibilityservice.AccessibilityService;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Warms {@link ActionPlanRepository} for the app the user just switched to, so its plans are
+ * decoded and their queries compiled before the user opens the popup and speaks:
+ *
+ * <pre>
+ *   onAccessibilityEvent ──→ foreground app changed ──→ onForegroundAppChanged(appId)
+ *                                                          │ (returns at once)
+ *   PlanPrefetcher thread ──→ still the foreground app? ──→ repository.prefetch(
+ *                                                             most run methods first
+ *                                                             (PlanUsageStats), then the rest)
+ * </pre>
+ *
+ * Switching apps quickly queues several requests; only the newest one does any work. Everything
+ * runs on one low-priority daemon thread, never on the accessibility event thread.
+ */
+public final class PlanPrefetcher {
+
+    private static final String TAG = "PlanPrefetcher";
+
+    /** Plans decoded per app switch by default. */
+    public static final int DEFAULT_MAX_PLANS = 8;
+
+    private final AccessibilityService service;
+    private final ActionPlanRepository repository;
+    private final PlanUsageStats usageStats;
+    private final ExecutorService worker;
+
+    private volatile String foregroundAppId;
+    private volatile int maxPlans = DEFAULT_MAX_PLANS;
+
+    public PlanPrefetcher(AccessibilityService service, ActionPlanRepository repository, PlanUsageStats usageStats) {
+        this(service, repository, usageStats, Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "PlanPrefetcher");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }));
+    }
+
+    /**
+     * @param worker Runs the prefetches, one at a time.
+     */
+    PlanPrefetcher(AccessibilityService service, ActionPlanRepository repository, PlanUsageStats usageStats,
+                   ExecutorService worker) {
+        this.service = service;
+        this.repository = repository;
+        this.usageStats = usageStats;
+        this.worker = worker;
+    }
+
+    /** How many plans to decode per app switch. */
+    public void setMaxPlans(int maxPlans) {
+        this.maxPlans = Math.max(0, maxPlans);
+    }
+
+    /** The foreground app changed; queue a prefetch for it. Cheap, call from the event thread. */
+    public void onForegroundAppChanged(String appId) {
+        if (appId == null || appId.equals(foregroundAppId)) {
+            return;
+        }
+        foregroundAppId = appId;
+        try {
+            worker.execute(() -> prefetch(appId));
+        } catch (RejectedExecutionException e) {
+            // Shut down.
+        }
+    }
+
+    private void prefetch(String appId) {
+        if (!appId.equals(foregroundAppId)) {
+            return; // The user already moved on to another app.
+        }
+        long start = System.nanoTime();
+        int limit = maxPlans;
+        try {
+            List<String> top = usageStats.topMethods(appId, limit);
+            int ready = repository.prefetch(service, appId, top, limit);
+            Log.i(TAG, "prefetch: appId=" + appId + " " + ready + " plan(s) ready (" + top.size()
+                    + " ranked by use) in " + (System.nanoTime() - start) / 1_000_000L + " ms");
+        } catch (RuntimeException e) {
+            // Only a warm-up: the plans load on first use instead. Never let it kill the worker.
+            Log.e(TAG, "prefetch: failed for appId=" + appId, e);
+        }
+    }
+
+    /** Stop the worker; a prefetch in progress is interrupted. */
+    public void shutdown() {
+        worker.shutdownNow();
+    }
+}
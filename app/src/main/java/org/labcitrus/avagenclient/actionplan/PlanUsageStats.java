@@ -0,0 +1,216 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.util.Log;
+
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Counts how often each plan of each app is run, so {@link PlanPrefetcher} can warm an app's
+ * most used plans first:
+ *
+ * <pre>
+ *   appId → method → { runs, last run }
+ *   topMethods(appId, n) = methods by runs, then by most recent run
+ * </pre>
+ *
+ * <p>Stored as JSON under the app's files dir and loaded on first use. It keeps at most
+ * {@link #MAX_KEYS} methods over all apps, dropping the least recently run ones, and forgets
+ * methods not run for {@link #MAX_AGE_MS} (plans that were removed or renamed) when it is
+ * loaded.</p>
+ */
+public final class PlanUsageStats {
+
+    private static final String TAG = "PlanUsageStats";
+
+    /** Most methods kept over all apps; past this the least recently run ones are dropped. */
+    static final int MAX_KEYS = 1024;
+
+    /** Methods not run for this long are dropped on load. */
+    static final long MAX_AGE_MS = 90L * 24 * 60 * 60 * 1000;
+
+    private static final int FILE_VERSION = 1;
+
+    /** Null to keep the counters in memory only. */
+    private final VersionedJsonFile<Map<String, Map<String, Usage>>> store;
+    private final LongSupplier clock;
+
+    // Guarded by this.
+    private Map<String, Map<String, Usage>> apps = new HashMap<>();
+    /** Methods over all apps. */
+    private int keys;
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * @param file Where the counters are persisted, or null to keep them in memory only.
+     */
+    public PlanUsageStats(File file) {
+        this(file, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Wall-clock milliseconds, the time of a run.
+     */
+    PlanUsageStats(File file, LongSupplier clock) {
+        this.store = file != null ? new VersionedJsonFile<>(file, FILE_VERSION, "apps",
+                new TypeToken<Map<String, Map<String, Usage>>>() {}.getType(), TAG) : null;
+        this.clock = clock;
+    }
+
+    static final class Usage {
+        @SerializedName("runs")
+        long runs;
+        @SerializedName("last")
+        long lastRunMs;
+    }
+
+    /** Count one run of {@code methodName}. */
+    public synchronized void record(String appId, String methodName) {
+        if (appId == null || methodName == null) {
+            return;
+        }
+        ensureLoaded();
+        Map<String, Usage> methods = apps.get(appId);
+        if (methods == null) {
+            methods = new HashMap<>();
+            apps.put(appId, methods);
+        }
+        Usage usage = methods.get(methodName);
+        if (usage == null) {
+            usage = new Usage();
+            methods.put(methodName, usage);
+            keys++;
+        }
+        usage.runs++;
+        usage.lastRunMs = clock.getAsLong();
+        if (keys > MAX_KEYS) {
+            trim();
+        }
+        dirty = true;
+    }
+
+    /** Up to {@code limit} of the app's methods, most run first; empty if it has no history. */
+    public synchronized List<String> topMethods(String appId, int limit) {
+        ensureLoaded();
+        Map<String, Usage> methods = apps.get(appId);
+        if (methods == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Map.Entry<String, Usage>> entries = new ArrayList<>(methods.entrySet());
+        entries.sort((a, b) -> a.getValue().runs != b.getValue().runs
+                ? Long.compare(b.getValue().runs, a.getValue().runs)
+                : Long.compare(b.getValue().lastRunMs, a.getValue().lastRunMs));
+        List<String> top = new ArrayList<>(Math.min(limit, entries.size()));
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            top.add(entries.get(i).getKey());
+        }
+        return top;
+    }
+
+    /** Number of methods counted, over all apps. */
+    synchronized int size() {
+        ensureLoaded();
+        return keys;
+    }
+
+    // Caller holds the lock. Drops the least recently run methods down to 90% of the cap, so
+    // the sort runs once per MAX_KEYS / 10 new methods rather than on every record.
+    private void trim() {
+        List<Usage> runs = new ArrayList<>(keys);
+        for (Map<String, Usage> methods : apps.values()) {
+            runs.addAll(methods.values());
+        }
+        runs.sort((a, b) -> Long.compare(a.lastRunMs, b.lastRunMs));
+        int excess = keys - MAX_KEYS * 9 / 10;
+        Set<Usage> oldest = Collections.newSetFromMap(new IdentityHashMap<>());
+        oldest.addAll(runs.subList(0, excess));
+        removeIf(oldest::contains);
+        Log.i(TAG, "trim: dropped " + excess + " least recently run method(s)");
+    }
+
+    // Caller holds the lock. Removes matching methods, and apps left without any.
+    private int removeIf(Predicate<Usage> drop) {
+        int removed = 0;
+        for (Iterator<Map<String, Usage>> appIt = apps.values().iterator(); appIt.hasNext(); ) {
+            Map<String, Usage> methods = appIt.next();
+            for (Iterator<Usage> it = methods.values().iterator(); it.hasNext(); ) {
+                if (drop.test(it.next())) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            if (methods.isEmpty()) {
+                appIt.remove();
+            }
+        }
+        keys -= removed;
+        return removed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: persistence
+    // ---------------------------------------------------------------------------------------------
+
+    // Caller holds the lock.
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        Map<String, Map<String, Usage>> stored = store != null ? store.load() : null;
+        if (stored == null) {
+            return;
+        }
+        apps = new HashMap<>();
+        for (Map.Entry<String, Map<String, Usage>> e : stored.entrySet()) {
+            if (e.getKey() != null && e.getValue() != null) {
+                apps.put(e.getKey(), new HashMap<>(e.getValue()));
+                keys += e.getValue().size();
+            }
+        }
+        int expired = expire(clock.getAsLong());
+        Log.i(TAG, "load: " + apps.size() + " app(s) from " + store.getFile() + ", " + expired + " expired");
+    }
+
+    // Caller holds the lock.
+    private int expire(long now) {
+        int expired = removeIf(u -> u == null || now - u.lastRunMs > MAX_AGE_MS);
+        if (expired > 0) {
+            dirty = true;
+        }
+        if (keys > MAX_KEYS) {
+            trim();
+            dirty = true;
+        }
+        return expired;
+    }
+
+    /**
+     * Write the counters if they changed since the last save (temp file + rename).
+     *
+     * @return false if writing failed.
+     */
+    public synchronized boolean save() {
+        if (!dirty || store == null) {
+            return true;
+        }
+        if (!store.save(apps)) {
+            return false;
+        }
+        dirty = false;
+        return true;
+    }
+}
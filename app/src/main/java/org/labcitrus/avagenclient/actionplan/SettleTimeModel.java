@@ -0,0 +1,325 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.util.Log;
+
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+
+import org.labcitrus.avagenclient.core.UiIdleDetector;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Learns how long each app takes to settle after each step, so the idle wait can be tuned per
+ * step instead of using one quiet window for every app.
+ *
+ * <p>Every wait between steps is one sample, recorded under two keys:</p>
+ * <pre>
+ *   appId / method #index : TYPE    this step of this plan
+ *   appId / * : TYPE                any step of this type in the app (fallback)
+ * </pre>
+ *
+ * Each key keeps an exponentially weighted mean and variance of two quantities from
+ * {@link UiIdleDetector.Settle}: the longest silence followed by another event (which the quiet
+ * window must outlast) and the time until the UI stopped changing (which the cap must outlast).
+ * Their p95 (mean + 1.645 sd), with headroom, becomes the step's {@link Budget}:
+ *
+ * <pre>
+ *   quiet window = clamp(1.5 × p95(gap),              120 ms ..  1.5 s)
+ *   max wait     = clamp(2 × p95(settle) + quiet,     800 ms .. 15 s)
+ * </pre>
+ *
+ * A sample only shows gaps shorter than the quiet window in use. When the wait ended too early
+ * (the next step then had to wait for its target), the executor reports that extra wait and the
+ * sample is widened by it, so a slow app's window grows instead of staying too short.
+ *
+ * <p>The model is stored as JSON under the app's files dir and loaded on first use. It keeps at
+ * most {@link #MAX_KEYS} keys, dropping the least recently updated ones, and forgets keys not
+ * updated for {@link #MAX_AGE_MS} (plans that were removed or renamed) when it is loaded.</p>
+ */
+public final class SettleTimeModel {
+
+    private static final String TAG = "SettleTimeModel";
+
+    /** Weight of the newest sample. */
+    static final double ALPHA = 0.2;
+
+    /** Samples a key needs before its estimate is used. */
+    static final int MIN_SAMPLES = 3;
+
+    private static final double Z_95 = 1.645;
+    private static final double QUIET_HEADROOM = 1.5;
+    private static final double CAP_HEADROOM = 2.0;
+
+    public static final long MIN_QUIET_WINDOW_MS = 120L;
+    public static final long MAX_QUIET_WINDOW_MS = 1500L;
+    public static final long MIN_MAX_WAIT_MS = 800L;
+    public static final long MAX_MAX_WAIT_MS = 15000L;
+
+    /** Most keys kept; past this the least recently updated ones are dropped. */
+    static final int MAX_KEYS = 1024;
+
+    /** Keys not updated for this long are dropped on load. */
+    static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int FILE_VERSION = 1;
+
+    /** Null to keep the model in memory only. */
+    private final VersionedJsonFile<Map<String, Stats>> store;
+    private final LongSupplier clock;
+
+    // Guarded by this.
+    private Map<String, Stats> stats = new HashMap<>();
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * @param file Where the model is persisted, or null to keep it in memory only.
+     */
+    public SettleTimeModel(File file) {
+        this(file, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock Wall-clock milliseconds, used to age out keys.
+     */
+    SettleTimeModel(File file, LongSupplier clock) {
+        this.store = file != null ? new VersionedJsonFile<>(file, FILE_VERSION, "stats",
+                new TypeToken<Map<String, Stats>>() {}.getType(), TAG) : null;
+        this.clock = clock;
+    }
+
+    /** The wait to use after a step. */
+    public static final class Budget {
+        private final long quietWindowMs;
+        private final long maxWaitMs;
+        private final String source;
+
+        Budget(long quietWindowMs, long maxWaitMs, String source) {
+            this.quietWindowMs = quietWindowMs;
+            this.maxWaitMs = maxWaitMs;
+            this.source = source;
+        }
+
+        public long getQuietWindowMs() {
+            return quietWindowMs;
+        }
+
+        public long getMaxWaitMs() {
+            return maxWaitMs;
+        }
+
+        /** True if learned, false if these are the defaults. */
+        public boolean isLearned() {
+            return source != null;
+        }
+
+        @Override
+        public String toString() {
+            return "quiet " + quietWindowMs + " ms, cap " + maxWaitMs + " ms ("
+                    + (source != null ? "learned from " + source : "default") + ")";
+        }
+    }
+
+    /**
+     * The wait after {@code step}: learned for this step if it has enough samples, else for its
+     * action type in this app, else the given defaults.
+     */
+    public synchronized Budget budgetFor(String appId, String method, CompiledPlan.CompiledStep step,
+                                         long defaultQuietMs, long defaultMaxWaitMs) {
+        ensureLoaded();
+        String key = stepKey(appId, method, step);
+        Stats s = stats.get(key);
+        if (s == null || s.settle.count < MIN_SAMPLES) {
+            key = typeKey(appId, step);
+            s = stats.get(key);
+        }
+        if (s == null || s.settle.count < MIN_SAMPLES) {
+            return new Budget(defaultQuietMs, defaultMaxWaitMs, null);
+        }
+        long quiet = clamp(Math.round(QUIET_HEADROOM * s.gap.p95()), MIN_QUIET_WINDOW_MS, MAX_QUIET_WINDOW_MS);
+        long cap = clamp(Math.round(CAP_HEADROOM * s.settle.p95()) + quiet, MIN_MAX_WAIT_MS, MAX_MAX_WAIT_MS);
+        return new Budget(quiet, cap, key);
+    }
+
+    /**
+     * Record the wait after {@code step}.
+     *
+     * @param observed        What the idle wait saw.
+     * @param quietWindowMs   The quiet window that wait used.
+     * @param lateTargetMs    How long the next step still had to wait for its target after the
+     *                        UI was considered idle (0 if it was there at once).
+     */
+    public synchronized void record(String appId, String method, CompiledPlan.CompiledStep step,
+                                    UiIdleDetector.Settle observed, long quietWindowMs, long lateTargetMs) {
+        ensureLoaded();
+        double settle;
+        double gap;
+        if (lateTargetMs > 0) {
+            // The UI was quiet for the whole window, then changed again: the real gap was longer.
+            settle = observed.getWaitedMs() + lateTargetMs;
+            gap = Math.max(observed.getMaxGapMs(), quietWindowMs + lateTargetMs);
+        } else {
+            // When the cap was hit, the app was still busy: count the full wait.
+            settle = observed.isSettled() ? observed.getActivityMs() : observed.getWaitedMs();
+            gap = observed.getMaxGapMs();
+        }
+        long now = clock.getAsLong();
+        statsFor(stepKey(appId, method, step)).add(settle, gap, now);
+        statsFor(typeKey(appId, step)).add(settle, gap, now);
+        if (stats.size() > MAX_KEYS) {
+            trim();
+        }
+        dirty = true;
+    }
+
+    /** Number of keys in the model. */
+    synchronized int size() {
+        ensureLoaded();
+        return stats.size();
+    }
+
+    // Caller holds the lock. Drops the least recently updated keys down to 90% of the cap, so
+    // the sort runs once per MAX_KEYS / 10 new keys rather than on every record.
+    private void trim() {
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().lastUpdateMs, b.getValue().lastUpdateMs));
+        int excess = stats.size() - MAX_KEYS * 9 / 10;
+        for (int i = 0; i < excess; i++) {
+            stats.remove(entries.get(i).getKey());
+        }
+        Log.i(TAG, "trim: dropped " + excess + " least recently updated key(s)");
+    }
+
+    private Stats statsFor(String key) {
+        Stats s = stats.get(key);
+        if (s == null) {
+            s = new Stats();
+            stats.put(key, s);
+        }
+        return s;
+    }
+
+    private static String stepKey(String appId, String method, CompiledPlan.CompiledStep step) {
+        return appId + "/" + method + "#" + step.getIndex() + ":" + step.getType();
+    }
+
+    private static String typeKey(String appId, CompiledPlan.CompiledStep step) {
+        return appId + "/*:" + step.getType();
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: estimates
+    // ---------------------------------------------------------------------------------------------
+
+    /** Exponentially weighted mean and variance of one quantity. */
+    static final class Estimate {
+        @SerializedName("n")
+        int count;
+        @SerializedName("mean")
+        double mean;
+        @SerializedName("var")
+        double variance;
+
+        void add(double x) {
+            if (count == 0) {
+                mean = x;
+                variance = 0;
+            } else {
+                double diff = x - mean;
+                double increment = ALPHA * diff;
+                mean += increment;
+                variance = (1 - ALPHA) * (variance + diff * increment);
+            }
+            count++;
+        }
+
+        double p95() {
+            return mean + Z_95 * Math.sqrt(variance);
+        }
+    }
+
+    static final class Stats {
+        @SerializedName("settle")
+        Estimate settle = new Estimate();
+        @SerializedName("gap")
+        Estimate gap = new Estimate();
+        /** Wall-clock time of the last sample; 0 in files written before it was recorded. */
+        @SerializedName("last")
+        long lastUpdateMs;
+
+        void add(double settleMs, double gapMs, long nowMs) {
+            settle.add(settleMs);
+            gap.add(gapMs);
+            lastUpdateMs = nowMs;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: persistence
+    // ---------------------------------------------------------------------------------------------
+
+    // Caller holds the lock.
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        Map<String, Stats> stored = store != null ? store.load() : null;
+        if (stored == null) {
+            return;
+        }
+        stats = new HashMap<>(stored);
+        int expired = expire(clock.getAsLong());
+        Log.i(TAG, "load: " + stats.size() + " key(s) from " + store.getFile() + ", " + expired + " expired");
+    }
+
+    // Caller holds the lock.
+    private int expire(long now) {
+        int expired = 0;
+        for (Iterator<Stats> it = stats.values().iterator(); it.hasNext(); ) {
+            Stats s = it.next();
+            if (s.lastUpdateMs == 0) {
+                s.lastUpdateMs = now; // Age unknown: start counting now.
+            } else if (now - s.lastUpdateMs > MAX_AGE_MS) {
+                it.remove();
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            dirty = true;
+        }
+        if (stats.size() > MAX_KEYS) {
+            trim();
+            dirty = true;
+        }
+        return expired;
+    }
+
+    /**
+     * Write the model if it changed since the last save. Writes a temp file and renames it, so a
+     * crash never leaves a half-written model behind.
+     *
+     * @return false if writing failed.
+     */
+    public synchronized boolean save() {
+        if (!dirty || store == null) {
+            return true;
+        }
+        if (!store.save(stats)) {
+            return false;
+        }
+        dirty = false;
+        return true;
+    }
+}
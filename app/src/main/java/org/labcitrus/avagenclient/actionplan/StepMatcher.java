@@ -12,13 +12,13 @@ import com.google.gson.annotations.SerializedName;
  *   "mode": "equalsIgnoreCase"
  * }
  *
- * Supported types (used in ActionPlanExecutor.toNodeQuery):
+ * Supported types (used in CompiledPlan.toAttribute):
  *   - "text"
  *   - "id"
  *   - "contentDescription"
  *   - "className"
  *
- * Supported modes (used in ActionPlanExecutor.toStringMatcher):
+ * Supported modes (used in CompiledPlan.toMatchMode):
  *   - "equals", "equalsIgnoreCase"
  *   - "contains", "containsIgnoreCase"
  *   - "startsWith", "startsWithIgnoreCase"
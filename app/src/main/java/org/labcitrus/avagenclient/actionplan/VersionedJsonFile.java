@@ -0,0 +1,106 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One value persisted as JSON with a format version, for the small learned models that live
+ * under the app's files dir ({@link SettleTimeModel}, {@link PlanUsageStats}):
+ *
+ * <pre>
+ *   { "version": 1, "{field}": value }
+ * </pre>
+ *
+ * A file with another version, or one that cannot be read, loads as null, so the caller starts
+ * empty instead of failing. Saving writes a temp file and renames it, so a crash never leaves a
+ * half-written file behind. Not thread-safe; callers serialize access.
+ *
+ * @param <T> The stored value's type.
+ */
+final class VersionedJsonFile<T> {
+
+    private final File file;
+    private final int version;
+    private final String field;
+    private final Type type;
+    private final String tag;
+    private final Gson gson = new Gson();
+
+    /**
+     * @param field Name of the member holding the value.
+     * @param type  The value's type, e.g. from a {@code TypeToken} for generic maps.
+     * @param tag   Log tag of the owner.
+     */
+    VersionedJsonFile(File file, int version, String field, Type type, String tag) {
+        this.file = file;
+        this.version = version;
+        this.field = field;
+        this.type = type;
+        this.tag = tag;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /** The stored value, or null if there is no file or it is unreadable or another version. */
+    T load() {
+        if (!file.exists()) {
+            return null;
+        }
+        try (Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            JsonElement root = JsonParser.parseReader(in);
+            JsonElement fileVersion = root.isJsonObject() ? root.getAsJsonObject().get("version") : null;
+            JsonElement value = root.isJsonObject() ? root.getAsJsonObject().get(field) : null;
+            if (fileVersion == null || !fileVersion.isJsonPrimitive() || fileVersion.getAsInt() != version
+                    || value == null || value.isJsonNull()) {
+                Log.w(tag, "load: ignoring " + file + " (missing or different version)");
+                return null;
+            }
+            return gson.fromJson(value, type);
+        } catch (IOException | RuntimeException e) {
+            // JsonParseException, or a number / shape the format does not expect.
+            Log.w(tag, "load: cannot read " + file + ", starting empty", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write {@code value} (temp file + rename).
+     *
+     * @return false if writing failed.
+     */
+    boolean save(T value) {
+        JsonObject root = new JsonObject();
+        root.addProperty("version", version);
+        root.add(field, gson.toJsonTree(value, type));
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            gson.toJson(root, out);
+        } catch (IOException | RuntimeException e) {
+            Log.w(tag, "save: cannot write " + tmp, e);
+            return false;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(tag, "save: cannot rename " + tmp + " to " + file);
+            return false;
+        }
+        return true;
+    }
+}
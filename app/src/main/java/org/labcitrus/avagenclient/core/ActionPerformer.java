@@ -12,6 +12,7 @@ import android.os.SystemClock;
 import android.view.accessibility.AccessibilityWindowInfo;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 //TODO: need to revise it to work with node,
 public class ActionPerformer {
@@ -23,6 +24,9 @@ public class ActionPerformer {
     private static final long IME_WAIT_STEP_MS = 150;   // poll step
     private static final long IME_WAIT_TOTAL_MS = 1500; // per attempt
 
+    private static final long SWIPE_DURATION_MS = 300;
+    private static final long TAP_DURATION_MS = 100;
+
     public ActionPerformer(AccessibilityService service) {
         this.service = service;
     }
@@ -32,11 +36,13 @@ public class ActionPerformer {
      * If the node is not clickable, it performs a tap gesture on its bounds.
      *
      * @param node The AccessibilityNodeInfo to click.
+     * @return Completes with true once the click was delivered (immediately for ACTION_CLICK,
+     *         when the tap gesture completes otherwise), false if it failed or was cancelled.
      */
-    public void performClick(AccessibilityNodeInfo node) {
+    public CompletableFuture<Boolean> performClick(AccessibilityNodeInfo node) {
         if (node == null) {
             Log.d(TAG, "Node is null. Cannot perform click.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
         // Try clicking the node directly
@@ -44,7 +50,7 @@ public class ActionPerformer {
             Log.d(TAG, "Node is clickable. Performing ACTION_CLICK.");
             boolean success = node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
             Log.d(TAG, "Click action success: " + success);
-            return;
+            return CompletableFuture.completedFuture(success);
         }
 
         // If not clickable, perform a tap gesture on its bounds
@@ -54,13 +60,13 @@ public class ActionPerformer {
 
         if (nodeBounds.isEmpty()) {
             Log.d(TAG, "Node bounds are empty. Cannot perform tap gesture.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
         int tapX = nodeBounds.centerX();
         int tapY = nodeBounds.centerY();
 
-        performTapGesture(tapX, tapY);
+        return performTapGesture(tapX, tapY);
     }
 
     /**
@@ -117,7 +123,7 @@ public class ActionPerformer {
     /**
      * Scrolls down using a swipe-up gesture.
      */
-    public void performScrollDown() {
+    public CompletableFuture<Boolean> performScrollDown() {
         Log.d(TAG, "Performing scroll down gesture...");
         int screenHeight = service.getResources().getDisplayMetrics().heightPixels;
         int screenWidth = service.getResources().getDisplayMetrics().widthPixels;
@@ -127,13 +133,13 @@ public class ActionPerformer {
         int endX = startX;
         int endY = (int) (screenHeight * 0.25);
 
-        performSwipeGesture(startX, startY, endX, endY);
+        return performSwipeGesture(startX, startY, endX, endY);
     }
 
     /**
      * Scrolls up using a swipe-down gesture.
      */
-    public void performScrollUp() {
+    public CompletableFuture<Boolean> performScrollUp() {
         Log.d(TAG, "Performing scroll up gesture...");
         int screenHeight = service.getResources().getDisplayMetrics().heightPixels;
         int screenWidth = service.getResources().getDisplayMetrics().widthPixels;
@@ -143,7 +149,7 @@ public class ActionPerformer {
         int endX = startX;
         int endY = (int) (screenHeight * 0.75);
 
-        performSwipeGesture(startX, startY, endX, endY);
+        return performSwipeGesture(startX, startY, endX, endY);
     }
 
     /**
@@ -151,10 +157,10 @@ public class ActionPerformer {
      *
      * @param node The AccessibilityNodeInfo to swipe left on.
      */
-    public void swipeLeftOnNode(AccessibilityNodeInfo node) {
+    public CompletableFuture<Boolean> swipeLeftOnNode(AccessibilityNodeInfo node) {
         if (node == null) {
             Log.d(TAG, "Node is null. Cannot perform swipe left.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
         Rect nodeBounds = new Rect();
@@ -162,7 +168,7 @@ public class ActionPerformer {
 
         if (nodeBounds.isEmpty()) {
             Log.d(TAG, "Node bounds are empty. Cannot perform swipe left.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
         int startX = nodeBounds.right - 10;
@@ -171,7 +177,7 @@ public class ActionPerformer {
         int endY = startY;
 
         Log.d(TAG, "Performing swipe left on node.");
-        performSwipeGesture(startX, startY, endX, endY);
+        return performSwipeGesture(startX, startY, endX, endY);
     }
 
     /**
@@ -179,10 +185,10 @@ public class ActionPerformer {
      *
      * @param node The AccessibilityNodeInfo to swipe right on.
      */
-    public void swipeRightOnNode(AccessibilityNodeInfo node) {
+    public CompletableFuture<Boolean> swipeRightOnNode(AccessibilityNodeInfo node) {
         if (node == null) {
             Log.d(TAG, "Node is null. Cannot perform swipe right.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
         Rect nodeBounds = new Rect();
@@ -190,7 +196,7 @@ public class ActionPerformer {
 
         if (nodeBounds.isEmpty()) {
             Log.d(TAG, "Node bounds are empty. Cannot perform swipe right.");
-            return;
+            return CompletableFuture.completedFuture(false);
         }
 
         int startX = nodeBounds.left + 10;
@@ -199,13 +205,13 @@ public class ActionPerformer {
         int endY = startY;
 
         Log.d(TAG, "Performing swipe right on node.");
-        performSwipeGesture(startX, startY, endX, endY);
+        return performSwipeGesture(startX, startY, endX, endY);
     }
 
     /**
      * Swipes left by 50% of the screen width.
      */
-    public void performSwipeLeft() {
+    public CompletableFuture<Boolean> performSwipeLeft() {
         Log.d(TAG, "Performing 50% swipe left...");
         int screenWidth = service.getResources().getDisplayMetrics().widthPixels;
         int screenHeight = service.getResources().getDisplayMetrics().heightPixels;
@@ -215,13 +221,13 @@ public class ActionPerformer {
         int endX = (int) (screenWidth * 0.25); // Move left to 25% of the screen width
         int endY = startY;
 
-        performSwipeGesture(startX, startY, endX, endY);
+        return performSwipeGesture(startX, startY, endX, endY);
     }
 
     /**
      * Swipes right by 50% of the screen width.
      */
-    public void performSwipeRight() {
+    public CompletableFuture<Boolean> performSwipeRight() {
         Log.d(TAG, "Performing 50% swipe right...");
         int screenWidth = service.getResources().getDisplayMetrics().widthPixels;
         int screenHeight = service.getResources().getDisplayMetrics().heightPixels;
@@ -231,7 +237,7 @@ public class ActionPerformer {
         int endX = (int) (screenWidth * 0.75); // Move right to 75% of the screen width
         int endY = startY;
 
-        performSwipeGesture(startX, startY, endX, endY);
+        return performSwipeGesture(startX, startY, endX, endY);
     }
 
 
@@ -242,21 +248,21 @@ public class ActionPerformer {
      * @param startY The Y-coordinate where the swipe starts.
      * @param endX   The X-coordinate where the swipe ends.
      * @param endY   The Y-coordinate where the swipe ends.
+     * @return See {@link #dispatch(GestureDescription, String)}.
      */
-    private void performSwipeGesture(int startX, int startY, int endX, int endY) {
+    private CompletableFuture<Boolean> performSwipeGesture(int startX, int startY, int endX, int endY) {
         Path swipePath = new Path();
         swipePath.moveTo(startX, startY);
         swipePath.lineTo(endX, endY);
 
         GestureDescription.StrokeDescription stroke =
-                new GestureDescription.StrokeDescription(swipePath, 0, 300);
+                new GestureDescription.StrokeDescription(swipePath, 0, SWIPE_DURATION_MS);
 
         GestureDescription gesture = new GestureDescription.Builder()
                 .addStroke(stroke)
                 .build();
 
-        boolean success = service.dispatchGesture(gesture, null, null);
-        Log.d(TAG, "Swipe gesture success: " + success);
+        return dispatch(gesture, "Swipe");
     }
 
     /**
@@ -264,22 +270,54 @@ public class ActionPerformer {
      *
      * @param x The X-coordinate where the tap should occur.
      * @param y The Y-coordinate where the tap should occur.
+     * @return See {@link #dispatch(GestureDescription, String)}.
      */
-    private void performTapGesture(int x, int y) {
+    private CompletableFuture<Boolean> performTapGesture(int x, int y) {
         Log.d(TAG, "Performing tap gesture at: (" + x + "," + y + ")");
 
         Path tapPath = new Path();
         tapPath.moveTo(x, y);
 
         GestureDescription.StrokeDescription stroke =
-                new GestureDescription.StrokeDescription(tapPath, 0, 100);
+                new GestureDescription.StrokeDescription(tapPath, 0, TAP_DURATION_MS);
 
         GestureDescription gesture = new GestureDescription.Builder()
                 .addStroke(stroke)
                 .build();
 
-        boolean success = service.dispatchGesture(gesture, null, null);
-        Log.d(TAG, "Tap gesture success: " + success);
+        return dispatch(gesture, "Tap");
+    }
+
+    /**
+     * Dispatches a gesture and reports its outcome through
+     * {@link AccessibilityService.GestureResultCallback}.
+     * The callback runs on the service's main thread, so only block on the returned future
+     * from a worker thread.
+     *
+     * @return Completes with true when the gesture has been performed ({@code onCompleted}),
+     *         false when it was cancelled (e.g. the user touched the screen) or could not be
+     *         dispatched at all.
+     */
+    private CompletableFuture<Boolean> dispatch(GestureDescription gesture, String label) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        boolean dispatched = service.dispatchGesture(gesture, new AccessibilityService.GestureResultCallback() {
+            @Override
+            public void onCompleted(GestureDescription description) {
+                Log.d(TAG, label + " gesture completed");
+                done.complete(true);
+            }
+
+            @Override
+            public void onCancelled(GestureDescription description) {
+                Log.w(TAG, label + " gesture cancelled");
+                done.complete(false);
+            }
+        }, null);
+        Log.d(TAG, label + " gesture dispatched: " + dispatched);
+        if (!dispatched) {
+            done.complete(false);
+        }
+        return done;
     }
 
     /**
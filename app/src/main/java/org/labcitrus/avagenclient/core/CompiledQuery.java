@@ -0,0 +1,47 @@
+package org.labcitrus.avagenclient.core;
+
+import java.util.List;
+
+/**
+ * A node_query expression that has been parsed and compiled once.
+ *
+ * Holds the source text, the typed AST and the composed {@link NodeQuery} conjunction that
+ * {@link NodeFinder} evaluates. Instances are immutable and shared through the
+ * {@link NodeQueryCompiler} cache, so callers must not modify {@link #getQueries()}.
+ */
+public final class CompiledQuery {
+
+    private final String source;
+    private final List<NodeQueryParser.QueryExpr> ast;
+    private final NodeQuery[] queries;
+
+    CompiledQuery(String source, List<NodeQueryParser.QueryExpr> ast, NodeQuery[] queries) {
+        this.source = source;
+        this.ast = ast;
+        this.queries = queries;
+    }
+
+    /** The expression text this query was compiled from. */
+    public String getSource() {
+        return source;
+    }
+
+    /** The typed AST of the top-level conjunction. */
+    public List<NodeQueryParser.QueryExpr> getAst() {
+        return ast;
+    }
+
+    /** The compiled conjunction, ready for {@link NodeFinder#findNodes(UiSnapshot, NodeQuery...)}. */
+    public NodeQuery[] getQueries() {
+        return queries;
+    }
+
+    public boolean isEmpty() {
+        return queries.length == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledQuery{" + source + "}";
+    }
+}
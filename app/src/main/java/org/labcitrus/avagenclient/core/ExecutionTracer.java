@@ -0,0 +1,240 @@
+package org.labcitrus.avagenclient.core;
+
+import android.os.Trace;
+import android.util.Log;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records where plan execution spends its time, as nested spans:
+ *
+ * <pre>
+ *   plan accessStatistics ─────────────────────────────────────────────────────
+ *     step[0] CLICK ─────────────────────────────  settle ──────  step[1] ...
+ *       find ──────────────────────────  action ──
+ *         root  snapshot {nodes}  query {visited}
+ * </pre>
+ *
+ * Each span is written twice:
+ * <ul>
+ *   <li>to {@link android.os.Trace}, so it shows up in systrace / Perfetto captures;</li>
+ *   <li>into an in-memory ring buffer of the last {@code capacity} spans, which
+ *       {@link #exportChromeTrace(File)} writes as Chrome trace-event JSON (open it in
+ *       {@code ui.perfetto.dev} or {@code chrome://tracing}).</li>
+ * </ul>
+ *
+ * Usage, always on one thread so the {@code Trace} sections nest:
+ * <pre>
+ *   try (ExecutionTracer.Span span = tracer.begin("snapshot")) {
+ *       snapshot = UiSnapshot.capture(root);
+ *       span.arg("nodes", snapshot.size());
+ *   }
+ * </pre>
+ */
+public final class ExecutionTracer {
+
+    private static final String TAG = "ExecutionTracer";
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /** android.os.Trace rejects section names longer than this. */
+    private static final int MAX_SECTION_NAME = 127;
+
+    private final Event[] ring;
+    private int next;     // guarded by this
+    private int count;    // guarded by this
+    private volatile boolean enabled = true;
+
+    public ExecutionTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ExecutionTracer(int capacity) {
+        this.ring = new Event[Math.max(1, capacity)];
+    }
+
+    /** One finished span. */
+    public static final class Event {
+        final String name;
+        final long threadId;
+        final long startNanos;
+        final long durationNanos;
+        final String[] argNames;
+        final long[] argValues;
+
+        Event(String name, long threadId, long startNanos, long durationNanos,
+              String[] argNames, long[] argValues) {
+            this.name = name;
+            this.threadId = threadId;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.argNames = argNames;
+            this.argValues = argValues;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+    }
+
+    /**
+     * An open span. Close it (try-with-resources) on the thread that opened it.
+     */
+    public final class Span implements AutoCloseable {
+        private final String name;
+        private final long startNanos;
+        private final boolean traced;
+        private String[] argNames;
+        private long[] argValues;
+        private int argCount;
+        private boolean closed;
+
+        private Span(String name, boolean traced) {
+            this.name = name;
+            this.traced = traced;
+            if (traced) {
+                Trace.beginSection(name.length() > MAX_SECTION_NAME ? name.substring(0, MAX_SECTION_NAME) : name);
+            }
+            this.startNanos = System.nanoTime();
+        }
+
+        /** Attach a count to the span, e.g. nodes in a snapshot or visited by a query. */
+        public Span arg(String key, long value) {
+            if (!traced) {
+                return this;
+            }
+            if (argNames == null) {
+                argNames = new String[2];
+                argValues = new long[2];
+            } else if (argCount == argNames.length) {
+                argNames = Arrays.copyOf(argNames, argCount * 2);
+                argValues = Arrays.copyOf(argValues, argCount * 2);
+            }
+            argNames[argCount] = key;
+            argValues[argCount] = value;
+            argCount++;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (closed || !traced) {
+                return;
+            }
+            closed = true;
+            long duration = System.nanoTime() - startNanos;
+            Trace.endSection();
+            record(new Event(name, Thread.currentThread().getId(), startNanos, duration,
+                    argCount == 0 ? null : Arrays.copyOf(argNames, argCount),
+                    argCount == 0 ? null : Arrays.copyOf(argValues, argCount)));
+        }
+    }
+
+    /** Open a span. When tracing is disabled the span is a no-op. */
+    public Span begin(String name) {
+        return new Span(name, enabled);
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private synchronized void record(Event event) {
+        ring[next] = event;
+        next = (next + 1) % ring.length;
+        if (count < ring.length) {
+            count++;
+        }
+    }
+
+    /** The buffered spans, oldest first (by end time). */
+    public synchronized List<Event> getEvents() {
+        List<Event> events = new ArrayList<>(count);
+        int first = (next - count + ring.length) % ring.length;
+        for (int i = 0; i < count; i++) {
+            events.add(ring[(first + i) % ring.length]);
+        }
+        return events;
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(ring, null);
+        next = 0;
+        count = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: Chrome trace-event export
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Write the buffered spans as Chrome trace-event JSON ("X" complete events, microseconds).
+     */
+    public void writeChromeTrace(Writer out) throws IOException {
+        List<Event> events = getEvents();
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("displayTimeUnit").value("ms");
+        json.name("traceEvents").beginArray();
+        for (Event e : events) {
+            json.beginObject();
+            json.name("name").value(e.name);
+            json.name("cat").value("plan");
+            json.name("ph").value("X");
+            json.name("ts").value(e.startNanos / 1000.0);
+            json.name("dur").value(e.durationNanos / 1000.0);
+            json.name("pid").value(0);
+            json.name("tid").value(e.threadId);
+            if (e.argNames != null) {
+                json.name("args").beginObject();
+                for (int i = 0; i < e.argNames.length; i++) {
+                    json.name(e.argNames[i]).value(e.argValues[i]);
+                }
+                json.endObject();
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    /**
+     * Write the buffered spans to {@code file} (parent directories are created).
+     *
+     * @return true on success; failures are logged.
+     */
+    public boolean exportChromeTrace(File file) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "exportChromeTrace: cannot create " + dir);
+            return false;
+        }
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writeChromeTrace(out);
+            Log.i(TAG, "exportChromeTrace: wrote " + file.getAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "exportChromeTrace: failed to write " + file, e);
+            return false;
+        }
+    }
+}
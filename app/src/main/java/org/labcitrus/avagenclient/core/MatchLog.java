@@ -0,0 +1,90 @@
+package org.labcitrus.avagenclient.core;
+
+import android.util.Log;
+
+import org.labcitrus.avagenclient.BuildConfig;
+import org.labcitrus.avagenclient.accessibility.AVAGenService;
+
+import java.util.function.Supplier;
+
+/**
+ * Logging facade for the node-matching hot path.
+ *
+ * <pre>
+ *   compile-time  COMPILED_LEVEL   VERBOSE in debug builds, INFO in release builds;
+ *                                  anything below it is dead code (stripped by R8).
+ *   runtime       setLevel()       minimum priority actually written (default INFO).
+ *   trace         setTraceMatching per-node, per-predicate output as before
+ *                                  (debug builds only, off by default).
+ * </pre>
+ *
+ * Messages are built lazily: per-query logs take a {@link Supplier}, and per-node trace calls
+ * are guarded by {@link #isTracing()} at the call site so that nothing is concatenated or
+ * captured when tracing is off. A capturing lambda is still allocated per call, so hot-path
+ * callers also guard {@link #d(Supplier)} with {@code isLoggable(Log.DEBUG)}; in release builds
+ * that check is a constant and the whole block is stripped.
+ *
+ * <p>Tracing can also be switched on without a rebuild:</p>
+ * <pre>
+ *   adb shell setprop log.tag.AVAGenServiceSA VERBOSE   (then reconnect the service)
+ * </pre>
+ */
+public final class MatchLog {
+
+    /** Lowest priority compiled into this build. */
+    public static final int COMPILED_LEVEL = BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO;
+
+    private static volatile int level = Log.INFO;
+    private static volatile boolean traceMatching;
+
+    private MatchLog() {}
+
+    /**
+     * Re-read the runtime level and trace flag from the {@code log.tag.<TAG>} system property.
+     */
+    public static void refreshFromSystemProperties() {
+        traceMatching = Log.isLoggable(AVAGenService.TAG, Log.VERBOSE);
+        level = traceMatching || Log.isLoggable(AVAGenService.TAG, Log.DEBUG) ? Log.DEBUG : Log.INFO;
+    }
+
+    /** Set the minimum priority written to logcat (an {@link Log} priority constant). */
+    public static void setLevel(int priority) {
+        level = priority;
+    }
+
+    /** Enable per-node matching traces. Has no effect in release builds. */
+    public static void setTraceMatching(boolean enabled) {
+        traceMatching = enabled;
+    }
+
+    /** True if per-node matching traces are written. Check before building a trace message. */
+    public static boolean isTracing() {
+        return COMPILED_LEVEL <= Log.VERBOSE && traceMatching;
+    }
+
+    /** True if messages of {@code priority} are written. */
+    public static boolean isLoggable(int priority) {
+        return priority >= COMPILED_LEVEL && (priority >= level || isTracing());
+    }
+
+    /**
+     * Write a per-node trace line. Callers guard with {@link #isTracing()}.
+     */
+    public static void trace(String message) {
+        if (isTracing()) {
+            Log.i(AVAGenService.TAG, message);
+        }
+    }
+
+    public static void d(Supplier<String> message) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(AVAGenService.TAG, message.get());
+        }
+    }
+
+    public static void i(Supplier<String> message) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(AVAGenService.TAG, message.get());
+        }
+    }
+}
@@ -4,52 +4,187 @@ import static org.labcitrus.avagenclient.core.Utils.getNodeDetails;
 
 import android.util.Log;
 import android.view.accessibility.AccessibilityNodeInfo;
-import org.labcitrus.avagenclient.accessibility.AVAGenService;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class NodeFinder {
-    private static final AtomicInteger checkedNodeCount = new AtomicInteger(0); // Tracks nodes checked
+
+    /**
+     * Receives the number of nodes one findFirst / findTopK call visited (for tracing). Pass a
+     * fresh or reused instance per call; it is not shared between threads.
+     */
+    public static final class VisitCount {
+        private int visited;
+
+        /** Nodes visited by the last call this counter was passed to. */
+        public int get() {
+            return visited;
+        }
+    }
 
     /**
      * Finds nodes that match the given queries.
-     * - Retrieves all descendant nodes only if needed.
+     * - Evaluates every query against the flattened snapshot, never the live tree.
      * - Uses only direct parent for `withParent()`.
      * - Uses only direct children for `withChild()`.
+     * - Resolves `hasDescendant()` / `withChild()` / `withParent()` with one linear pass over
+     *   the snapshot each, instead of re-scanning every candidate's subtree.
+     * - Evaluates the cheapest, most selective queries first (see {@link QueryPlan}), so
+     *   structural queries only run on the survivors of the attribute filters.
+     * - Results are in document order, so index 0 is the first match on screen.
+     *
+     * @param snapshot The flattened UI tree to search.
+     * @param queries  The dynamic filtering criteria.
+     * @return The snapshot indices of matched nodes; resolve with {@link UiSnapshot#getNode(int)}.
+     */
+    public static int[] findNodes(UiSnapshot snapshot, NodeQuery... queries) {
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> "findNodes: snapshot size: " + snapshot.size());
+        }
+
+        logNonNullQueries(queries); // Log all non-null queries before matching
+
+        QueryPlan plan = QueryPlan.of(queries, snapshot);
+        plan.log("findNodes");
+        BitSet matched = plan.evaluate(null);
+        int[] matches = new int[matched.cardinality()];
+        int count = 0;
+        for (int node = matched.nextSetBit(0); node >= 0; node = matched.nextSetBit(node + 1)) {
+            matches[count++] = node;
+        }
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            for (int node : matches) {
+                MatchLog.d(() -> "Matched node: " + getNodeDetails(snapshot, node));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the first node in document order that matches all queries, stopping the scan
+     * as soon as it is found. Targets near the top of a long list resolve after a few dozen
+     * node visits instead of a full-tree scan.
      *
-     * @param nodes   The list of AccessibilityNodeInfo nodes to search.
-     * @param queries The dynamic filtering criteria.
-     * @return A list of matched nodes.
+     * @param snapshot The flattened UI tree to search.
+     * @param queries  The dynamic filtering criteria.
+     * @return The snapshot index of the first match, or {@link UiSnapshot#NO_NODE}.
      */
-    public static List<AccessibilityNodeInfo> findNodes(List<AccessibilityNodeInfo> nodes, NodeQuery... queries) {
-        checkedNodeCount.set(0); // Reset counter
+    public static int findFirst(UiSnapshot snapshot, NodeQuery... queries) {
+        return findFirst(snapshot, null, queries);
+    }
 
-        boolean requiresDescendantSearch = requiresDescendantQuery(queries);
-        Log.i(AVAGenService.TAG, "findNodes: Requires Descendant Search: " + requiresDescendantSearch);
+    /**
+     * {@link #findFirst(UiSnapshot, NodeQuery...)}, reporting how many nodes were visited.
+     *
+     * @param visits Receives the visit count, or null.
+     */
+    public static int findFirst(UiSnapshot snapshot, VisitCount visits, NodeQuery... queries) {
+        int[] top = findTopK(snapshot, 1, visits, queries);
+        return top.length > 0 ? top[0] : UiSnapshot.NO_NODE;
+    }
+
+    /**
+     * Returns up to {@code limit} matching nodes in document order, for callers that need to
+     * disambiguate between a few candidates without collecting every match.
+     * <p>
+     * Queries without a descendant search are tested node by node and the scan stops once
+     * {@code limit} matches are found. When any of them is an id / text / content-description
+     * matcher, only the candidates from the snapshot's {@link UiSnapshotIndex} are visited.
+     * Queries that involve {@code hasDescendant()} fall back to the single-pass evaluation of
+     * {@link #findNodes}, since a per-node descendant scan could cost more than one linear pass.
+     * Either way the queries are tested in {@link QueryPlan} order.
+     *
+     * @param snapshot The flattened UI tree to search.
+     * @param limit    Maximum number of matches to return.
+     * @param queries  The dynamic filtering criteria.
+     * @return The snapshot indices of at most {@code limit} matches.
+     */
+    public static int[] findTopK(UiSnapshot snapshot, int limit, NodeQuery... queries) {
+        return findTopK(snapshot, limit, null, queries);
+    }
+
+    /**
+     * {@link #findTopK(UiSnapshot, int, NodeQuery...)}, reporting how many nodes were visited.
+     *
+     * @param visits Receives the visit count, or null.
+     */
+    public static int[] findTopK(UiSnapshot snapshot, int limit, VisitCount visits, NodeQuery... queries) {
+        if (limit <= 0 || snapshot.size() == 0) {
+            if (visits != null) {
+                visits.visited = 0;
+            }
+            return new int[0];
+        }
 
         logNonNullQueries(queries); // Log all non-null queries before matching
 
-        return nodes.stream()
-                .filter(Objects::nonNull)
-                .flatMap(node -> (requiresDescendantSearch ? getAllNodes(node) : List.of(node)).stream()) // Retrieve all nodes only if needed
-                // .peek(node -> Log.i(AVAGenService.TAG, "Checking node: " + getNodeDetails(node) + " (Checked Count: " + checkedNodeCount.incrementAndGet() + ")"))
-                .filter(node -> List.of(queries).stream()
-                        .filter(Objects::nonNull)
-                        .allMatch(query -> query.matches(node)))
-                .peek(node -> Log.i(AVAGenService.TAG, "Matched node: " + getNodeDetails(node)))
-                .collect(Collectors.toList());
+        QueryPlan plan = QueryPlan.of(queries, snapshot);
+        plan.log("findTopK");
+
+        int[] matches = new int[Math.min(limit, snapshot.size())];
+        int count = 0;
+        int visited;
+
+        if (plan.hasDescendantQuery()) {
+            BitSet matched = plan.evaluate(null);
+            visited = snapshot.size();
+            for (int node = matched.nextSetBit(0); node >= 0 && count < limit; node = matched.nextSetBit(node + 1)) {
+                matches[count++] = node;
+            }
+        } else {
+            // Exact id / text / content-description lookups come straight from the index;
+            // only the predicates it cannot answer are verified, on its candidates alone.
+            BitSet candidates = plan.indexCandidates();
+            visited = 0;
+            for (int node = candidates != null ? candidates.nextSetBit(0) : 0;
+                 node >= 0 && node < snapshot.size() && count < limit;
+                 node = candidates != null ? candidates.nextSetBit(node + 1) : node + 1) {
+                visited++;
+                if (plan.matches(node)) {
+                    matches[count++] = node;
+                }
+            }
+        }
+        if (visits != null) {
+            visits.visited = visited;
+        }
+
+        int found = count;
+        int checked = visited;
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> "findTopK: limit=" + limit + " found=" + found
+                    + " visited=" + checked + "/" + snapshot.size());
+        }
+        return count == matches.length ? matches : Arrays.copyOf(matches, count);
     }
 
     /**
-     * Determines if any of the queries require searching through descendants.
+     * Like {@link #findFirst}, but only nodes in {@code candidates} can match. Structural
+     * queries still see the whole snapshot (a candidate's parent or children may lie outside
+     * the set), so the answer is the same as findFirst's among the candidates.
+     *
+     * @param candidates Nodes that may match, e.g. those revealed by the last scroll.
+     * @return The first matching candidate in document order, or {@link UiSnapshot#NO_NODE}.
      */
-    private static boolean requiresDescendantQuery(NodeQuery[] queries) {
-        return List.of(queries).stream().anyMatch(NodeQuery::isDescendantQuery);
+    public static int findFirstIn(UiSnapshot snapshot, BitSet candidates, NodeQuery... queries) {
+        if (candidates.isEmpty()) {
+            return UiSnapshot.NO_NODE;
+        }
+        logNonNullQueries(queries); // Log all non-null queries before matching
+
+        QueryPlan plan = QueryPlan.of(queries, snapshot);
+        plan.log("findFirstIn");
+        BitSet matched = plan.evaluate((BitSet) candidates.clone());
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> "findFirstIn: candidates=" + candidates.cardinality() + "/" + snapshot.size()
+                    + " matches=" + matched.cardinality());
+        }
+        int first = matched.nextSetBit(0);
+        return first >= 0 ? first : UiSnapshot.NO_NODE;
     }
 
     /**
@@ -119,8 +254,13 @@ public class NodeFinder {
      * Logs all non-null queries before matching.
      */
     private static void logNonNullQueries(NodeQuery[] queries) {
-        List.of(queries).stream()
-                .filter(query -> query != null)
-                .forEach(query -> Log.i(AVAGenService.TAG, "Pre-matching query: " + query));
+        if (!MatchLog.isLoggable(Log.DEBUG)) {
+            return;
+        }
+        for (NodeQuery query : queries) {
+            if (query != null) {
+                MatchLog.d(() -> "Pre-matching query: " + query);
+            }
+        }
     }
 }
\ No newline at end of file
@@ -3,60 +3,104 @@ package org.labcitrus.avagenclient.core;
 import static org.labcitrus.avagenclient.core.Utils.getNodeDetails;
 
 import android.util.Log;
-import android.view.accessibility.AccessibilityNodeInfo;
 import org.labcitrus.avagenclient.accessibility.AVAGenService;
 
 import java.util.ArrayList;
-import java.util.function.Predicate;
-import java.util.stream.IntStream;
+import java.util.BitSet;
 import java.util.List;
 
 
 /**
- * Represents a query used to filter AccessibilityNodeInfo objects based on various attributes
+ * Represents a query used to filter the nodes of a {@link UiSnapshot} based on various attributes
  * such as ID, text, class name, content description, and relationships (parent, child, descendant).
- * It uses Java's Predicate<T> functional interface to define conditions dynamically.
+ * Each query wraps a {@link Condition} over (snapshot, node index), so matching reads the
+ * flattened copy of the tree instead of issuing AccessibilityNodeInfo calls.
  *
  * <p>Example Usage:</p>
  *
  * <pre>{@code
+ * UiSnapshot snapshot = UiSnapshot.capture(service.getRootInActiveWindow());
+ *
  * // Example 1: Match nodes by ID
- * List<AccessibilityNodeInfo> nodes = NodeFinder.findNodes(nodesToSearch,
+ * int[] nodes = NodeFinder.findNodes(snapshot,
  *     NodeQuery.withId("submit_button")
  * );
  *
  * // Example 2: Match nodes whose parent has ID "container"
- * List<AccessibilityNodeInfo> nodesWithParent = NodeFinder.findNodes(nodesToSearch,
+ * int[] nodesWithParent = NodeFinder.findNodes(snapshot,
  *     NodeQuery.withParent(NodeQuery.withId("container"))
  * );
  *
  * // Example 3: Match nodes that have a child with text "Click Me"
- * List<AccessibilityNodeInfo> nodesWithChild = NodeFinder.findNodes(nodesToSearch,
+ * int[] nodesWithChild = NodeFinder.findNodes(snapshot,
  *     NodeQuery.withChild(NodeQuery.withText("Click Me"))
  * );
  *
  * // Example 4: Match nodes that have a descendant with class name "LinearLayout"
- * List<AccessibilityNodeInfo> nodesWithDescendant = NodeFinder.findNodes(nodesToSearch,
+ * int[] nodesWithDescendant = NodeFinder.findNodes(snapshot,
  *     NodeQuery.withDescendant(NodeQuery.withClassName("LinearLayout"))
  * );
  *
  * // Example 5: Combined query - Match nodes with ID "button123" and whose parent has class "FrameLayout"
- * List<AccessibilityNodeInfo> complexQuery = NodeFinder.findNodes(nodesToSearch,
- *     NodeQuery.withId("button123")
- *         .and(NodeQuery.withParent(NodeQuery.withClassName("FrameLayout")))
+ * // (the queries passed to findNodes must all match)
+ * int[] complexQuery = NodeFinder.findNodes(snapshot,
+ *     NodeQuery.withId("button123"),
+ *     NodeQuery.withParent(NodeQuery.withClassName("FrameLayout"))
  * );
  * }</pre>
  */
 public class NodeQuery {
 
     /**
-     * A predicate that defines the condition for matching an AccessibilityNodeInfo node.
-     * This function takes a node as input and returns true if it matches the query.
+     * A condition evaluated against one node of a {@link UiSnapshot}.
+     * Conditions only read the snapshot's arrays and never call back into the live tree.
+     */
+    @FunctionalInterface
+    public interface Condition {
+        /**
+         * @param snapshot The flattened UI tree.
+         * @param node     The index of the node being tested.
+         * @return true if the node satisfies the condition.
+         */
+        boolean test(UiSnapshot snapshot, int node);
+    }
+
+    /**
+     * Static evaluation cost of a query, cheapest first. {@link QueryPlan} evaluates a
+     * conjunction tier by tier, so structural predicates only see the survivors of the
+     * attribute filters.
+     */
+    public enum CostClass {
+        /** Answered from {@link UiSnapshotIndex}, then verified on its candidates only. */
+        INDEXED,
+        /** One attribute or flag read per node (class name, regex, checked state...). */
+        SCAN,
+        /** Position within the parent. */
+        POSITIONAL,
+        /** Looks at the direct parent or children. */
+        STRUCTURAL,
+        /** Searches a whole subtree. */
+        DESCENDANT
+    }
+
+    /**
+     * Relative cost of testing one node per-node versus visiting it in a whole-tree pass.
+     */
+    private static final int SURVIVOR_TEST_WEIGHT = 8;
+
+    /**
+     * The condition that defines whether a snapshot node matches this query.
      */
-    private final Predicate<AccessibilityNodeInfo> condition;
+    private final Condition condition;
 
     /**
-     * A flag that indicates whether this query involves searching for a descendant node.
+     * Evaluation cost class used to order conjunctions.
+     */
+    private final CostClass costClass;
+
+    /**
+     * A flag that indicates whether this query involves searching for a descendant node,
+     * either directly or through a nested withParent/withChild condition.
      * If true, a recursive search through all child nodes is performed.
      */
     private final boolean isDescendantQuery;
@@ -64,16 +108,85 @@ public class NodeQuery {
     // [NEW] Debug label to improve logging/toString without changing matching semantics.
     private final String debug;
 
+    /**
+     * Whole-tree evaluator for structural queries (withParent / withChild / hasDescendant).
+     * Null for attribute queries, which are simply tested node by node.
+     */
+    private final TreeEvaluator treeEvaluator;
+
+    /**
+     * Inner conditions of a structural query, null for attribute queries.
+     */
+    private final NodeQuery[] inner;
+
+    /**
+     * Candidate lookup in the snapshot's attribute index. Null for queries the index cannot
+     * answer (regex, class name, structural, state), which are evaluated by scanning.
+     */
+    private final IndexLookup indexLookup;
+
+    /**
+     * Returns a superset of the nodes matching a query, or null if the index cannot tell.
+     */
+    @FunctionalInterface
+    private interface IndexLookup {
+        BitSet candidates(UiSnapshotIndex index);
+    }
+
+    /**
+     * Computes the match set of a query for a whole snapshot in one linear pass.
+     */
+    @FunctionalInterface
+    private interface TreeEvaluator {
+        /**
+         * @param snapshot   The flattened UI tree.
+         * @param candidates Nodes still under consideration, or null for all nodes.
+         * @return The matching nodes, always a subset of {@code candidates}.
+         */
+        BitSet evaluate(UiSnapshot snapshot, BitSet candidates);
+    }
+
     /**
      * Private constructor for NodeQuery. Initializes the query with a given condition.
      *
-     * @param condition        A Predicate function that determines whether a node matches.
+     * @param condition        A Condition that determines whether a snapshot node matches.
      * @param isDescendantQuery True if the query requires recursive descendant search.
      */
-    private NodeQuery(Predicate<AccessibilityNodeInfo> condition, boolean isDescendantQuery, String debug) {
+    private NodeQuery(Condition condition, boolean isDescendantQuery, String debug) {
+        this(condition, CostClass.SCAN, isDescendantQuery, debug, null, null, null);
+    }
+
+    private NodeQuery(Condition condition, CostClass costClass, String debug) {
+        this(condition, costClass, false, debug, null, null, null);
+    }
+
+    private NodeQuery(Condition condition, String debug, IndexLookup indexLookup) {
+        this(condition, CostClass.INDEXED, false, debug, null, null, indexLookup);
+    }
+
+    /**
+     * Structural query over the direct parent or children; becomes a descendant query
+     * (and the more expensive cost class) when any inner condition is one.
+     */
+    private NodeQuery(Condition condition, NodeQuery[] inner, String debug, TreeEvaluator treeEvaluator) {
+        this(condition, anyDescendantQuery(inner) ? CostClass.DESCENDANT : CostClass.STRUCTURAL, inner, debug,
+                treeEvaluator);
+    }
+
+    private NodeQuery(Condition condition, CostClass costClass, NodeQuery[] inner, String debug,
+                      TreeEvaluator treeEvaluator) {
+        this(condition, costClass, costClass == CostClass.DESCENDANT, debug, inner, treeEvaluator, null);
+    }
+
+    private NodeQuery(Condition condition, CostClass costClass, boolean isDescendantQuery, String debug,
+                      NodeQuery[] inner, TreeEvaluator treeEvaluator, IndexLookup indexLookup) {
         this.condition = condition;
+        this.costClass = costClass;
         this.isDescendantQuery = isDescendantQuery;
         this.debug = debug;
+        this.inner = inner;
+        this.treeEvaluator = treeEvaluator;
+        this.indexLookup = indexLookup;
     }
 
     // ----------------------------------------------------------------------
@@ -83,21 +196,16 @@ public class NodeQuery {
     // ----------------------------------------------------------------------
 
     public static NodeQuery withId(StringMatcher matcher) {
-        return new NodeQuery(node -> {
-            if (node == null || matcher == null) {
-                Log.i(AVAGenService.TAG, "withId: node or matcher is null -> false");
+        return new NodeQuery((snapshot, node) -> {
+            if (matcher == null) {
+                if (MatchLog.isTracing()) {
+                    MatchLog.trace("withId: matcher is null -> false");
+                }
                 return false;
             }
 
-            String nodeId = node.getViewIdResourceName();
-            String simpleId = null;
-
-            if (nodeId != null) {
-                int slashIndex = nodeId.lastIndexOf('/');
-                simpleId = (slashIndex >= 0 && slashIndex < nodeId.length() - 1)
-                        ? nodeId.substring(slashIndex + 1)
-                        : nodeId;
-            }
+            String nodeId = snapshot.getViewId(node);
+            String simpleId = snapshot.getSimpleId(node);
 
             boolean result = false;
 
@@ -107,63 +215,78 @@ public class NodeQuery {
                 result = true;
             }
 
-            Log.i(
-                    AVAGenService.TAG,
-                    "withId: nodeId=" + nodeId + " simpleId=" + simpleId + " matcher=" + matcher + " -> " + result
-            );
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withId: nodeId=" + nodeId + " simpleId=" + simpleId + " matcher=" + matcher + " -> " + result);
+            }
             return result;
-        }, false, "withId[" + matcher + "]");
+        }, "withId[" + matcher + "]", index -> index.candidates(UiSnapshotIndex.Field.ID, matcher));
     }
 
     public static NodeQuery withText(StringMatcher matcher) {
-        return new NodeQuery(node -> {
-            CharSequence cs = node.getText();
-            String nodeText = cs != null ? cs.toString() : null;
+        return new NodeQuery((snapshot, node) -> {
+            String nodeText = snapshot.getText(node);
             boolean result = nodeText != null && matcher.test(nodeText);
-            Log.i(AVAGenService.TAG, "withText: nodeText=" + nodeText + " matcher=" + matcher + " -> " + result);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withText: nodeText=" + nodeText + " matcher=" + matcher + " -> " + result);
+            }
             return result;
-        }, false, "withText[" + matcher + "]");
+        }, "withText[" + matcher + "]", index -> index.candidates(UiSnapshotIndex.Field.TEXT, matcher));
     }
 
     public static NodeQuery withClassName(StringMatcher matcher) {
-        return new NodeQuery(node -> {
-            CharSequence cs = node.getClassName();
-            String nodeClass = cs != null ? cs.toString() : null;
+        return new NodeQuery((snapshot, node) -> {
+            String nodeClass = snapshot.getClassName(node);
             boolean result = nodeClass != null && matcher.test(nodeClass);
-            Log.i(AVAGenService.TAG, "withClassName: nodeClass=" + nodeClass + " matcher=" + matcher + " -> " + result);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withClassName: nodeClass=" + nodeClass + " matcher=" + matcher + " -> " + result);
+            }
             return result;
         }, false, "withClassName[" + matcher + "]");
     }
 
     public static NodeQuery withContentDescription(StringMatcher matcher) {
-        return new NodeQuery(node -> {
-            CharSequence cs = node.getContentDescription();
-            String nodeDesc = cs != null ? cs.toString() : null;
+        return new NodeQuery((snapshot, node) -> {
+            String nodeDesc = snapshot.getContentDescription(node);
             boolean result = nodeDesc != null && matcher.test(nodeDesc);
-            Log.i(AVAGenService.TAG, "withContentDesc: nodeDesc=" + nodeDesc + " matcher=" + matcher + " -> " + result);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withContentDesc: nodeDesc=" + nodeDesc + " matcher=" + matcher + " -> " + result);
+            }
             return result;
-        }, false, "withContentDesc[" + matcher + "]");
+        }, "withContentDesc[" + matcher + "]",
+                index -> index.candidates(UiSnapshotIndex.Field.CONTENT_DESCRIPTION, matcher));
     }
 
 
     // [NEW] Matches nodes whose checked state is false (e.g., unchecked radio/checkbox/toggle).
     public static NodeQuery isNotChecked() {
-        return new NodeQuery(node -> {
-            boolean result = node != null && !node.isChecked();
-            Log.i(AVAGenService.TAG, "isNotChecked: " + getNodeDetails(node) + " -> " + result);
+        return new NodeQuery((snapshot, node) -> {
+            boolean result = !snapshot.isChecked(node);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("isNotChecked: " + getNodeDetails(snapshot, node) + " -> " + result);
+            }
             return result;
         }, false, "isNotChecked()");
     }
 
     // [NEW - optional] Symmetry helper: matches nodes whose checked state is true.
     public static NodeQuery isChecked() {
-        return new NodeQuery(node -> {
-            boolean result = node != null && node.isChecked();
-            Log.i(AVAGenService.TAG, "isChecked: " + getNodeDetails(node) + " -> " + result);
+        return new NodeQuery((snapshot, node) -> {
+            boolean result = snapshot.isChecked(node);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("isChecked: " + getNodeDetails(snapshot, node) + " -> " + result);
+            }
             return result;
         }, false, "isChecked()");
     }
 
+    /**
+     * Matches nodes that are worth targeting: visible and carrying text, an ID, a content
+     * description, or an EditText class. See {@link Utils#checkIsValidNode(UiSnapshot, int)}.
+     */
+    public static NodeQuery isValidNode() {
+        return new NodeQuery(Utils::checkIsValidNode, false, "isValidNode()");
+    }
+
     /**
      * Creates a NodeQuery that matches nodes based on their View ID.
      * <p>
@@ -226,13 +349,32 @@ public class NodeQuery {
      * @return A NodeQuery instance that filters nodes based on their parent.
      */
     public static NodeQuery withParent(NodeQuery... conditions) {
-        return new NodeQuery(node -> {
-            AccessibilityNodeInfo parent = node.getParent();
-            if (parent == null) return false;
-            boolean result = List.of(conditions).stream().allMatch(query -> query.matches(parent));
-            Log.i(AVAGenService.TAG, "withParent: Checking parent of " + getNodeDetails(node) + " -> " + result);
+        NodeQuery[] ordered = QueryPlan.byCostClass(conditions);
+        return new NodeQuery((snapshot, node) -> {
+            int parent = snapshot.getParent(node);
+            if (parent == UiSnapshot.NO_NODE) return false;
+            boolean result = matchesAll(ordered, snapshot, parent);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withParent: Checking parent of " + getNodeDetails(snapshot, node) + " -> " + result);
+            }
             return result;
-        }, false, "withParent(" + List.of(conditions) + ")");
+        }, conditions, "withParent(" + List.of(conditions) + ")", (snapshot, candidates) -> {
+            // Evaluate the inner conditions once for every node, then look up each candidate's parent.
+            BitSet inner = evaluateAll(conditions, snapshot, null);
+            BitSet result = new BitSet(snapshot.size());
+            for (int node = nextCandidate(candidates, snapshot, 0);
+                 node >= 0;
+                 node = nextCandidate(candidates, snapshot, node + 1)) {
+                int parent = snapshot.getParent(node);
+                if (parent != UiSnapshot.NO_NODE && inner.get(parent)) {
+                    result.set(node);
+                }
+            }
+            if (MatchLog.isLoggable(Log.DEBUG)) {
+                MatchLog.d(() -> "withParent: " + result.cardinality() + " node(s) match");
+            }
+            return result;
+        });
     }
 
     /**
@@ -241,7 +383,7 @@ public class NodeQuery {
      * <p>Usage Example:</p>
      * <pre>{@code
      * // Find a node that is the second child (index 1) of its parent
-     * List<AccessibilityNodeInfo> nodes = findNode(
+     * int[] nodes = NodeFinder.findNodes(snapshot,
      *     withParentIndex(1)
      * );
      * }</pre>
@@ -250,13 +392,66 @@ public class NodeQuery {
      * @return A NodeQuery instance that filters nodes by parent index.
      */
     public static NodeQuery withParentIndex(int index) {
-        return new NodeQuery(node -> {
-            int nodeIndex = getNodeIndex(node);
+        return new NodeQuery((snapshot, node) -> {
+            int nodeIndex = snapshot.getChildIndex(node); // Recorded at capture time
+            boolean result = (nodeIndex == index);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withParentIndex: Checking node " + getNodeDetails(snapshot, node)
+                        + " (Expected Index: " + index + ", Actual Index: " + nodeIndex + ") -> " + result);
+            }
+            return result;
+        }, CostClass.POSITIONAL, "withParentIndex(" + index + ")");
+    }
+
+    /**
+     * Creates a NodeQuery that matches nodes that are the last child of their parent.
+     *
+     * @return A NodeQuery instance that filters nodes by position.
+     */
+    public static NodeQuery isLastChild() {
+        return new NodeQuery((snapshot, node) -> {
+            boolean result = snapshot.isLastChild(node);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("isLastChild: " + getNodeDetails(snapshot, node) + " -> " + result);
+            }
+            return result;
+        }, CostClass.POSITIONAL, "isLastChild()");
+    }
+
+    /**
+     * Creates a NodeQuery that matches the n-th node (0-based, like {@link #withParentIndex(int)})
+     * among its siblings with the same class name, e.g. the second TextView of a row.
+     *
+     * @param index The expected index among same-class siblings.
+     * @return A NodeQuery instance that filters nodes by position.
+     */
+    public static NodeQuery withIndexOfType(int index) {
+        return new NodeQuery((snapshot, node) -> {
+            int nodeIndex = snapshot.getIndexOfType(node);
             boolean result = (nodeIndex == index);
-            Log.i(AVAGenService.TAG, "withParentIndex: Checking node " + getNodeDetails(node)
-                    + " (Expected Index: " + index + ", Actual Index: " + nodeIndex + ") -> " + result);
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withIndexOfType: Checking node " + getNodeDetails(snapshot, node)
+                        + " (Expected Index: " + index + ", Actual Index: " + nodeIndex + ") -> " + result);
+            }
             return result;
-        }, false, "withParentIndex(" + index + ")");
+        }, CostClass.POSITIONAL, "withIndexOfType(" + index + ")");
+    }
+
+    /**
+     * Creates a NodeQuery that matches nodes at the given depth below the root (the root is 0).
+     *
+     * @param depth The expected depth.
+     * @return A NodeQuery instance that filters nodes by depth.
+     */
+    public static NodeQuery withDepth(int depth) {
+        return new NodeQuery((snapshot, node) -> {
+            boolean result = snapshot.getDepth(node) == depth;
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withDepth: " + getNodeDetails(snapshot, node) + " (Expected Depth: " + depth
+                        + ", Actual Depth: " + snapshot.getDepth(node) + ") -> " + result);
+            }
+            return result;
+        }, CostClass.POSITIONAL, "withDepth(" + depth + ")");
     }
 
     /**
@@ -266,260 +461,274 @@ public class NodeQuery {
      * @return A NodeQuery instance that filters nodes based on their children.
      */
     public static NodeQuery withChild(NodeQuery... conditions) {
-        return new NodeQuery(node -> {
-            boolean result = IntStream.range(0, node.getChildCount())
-                    .mapToObj(node::getChild)
-                    .filter(child -> child != null)
-                    .anyMatch(child -> List.of(conditions).stream().allMatch(query -> query.matches(child)));
-            Log.i(AVAGenService.TAG, "withChild: Checking children of " + getNodeDetails(node) + " -> " + result);
+        NodeQuery[] ordered = QueryPlan.byCostClass(conditions);
+        return new NodeQuery((snapshot, node) -> {
+            boolean result = false;
+            for (int child = snapshot.getFirstChild(node);
+                 child != UiSnapshot.NO_NODE;
+                 child = snapshot.getNextSibling(child)) {
+                if (matchesAll(ordered, snapshot, child)) {
+                    result = true;
+                    break;
+                }
+            }
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withChild: Checking children of " + getNodeDetails(snapshot, node) + " -> " + result);
+            }
             return result;
-        }, false, "withChild(" + List.of(conditions) + ")");
+        }, conditions, "withChild(" + List.of(conditions) + ")", (snapshot, candidates) -> {
+            // Every matching child marks its parent.
+            BitSet inner = evaluateAll(conditions, snapshot, null);
+            BitSet result = new BitSet(snapshot.size());
+            for (int child = inner.nextSetBit(0); child >= 0; child = inner.nextSetBit(child + 1)) {
+                int parent = snapshot.getParent(child);
+                if (parent != UiSnapshot.NO_NODE) {
+                    result.set(parent);
+                }
+            }
+            if (candidates != null) {
+                result.and(candidates);
+            }
+            if (MatchLog.isLoggable(Log.DEBUG)) {
+                MatchLog.d(() -> "withChild: " + result.cardinality() + " node(s) match");
+            }
+            return result;
+        });
     }
 
     /**
      * Creates a NodeQuery that matches nodes that have at least one descendant
      * (any depth) meeting the given conditions.
+     * <p>
+     * As before, the node itself is part of the searched subtree.
      *
      * @param conditions The conditions that at least one descendant must satisfy.
      * @return A NodeQuery instance that filters nodes based on their descendants.
      */
     public static NodeQuery hasDescendant(NodeQuery... conditions) {
-        return new NodeQuery(node -> {
-            boolean result = NodeFinder.getAllNodes(node).stream()
-                    .anyMatch(descendant -> List.of(conditions).stream().allMatch(query -> query.matches(descendant)));
-            Log.i(AVAGenService.TAG, "withDescendant: Checking descendants of " + getNodeDetails(node) + " -> " + result);
+        NodeQuery[] ordered = QueryPlan.byCostClass(conditions);
+        return new NodeQuery((snapshot, node) -> {
+            boolean result = false;
+            int end = subtreeEnd(snapshot, node);
+            // Document order keeps every subtree in a contiguous index range [node, end).
+            for (int d = node; d < end; d++) {
+                if (matchesAll(ordered, snapshot, d)) {
+                    result = true;
+                    break;
+                }
+            }
+            if (MatchLog.isTracing()) {
+                MatchLog.trace("withDescendant: Checking descendants of " + getNodeDetails(snapshot, node) + " -> " + result);
+            }
+            return result;
+        }, CostClass.DESCENDANT, conditions, "withDescendant(" + List.of(conditions) + ")", (snapshot, candidates) -> {
+            // Post-order pass: walking indices backwards visits every child before its parent,
+            // so each node's flag is final by the time it is propagated upwards.
+            BitSet result = evaluateAll(conditions, snapshot, null);
+            for (int node = snapshot.size() - 1; node > 0; node--) {
+                if (result.get(node)) {
+                    int parent = snapshot.getParent(node);
+                    if (parent != UiSnapshot.NO_NODE) {
+                        result.set(parent);
+                    }
+                }
+            }
+            if (candidates != null) {
+                result.and(candidates);
+            }
+            if (MatchLog.isLoggable(Log.DEBUG)) {
+                MatchLog.d(() -> "withDescendant: " + result.cardinality() + " node(s) match");
+            }
             return result;
-        }, true, "withDescendant(" + List.of(conditions) + ")");
+        });
     }
 
     /**
-     * Parses a string expression into a StringMatcher.
-     *
-     * Supported forms:
-     *   - "literal"  -> containsIgnoreCase("literal")
-     *   - equals("YES")
-     *   - equalsIgnoreCase("YES")
-     *   - containsIgnoreCase("foo")
-     *   - containsStringIgnoringCase("EditText")
-     *   - contains("bar")
-     *   - startsWithIgnoreCase("prefix")
-     *   - endsWithIgnoreCase("suffix")
+     * Parses a comma-separated list of NodeQuery expressions such as:
+     *   withText("YES"), withId("button1"), withParent(withId("Amount"))
      *
-     * Any unrecognized expression falls back to containsIgnoreCase on the raw value.
+     * Parsing is delegated to {@link NodeQueryCompiler}, which tokenizes the expression into a
+     * typed AST, compiles it once and caches the result by expression text. Malformed or unknown
+     * forms are logged and produce an empty array instead of being silently dropped one by one.
      */
-    private static StringMatcher parseStringMatcher(String raw) {
-        if (raw == null) {
-            return null;
-        }
-
-        String expr = raw.trim();
-        if (expr.isEmpty()) {
-            return null;
-        }
-
-        // 1) If it's a bare quoted string, treat it as a simple containsIgnoreCase literal.
-        if (expr.startsWith("\"") && expr.endsWith("\"") && expr.length() >= 2) {
-            String value = expr.substring(1, expr.length() - 1);
-            return StringMatcher.containsIgnoreCase(value);
-        }
-
-        // 2) Helper calls, e.g., equals("YES"), containsIgnoreCase("foo"), etc.
-        if (expr.startsWith("equalsIgnoreCase(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "equalsIgnoreCase(");
-            return StringMatcher.equalsIgnoreCase(inner);
-        }
-
-        if (expr.startsWith("equals(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "equals(");
-            // You can choose exact match with or without case sensitivity;
-            // here we default to case-insensitive equality.
-            return StringMatcher.equalsIgnoreCase(inner);
+    public static NodeQuery[] parseList(String expr) {
+        if (expr == null || expr.trim().isEmpty()) {
+            return new NodeQuery[0];
         }
-
-        if (expr.startsWith("containsIgnoreCase(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "containsIgnoreCase(");
-            return StringMatcher.containsIgnoreCase(inner);
+        try {
+            return NodeQueryCompiler.compile(expr).getQueries().clone();
+        } catch (NodeQuerySyntaxException e) {
+            Log.w(AVAGenService.TAG, "parseList: rejected node_query: " + e.getMessage());
+            return new NodeQuery[0];
         }
+    }
 
-        if (expr.startsWith("containsStringIgnoringCase(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "containsStringIgnoringCase(");
-            // Map containsStringIgnoringCase(...) to the same runtime matcher
-            // as containsIgnoreCase(...).
-            return StringMatcher.containsIgnoreCase(inner);
+    /**
+     * Returns the first index after the subtree rooted at {@code node}.
+     */
+    private static int subtreeEnd(UiSnapshot snapshot, int node) {
+        for (int n = node; n != UiSnapshot.NO_NODE; n = snapshot.getParent(n)) {
+            int next = snapshot.getNextSibling(n);
+            if (next != UiSnapshot.NO_NODE) {
+                return next;
+            }
         }
+        return snapshot.size();
+    }
 
-        if (expr.startsWith("contains(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "contains(");
-            return StringMatcher.containsIgnoreCase(inner);
+    /**
+     * Total number of nodes in the subtrees rooted at {@code candidates}, stopping early once it
+     * reaches {@code limit}.
+     */
+    private static long subtreeWork(UiSnapshot snapshot, BitSet candidates, long limit) {
+        long work = 0;
+        for (int node = candidates.nextSetBit(0);
+             node >= 0 && work < limit;
+             node = candidates.nextSetBit(node + 1)) {
+            work += subtreeEnd(snapshot, node) - node;
         }
+        return work;
+    }
 
-        if (expr.startsWith("startsWithIgnoreCase(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "startsWithIgnoreCase(");
-            return StringMatcher.startsWithIgnoreCase(inner);
+    /**
+     * True if any non-null query in {@code queries} involves a descendant search.
+     */
+    static boolean anyDescendantQuery(NodeQuery[] queries) {
+        for (NodeQuery query : queries) {
+            if (query != null && query.isDescendantQuery) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        if (expr.startsWith("endsWithIgnoreCase(") && expr.endsWith(")")) {
-            String inner = extractInnerString(expr, "endsWithIgnoreCase(");
-            return StringMatcher.endsWithIgnoreCase(inner);
+    /**
+     * True if every non-null query in {@code queries} matches the node.
+     */
+    static boolean matchesAll(NodeQuery[] queries, UiSnapshot snapshot, int node) {
+        for (NodeQuery query : queries) {
+            if (query != null && !query.matches(snapshot, node)) {
+                return false;
+            }
         }
-
-        // 3) Fallback: treat the raw expression as a literal and use containsIgnoreCase.
-        return StringMatcher.containsIgnoreCase(expr);
+        return true;
     }
 
     /**
-     * Extracts the inner string literal from an expression of the form:
-     *   prefix + "..." + ")"
+     * Computes the set of nodes matching every non-null query in {@code queries}.
+     * The conjunction is reordered by {@link QueryPlan} (cheapest, most selective first), each
+     * query only sees the survivors of the previous ones, and structural queries are resolved
+     * either on those survivors or in a single bottom-up / top-down pass, so the whole
+     * conjunction is linear in the size of the snapshot.
      *
-     * For example:
-     *   extractInnerString("equalsIgnoreCase(\"YES\")", "equalsIgnoreCase(")
-     *   -> "YES"
-     */
-    private static String extractInnerString(String expr, String prefix) {
-        String inner = expr.substring(prefix.length(), expr.length() - 1).trim();
-        if (inner.startsWith("\"") && inner.endsWith("\"") && inner.length() >= 2) {
-            inner = inner.substring(1, inner.length() - 1);
-        }
-        return inner;
+     * @param queries    The conjunction to evaluate.
+     * @param snapshot   The flattened UI tree.
+     * @param candidates Nodes to consider, or null for all nodes.
+     * @return The matching node indices.
+     */
+    static BitSet evaluateAll(NodeQuery[] queries, UiSnapshot snapshot, BitSet candidates) {
+        return QueryPlan.of(queries, snapshot).evaluate(candidates);
     }
 
     /**
-     * Parses a simple comma‑separated list of NodeQuery expressions such as:
-     *   withText("YES"), withId("button1"), withParent(withId("Amount"))
-     *
-     * This parser is *paren-aware*:
-     * it splits on commas that are not inside parentheses, so nested expressions like
-     *   withClassName(containsStringIgnoringCase("EditText"))
-     * are kept intact as a single part.
-     *
-     * For argument strings (e.g., the "YES" or the containsIgnoreCase(...) expression),
-     * we route them through parseStringMatcher(...) so that helper forms like:
-     *   equals("YES"), equalsIgnoreCase("YES"), containsIgnoreCase("foo"),
-     *   containsStringIgnoringCase("EditText")
-     * are correctly mapped to the corresponding StringMatcher.
+     * True if testing this structural query on each remaining candidate does less work than the
+     * whole-tree pass. A per-node test reads strings, while the whole-tree pass mostly moves bits
+     * and gets its inner matches from the index, so a tested node is weighted accordingly.
+     * Nested descendant searches always take the whole-tree pass.
      */
-    public static NodeQuery[] parseList(String expr) {
-        if (expr == null || expr.trim().isEmpty()) {
-            return new NodeQuery[0];
+    private boolean survivorScanIsCheaper(UiSnapshot snapshot, BitSet candidates) {
+        if (anyDescendantQuery(inner)) {
+            return false;
         }
+        long budget = snapshot.size() / SURVIVOR_TEST_WEIGHT;
+        long work = costClass == CostClass.STRUCTURAL
+                ? candidates.cardinality()
+                : subtreeWork(snapshot, candidates, budget);
+        return work < budget;
+    }
 
-        // Split on commas that are not inside parentheses.
-        List<String> parts = new ArrayList<>();
-        StringBuilder sb = new StringBuilder();
-        int depth = 0;
-
-        for (char c : expr.toCharArray()) {
-            if (c == '(') {
-                depth++;
-            } else if (c == ')') {
-                depth--;
+    /**
+     * Tests the per-node condition on each candidate only.
+     */
+    private BitSet evaluateSurvivors(UiSnapshot snapshot, BitSet candidates) {
+        BitSet result = new BitSet(snapshot.size());
+        for (int node = candidates.nextSetBit(0); node >= 0; node = candidates.nextSetBit(node + 1)) {
+            if (condition.test(snapshot, node)) {
+                result.set(node);
             }
+        }
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> debug + ": " + result.cardinality() + " of "
+                    + candidates.cardinality() + " survivor(s) match");
+        }
+        return result;
+    }
 
-            if (c == ',' && depth == 0) {
-                parts.add(sb.toString().trim());
-                sb.setLength(0);
-            } else {
-                sb.append(c);
+    /**
+     * Computes the set of nodes in {@code candidates} (or the whole snapshot when null) that
+     * match this query.
+     *
+     * @param hint This query's index candidates as looked up by {@link QueryPlan}, or null if the
+     *             index cannot answer it. May be modified.
+     */
+    BitSet evaluate(UiSnapshot snapshot, BitSet candidates, BitSet hint) {
+        if (treeEvaluator != null) {
+            if (candidates != null && survivorScanIsCheaper(snapshot, candidates)) {
+                return evaluateSurvivors(snapshot, candidates);
             }
+            return treeEvaluator.evaluate(snapshot, candidates);
         }
-        parts.add(sb.toString().trim());
-
-        List<NodeQuery> queries = new ArrayList<>();
-
-        for (String part : parts) {
-            if (part.isEmpty()) {
-                continue;
+        // Narrow to the index's candidates first; the condition still verifies each one.
+        if (hint != null) {
+            if (candidates != null) {
+                hint.and(candidates);
             }
-
-            if (part.startsWith("withId(") && part.endsWith(")")) {
-                String inner = part.substring("withId(".length(), part.length() - 1).trim();
-                StringMatcher m = parseStringMatcher(inner);
-                if (m != null) {
-                    queries.add(NodeQuery.withId(m));
-                }
-
-            } else if (part.startsWith("withText(") && part.endsWith(")")) {
-                String inner = part.substring("withText(".length(), part.length() - 1).trim();
-                StringMatcher m = parseStringMatcher(inner);
-                if (m != null) {
-                    queries.add(NodeQuery.withText(m));
-                }
-
-            } else if (part.startsWith("withContentDescription(") && part.endsWith(")")) {
-                String inner = part.substring("withContentDescription(".length(), part.length() - 1).trim();
-                StringMatcher m = parseStringMatcher(inner);
-                if (m != null) {
-                    queries.add(NodeQuery.withContentDescription(m));
-                }
-
-            } else if (part.startsWith("withClassName(") && part.endsWith(")")) {
-                String inner = part.substring("withClassName(".length(), part.length() - 1).trim();
-                StringMatcher m = parseStringMatcher(inner);
-                if (m != null) {
-                    queries.add(NodeQuery.withClassName(m));
-                }
-
-            // Nested structural queries
-            } else if (part.startsWith("withParent(") && part.endsWith(")")) {
-                String inner = part.substring("withParent(".length(), part.length() - 1);
-                NodeQuery[] innerQ = parseList(inner);
-                queries.add(NodeQuery.withParent(innerQ));
-
-            } else if (part.startsWith("withChild(") && part.endsWith(")")) {
-                String inner = part.substring("withChild(".length(), part.length() - 1);
-                NodeQuery[] innerQ = parseList(inner);
-                queries.add(NodeQuery.withChild(innerQ));
-
-            } else if (part.startsWith("hasDescendant(") && part.endsWith(")")) {
-                String inner = part.substring("hasDescendant(".length(), part.length() - 1);
-                NodeQuery[] innerQ = parseList(inner);
-                queries.add(NodeQuery.hasDescendant(innerQ));
-
-            } else if (part.equals("isNotChecked()")) {
-                // Allow isNotChecked() in the DSL as a simple state predicate.
-                queries.add(NodeQuery.isNotChecked());
-
-            } else if (part.equals("isChecked()")) {
-                // Optional: explicit checked-state predicate.
-                queries.add(NodeQuery.isChecked());
+            candidates = hint;
+        }
+        BitSet result = new BitSet(snapshot.size());
+        for (int node = nextCandidate(candidates, snapshot, 0);
+             node >= 0;
+             node = nextCandidate(candidates, snapshot, node + 1)) {
+            if (condition.test(snapshot, node)) {
+                result.set(node);
             }
         }
-
-        return queries.toArray(new NodeQuery[0]);
+        return result;
     }
 
     /**
-     * Gets the index of an AccessibilityNodeInfo within its parent.
-     *
-     * @param node The AccessibilityNodeInfo whose index is needed.
-     * @return The index of the node within its parent, or -1 if it has no parent or is not found.
+     * Superset of this query's matches from the snapshot index, or null if it cannot answer.
      */
-    private static int getNodeIndex(AccessibilityNodeInfo node) {
-        if (node == null || node.getParent() == null) {
-            return -1; // No parent, so no index
-        }
-
-        AccessibilityNodeInfo parent = node.getParent();
-        int childCount = parent.getChildCount();
+    BitSet indexCandidates(UiSnapshot snapshot) {
+        return indexLookup != null ? indexLookup.candidates(snapshot.getIndex()) : null;
+    }
 
-        for (int i = 0; i < childCount; i++) {
-            AccessibilityNodeInfo child = parent.getChild(i);
-            if (child != null && child.equals(node)) {
-                return i; // Found the node's index
-            }
+    /**
+     * Next candidate at or after {@code from}; a null set stands for every node.
+     */
+    private static int nextCandidate(BitSet candidates, UiSnapshot snapshot, int from) {
+        if (candidates == null) {
+            return from < snapshot.size() ? from : -1;
         }
-
-        return -1; // Node not found among parent's children
+        return candidates.nextSetBit(from);
     }
 
     /**
-     * Checks if the given node matches the query condition.
+     * Checks if the given snapshot node matches the query condition.
      *
-     * @param node The AccessibilityNodeInfo node to evaluate.
+     * @param snapshot The flattened UI tree.
+     * @param node     The index of the node to evaluate.
      * @return True if the node matches the condition, false otherwise.
      */
-    public boolean matches(AccessibilityNodeInfo node) {
-        return condition.test(node);
+    public boolean matches(UiSnapshot snapshot, int node) {
+        return condition.test(snapshot, node);
+    }
+
+    /**
+     * Returns the static evaluation cost class of this query.
+     */
+    public CostClass getCostClass() {
+        return costClass;
     }
 
     /**
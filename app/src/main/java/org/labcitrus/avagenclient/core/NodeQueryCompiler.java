@@ -0,0 +1,159 @@
+package org.labcitrus.avagenclient.core;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles node_query expressions into {@link CompiledQuery} objects and caches them.
+ *
+ * <pre>
+ *   "withParent(withId(\"Amount\"), hasDescendant(withId(\"TaType\")))"
+ *      → NodeQueryParser (tokens → typed AST)
+ *      → NodeQueryCompiler (AST → NodeQuery predicates)
+ *      → LRU cache keyed by the expression text
+ * </pre>
+ *
+ * Plans are re-run many times a day with the same handful of expressions, so each distinct
+ * expression is parsed exactly once per process (until evicted).
+ */
+public final class NodeQueryCompiler {
+
+    /** Upper bound on distinct cached expressions. */
+    public static final int MAX_CACHED_QUERIES = 256;
+
+    private static final Map<String, CompiledQuery> CACHE =
+            new LinkedHashMap<String, CompiledQuery>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+                    return size() > MAX_CACHED_QUERIES;
+                }
+            };
+
+    private static long hits;
+    private static long misses;
+
+    private NodeQueryCompiler() {}
+
+    /**
+     * Return the compiled form of {@code expression}, parsing it only on first use.
+     *
+     * @param expression The raw node_query string.
+     * @return The compiled query (possibly empty for a blank expression).
+     * @throws NodeQuerySyntaxException if the expression is malformed, uses unknown functions or
+     *         has an invalid regex.
+     */
+    public static CompiledQuery compile(String expression) {
+        String key = expression == null ? "" : expression.trim();
+
+        synchronized (CACHE) {
+            CompiledQuery cached = CACHE.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        // Parse outside the lock; a concurrent duplicate compile is harmless.
+        List<NodeQueryParser.QueryExpr> ast = NodeQueryParser.parse(key);
+        NodeQuery[] queries = new NodeQuery[ast.size()];
+        for (int i = 0; i < ast.size(); i++) {
+            try {
+                queries[i] = toNodeQuery(ast.get(i));
+            } catch (IllegalArgumentException e) {
+                // An invalid regex pattern: report it like any other malformed expression.
+                throw new NodeQuerySyntaxException("Invalid query: " + e.getMessage(), key, ast.get(i).position);
+            }
+        }
+        CompiledQuery compiled = new CompiledQuery(key, Collections.unmodifiableList(ast), queries);
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> "NodeQueryCompiler: compiled " + key + " -> " + ast);
+        }
+
+        synchronized (CACHE) {
+            CACHE.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Translate one AST node into the corresponding NodeQuery factory call.
+     *
+     * @throws IllegalArgumentException if a regex matcher's pattern is invalid.
+     */
+    public static NodeQuery toNodeQuery(NodeQueryParser.QueryExpr expr) {
+        if (expr instanceof NodeQueryParser.AttributeExpr) {
+            NodeQueryParser.AttributeExpr a = (NodeQueryParser.AttributeExpr) expr;
+            StringMatcher matcher = toStringMatcher(a.matcher);
+            switch (a.attribute) {
+                case ID:                  return NodeQuery.withId(matcher);
+                case TEXT:                return NodeQuery.withText(matcher);
+                case CONTENT_DESCRIPTION: return NodeQuery.withContentDescription(matcher);
+                case CLASS_NAME:          return NodeQuery.withClassName(matcher);
+            }
+        } else if (expr instanceof NodeQueryParser.StructuralExpr) {
+            NodeQueryParser.StructuralExpr s = (NodeQueryParser.StructuralExpr) expr;
+            NodeQuery[] inner = new NodeQuery[s.conditions.size()];
+            for (int i = 0; i < inner.length; i++) {
+                inner[i] = toNodeQuery(s.conditions.get(i));
+            }
+            switch (s.relation) {
+                case PARENT:     return NodeQuery.withParent(inner);
+                case CHILD:      return NodeQuery.withChild(inner);
+                case DESCENDANT: return NodeQuery.hasDescendant(inner);
+            }
+        } else if (expr instanceof NodeQueryParser.IndexExpr) {
+            NodeQueryParser.IndexExpr i = (NodeQueryParser.IndexExpr) expr;
+            switch (i.kind) {
+                case PARENT_INDEX:  return NodeQuery.withParentIndex(i.index);
+                case INDEX_OF_TYPE: return NodeQuery.withIndexOfType(i.index);
+                case DEPTH:         return NodeQuery.withDepth(i.index);
+                case LAST_CHILD:    return NodeQuery.isLastChild();
+            }
+        } else if (expr instanceof NodeQueryParser.CheckedExpr) {
+            return ((NodeQueryParser.CheckedExpr) expr).checked
+                    ? NodeQuery.isChecked()
+                    : NodeQuery.isNotChecked();
+        }
+        throw new IllegalStateException("Unhandled query node: " + expr);
+    }
+
+    /**
+     * Translate a matcher AST node into a StringMatcher.
+     */
+    static StringMatcher toStringMatcher(NodeQueryParser.MatcherExpr m) {
+        switch (m.mode) {
+            case EQUALS_IGNORE_CASE:      return StringMatcher.equalsIgnoreCase(m.value);
+            case CONTAINS_IGNORE_CASE:    return StringMatcher.containsIgnoreCase(m.value);
+            case STARTS_WITH_IGNORE_CASE: return StringMatcher.startsWithIgnoreCase(m.value);
+            case ENDS_WITH_IGNORE_CASE:   return StringMatcher.endsWithIgnoreCase(m.value);
+            case REGEX:                   return StringMatcher.regex(m.value);
+        }
+        throw new IllegalStateException("Unhandled match mode: " + m.mode);
+    }
+
+    /** Number of compile() calls served from the cache. */
+    public static long getHitCount() {
+        synchronized (CACHE) {
+            return hits;
+        }
+    }
+
+    /** Number of compile() calls that had to parse. */
+    public static long getMissCount() {
+        synchronized (CACHE) {
+            return misses;
+        }
+    }
+
+    /** Drop every cached expression (e.g. after a plan reload). */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+}
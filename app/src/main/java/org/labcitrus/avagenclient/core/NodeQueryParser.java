@@ -0,0 +1,439 @@
+package org.labcitrus.avagenclient.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tokenizer and recursive-descent parser for the node_query DSL emitted by the generator.
+ *
+ * <p>Grammar:</p>
+ * <pre>
+ *   list       := [ query { ',' query } ] EOF
+ *   query      := attribute '(' matcher ')'          withId / withText / withContentDescription / withClassName / isTextIgnoreCase
+ *               | relation '(' query { ',' query } ')' withParent / withChild / hasDescendant
+ *               | ( 'withParentIndex' | 'withIndexOfType' | 'withDepth' ) '(' NUMBER ')'
+ *               | 'isLastChild' '(' ')'
+ *               | ( 'isChecked' | 'isNotChecked' ) '(' ')'
+ *   matcher    := STRING | matcherName '(' STRING ')'   equals / equalsIgnoreCase / contains / containsIgnoreCase /
+ *                                                       containsStringIgnoringCase / startsWithIgnoreCase /
+ *                                                       endsWithIgnoreCase / regex
+ * </pre>
+ *
+ * <p>Example:</p>
+ * <pre>{@code
+ * withParent(withId("Amount"), hasDescendant(withId("TaType"))), withText(equalsIgnoreCase("YES"))
+ * }</pre>
+ *
+ * <p>The result is a typed AST ({@link QueryExpr}); unknown functions, wrong argument kinds and
+ * unbalanced parentheses are reported as {@link NodeQuerySyntaxException} instead of being dropped.
+ * Compilation into {@link NodeQuery} objects is done by {@link NodeQueryCompiler}.</p>
+ */
+public final class NodeQueryParser {
+
+    // ---------------------------------------------------------------------------------------------
+    // region: AST
+    // ---------------------------------------------------------------------------------------------
+
+    /** Node attributes that can be matched with a string matcher. */
+    public enum Attribute {
+        ID, TEXT, CONTENT_DESCRIPTION, CLASS_NAME
+    }
+
+    /** Structural relations between the tested node and the nested conditions. */
+    public enum Relation {
+        PARENT, CHILD, DESCENDANT
+    }
+
+    /** String matching modes, mapped 1:1 to {@link StringMatcher} factories. */
+    public enum MatchMode {
+        EQUALS_IGNORE_CASE, CONTAINS_IGNORE_CASE, STARTS_WITH_IGNORE_CASE, ENDS_WITH_IGNORE_CASE, REGEX
+    }
+
+    /** Base type of every query-level AST node. */
+    public abstract static class QueryExpr {
+        /** Offset of the node's first token in the source expression, or -1 if it has no source. */
+        public final int position;
+
+        QueryExpr(int position) {
+            this.position = position;
+        }
+    }
+
+    /** {@code withText(equalsIgnoreCase("YES"))} and friends. */
+    public static final class AttributeExpr extends QueryExpr {
+        public final Attribute attribute;
+        public final MatcherExpr matcher;
+
+        AttributeExpr(int position, Attribute attribute, MatcherExpr matcher) {
+            super(position);
+            this.attribute = attribute;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public String toString() {
+            return attribute + "(" + matcher + ")";
+        }
+    }
+
+    /** {@code withParent(...)}, {@code withChild(...)}, {@code hasDescendant(...)}. */
+    public static final class StructuralExpr extends QueryExpr {
+        public final Relation relation;
+        public final List<QueryExpr> conditions;
+
+        StructuralExpr(int position, Relation relation, List<QueryExpr> conditions) {
+            super(position);
+            this.relation = relation;
+            this.conditions = Collections.unmodifiableList(conditions);
+        }
+
+        @Override
+        public String toString() {
+            return relation + conditions.toString();
+        }
+    }
+
+    /** Positional predicates that read the captured child index / depth. */
+    public enum Position {
+        PARENT_INDEX, INDEX_OF_TYPE, DEPTH, LAST_CHILD
+    }
+
+    /** {@code withParentIndex(1)}, {@code withIndexOfType(0)}, {@code withDepth(3)}, {@code isLastChild()}. */
+    public static final class IndexExpr extends QueryExpr {
+        public final Position kind;
+        public final int index;
+
+        IndexExpr(int position, Position kind, int index) {
+            super(position);
+            this.kind = kind;
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            return kind == Position.LAST_CHILD ? "LAST_CHILD" : kind + "(" + index + ")";
+        }
+    }
+
+    /** {@code isChecked()} / {@code isNotChecked()}. */
+    public static final class CheckedExpr extends QueryExpr {
+        public final boolean checked;
+
+        CheckedExpr(int position, boolean checked) {
+            super(position);
+            this.checked = checked;
+        }
+
+        @Override
+        public String toString() {
+            return checked ? "CHECKED" : "NOT_CHECKED";
+        }
+    }
+
+    /** A string matcher argument, e.g. {@code containsIgnoreCase("foo")} or a bare {@code "foo"}. */
+    public static final class MatcherExpr {
+        public final MatchMode mode;
+        public final String value;
+
+        MatcherExpr(MatchMode mode, String value) {
+            this.mode = mode;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return mode + "(\"" + value + "\")";
+        }
+    }
+
+    /**
+     * An attribute test built outside the parser, e.g. from a plan's flat "matchers" list, so it
+     * compiles (and encodes, see {@link QueryBytecode}) like a parsed one.
+     */
+    public static AttributeExpr attribute(Attribute attribute, MatchMode mode, String value) {
+        return new AttributeExpr(-1, attribute, new MatcherExpr(mode, value));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: parser
+    // ---------------------------------------------------------------------------------------------
+
+    private final String source;
+    private final Tokenizer tokenizer;
+    private Token current;
+
+    private NodeQueryParser(String source) {
+        this.source = source;
+        this.tokenizer = new Tokenizer(source);
+        this.current = tokenizer.next();
+    }
+
+    /**
+     * Parse a comma-separated list of queries (a conjunction).
+     *
+     * @param expression The raw node_query string.
+     * @return The top-level queries; empty for a blank expression.
+     * @throws NodeQuerySyntaxException on any lexical or grammatical error.
+     */
+    public static List<QueryExpr> parse(String expression) {
+        String source = expression == null ? "" : expression;
+        NodeQueryParser parser = new NodeQueryParser(source);
+        List<QueryExpr> queries = new ArrayList<>();
+        if (parser.current.type != TokenType.EOF) {
+            queries.add(parser.parseQuery());
+            while (parser.current.type == TokenType.COMMA) {
+                parser.advance();
+                queries.add(parser.parseQuery());
+            }
+        }
+        parser.expect(TokenType.EOF, "end of expression");
+        return queries;
+    }
+
+    private QueryExpr parseQuery() {
+        Token name = expect(TokenType.IDENT, "query function");
+        expect(TokenType.LPAREN, "'(' after " + name.text);
+
+        QueryExpr result;
+        switch (name.text) {
+            case "withId":
+                result = new AttributeExpr(name.position, Attribute.ID, parseMatcher());
+                break;
+            case "withText":
+                result = new AttributeExpr(name.position, Attribute.TEXT, parseMatcher());
+                break;
+            case "isTextIgnoreCase":
+                result = new AttributeExpr(name.position, Attribute.TEXT,
+                        new MatcherExpr(MatchMode.EQUALS_IGNORE_CASE, expectString()));
+                break;
+            case "withContentDescription":
+                result = new AttributeExpr(name.position, Attribute.CONTENT_DESCRIPTION, parseMatcher());
+                break;
+            case "withClassName":
+                result = new AttributeExpr(name.position, Attribute.CLASS_NAME, parseMatcher());
+                break;
+
+            // Nested structural queries
+            case "withParent":
+                result = new StructuralExpr(name.position, Relation.PARENT, parseQueryArguments());
+                break;
+            case "withChild":
+                result = new StructuralExpr(name.position, Relation.CHILD, parseQueryArguments());
+                break;
+            case "hasDescendant":
+            case "withDescendant":
+                result = new StructuralExpr(name.position, Relation.DESCENDANT, parseQueryArguments());
+                break;
+
+            case "withParentIndex":
+                result = new IndexExpr(name.position, Position.PARENT_INDEX, expectNumber("child index"));
+                break;
+            case "withIndexOfType":
+                result = new IndexExpr(name.position, Position.INDEX_OF_TYPE, expectNumber("index among same-class siblings"));
+                break;
+            case "withDepth":
+                result = new IndexExpr(name.position, Position.DEPTH, expectNumber("depth"));
+                break;
+            case "isLastChild":
+                result = new IndexExpr(name.position, Position.LAST_CHILD, -1);
+                break;
+            case "isChecked":
+                result = new CheckedExpr(name.position, true);
+                break;
+            case "isNotChecked":
+                result = new CheckedExpr(name.position, false);
+                break;
+
+            default:
+                throw new NodeQuerySyntaxException("Unknown query function '" + name.text + "'",
+                        source, name.position);
+        }
+
+        expect(TokenType.RPAREN, "')' to close " + name.text);
+        return result;
+    }
+
+    private List<QueryExpr> parseQueryArguments() {
+        List<QueryExpr> conditions = new ArrayList<>();
+        conditions.add(parseQuery());
+        while (current.type == TokenType.COMMA) {
+            advance();
+            conditions.add(parseQuery());
+        }
+        return conditions;
+    }
+
+    private MatcherExpr parseMatcher() {
+        // Bare literal: "foo" -> containsIgnoreCase("foo"), as before.
+        if (current.type == TokenType.STRING) {
+            return new MatcherExpr(MatchMode.CONTAINS_IGNORE_CASE, advance().text);
+        }
+
+        Token name = expect(TokenType.IDENT, "string literal or matcher");
+        MatchMode mode;
+        switch (name.text) {
+            // equals(...) has always been case-insensitive on this client.
+            case "equals":
+            case "equalsIgnoreCase":
+                mode = MatchMode.EQUALS_IGNORE_CASE;
+                break;
+            case "contains":
+            case "containsIgnoreCase":
+            case "containsStringIgnoringCase":
+                mode = MatchMode.CONTAINS_IGNORE_CASE;
+                break;
+            case "startsWithIgnoreCase":
+                mode = MatchMode.STARTS_WITH_IGNORE_CASE;
+                break;
+            case "endsWithIgnoreCase":
+                mode = MatchMode.ENDS_WITH_IGNORE_CASE;
+                break;
+            case "regex":
+                mode = MatchMode.REGEX;
+                break;
+            default:
+                throw new NodeQuerySyntaxException("Unknown string matcher '" + name.text + "'",
+                        source, name.position);
+        }
+        expect(TokenType.LPAREN, "'(' after " + name.text);
+        String value = expectString();
+        expect(TokenType.RPAREN, "')' to close " + name.text);
+        return new MatcherExpr(mode, value);
+    }
+
+    private String expectString() {
+        return expect(TokenType.STRING, "string literal").text;
+    }
+
+    private int expectNumber(String what) {
+        Token number = expect(TokenType.NUMBER, what);
+        try {
+            return Integer.parseInt(number.text);
+        } catch (NumberFormatException e) {
+            throw new NodeQuerySyntaxException("Number out of range '" + number.text + "'",
+                    source, number.position);
+        }
+    }
+
+    private Token advance() {
+        Token t = current;
+        current = tokenizer.next();
+        return t;
+    }
+
+    private Token expect(TokenType type, String what) {
+        if (current.type != type) {
+            String found = current.type == TokenType.EOF ? "end of expression" : "'" + current.text + "'";
+            throw new NodeQuerySyntaxException("Expected " + what + " but found " + found,
+                    source, current.position);
+        }
+        return advance();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: tokenizer
+    // ---------------------------------------------------------------------------------------------
+
+    private enum TokenType {
+        IDENT, STRING, NUMBER, LPAREN, RPAREN, COMMA, EOF
+    }
+
+    private static final class Token {
+        final TokenType type;
+        final String text;
+        final int position;
+
+        Token(TokenType type, String text, int position) {
+            this.type = type;
+            this.text = text;
+            this.position = position;
+        }
+    }
+
+    private static final class Tokenizer {
+        private final String src;
+        private int pos;
+
+        Tokenizer(String src) {
+            this.src = src;
+        }
+
+        Token next() {
+            skipWhitespace();
+            if (pos >= src.length()) {
+                return new Token(TokenType.EOF, "", pos);
+            }
+
+            int start = pos;
+            char c = src.charAt(pos);
+            switch (c) {
+                case '(':
+                    pos++;
+                    return new Token(TokenType.LPAREN, "(", start);
+                case ')':
+                    pos++;
+                    return new Token(TokenType.RPAREN, ")", start);
+                case ',':
+                    pos++;
+                    return new Token(TokenType.COMMA, ",", start);
+                case '"':
+                    return readString();
+                default:
+                    break;
+            }
+
+            if (Character.isJavaIdentifierStart(c)) {
+                while (pos < src.length() && Character.isJavaIdentifierPart(src.charAt(pos))) {
+                    pos++;
+                }
+                return new Token(TokenType.IDENT, src.substring(start, pos), start);
+            }
+
+            if (Character.isDigit(c) || (c == '-' && pos + 1 < src.length() && Character.isDigit(src.charAt(pos + 1)))) {
+                pos++;
+                while (pos < src.length() && Character.isDigit(src.charAt(pos))) {
+                    pos++;
+                }
+                return new Token(TokenType.NUMBER, src.substring(start, pos), start);
+            }
+
+            throw new NodeQuerySyntaxException("Unexpected character '" + c + "'", src, start);
+        }
+
+        private Token readString() {
+            int start = pos;
+            pos++; // opening quote
+            StringBuilder sb = new StringBuilder();
+            while (pos < src.length()) {
+                char c = src.charAt(pos++);
+                if (c == '"') {
+                    return new Token(TokenType.STRING, sb.toString(), start);
+                }
+                if (c == '\\' && pos < src.length()) {
+                    char escaped = src.charAt(pos++);
+                    switch (escaped) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        default:  sb.append(escaped); break; // \" \\ and anything else verbatim
+                    }
+                    continue;
+                }
+                sb.append(c);
+            }
+            throw new NodeQuerySyntaxException("Unterminated string literal", src, start);
+        }
+
+        private void skipWhitespace() {
+            while (pos < src.length()) {
+                char c = src.charAt(pos);
+                // Server-generated JSON occasionally carries NBSP / zero-width spaces.
+                if (Character.isWhitespace(c) || c == '\u00A0' || c == '\u200B') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+}
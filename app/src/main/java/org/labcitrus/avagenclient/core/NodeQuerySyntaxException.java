@@ -0,0 +1,27 @@
+package org.labcitrus.avagenclient.core;
+
+/**
+ * Thrown when a node_query expression cannot be tokenized, parsed or compiled.
+ * Carries the character offset of the offending token so the generator output can be fixed.
+ */
+public class NodeQuerySyntaxException extends IllegalArgumentException {
+
+    private final String expression;
+    private final int position;
+
+    public NodeQuerySyntaxException(String message, String expression, int position) {
+        super(message + " at " + position + " in: " + expression);
+        this.expression = expression;
+        this.position = position;
+    }
+
+    /** The full expression that failed. */
+    public String getExpression() {
+        return expression;
+    }
+
+    /** Character offset of the failure within {@link #getExpression()}. */
+    public int getPosition() {
+        return position;
+    }
+}
@@ -0,0 +1,130 @@
+package org.labcitrus.avagenclient.core;
+
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityNodeInfo.AccessibilityAction;
+
+import java.util.List;
+
+/**
+ * Scrolls a container through its own accessibility actions instead of swiping across the screen:
+ *
+ * <pre>
+ *   container ──ACTION_SCROLL_FORWARD / BACKWARD──→ app scrolls one page ──TYPE_VIEW_SCROLLED──→ done
+ *   container ──ACTION_SCROLL_TO_POSITION(row)───→ (lists with CollectionInfo only)
+ * </pre>
+ *
+ * A scroll only counts once the app reports TYPE_VIEW_SCROLLED (via {@link UiIdleDetector}), so
+ * the caller knows the content moved. If the action is refused or no event follows, the methods
+ * return false and the caller falls back to a swipe gesture.
+ */
+public final class NodeScroller {
+
+    private static final String TAG = "NodeScroller";
+
+    /** How long to wait for TYPE_VIEW_SCROLLED after a scroll action was accepted. */
+    public static final long SCROLL_EVENT_TIMEOUT_MS = 1000L;
+
+    private final UiIdleDetector idleDetector;
+
+    public NodeScroller(UiIdleDetector idleDetector) {
+        this.idleDetector = idleDetector;
+    }
+
+    /**
+     * The container a plain "scroll" step means: the visible scrollable node with the largest
+     * on-screen area (the main list rather than a horizontal chip row or a spinner).
+     *
+     * @return Node index in {@code snapshot}, or {@link UiSnapshot#NO_NODE} if nothing scrolls.
+     */
+    public static int findScrollContainer(UiSnapshot snapshot) {
+        Rect rect = new Rect();
+        int best = UiSnapshot.NO_NODE;
+        long bestArea = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!snapshot.hasFlag(i, UiSnapshot.FLAG_SCROLLABLE) || !snapshot.isVisibleToUser(i)) {
+                continue;
+            }
+            snapshot.getBoundsInScreen(i, rect);
+            long area = (long) Math.max(0, rect.width()) * Math.max(0, rect.height());
+            if (best == UiSnapshot.NO_NODE || area > bestArea) {
+                best = i;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Scroll {@code container} one page forward (down / right) or backward.
+     *
+     * @return true once the app reported the scroll; false if the action was refused (e.g. at
+     *         the end of the list), no event arrived in time, or the thread was interrupted.
+     */
+    public boolean scrollBy(AccessibilityNodeInfo container, boolean forward) {
+        int action = forward ? AccessibilityNodeInfo.ACTION_SCROLL_FORWARD : AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD;
+        return performAndAwait(container, action, null, forward ? "SCROLL_FORWARD" : "SCROLL_BACKWARD");
+    }
+
+    /**
+     * Scroll a collection (RecyclerView, ListView, GridView) so that {@code row} is shown.
+     *
+     * @return false if {@code container} has no CollectionInfo, the row is out of range, the
+     *         container does not offer ACTION_SCROLL_TO_POSITION, or no scroll was reported.
+     */
+    public boolean scrollToPosition(AccessibilityNodeInfo container, int row) {
+        if (container == null) {
+            return false;
+        }
+        AccessibilityNodeInfo.CollectionInfo collection = container.getCollectionInfo();
+        if (collection == null) {
+            Log.i(TAG, "scrollToPosition: container has no CollectionInfo");
+            return false;
+        }
+        if (row < 0 || (collection.getRowCount() >= 0 && row >= collection.getRowCount())) {
+            Log.w(TAG, "scrollToPosition: row " + row + " out of range, rows=" + collection.getRowCount());
+            return false;
+        }
+        int action = AccessibilityAction.ACTION_SCROLL_TO_POSITION.getId();
+        if (!offers(container, action)) {
+            Log.i(TAG, "scrollToPosition: container does not offer ACTION_SCROLL_TO_POSITION");
+            return false;
+        }
+        Bundle args = new Bundle();
+        args.putInt(AccessibilityNodeInfo.ACTION_ARGUMENT_ROW_INT, row);
+        args.putInt(AccessibilityNodeInfo.ACTION_ARGUMENT_COLUMN_INT, 0);
+        return performAndAwait(container, action, args, "SCROLL_TO_POSITION(" + row + ")");
+    }
+
+    private boolean performAndAwait(AccessibilityNodeInfo container, int action, Bundle args, String label) {
+        if (container == null) {
+            return false;
+        }
+        // Read the counter first, so a scroll reported before performAction returns still counts.
+        long seen = idleDetector.getScrollCount();
+        boolean accepted = args != null ? container.performAction(action, args) : container.performAction(action);
+        if (!accepted) {
+            Log.i(TAG, label + ": refused by " + container.getClassName());
+            return false;
+        }
+        boolean scrolled = idleDetector.awaitScroll(seen, SCROLL_EVENT_TIMEOUT_MS);
+        Log.i(TAG, label + ": " + (scrolled ? "scrolled" : "no TYPE_VIEW_SCROLLED within "
+                + SCROLL_EVENT_TIMEOUT_MS + " ms") + " (" + container.getClassName() + ")");
+        return scrolled;
+    }
+
+    private static boolean offers(AccessibilityNodeInfo node, int actionId) {
+        List<AccessibilityAction> actions = node.getActionList();
+        if (actions == null) {
+            return false;
+        }
+        for (AccessibilityAction a : actions) {
+            if (a != null && a.getId() == actionId) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
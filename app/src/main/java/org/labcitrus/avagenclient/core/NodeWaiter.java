@@ -0,0 +1,206 @@
+package org.labcitrus.avagenclient.core;
+
+import android.accessibilityservice.AccessibilityService;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Waits for a node matching a set of queries to appear on screen.
+ *
+ * <p>The queries are evaluated against a fresh {@link UiSnapshot} immediately, then again each
+ * time the {@link UiIdleDetector} reports UI activity (content / state changes, scrolls). A
+ * backoff poll (50 ms doubling to 800 ms) re-evaluates even when no event arrives, in case an
+ * app updates its tree without notifying us:</p>
+ * <pre>
+ *   evaluate ── miss ──┬── UI event ──────────┬──→ evaluate again
+ *                      └── poll (50 → 800 ms) ┘
+ *   stops on a hit, or on the first miss past the deadline (timeout, with elapsed time)
+ * </pre>
+ *
+ * <p>For pipelined execution, {@link #evaluateNow(NodeQuery...)} resolves a step's target
+ * speculatively while the previous step is still settling, and {@link #revalidate(Result)}
+ * later confirms that candidate without a new search if the screen has not changed since.</p>
+ */
+public final class NodeWaiter {
+
+    private static final String TAG = "NodeWaiter";
+
+    private static final long INITIAL_POLL_MS = 50L;
+    private static final long MAX_POLL_MS = 800L;
+
+    private final AccessibilityService service;
+    private final UiIdleDetector idleDetector;
+    private final ExecutionTracer tracer;
+
+    /**
+     * @param tracer Receives a span per tree fetch, snapshot and query evaluation.
+     */
+    public NodeWaiter(AccessibilityService service, UiIdleDetector idleDetector, ExecutionTracer tracer) {
+        this.service = service;
+        this.idleDetector = idleDetector;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Outcome of {@link #waitForNode(long, NodeQuery...)}.
+     */
+    public static final class Result {
+        private final UiSnapshot snapshot;
+        private final int match;
+        private final long elapsedMs;
+        private final int attempts;
+        /** UiIdleDetector event count read just before the snapshot was captured. */
+        private final long seenEvents;
+
+        private Result(UiSnapshot snapshot, int match, long elapsedMs, int attempts, long seenEvents) {
+            this.snapshot = snapshot;
+            this.match = match;
+            this.elapsedMs = elapsedMs;
+            this.attempts = attempts;
+            this.seenEvents = seenEvents;
+        }
+
+        public boolean isFound() {
+            return match != UiSnapshot.NO_NODE;
+        }
+
+        /** The matched node, or null on timeout. */
+        public AccessibilityNodeInfo getNode() {
+            return isFound() ? snapshot.getNode(match) : null;
+        }
+
+        /** The snapshot the match was found in (the last one taken on timeout, may be null). */
+        public UiSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /** Snapshot index of the match, or {@link UiSnapshot#NO_NODE}. */
+        public int getMatchIndex() {
+            return match;
+        }
+
+        /** Time spent waiting, from the call to the hit or the timeout. */
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        /** Number of times the queries were evaluated. */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        @Override
+        public String toString() {
+            return (isFound() ? "found" : "timed out") + " after " + elapsedMs + " ms, "
+                    + attempts + " attempt(s)";
+        }
+    }
+
+    /**
+     * Return the first node matching {@code queries}, waiting for it until
+     * {@code deadlineUptimeMs} ({@link SystemClock#uptimeMillis()} time base).
+     * A deadline in the past gives exactly one attempt.
+     */
+    public Result waitForNode(long deadlineUptimeMs, NodeQuery... queries) {
+        long start = SystemClock.uptimeMillis();
+        long pollMs = INITIAL_POLL_MS;
+        int attempts = 0;
+        UiSnapshot snapshot = null;
+        long seen;
+
+        while (true) {
+            // Read the counter before capturing, so an event that lands during the capture
+            // still wakes the next wait.
+            seen = idleDetector.getEventCount();
+            attempts++;
+
+            UiSnapshot captured = captureNow();
+            if (captured != null) {
+                snapshot = captured;
+                int match = findFirstTraced(snapshot, queries);
+                if (match != UiSnapshot.NO_NODE) {
+                    Result result = new Result(snapshot, match, SystemClock.uptimeMillis() - start, attempts, seen);
+                    if (attempts > 1) {
+                        Log.i(TAG, "waitForNode: " + result);
+                    }
+                    return result;
+                }
+            }
+
+            long now = SystemClock.uptimeMillis();
+            if (now >= deadlineUptimeMs) {
+                Result result = new Result(snapshot, UiSnapshot.NO_NODE, now - start, attempts, seen);
+                Log.w(TAG, "waitForNode: " + result);
+                return result;
+            }
+
+            if (idleDetector.awaitActivity(seen, Math.min(pollMs, deadlineUptimeMs - now))) {
+                pollMs = INITIAL_POLL_MS; // the screen is changing; keep the safety poll tight
+            } else if (Thread.currentThread().isInterrupted()) {
+                Result result = new Result(snapshot, UiSnapshot.NO_NODE,
+                        SystemClock.uptimeMillis() - start, attempts, seen);
+                Log.w(TAG, "waitForNode: interrupted, " + result);
+                return result;
+            } else {
+                pollMs = Math.min(pollMs * 2, MAX_POLL_MS);
+            }
+        }
+    }
+
+    /**
+     * Evaluate {@code queries} once against the current screen, without waiting or logging a
+     * miss. Used to resolve the next step's target while the current one settles.
+     */
+    public Result evaluateNow(NodeQuery... queries) {
+        long start = SystemClock.uptimeMillis();
+        long seen = idleDetector.getEventCount();
+        UiSnapshot snapshot = captureNow();
+        if (snapshot == null) {
+            return new Result(null, UiSnapshot.NO_NODE, 0, 1, seen);
+        }
+        int match = findFirstTraced(snapshot, queries);
+        return new Result(snapshot, match, SystemClock.uptimeMillis() - start, 1, seen);
+    }
+
+    /**
+     * Check that a match from an earlier snapshot is still what a fresh search would return.
+     * That is only known while no UI activity has been reported since the snapshot was taken:
+     * the tree, and so the first match in document order, is unchanged. After any activity the
+     * candidate is not trusted, because a structural predicate ({@code withParent},
+     * {@code hasDescendant}, ...) or an earlier node may now match differently; a fresh search
+     * costs one snapshot, about what re-checking the candidate would.
+     * A false result only means the candidate cannot be trusted; search again.
+     */
+    public boolean revalidate(Result candidate) {
+        return candidate != null && candidate.isFound()
+                && idleDetector.getEventCount() == candidate.seenEvents;
+    }
+
+    /** Fetch the active window's tree and copy it; null if there is no active window. */
+    public UiSnapshot captureNow() {
+        AccessibilityNodeInfo root;
+        try (ExecutionTracer.Span ignored = tracer.begin("root")) {
+            root = service.getRootInActiveWindow();
+        }
+        if (root == null) {
+            return null;
+        }
+        try (ExecutionTracer.Span span = tracer.begin("snapshot")) {
+            UiSnapshot snapshot = UiSnapshot.capture(root);
+            span.arg("nodes", snapshot.size());
+            return snapshot;
+        }
+    }
+
+    private int findFirstTraced(UiSnapshot snapshot, NodeQuery[] queries) {
+        try (ExecutionTracer.Span span = tracer.begin("query")) {
+            NodeFinder.VisitCount visits = new NodeFinder.VisitCount();
+            int match = NodeFinder.findFirst(snapshot, visits, queries);
+            span.arg("visited", visits.get())
+                    .arg("nodes", snapshot.size())
+                    .arg("found", match != UiSnapshot.NO_NODE ? 1 : 0);
+            return match;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.labcitrus.avagenclient.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compact prefix encoding of a node_query AST, so a stored query is rebuilt without
+ * tokenizing or parsing:
+ *
+ * <pre>
+ *   program := u16 count, count × query                    (the top-level conjunction)
+ *   query   := ATTR     u8 attribute  u8 mode  i32 string
+ *            | RELATION u8 relation   u16 count, count × query
+ *            | POSITION u8 kind       i32 index
+ *            | CHECKED  u8 checked
+ * </pre>
+ *
+ * Strings are indexes into the caller's string table (-1 for null). Enum values are stored by
+ * ordinal, so the format that embeds this code must change its version whenever one of the
+ * {@link NodeQueryParser} enums does.
+ */
+public final class QueryBytecode {
+
+    private static final int OP_ATTR = 1;
+    private static final int OP_RELATION = 2;
+    private static final int OP_POSITION = 3;
+    private static final int OP_CHECKED = 4;
+
+    private QueryBytecode() {}
+
+    /**
+     * Encode a conjunction.
+     *
+     * @param strings Maps a string to its index in the caller's string table.
+     */
+    public static void write(List<? extends NodeQueryParser.QueryExpr> queries,
+                             ToIntFunction<String> strings, DataOutput out) throws IOException {
+        out.writeShort(queries.size());
+        for (NodeQueryParser.QueryExpr query : queries) {
+            writeQuery(query, strings, out);
+        }
+    }
+
+    private static void writeQuery(NodeQueryParser.QueryExpr expr, ToIntFunction<String> strings,
+                                   DataOutput out) throws IOException {
+        if (expr instanceof NodeQueryParser.AttributeExpr) {
+            NodeQueryParser.AttributeExpr a = (NodeQueryParser.AttributeExpr) expr;
+            out.writeByte(OP_ATTR);
+            out.writeByte(a.attribute.ordinal());
+            out.writeByte(a.matcher.mode.ordinal());
+            out.writeInt(a.matcher.value != null ? strings.applyAsInt(a.matcher.value) : -1);
+        } else if (expr instanceof NodeQueryParser.StructuralExpr) {
+            NodeQueryParser.StructuralExpr s = (NodeQueryParser.StructuralExpr) expr;
+            out.writeByte(OP_RELATION);
+            out.writeByte(s.relation.ordinal());
+            write(s.conditions, strings, out);
+        } else if (expr instanceof NodeQueryParser.IndexExpr) {
+            NodeQueryParser.IndexExpr i = (NodeQueryParser.IndexExpr) expr;
+            out.writeByte(OP_POSITION);
+            out.writeByte(i.kind.ordinal());
+            out.writeInt(i.index);
+        } else if (expr instanceof NodeQueryParser.CheckedExpr) {
+            out.writeByte(OP_CHECKED);
+            out.writeByte(((NodeQueryParser.CheckedExpr) expr).checked ? 1 : 0);
+        } else {
+            throw new IllegalStateException("Unhandled query node: " + expr);
+        }
+    }
+
+    /**
+     * Decode a conjunction written by {@link #write} and compile it, starting at the buffer's
+     * position and leaving the position just past it.
+     *
+     * @param strings Resolves string table indexes.
+     * @throws IllegalArgumentException if the code is malformed or a stored regex is invalid.
+     */
+    public static CompiledQuery read(ByteBuffer in, IntFunction<String> strings) {
+        List<NodeQueryParser.QueryExpr> ast = readList(in, strings);
+        NodeQuery[] queries = new NodeQuery[ast.size()];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = NodeQueryCompiler.toNodeQuery(ast.get(i));
+        }
+        return new CompiledQuery(ast.toString(), ast, queries);
+    }
+
+    private static List<NodeQueryParser.QueryExpr> readList(ByteBuffer in, IntFunction<String> strings) {
+        int count = in.getShort() & 0xFFFF;
+        List<NodeQueryParser.QueryExpr> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readQuery(in, strings));
+        }
+        return list;
+    }
+
+    private static NodeQueryParser.QueryExpr readQuery(ByteBuffer in, IntFunction<String> strings) {
+        int op = in.get();
+        switch (op) {
+            case OP_ATTR: {
+                NodeQueryParser.Attribute attribute = enumAt(NodeQueryParser.Attribute.values(), in.get());
+                NodeQueryParser.MatchMode mode = enumAt(NodeQueryParser.MatchMode.values(), in.get());
+                int value = in.getInt();
+                return new NodeQueryParser.AttributeExpr(-1, attribute,
+                        new NodeQueryParser.MatcherExpr(mode, value >= 0 ? strings.apply(value) : null));
+            }
+            case OP_RELATION: {
+                NodeQueryParser.Relation relation = enumAt(NodeQueryParser.Relation.values(), in.get());
+                return new NodeQueryParser.StructuralExpr(-1, relation, readList(in, strings));
+            }
+            case OP_POSITION: {
+                NodeQueryParser.Position kind = enumAt(NodeQueryParser.Position.values(), in.get());
+                return new NodeQueryParser.IndexExpr(-1, kind, in.getInt());
+            }
+            case OP_CHECKED:
+                return new NodeQueryParser.CheckedExpr(-1, in.get() != 0);
+            default:
+                throw new IllegalArgumentException("bad opcode " + op + " at byte " + (in.position() - 1));
+        }
+    }
+
+    private static <E> E enumAt(E[] values, int ordinal) {
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IllegalArgumentException("bad enum ordinal " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
@@ -0,0 +1,183 @@
+package org.labcitrus.avagenclient.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Evaluation order for a conjunction of {@link NodeQuery}s over one {@link UiSnapshot}.
+ *
+ * <p>The server emits queries in whatever order the generator wrote them, so an expensive
+ * {@code hasDescendant(...)} can run before a {@code withId(...)} that leaves two nodes. The plan
+ * sorts the conjunction by:</p>
+ * <pre>
+ *   1. cost class      INDEXED &lt; SCAN &lt; POSITIONAL &lt; STRUCTURAL &lt; DESCENDANT
+ *   2. selectivity     index cardinality / snapshot size, or a per-class default
+ *   3. original order  (stable sort, so equal queries keep the generator's order)
+ * </pre>
+ * An indexed query whose matcher the index cannot answer (e.g. regex) is planned as a scan.
+ * Evaluation stops as soon as the survivor set is empty.
+ */
+final class QueryPlan {
+
+    /** Selectivity guesses for queries without index statistics, by cost class. */
+    private static final double SCAN_SELECTIVITY = 0.25;
+    private static final double POSITIONAL_SELECTIVITY = 0.2;
+    private static final double STRUCTURAL_SELECTIVITY = 0.5;
+
+    private static final Comparator<Step> STEP_ORDER = Comparator
+            .comparing((Step step) -> step.costClass)
+            .thenComparingDouble(step -> step.selectivity);
+
+    private final UiSnapshot snapshot;
+    private final List<Step> steps;
+
+    /**
+     * One query of the conjunction with the statistics used to order it.
+     */
+    private static final class Step {
+        final NodeQuery query;
+        final NodeQuery.CostClass costClass;
+        final double selectivity;
+        final BitSet hint; // Index candidates, null if the index cannot answer the query.
+
+        Step(NodeQuery query, NodeQuery.CostClass costClass, double selectivity, BitSet hint) {
+            this.query = query;
+            this.costClass = costClass;
+            this.selectivity = selectivity;
+            this.hint = hint;
+        }
+
+        @Override
+        public String toString() {
+            return query + " cost=" + costClass + String.format(" sel=%.3f", selectivity);
+        }
+    }
+
+    private QueryPlan(UiSnapshot snapshot, List<Step> steps) {
+        this.snapshot = snapshot;
+        this.steps = steps;
+    }
+
+    /**
+     * Orders the non-null queries of {@code queries} for evaluation against {@code snapshot}.
+     * Index lookups are done once here and reused by {@link #evaluate(BitSet)}.
+     */
+    static QueryPlan of(NodeQuery[] queries, UiSnapshot snapshot) {
+        List<Step> steps = new ArrayList<>(queries.length);
+        int size = Math.max(1, snapshot.size());
+        for (NodeQuery query : queries) {
+            if (query == null) continue;
+            NodeQuery.CostClass costClass = query.getCostClass();
+            BitSet hint = costClass == NodeQuery.CostClass.INDEXED ? query.indexCandidates(snapshot) : null;
+            double selectivity;
+            if (hint != null) {
+                selectivity = hint.cardinality() / (double) size;
+            } else {
+                if (costClass == NodeQuery.CostClass.INDEXED) {
+                    costClass = NodeQuery.CostClass.SCAN;
+                }
+                selectivity = defaultSelectivity(costClass);
+            }
+            steps.add(new Step(query, costClass, selectivity, hint));
+        }
+        steps.sort(STEP_ORDER);
+        return new QueryPlan(snapshot, steps);
+    }
+
+    /**
+     * Static, snapshot-independent ordering by cost class, for per-node evaluation of the inner
+     * conditions of structural queries.
+     */
+    static NodeQuery[] byCostClass(NodeQuery[] queries) {
+        List<NodeQuery> ordered = new ArrayList<>(queries.length);
+        for (NodeQuery query : queries) {
+            if (query != null) ordered.add(query);
+        }
+        ordered.sort(Comparator.comparing(NodeQuery::getCostClass));
+        return ordered.toArray(new NodeQuery[0]);
+    }
+
+    /**
+     * Computes the nodes matching every query, each step only seeing the previous survivors.
+     *
+     * @param candidates Nodes to consider, or null for all nodes.
+     */
+    BitSet evaluate(BitSet candidates) {
+        BitSet result = candidates;
+        for (Step step : steps) {
+            // Evaluation narrows the hint in place, so hand it a copy.
+            BitSet hint = step.hint != null ? (BitSet) step.hint.clone() : null;
+            result = step.query.evaluate(snapshot, result, hint);
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        if (result == null) {
+            // No (non-null) queries: everything matches.
+            result = new BitSet(snapshot.size());
+            result.set(0, snapshot.size());
+        }
+        return result;
+    }
+
+    /**
+     * Intersection of the index candidates of every indexed query, or null if there is none.
+     */
+    BitSet indexCandidates() {
+        BitSet result = null;
+        for (Step step : steps) {
+            if (step.hint == null) continue;
+            if (result == null) {
+                result = (BitSet) step.hint.clone();
+            } else {
+                result.and(step.hint);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * True if {@code node} matches every query, testing the cheapest ones first.
+     */
+    boolean matches(int node) {
+        for (Step step : steps) {
+            if (!step.query.matches(snapshot, node)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True if any query involves a descendant search.
+     */
+    boolean hasDescendantQuery() {
+        for (Step step : steps) {
+            if (step.query.isDescendantQuery()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Logs the chosen order.
+     */
+    void log(String caller) {
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> caller + ": query plan " + steps);
+        }
+    }
+
+    private static double defaultSelectivity(NodeQuery.CostClass costClass) {
+        switch (costClass) {
+            case SCAN:       return SCAN_SELECTIVITY;
+            case POSITIONAL: return POSITIONAL_SELECTIVITY;
+            default:         return STRUCTURAL_SELECTIVITY;
+        }
+    }
+}
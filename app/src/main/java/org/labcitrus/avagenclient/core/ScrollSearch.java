@@ -0,0 +1,242 @@
+package org.labcitrus.avagenclient.core;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Scrolls a container until a target appears, checking only the rows each scroll revealed:
+ *
+ * <pre>
+ *   snapshot ── target? ──yes──→ found (0 scrolls)
+ *      │no
+ *      ▼
+ *   scroll page ──refused / no TYPE_VIEW_SCROLLED──→ end of content
+ *      │
+ *   snapshot ── no new rows? ──→ end of content
+ *      │
+ *   test the new rows (and the container's ancestors) ── target? ──yes──→ found
+ *      │no
+ *      └──→ next page, until the scroll or time budget runs out
+ * </pre>
+ *
+ * <p>A row is a direct child of the container. It counts as already seen when an earlier
+ * snapshot had a row with the same content hash (class, id, text and description over its
+ * subtree), so rows that merely moved up the screen are not tested again. Nodes outside the
+ * container do not change when it scrolls and are only tested in the first snapshot; its
+ * ancestors are always re-tested, which keeps structural queries such as {@code withChild(...)}
+ * correct. If the container cannot be located in a new snapshot, that snapshot is tested in
+ * full.</p>
+ */
+public final class ScrollSearch {
+
+    private static final String TAG = "ScrollSearch";
+
+    /** Quiet window after a confirmed scroll, before the revealed rows are read. */
+    private static final long SCROLL_QUIET_MS = 150L;
+    private static final long SCROLL_SETTLE_CAP_MS = 1000L;
+
+    private final Supplier<UiSnapshot> capture;
+    private final NodeScroller scroller;
+    private final UiIdleDetector idleDetector;
+    private final LongSupplier clock;
+
+    public ScrollSearch(NodeWaiter nodeWaiter, NodeScroller scroller, UiIdleDetector idleDetector) {
+        this(nodeWaiter::captureNow, scroller, idleDetector, SystemClock::uptimeMillis);
+    }
+
+    /**
+     * @param capture Snapshot of the active window, or null if there is none.
+     * @param clock   Milliseconds on the {@link SystemClock#uptimeMillis()} time base.
+     */
+    ScrollSearch(Supplier<UiSnapshot> capture, NodeScroller scroller, UiIdleDetector idleDetector,
+                 LongSupplier clock) {
+        this.capture = capture;
+        this.scroller = scroller;
+        this.idleDetector = idleDetector;
+        this.clock = clock;
+    }
+
+    /** Outcome of {@link #scrollUntilFound}. */
+    public static final class Outcome {
+        private final UiSnapshot snapshot;
+        private final int match;
+        private final int scrolls;
+        private final String stopReason;
+
+        private Outcome(UiSnapshot snapshot, int match, int scrolls, String stopReason) {
+            this.snapshot = snapshot;
+            this.match = match;
+            this.scrolls = scrolls;
+            this.stopReason = stopReason;
+        }
+
+        public boolean isFound() {
+            return match != UiSnapshot.NO_NODE;
+        }
+
+        /** The target, or null if it was not found. */
+        public AccessibilityNodeInfo getNode() {
+            return isFound() ? snapshot.getNode(match) : null;
+        }
+
+        /** Pages scrolled (0 if the target was already on screen). */
+        public int getScrolls() {
+            return scrolls;
+        }
+
+        @Override
+        public String toString() {
+            return stopReason + " after " + scrolls + " scroll(s)";
+        }
+    }
+
+    /**
+     * @param container        The node to scroll.
+     * @param forward          Scroll direction.
+     * @param maxScrolls       Scroll budget.
+     * @param deadlineUptimeMs Time budget, as {@link SystemClock#uptimeMillis()}.
+     * @param queries          The target.
+     */
+    public Outcome scrollUntilFound(AccessibilityNodeInfo container, boolean forward, int maxScrolls,
+                                    long deadlineUptimeMs, NodeQuery... queries) {
+        UiSnapshot snapshot = capture.get();
+        if (snapshot == null) {
+            return new Outcome(null, UiSnapshot.NO_NODE, 0, "no active window");
+        }
+        int match = NodeFinder.findFirst(snapshot, queries);
+        if (match != UiSnapshot.NO_NODE) {
+            return new Outcome(snapshot, match, 0, "already on screen");
+        }
+
+        Rect containerBounds = new Rect();
+        container.getBoundsInScreen(containerBounds);
+        String containerClass = container.getClassName() != null ? container.getClassName().toString() : null;
+
+        Set<Long> seenRows = new HashSet<>();
+        int containerIndex = locate(snapshot, containerClass, containerBounds);
+        if (containerIndex != UiSnapshot.NO_NODE) {
+            long[] hashes = subtreeHashes(snapshot);
+            for (int row = snapshot.getFirstChild(containerIndex); row != UiSnapshot.NO_NODE;
+                 row = snapshot.getNextSibling(row)) {
+                seenRows.add(hashes[row]);
+            }
+        }
+
+        int scrolls = 0;
+        while (true) {
+            if (scrolls >= maxScrolls) {
+                return new Outcome(snapshot, UiSnapshot.NO_NODE, scrolls, "scroll budget used up");
+            }
+            if (clock.getAsLong() >= deadlineUptimeMs) {
+                return new Outcome(snapshot, UiSnapshot.NO_NODE, scrolls, "time budget used up");
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return new Outcome(snapshot, UiSnapshot.NO_NODE, scrolls, "interrupted");
+            }
+
+            if (!scroller.scrollBy(container, forward)) {
+                return new Outcome(snapshot, UiSnapshot.NO_NODE, scrolls, "end of content");
+            }
+            scrolls++;
+            idleDetector.awaitIdle(SCROLL_QUIET_MS, SCROLL_SETTLE_CAP_MS);
+
+            UiSnapshot next = capture.get();
+            if (next == null) {
+                return new Outcome(snapshot, UiSnapshot.NO_NODE, scrolls, "no active window");
+            }
+            snapshot = next;
+
+            containerIndex = locate(snapshot, containerClass, containerBounds);
+            if (containerIndex == UiSnapshot.NO_NODE) {
+                // The screen changed shape; fall back to testing everything.
+                match = NodeFinder.findFirst(snapshot, queries);
+                Log.i(TAG, "scrollUntilFound: scroll " + scrolls + ", container not found, full scan");
+                if (match != UiSnapshot.NO_NODE) {
+                    return new Outcome(snapshot, match, scrolls, "found");
+                }
+                continue;
+            }
+
+            BitSet revealed = new BitSet(snapshot.size());
+            for (int a = containerIndex; a != UiSnapshot.NO_NODE; a = snapshot.getParent(a)) {
+                revealed.set(a);
+            }
+            long[] hashes = subtreeHashes(snapshot);
+            int newRows = 0;
+            for (int row = snapshot.getFirstChild(containerIndex); row != UiSnapshot.NO_NODE;
+                 row = snapshot.getNextSibling(row)) {
+                if (seenRows.add(hashes[row])) {
+                    newRows++;
+                    revealed.set(row, subtreeEnd(snapshot, row));
+                }
+            }
+            if (newRows == 0) {
+                return new Outcome(snapshot, UiSnapshot.NO_NODE, scrolls, "content stopped changing");
+            }
+
+            match = NodeFinder.findFirstIn(snapshot, revealed, queries);
+            Log.i(TAG, "scrollUntilFound: scroll " + scrolls + " revealed " + newRows + " row(s), tested "
+                    + revealed.cardinality() + "/" + snapshot.size() + " node(s)"
+                    + (match != UiSnapshot.NO_NODE ? ", target found" : ""));
+            if (match != UiSnapshot.NO_NODE) {
+                return new Outcome(snapshot, match, scrolls, "found");
+            }
+        }
+    }
+
+    /** The scrollable node with the container's class and bounds, or NO_NODE. */
+    private static int locate(UiSnapshot snapshot, String className, Rect bounds) {
+        for (int i = 0; i < snapshot.size(); i++) {
+            if (!snapshot.hasFlag(i, UiSnapshot.FLAG_SCROLLABLE)) {
+                continue;
+            }
+            if (snapshot.hasBounds(i, bounds) && (className == null || className.equals(snapshot.getClassName(i)))) {
+                return i;
+            }
+        }
+        return UiSnapshot.NO_NODE;
+    }
+
+    /** One past the last node of {@code node}'s subtree (pre-order keeps subtrees contiguous). */
+    private static int subtreeEnd(UiSnapshot snapshot, int node) {
+        int depth = snapshot.getDepth(node);
+        int end = node + 1;
+        while (end < snapshot.size() && snapshot.getDepth(end) > depth) {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Content hash of every node's subtree. Nodes are in pre-order, so a reverse pass sees every
+     * child before its parent.
+     */
+    static long[] subtreeHashes(UiSnapshot snapshot) {
+        int n = snapshot.size();
+        long[] hashes = new long[n];
+        for (int i = n - 1; i >= 0; i--) {
+            long h = 1125899906842597L;
+            h = mix(h, snapshot.getClassName(i));
+            h = mix(h, snapshot.getViewId(i));
+            h = mix(h, snapshot.getText(i));
+            h = mix(h, snapshot.getContentDescription(i));
+            for (int c = snapshot.getFirstChild(i); c != UiSnapshot.NO_NODE; c = snapshot.getNextSibling(c)) {
+                h = 31 * h + hashes[c];
+            }
+            hashes[i] = h;
+        }
+        return hashes;
+    }
+
+    private static long mix(long h, String s) {
+        return 31 * h + (s != null ? s.hashCode() : 0);
+    }
+}
@@ -4,36 +4,63 @@ import java.util.Objects;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 
+/**
+ * String predicate used by node queries. The case-insensitive matchers fold the needle once and
+ * compare it character by character against a {@link CharSequence}, the way
+ * {@link String#regionMatches(boolean, int, String, int, int)} does, so a test never allocates.
+ */
 public final class StringMatcher implements Predicate<String> {
-    private final Predicate<String> predicate;
+
+    /** The matching strategy, exposed so indexes can answer a matcher without scanning. */
+    public enum Kind {
+        EQUALS_IGNORE_CASE,
+        CONTAINS_IGNORE_CASE,
+        CONTAINS,
+        STARTS_WITH_IGNORE_CASE,
+        ENDS_WITH_IGNORE_CASE,
+        REGEX
+    }
+
+    private final Predicate<CharSequence> predicate;
     private final String label;
+    private final Kind kind;
+    private final String needle;
 
-    private StringMatcher(Predicate<String> predicate, String label) {
+    private StringMatcher(Predicate<CharSequence> predicate, String label, Kind kind, String needle) {
         this.predicate = predicate;
         this.label = label;
+        this.kind = kind;
+        this.needle = needle;
     }
 
-    private static String s(String v) { return v == null ? null : v; }
-
     @Override
     public boolean test(String value) { return value != null && predicate.test(value); }
 
+    /** Same as {@link #test(String)} without converting the value to a String first. */
+    public boolean matches(CharSequence value) { return value != null && predicate.test(value); }
+
     @Override
     public String toString() { return label; }
 
+    public Kind getKind() { return kind; }
+
+    /** The literal this matcher looks for (the pattern source for REGEX). */
+    public String getNeedle() { return needle; }
+
     // ---- Factories ----
 
     public static StringMatcher equalsIgnoreCase(String needle) {
         String n = needle == null ? "" : needle;
-        return new StringMatcher(v -> v.equalsIgnoreCase(n),
-                "equalsIgnoreCase(\"" + esc(n) + "\")");
+        String folded = fold(n);
+        return new StringMatcher(v -> v.length() == folded.length() && regionMatchesFolded(v, 0, folded),
+                "equalsIgnoreCase(\"" + esc(n) + "\")", Kind.EQUALS_IGNORE_CASE, n);
     }
 
     public static StringMatcher containsIgnoreCase(String needle) {
         String n = needle == null ? "" : needle;
-        String low = n.toLowerCase();
-        return new StringMatcher(v -> v.toLowerCase().contains(low),
-                "containsIgnoreCase(\"" + esc(n) + "\")");
+        String folded = fold(n);
+        return new StringMatcher(v -> indexOfFolded(v, folded) >= 0,
+                "containsIgnoreCase(\"" + esc(n) + "\")", Kind.CONTAINS_IGNORE_CASE, n);
     }
 
     // Alias to match your DSL name exactly
@@ -45,34 +72,114 @@ public final class StringMatcher implements Predicate<String> {
     public static StringMatcher containsString(String needle) {
         String n = needle == null ? "" : needle;
         return new StringMatcher(
-                v -> v != null && v.contains(n),
-                "containsString(\"" + esc(n) + "\")"
+                v -> v != null && indexOf(v, n) >= 0,
+                "containsString(\"" + esc(n) + "\")",
+                Kind.CONTAINS, n
         );
     }
 
     public static StringMatcher startsWithIgnoreCase(String needle) {
         String n = Objects.toString(needle, "");
-        String low = n.toLowerCase();
-        return new StringMatcher(v -> v.toLowerCase().startsWith(low),
-                "startsWithIgnoreCase(\"" + esc(n) + "\")");
+        String folded = fold(n);
+        return new StringMatcher(v -> v.length() >= folded.length() && regionMatchesFolded(v, 0, folded),
+                "startsWithIgnoreCase(\"" + esc(n) + "\")", Kind.STARTS_WITH_IGNORE_CASE, n);
     }
 
     public static StringMatcher endsWithIgnoreCase(String needle) {
         String n = Objects.toString(needle, "");
-        String low = n.toLowerCase();
-        return new StringMatcher(v -> v.toLowerCase().endsWith(low),
-                "endsWithIgnoreCase(\"" + esc(n) + "\")");
+        String folded = fold(n);
+        return new StringMatcher(v -> v.length() >= folded.length()
+                        && regionMatchesFolded(v, v.length() - folded.length(), folded),
+                "endsWithIgnoreCase(\"" + esc(n) + "\")", Kind.ENDS_WITH_IGNORE_CASE, n);
     }
 
     public static StringMatcher regex(String pattern) {
         Pattern p = Pattern.compile(Objects.toString(pattern, ""), Pattern.DOTALL);
-        return new StringMatcher(v -> p.matcher(v).find(), "regex(\"" + esc(pattern) + "\")");
+        return new StringMatcher(v -> p.matcher(v).find(), "regex(\"" + esc(pattern) + "\")",
+                Kind.REGEX, p.pattern());
     }
 
     public static StringMatcher regex(Pattern pattern) {
         Pattern p = pattern == null ? Pattern.compile("") : pattern;
-        return new StringMatcher(v -> p.matcher(v).find(), "regex(" + p + ")");
+        return new StringMatcher(v -> p.matcher(v).find(), "regex(" + p + ")", Kind.REGEX, p.pattern());
     }
 
     private static String esc(String s) { return s == null ? "" : s.replace("\"", "\\\""); }
+
+    // ---- Case folding ----
+
+    /**
+     * Folds one character the way {@code String.equalsIgnoreCase} compares them, with an ASCII
+     * fast path.
+     */
+    static char fold(char c) {
+        if (c < 0x80) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Folds every character of {@code s}. Keeps the length, so folded offsets line up with the
+     * original; returns {@code s} itself when nothing changes.
+     */
+    static String fold(String s) {
+        if (s == null) return null;
+        char[] out = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            char f = fold(c);
+            if (f != c) {
+                if (out == null) out = s.toCharArray();
+                out[i] = f;
+            }
+        }
+        return out == null ? s : new String(out);
+    }
+
+    /**
+     * True if {@code value} holds {@code folded} at {@code offset}, ignoring case.
+     * The caller guarantees the region fits.
+     */
+    private static boolean regionMatchesFolded(CharSequence value, int offset, String folded) {
+        for (int i = 0; i < folded.length(); i++) {
+            if (fold(value.charAt(offset + i)) != folded.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * First offset of {@code folded} in {@code value} ignoring case, or -1.
+     */
+    private static int indexOfFolded(CharSequence value, String folded) {
+        int last = value.length() - folded.length();
+        if (folded.isEmpty()) return last >= 0 ? 0 : -1;
+        char first = folded.charAt(0);
+        for (int i = 0; i <= last; i++) {
+            if (fold(value.charAt(i)) == first && regionMatchesFolded(value, i, folded)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * First offset of {@code needle} in {@code value}, or -1. Case-sensitive.
+     */
+    private static int indexOf(CharSequence value, String needle) {
+        if (value instanceof String) {
+            return ((String) value).indexOf(needle);
+        }
+        int last = value.length() - needle.length();
+        outer:
+        for (int i = 0; i <= last; i++) {
+            for (int j = 0; j < needle.length(); j++) {
+                if (value.charAt(i + j) != needle.charAt(j)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,349 @@
+package org.labcitrus.avagenclient.core;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of {@link StringMatcher}s compiled into one Aho–Corasick automaton, so many needles are
+ * resolved in a single pass over a snapshot instead of one {@link NodeFinder#findNodes} scan each.
+ *
+ * <pre>{@code
+ * StringMatcherSet labels = StringMatcherSet.of(
+ *         StringMatcher.containsIgnoreCase("Amount"),
+ *         StringMatcher.equalsIgnoreCase("Pay"),
+ *         StringMatcher.containsIgnoreCase("Recipient"));
+ * StringMatcherSet.Matches m = labels.match(snapshot,
+ *         UiSnapshotIndex.Field.TEXT, UiSnapshotIndex.Field.CONTENT_DESCRIPTION);
+ * int payButton = m.firstNode(1);        // or UiSnapshot.NO_NODE
+ * boolean onPaymentScreen = m.matchedCount() == labels.size();
+ * }</pre>
+ *
+ * <p>Needles are folded the same way as the single matchers, and each occurrence is checked
+ * against its matcher's kind (anywhere, at the start, at the end, or the whole value). The
+ * case-sensitive {@code containsString} is found case-insensitively and then confirmed by the
+ * matcher itself. Regex and empty needles cannot go into the automaton and are tested directly
+ * on each value.</p>
+ */
+public final class StringMatcherSet {
+
+    private static final int ROOT = 0;
+    private static final int ASCII = 128;
+
+    private final StringMatcher[] matchers;
+
+    // pattern id → matchers sharing that folded needle.
+    private final int[][] patternMatchers;
+    private final int[] patternLength;
+    private final int[] directMatchers;
+
+    // Automaton. ASCII transitions are a complete table (failure links folded in);
+    // other characters follow trie edges and failure links.
+    private final int[] asciiNext;
+    private final Map<Long, Integer> otherEdges;
+    private final int[] fail;
+    private final int[] patternAt;   // pattern ending exactly at a state, or -1
+    private final int[] outputLink;  // nearest failure ancestor with a pattern, or -1
+
+    private StringMatcherSet(StringMatcher[] matchers, int[][] patternMatchers,
+                             int[] patternLength, int[] directMatchers, int[] asciiNext,
+                             Map<Long, Integer> otherEdges, int[] fail, int[] patternAt, int[] outputLink) {
+        this.matchers = matchers;
+        this.patternMatchers = patternMatchers;
+        this.patternLength = patternLength;
+        this.directMatchers = directMatchers;
+        this.asciiNext = asciiNext;
+        this.otherEdges = otherEdges;
+        this.fail = fail;
+        this.patternAt = patternAt;
+        this.outputLink = outputLink;
+    }
+
+    /**
+     * Compile {@code matchers} into one set. Matcher {@code i} is reported under index {@code i}.
+     */
+    public static StringMatcherSet of(StringMatcher... matchers) {
+        return of(Arrays.asList(matchers));
+    }
+
+    /**
+     * Compile {@code matchers} into one set. Matcher {@code i} is reported under index {@code i}.
+     */
+    public static StringMatcherSet of(List<StringMatcher> matchers) {
+        StringMatcher[] all = matchers.toArray(new StringMatcher[0]);
+        Map<String, Integer> patternIds = new HashMap<>();
+        List<String> patterns = new ArrayList<>();
+        List<List<Integer>> sharing = new ArrayList<>();
+        List<Integer> direct = new ArrayList<>();
+
+        for (int m = 0; m < all.length; m++) {
+            StringMatcher matcher = all[m];
+            if (matcher == null) {
+                throw new IllegalArgumentException("null matcher at " + m);
+            }
+            String needle = matcher.getNeedle();
+            if (matcher.getKind() == StringMatcher.Kind.REGEX || needle == null || needle.isEmpty()) {
+                direct.add(m);
+                continue;
+            }
+            String folded = StringMatcher.fold(needle);
+            Integer id = patternIds.get(folded);
+            if (id == null) {
+                id = patterns.size();
+                patternIds.put(folded, id);
+                patterns.add(folded);
+                sharing.add(new ArrayList<>());
+            }
+            sharing.get(id).add(m);
+        }
+
+        int[][] patternMatchers = new int[patterns.size()][];
+        int[] patternLength = new int[patterns.size()];
+        for (int p = 0; p < patterns.size(); p++) {
+            patternMatchers[p] = toArray(sharing.get(p));
+            patternLength[p] = patterns.get(p).length();
+        }
+
+        // ---- region: trie ----
+        int maxStates = 1;
+        for (String pattern : patterns) maxStates += pattern.length();
+        int[] asciiTrie = new int[maxStates * ASCII];
+        Arrays.fill(asciiTrie, -1);
+        Map<Long, Integer> otherEdges = new HashMap<>();
+        int[] patternAt = new int[maxStates];
+        Arrays.fill(patternAt, -1);
+        int states = 1;
+
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            int state = ROOT;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                int next = edge(asciiTrie, otherEdges, state, c);
+                if (next < 0) {
+                    next = states++;
+                    if (c < ASCII) {
+                        asciiTrie[state * ASCII + c] = next;
+                    } else {
+                        otherEdges.put(key(state, c), next);
+                    }
+                }
+                state = next;
+            }
+            patternAt[state] = p;
+        }
+
+        // ---- region: failure links (breadth-first) ----
+        int[] fail = new int[states];
+        int[] outputLink = new int[states];
+        Arrays.fill(outputLink, -1);
+        int[] asciiNext = Arrays.copyOf(asciiTrie, states * ASCII);
+        for (int c = 0; c < ASCII; c++) {
+            if (asciiNext[c] < 0) asciiNext[c] = ROOT;
+        }
+
+        Map<Integer, List<Map.Entry<Character, Integer>>> otherChildren = new HashMap<>();
+        for (Map.Entry<Long, Integer> e : otherEdges.entrySet()) {
+            int from = (int) (e.getKey() >>> 16);
+            char c = (char) (e.getKey() & 0xFFFF);
+            otherChildren.computeIfAbsent(from, k -> new ArrayList<>())
+                    .add(new HashMap.SimpleEntry<>(c, e.getValue()));
+        }
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        enqueueChildren(queue, asciiTrie, otherChildren, ROOT);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int f = fail[state];
+            outputLink[state] = patternAt[f] >= 0 ? f : outputLink[f];
+
+            for (int c = 0; c < ASCII; c++) {
+                int child = asciiTrie[state * ASCII + c];
+                if (child >= 0) {
+                    fail[child] = state == ROOT ? ROOT : asciiNext[f * ASCII + c];
+                    queue.add(child);
+                } else {
+                    asciiNext[state * ASCII + c] = asciiNext[f * ASCII + c];
+                }
+            }
+            List<Map.Entry<Character, Integer>> others = otherChildren.get(state);
+            if (others != null) {
+                for (Map.Entry<Character, Integer> e : others) {
+                    int child = e.getValue();
+                    fail[child] = state == ROOT ? ROOT : follow(otherEdges, fail, f, e.getKey());
+                    queue.add(child);
+                }
+            }
+        }
+
+        return new StringMatcherSet(all, patternMatchers, patternLength, toArray(direct),
+                asciiNext, otherEdges, fail, patternAt, outputLink);
+    }
+
+    /** Number of matchers in the set. */
+    public int size() {
+        return matchers.length;
+    }
+
+    /** The matcher reported under {@code index}. */
+    public StringMatcher get(int index) {
+        return matchers[index];
+    }
+
+    /**
+     * Scan every node of {@code snapshot} once and record, per matcher, the nodes for which any of
+     * {@code fields} satisfies it.
+     */
+    public Matches match(UiSnapshot snapshot, UiSnapshotIndex.Field... fields) {
+        BitSet[] nodes = new BitSet[matchers.length];
+        for (int m = 0; m < nodes.length; m++) {
+            nodes[m] = new BitSet(snapshot.size());
+        }
+        for (int node = 0; node < snapshot.size(); node++) {
+            for (UiSnapshotIndex.Field field : fields) {
+                String value = value(snapshot, node, field);
+                if (value != null) {
+                    scan(value, node, nodes);
+                }
+            }
+        }
+        Matches result = new Matches(nodes);
+        if (MatchLog.isLoggable(Log.DEBUG)) {
+            MatchLog.d(() -> "StringMatcherSet: " + result.matchedCount() + "/" + matchers.length
+                    + " matcher(s) hit over " + snapshot.size() + " node(s)");
+        }
+        return result;
+    }
+
+    /**
+     * Run the automaton over one value and mark {@code node} for every satisfied matcher.
+     */
+    private void scan(CharSequence value, int node, BitSet[] nodes) {
+        int length = value.length();
+        int state = ROOT;
+        for (int i = 0; i < length; i++) {
+            char c = StringMatcher.fold(value.charAt(i));
+            state = c < ASCII ? asciiNext[state * ASCII + c] : step(state, c);
+            int out = patternAt[state] >= 0 ? state : outputLink[state];
+            for (; out >= 0; out = outputLink[out]) {
+                int pattern = patternAt[out];
+                int start = i + 1 - patternLength[pattern];
+                for (int m : patternMatchers[pattern]) {
+                    if (!nodes[m].get(node) && accepts(m, value, start, i + 1)) {
+                        nodes[m].set(node);
+                    }
+                }
+            }
+        }
+        for (int m : directMatchers) {
+            if (!nodes[m].get(node) && matchers[m].matches(value)) {
+                nodes[m].set(node);
+            }
+        }
+    }
+
+    /**
+     * Whether an occurrence of matcher {@code m}'s needle at [start, end) satisfies its kind.
+     */
+    private boolean accepts(int m, CharSequence value, int start, int end) {
+        switch (matchers[m].getKind()) {
+            case EQUALS_IGNORE_CASE:      return start == 0 && end == value.length();
+            case STARTS_WITH_IGNORE_CASE: return start == 0;
+            case ENDS_WITH_IGNORE_CASE:   return end == value.length();
+            case CONTAINS:                return matchers[m].matches(value);
+            default:                      return true;
+        }
+    }
+
+    private int step(int state, char c) {
+        return follow(otherEdges, fail, state, c);
+    }
+
+    private static int follow(Map<Long, Integer> otherEdges, int[] fail, int state, char c) {
+        while (true) {
+            Integer next = otherEdges.get(key(state, c));
+            if (next != null) return next;
+            if (state == ROOT) return ROOT;
+            state = fail[state];
+        }
+    }
+
+    private static int edge(int[] asciiTrie, Map<Long, Integer> otherEdges, int state, char c) {
+        if (c < ASCII) return asciiTrie[state * ASCII + c];
+        Integer next = otherEdges.get(key(state, c));
+        return next != null ? next : -1;
+    }
+
+    private static void enqueueChildren(ArrayDeque<Integer> queue, int[] asciiTrie,
+                                        Map<Integer, List<Map.Entry<Character, Integer>>> otherChildren,
+                                        int state) {
+        for (int c = 0; c < ASCII; c++) {
+            int child = asciiTrie[state * ASCII + c];
+            if (child >= 0) queue.add(child);
+        }
+        List<Map.Entry<Character, Integer>> others = otherChildren.get(state);
+        if (others != null) {
+            for (Map.Entry<Character, Integer> e : others) queue.add(e.getValue());
+        }
+    }
+
+    private static long key(int state, char c) {
+        return ((long) state << 16) | c;
+    }
+
+    private static String value(UiSnapshot snapshot, int node, UiSnapshotIndex.Field field) {
+        switch (field) {
+            case ID:   return snapshot.getViewId(node);
+            case TEXT: return snapshot.getText(node);
+            default:   return snapshot.getContentDescription(node);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] out = new int[list.size()];
+        for (int i = 0; i < out.length; i++) out[i] = list.get(i);
+        return out;
+    }
+
+    /**
+     * Per-matcher match sets from one {@link #match} pass, indexed like the set.
+     */
+    public static final class Matches {
+        private final BitSet[] nodes;
+
+        private Matches(BitSet[] nodes) {
+            this.nodes = nodes;
+        }
+
+        /** Nodes matched by matcher {@code index}, in document order. */
+        public int[] getNodes(int index) {
+            return nodes[index].stream().toArray();
+        }
+
+        /** First node in document order matched by matcher {@code index}, or {@link UiSnapshot#NO_NODE}. */
+        public int firstNode(int index) {
+            int node = nodes[index].nextSetBit(0);
+            return node >= 0 ? node : UiSnapshot.NO_NODE;
+        }
+
+        /** Whether matcher {@code index} matched any node. */
+        public boolean isMatched(int index) {
+            return !nodes[index].isEmpty();
+        }
+
+        /** Number of matchers that matched at least one node. */
+        public int matchedCount() {
+            int count = 0;
+            for (BitSet set : nodes) {
+                if (!set.isEmpty()) count++;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package org.labcitrus.avagenclient.core;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Tells when the foreground UI has settled after an action, from the accessibility event stream.
+ *
+ * <p>AVAGenService forwards every event to {@link #onAccessibilityEvent(AccessibilityEvent)}.
+ * Window-content, window-state and view-scrolled events from the target app count as UI
+ * activity; {@link #awaitIdle(long, long)} returns once no such event has arrived for a quiet
+ * window, or when the cap is reached:</p>
+ * <pre>
+ *   action ──┬─ev─ev──ev─────────────────┐
+ *            │               quiet window │→ idle (typically 150–400 ms)
+ *            └──────────────── max wait ──┴→ give up waiting (busy screen, animation)
+ * </pre>
+ *
+ * Events from our own package (the floating popup) are ignored so the overlay never keeps the
+ * detector busy.
+ */
+public final class UiIdleDetector {
+
+    private static final String TAG = "UiIdleDetector";
+
+    /** Default quiet window; longer than the service's 100 ms event notification timeout. */
+    public static final long DEFAULT_QUIET_WINDOW_MS = 300L;
+
+    /** Default cap on a single wait. */
+    public static final long DEFAULT_MAX_WAIT_MS = 3000L;
+
+    private final String ignoredPackage;
+    private final LongSupplier clock;
+    private final Object lock = new Object();
+
+    // Guarded by lock.
+    private long lastEventUptime;
+    private long eventCount;
+    private long scrollCount;
+    private long gapOrigin;   // start of the current wait
+    private long maxGapMs;    // longest silence before an event since gapOrigin
+
+    /**
+     * @param ignoredPackage Package whose events are not UI activity (our own), or null.
+     */
+    public UiIdleDetector(String ignoredPackage) {
+        this(ignoredPackage, SystemClock::uptimeMillis);
+    }
+
+    /**
+     * @param clock Milliseconds on the {@link SystemClock#uptimeMillis()} time base; tests pass
+     *              their own, since the Android clock is not available on the host JVM.
+     */
+    UiIdleDetector(String ignoredPackage, LongSupplier clock) {
+        this.ignoredPackage = ignoredPackage;
+        this.clock = clock;
+    }
+
+    /**
+     * Feed one accessibility event. Cheap; called on the main thread for every event.
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (event == null) return;
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                break;
+            default:
+                return;
+        }
+        CharSequence pkg = event.getPackageName();
+        if (ignoredPackage != null && pkg != null && ignoredPackage.contentEquals(pkg)) {
+            return;
+        }
+        if (event.getEventType() == AccessibilityEvent.TYPE_VIEW_SCROLLED) {
+            synchronized (lock) {
+                scrollCount++;
+            }
+        }
+        onUiActivity();
+    }
+
+    /**
+     * Record UI activity now and wake up waiters.
+     */
+    public void onUiActivity() {
+        synchronized (lock) {
+            long now = clock.getAsLong();
+            maxGapMs = Math.max(maxGapMs, now - Math.max(lastEventUptime, gapOrigin));
+            lastEventUptime = now;
+            eventCount++;
+            lock.notifyAll();
+        }
+    }
+
+    /** Total number of UI activity events seen so far. */
+    public long getEventCount() {
+        synchronized (lock) {
+            return eventCount;
+        }
+    }
+
+    /** Total number of TYPE_VIEW_SCROLLED events seen so far. */
+    public long getScrollCount() {
+        synchronized (lock) {
+            return scrollCount;
+        }
+    }
+
+    /**
+     * Block until a TYPE_VIEW_SCROLLED event newer than {@code sinceCount} (a value from
+     * {@link #getScrollCount()}) arrives, or {@code timeoutMs} passes.
+     *
+     * @return true if a view scrolled, false on timeout or interrupt.
+     */
+    public boolean awaitScroll(long sinceCount, long timeoutMs) {
+        long deadline = clock.getAsLong() + timeoutMs;
+        synchronized (lock) {
+            while (scrollCount <= sinceCount) {
+                long remaining = deadline - clock.getAsLong();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Block until an activity event newer than {@code sinceCount} (a value from
+     * {@link #getEventCount()}) arrives, or {@code timeoutMs} passes.
+     *
+     * @return true if new activity was seen, false on timeout or interrupt.
+     */
+    public boolean awaitActivity(long sinceCount, long timeoutMs) {
+        long deadline = clock.getAsLong() + timeoutMs;
+        synchronized (lock) {
+            while (eventCount <= sinceCount) {
+                long remaining = deadline - clock.getAsLong();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** What one idle wait observed, for learning how long an app takes to settle. */
+    public static final class Settle {
+        private final boolean settled;
+        private final long waitedMs;
+        private final long activityMs;
+        private final long maxGapMs;
+        private final long events;
+
+        public Settle(boolean settled, long waitedMs, long activityMs, long maxGapMs, long events) {
+            this.settled = settled;
+            this.waitedMs = waitedMs;
+            this.activityMs = activityMs;
+            this.maxGapMs = maxGapMs;
+            this.events = events;
+        }
+
+        /** False if the cap was reached or the wait was interrupted. */
+        public boolean isSettled() {
+            return settled;
+        }
+
+        /** Total time spent waiting, including the final quiet window. */
+        public long getWaitedMs() {
+            return waitedMs;
+        }
+
+        /** From the start of the wait to the last event (0 if there was none). */
+        public long getActivityMs() {
+            return activityMs;
+        }
+
+        /**
+         * Longest silence followed by another event, including the delay before the first one:
+         * a quiet window shorter than this would have ended the wait too early.
+         */
+        public long getMaxGapMs() {
+            return maxGapMs;
+        }
+
+        public long getEvents() {
+            return events;
+        }
+
+        @Override
+        public String toString() {
+            return (settled ? "settled" : "busy") + " after " + waitedMs + " ms (activity " + activityMs
+                    + " ms, max gap " + maxGapMs + " ms, " + events + " event(s))";
+        }
+    }
+
+    /**
+     * Block until no UI activity has been seen for {@code quietWindowMs}, counting from the later
+     * of the call and the last event, or until {@code maxWaitMs} has passed.
+     *
+     * @return true if the UI settled, false if the cap was reached or the thread was interrupted.
+     */
+    public boolean awaitIdle(long quietWindowMs, long maxWaitMs) {
+        return awaitSettle(quietWindowMs, maxWaitMs, null).isSettled();
+    }
+
+    /**
+     * Like {@link #awaitIdle(long, long)}, but runs {@code onActivity} on the waiting thread
+     * (outside the lock) after each burst of UI activity, so the caller can do useful work while
+     * the screen is still changing. Events that arrive while it runs trigger one more call, so the
+     * last call always follows the last event seen before the UI went idle.
+     */
+    public boolean awaitIdle(long quietWindowMs, long maxWaitMs, Runnable onActivity) {
+        return awaitSettle(quietWindowMs, maxWaitMs, onActivity).isSettled();
+    }
+
+    /**
+     * {@link #awaitIdle(long, long, Runnable)}, reporting what the wait observed. Gap tracking
+     * assumes one waiter at a time (the plan thread).
+     */
+    public Settle awaitSettle(long quietWindowMs, long maxWaitMs, Runnable onActivity) {
+        long start = clock.getAsLong();
+        long deadline = start + maxWaitMs;
+        long startCount;
+        synchronized (lock) {
+            startCount = eventCount;
+            gapOrigin = start;
+            maxGapMs = 0;
+        }
+        long handledCount = startCount;
+
+        while (true) {
+            synchronized (lock) {
+                while (true) {
+                    // Checked on every pass, including right after onActivity ran: on a screen
+                    // that never stops changing, new events are always pending by then.
+                    long now = clock.getAsLong();
+                    if (Thread.currentThread().isInterrupted()) {
+                        Log.w(TAG, "awaitIdle: interrupted");
+                        return observed(false, start, now, startCount);
+                    }
+                    boolean pending = onActivity != null && eventCount != handledCount;
+                    long quietSince = Math.max(start, lastEventUptime);
+                    long idleAt = quietSince + quietWindowMs;
+                    if (!pending && now >= idleAt) {
+                        Settle settle = observed(true, start, now, startCount);
+                        Log.i(TAG, "awaitIdle: " + settle);
+                        return settle;
+                    }
+                    if (now >= deadline) {
+                        Settle settle = observed(false, start, now, startCount);
+                        Log.i(TAG, "awaitIdle: " + settle + "; continuing");
+                        return settle;
+                    }
+                    if (pending) {
+                        break;
+                    }
+                    try {
+                        lock.wait(Math.min(idleAt, deadline) - now);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        Log.w(TAG, "awaitIdle: interrupted", e);
+                        return observed(false, start, clock.getAsLong(), startCount);
+                    }
+                }
+                handledCount = eventCount;
+            }
+            onActivity.run();
+        }
+    }
+
+    // Caller holds lock.
+    private Settle observed(boolean settled, long start, long now, long startCount) {
+        long events = eventCount - startCount;
+        long activity = events > 0 ? Math.max(0, lastEventUptime - start) : 0;
+        return new Settle(settled, now - start, activity, maxGapMs, events);
+    }
+}
@@ -0,0 +1,496 @@
+package org.labcitrus.avagenclient.core;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, flattened copy of an accessibility tree.
+ *
+ * <p>Every getter on {@link AccessibilityNodeInfo} (getText, getViewIdResourceName, getParent,
+ * getChild, ...) may be a binder round-trip into the target app. A UiSnapshot walks the tree from
+ * {@code getRootInActiveWindow()} exactly once and copies everything NodeQuery needs into primitive
+ * arrays, so query evaluation never touches the live tree again.</p>
+ *
+ * <p>Layout (all arrays are indexed by node index):</p>
+ * <pre>
+ *   parent[i], firstChild[i], nextSibling[i]   tree links ({@link #NO_NODE} when absent)
+ *   childIndex[i], depth[i], typeIndex[i]      position in the parent, distance from the root,
+ *                                              and position among same-class siblings
+ *   text[i], contentDescription[i], ...        indices into the interned string table
+ *   bounds[4*i .. 4*i+3]                       left, top, right, bottom in screen coordinates
+ *   flags[i]                                   FLAG_* bits (checked, clickable, visible, ...)
+ * </pre>
+ *
+ * <p>Nodes are stored in document (pre-)order: index 0 is the root and a node's index is always
+ * smaller than the indices of its descendants. Only the node that finally wins a query is handed
+ * back as a live AccessibilityNodeInfo via {@link #getNode(int)}.</p>
+ */
+public final class UiSnapshot {
+
+    /** Marker for "no such node" in the parent / child / sibling links. */
+    public static final int NO_NODE = -1;
+
+    /** Marker for a null string attribute. */
+    private static final int NO_STRING = -1;
+
+    // ---- flag bits ----
+    public static final int FLAG_CHECKABLE      = 1;
+    public static final int FLAG_CHECKED        = 1 << 1;
+    public static final int FLAG_CLICKABLE      = 1 << 2;
+    public static final int FLAG_LONG_CLICKABLE = 1 << 3;
+    public static final int FLAG_EDITABLE       = 1 << 4;
+    public static final int FLAG_ENABLED        = 1 << 5;
+    public static final int FLAG_FOCUSABLE      = 1 << 6;
+    public static final int FLAG_FOCUSED        = 1 << 7;
+    public static final int FLAG_SCROLLABLE     = 1 << 8;
+    public static final int FLAG_SELECTED       = 1 << 9;
+    public static final int FLAG_VISIBLE        = 1 << 10;
+
+    private final int size;
+
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] childCount;
+
+    private final int[] childIndex;
+    private final int[] depth;
+    private final int[] typeIndex;
+
+    private final String[] strings;
+    private final int[] packageName;
+    private final int[] className;
+    private final int[] text;
+    private final int[] contentDescription;
+    private final int[] viewId;
+    private final int[] simpleId;
+
+    private final int[] bounds;
+    private final int[] flags;
+
+    // Live handles captured during the walk; only read back for the winning node.
+    private final AccessibilityNodeInfo[] liveNodes;
+
+    // Attribute index, built on first use and then shared by every query on this snapshot.
+    private volatile UiSnapshotIndex index;
+
+    private UiSnapshot(Builder b) {
+        this.size = b.size;
+        this.parent = Arrays.copyOf(b.parent, size);
+        this.firstChild = Arrays.copyOf(b.firstChild, size);
+        this.nextSibling = Arrays.copyOf(b.nextSibling, size);
+        this.childCount = Arrays.copyOf(b.childCount, size);
+        this.childIndex = Arrays.copyOf(b.childIndex, size);
+        this.depth = Arrays.copyOf(b.depth, size);
+        this.typeIndex = b.computeTypeIndex();
+        this.strings = b.strings.toArray(new String[0]);
+        this.packageName = Arrays.copyOf(b.packageName, size);
+        this.className = Arrays.copyOf(b.className, size);
+        this.text = Arrays.copyOf(b.text, size);
+        this.contentDescription = Arrays.copyOf(b.contentDescription, size);
+        this.viewId = Arrays.copyOf(b.viewId, size);
+        this.simpleId = Arrays.copyOf(b.simpleId, size);
+        this.bounds = Arrays.copyOf(b.bounds, size * 4);
+        this.flags = Arrays.copyOf(b.flags, size);
+        this.liveNodes = Arrays.copyOf(b.liveNodes, size);
+    }
+
+    /**
+     * Copy the tree under {@code root} into a new snapshot.
+     * Each node's attributes are read exactly once.
+     *
+     * @param root Usually {@code service.getRootInActiveWindow()}; may be null.
+     * @return A snapshot (empty when root is null).
+     */
+    public static UiSnapshot capture(AccessibilityNodeInfo root) {
+        Builder builder = new Builder();
+        if (root == null) {
+            return builder.build();
+        }
+
+        Rect rect = new Rect();
+        Deque<AccessibilityNodeInfo> nodeStack = new ArrayDeque<>();
+        Deque<Integer> parentStack = new ArrayDeque<>();
+        Deque<Integer> childIndexStack = new ArrayDeque<>();
+        nodeStack.push(root);
+        parentStack.push(NO_NODE);
+        childIndexStack.push(NO_NODE);
+
+        while (!nodeStack.isEmpty()) {
+            AccessibilityNodeInfo node = nodeStack.pop();
+            int parentIndex = parentStack.pop();
+            int childIndex = childIndexStack.pop();
+
+            node.getBoundsInScreen(rect);
+            int index = builder.addNode(
+                    parentIndex,
+                    childIndex,
+                    node,
+                    node.getPackageName(),
+                    node.getClassName(),
+                    node.getText(),
+                    node.getContentDescription(),
+                    node.getViewIdResourceName(),
+                    rect.left, rect.top, rect.right, rect.bottom,
+                    flagsOf(node));
+
+            // Push children in reverse so they pop (and get indexed) in document order.
+            for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child != null) {
+                    nodeStack.push(child);
+                    parentStack.push(index);
+                    childIndexStack.push(i); // Position as reported by getChild(i).
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    static int flagsOf(AccessibilityNodeInfo node) {
+        int f = 0;
+        if (node.isCheckable())     f |= FLAG_CHECKABLE;
+        if (node.isChecked())       f |= FLAG_CHECKED;
+        if (node.isClickable())     f |= FLAG_CLICKABLE;
+        if (node.isLongClickable()) f |= FLAG_LONG_CLICKABLE;
+        if (node.isEditable())      f |= FLAG_EDITABLE;
+        if (node.isEnabled())       f |= FLAG_ENABLED;
+        if (node.isFocusable())     f |= FLAG_FOCUSABLE;
+        if (node.isFocused())       f |= FLAG_FOCUSED;
+        if (node.isScrollable())    f |= FLAG_SCROLLABLE;
+        if (node.isSelected())      f |= FLAG_SELECTED;
+        if (node.isVisibleToUser()) f |= FLAG_VISIBLE;
+        return f;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: accessors
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of nodes in the snapshot. */
+    public int size() {
+        return size;
+    }
+
+    /** Index of the root node, or {@link #NO_NODE} for an empty snapshot. */
+    public int getRoot() {
+        return size > 0 ? 0 : NO_NODE;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getNextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    /** Number of children captured under the node. */
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+
+    /**
+     * Position of the node within its parent, as passed to {@code parent.getChild(i)},
+     * or {@link #NO_NODE} for the root.
+     */
+    public int getChildIndex(int node) {
+        return childIndex[node];
+    }
+
+    /** Distance from the root; the root has depth 0. */
+    public int getDepth(int node) {
+        return depth[node];
+    }
+
+    /**
+     * Position of the node among its siblings with the same class name (0-based),
+     * or {@link #NO_NODE} for the root.
+     */
+    public int getIndexOfType(int node) {
+        return typeIndex[node];
+    }
+
+    /** True if the node has a parent and no later sibling. */
+    public boolean isLastChild(int node) {
+        return parent[node] != NO_NODE && nextSibling[node] == NO_NODE;
+    }
+
+    public String getPackageName(int node) {
+        return string(packageName[node]);
+    }
+
+    public String getClassName(int node) {
+        return string(className[node]);
+    }
+
+    public String getText(int node) {
+        return string(text[node]);
+    }
+
+    public String getContentDescription(int node) {
+        return string(contentDescription[node]);
+    }
+
+    /** Fully-qualified resource name, e.g. {@code "android:id/button1"}. */
+    public String getViewId(int node) {
+        return string(viewId[node]);
+    }
+
+    /** Resource name after the last '/', e.g. {@code "button1"}. */
+    public String getSimpleId(int node) {
+        return string(simpleId[node]);
+    }
+
+    public int getFlags(int node) {
+        return flags[node];
+    }
+
+    public boolean hasFlag(int node, int flag) {
+        return (flags[node] & flag) != 0;
+    }
+
+    public boolean isChecked(int node) {
+        return hasFlag(node, FLAG_CHECKED);
+    }
+
+    public boolean isVisibleToUser(int node) {
+        return hasFlag(node, FLAG_VISIBLE);
+    }
+
+    /** Copy the node's screen bounds into {@code out}. */
+    public void getBoundsInScreen(int node, Rect out) {
+        int base = node * 4;
+        out.set(bounds[base], bounds[base + 1], bounds[base + 2], bounds[base + 3]);
+    }
+
+    /** Whether the node's screen bounds are exactly {@code r}, without copying them out. */
+    public boolean hasBounds(int node, Rect r) {
+        int base = node * 4;
+        return bounds[base] == r.left && bounds[base + 1] == r.top
+                && bounds[base + 2] == r.right && bounds[base + 3] == r.bottom;
+    }
+
+    /**
+     * Return the live AccessibilityNodeInfo for a node index, e.g. the winning node of a query
+     * that is about to be handed to {@link ActionPerformer}.
+     */
+    public AccessibilityNodeInfo getNode(int node) {
+        return node >= 0 && node < size ? liveNodes[node] : null;
+    }
+
+    /**
+     * The id / text / content-description index for this snapshot, built on first call.
+     */
+    public UiSnapshotIndex getIndex() {
+        UiSnapshotIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = UiSnapshotIndex.build(this);
+                    index = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private String string(int ref) {
+        return ref == NO_STRING ? null : strings[ref];
+    }
+
+    @Override
+    public String toString() {
+        return "UiSnapshot{size=" + size + ", strings=" + strings.length + "}";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: builder
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Accumulates nodes in document order. Package-private so tests can assemble synthetic trees
+     * without a device; production code goes through {@link #capture(AccessibilityNodeInfo)}.
+     */
+    static final class Builder {
+        private int size;
+
+        private int[] parent = new int[64];
+        private int[] firstChild = new int[64];
+        private int[] nextSibling = new int[64];
+        private int[] lastChild = new int[64];
+        private int[] childCount = new int[64];
+        private int[] childIndex = new int[64];
+        private int[] depth = new int[64];
+
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private int[] packageName = new int[64];
+        private int[] className = new int[64];
+        private int[] text = new int[64];
+        private int[] contentDescription = new int[64];
+        private int[] viewId = new int[64];
+        private int[] simpleId = new int[64];
+
+        private int[] bounds = new int[64 * 4];
+        private int[] flags = new int[64];
+        private AccessibilityNodeInfo[] liveNodes = new AccessibilityNodeInfo[64];
+
+        /**
+         * Append one node. Nodes must be added in document order: a parent before its children,
+         * and siblings left to right. The node's child index is its position among the siblings
+         * added so far.
+         *
+         * @return The new node's index.
+         */
+        int addNode(int parentIndex,
+                    AccessibilityNodeInfo live,
+                    CharSequence pkg,
+                    CharSequence cls,
+                    CharSequence txt,
+                    CharSequence desc,
+                    String resourceName,
+                    int left, int top, int right, int bottom,
+                    int nodeFlags) {
+            int position = parentIndex == NO_NODE ? NO_NODE : childCount[parentIndex];
+            return addNode(parentIndex, position, live, pkg, cls, txt, desc, resourceName,
+                    left, top, right, bottom, nodeFlags);
+        }
+
+        /**
+         * Same as above with an explicit child index, e.g. when a null {@code getChild(i)} was
+         * skipped and later siblings keep their original positions.
+         */
+        int addNode(int parentIndex,
+                    int positionInParent,
+                    AccessibilityNodeInfo live,
+                    CharSequence pkg,
+                    CharSequence cls,
+                    CharSequence txt,
+                    CharSequence desc,
+                    String resourceName,
+                    int left, int top, int right, int bottom,
+                    int nodeFlags) {
+            ensureCapacity(size + 1);
+            int index = size++;
+
+            parent[index] = parentIndex;
+            firstChild[index] = NO_NODE;
+            nextSibling[index] = NO_NODE;
+            lastChild[index] = NO_NODE;
+            childCount[index] = 0;
+            childIndex[index] = positionInParent;
+
+            if (parentIndex != NO_NODE) {
+                int prev = lastChild[parentIndex];
+                if (prev == NO_NODE) {
+                    firstChild[parentIndex] = index;
+                } else {
+                    nextSibling[prev] = index;
+                }
+                lastChild[parentIndex] = index;
+                childCount[parentIndex]++;
+                depth[index] = depth[parentIndex] + 1;
+            } else {
+                depth[index] = 0;
+            }
+
+            packageName[index] = intern(pkg);
+            className[index] = intern(cls);
+            text[index] = intern(txt);
+            contentDescription[index] = intern(desc);
+            viewId[index] = intern(resourceName);
+            simpleId[index] = intern(toSimpleId(resourceName));
+
+            int base = index * 4;
+            bounds[base] = left;
+            bounds[base + 1] = top;
+            bounds[base + 2] = right;
+            bounds[base + 3] = bottom;
+
+            flags[index] = nodeFlags;
+            liveNodes[index] = live;
+            return index;
+        }
+
+        UiSnapshot build() {
+            return new UiSnapshot(this);
+        }
+
+        /**
+         * One pass per parent over its children, counting earlier siblings of the same class.
+         */
+        int[] computeTypeIndex() {
+            int[] result = new int[size];
+            Map<Integer, Integer> seen = new HashMap<>();
+            for (int p = 0; p < size; p++) {
+                if (parent[p] == NO_NODE) {
+                    result[p] = NO_NODE;
+                }
+                if (firstChild[p] == NO_NODE) continue;
+                seen.clear();
+                for (int c = firstChild[p]; c != NO_NODE; c = nextSibling[c]) {
+                    Integer count = seen.get(className[c]);
+                    int n = count == null ? 0 : count;
+                    result[c] = n;
+                    seen.put(className[c], n + 1);
+                }
+            }
+            return result;
+        }
+
+        private int intern(CharSequence cs) {
+            if (cs == null) return NO_STRING;
+            String s = cs.toString();
+            Integer ref = stringIndex.get(s);
+            if (ref == null) {
+                ref = strings.size();
+                strings.add(s);
+                stringIndex.put(s, ref);
+            }
+            return ref;
+        }
+
+        private static String toSimpleId(String resourceName) {
+            if (resourceName == null) return null;
+            int slash = resourceName.lastIndexOf('/');
+            return (slash >= 0 && slash < resourceName.length() - 1)
+                    ? resourceName.substring(slash + 1)
+                    : resourceName;
+        }
+
+        private void ensureCapacity(int needed) {
+            if (needed <= parent.length) return;
+            int cap = Math.max(needed, parent.length * 2);
+            parent = Arrays.copyOf(parent, cap);
+            firstChild = Arrays.copyOf(firstChild, cap);
+            nextSibling = Arrays.copyOf(nextSibling, cap);
+            lastChild = Arrays.copyOf(lastChild, cap);
+            childCount = Arrays.copyOf(childCount, cap);
+            childIndex = Arrays.copyOf(childIndex, cap);
+            depth = Arrays.copyOf(depth, cap);
+            packageName = Arrays.copyOf(packageName, cap);
+            className = Arrays.copyOf(className, cap);
+            text = Arrays.copyOf(text, cap);
+            contentDescription = Arrays.copyOf(contentDescription, cap);
+            viewId = Arrays.copyOf(viewId, cap);
+            simpleId = Arrays.copyOf(simpleId, cap);
+            bounds = Arrays.copyOf(bounds, cap * 4);
+            flags = Arrays.copyOf(flags, cap);
+            liveNodes = Arrays.copyOf(liveNodes, cap);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package org.labcitrus.avagenclient.core;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Inverted attribute index over one {@link UiSnapshot}.
+ *
+ * <p>Most generated steps are plain {@code withId(...)}, {@code withText(...)} or
+ * {@code withContentDescription(...)} matchers. Instead of testing every node, the query engine
+ * asks this index for a candidate set and only verifies those candidates:</p>
+ * <pre>
+ *   ids      : case-folded full resource name AND simple id  → node indices   (exact lookups)
+ *   text     : case-folded exact text                          → node indices
+ *   contDesc : case-folded exact content description           → node indices
+ *   tokens   : per field, case-folded alphanumeric tokens      → node indices   (contains lookups)
+ *   grams    : per field, 3-char substrings of those tokens    → token ids      (built on first use)
+ * </pre>
+ *
+ * <p>A contains lookup finds, for each alphanumeric run of the needle, the tokens that contain it:
+ * runs of three or more characters intersect the token lists of their trigrams and verify only
+ * those tokens; shorter runs (one or two characters, rarely selective anyway) scan the field's
+ * vocabulary.</p>
+ *
+ * <p>Lookups return a superset of the true matches (or null when the matcher cannot be answered,
+ * e.g. regex), so callers must still run the matcher on each candidate.</p>
+ *
+ * Built lazily once per snapshot via {@link UiSnapshot#getIndex()}.
+ */
+public final class UiSnapshotIndex {
+
+    /** Indexed node attributes. */
+    public enum Field {
+        ID, TEXT, CONTENT_DESCRIPTION
+    }
+
+    private final int size;
+
+    private final Map<String, int[]> idExact;
+    private final Map<String, int[]> textExact;
+    private final Map<String, int[]> descExact;
+
+    private final Vocabulary idTokens;
+    private final Vocabulary textTokens;
+    private final Vocabulary descTokens;
+
+    private UiSnapshotIndex(int size,
+                            Map<String, int[]> idExact,
+                            Map<String, int[]> textExact,
+                            Map<String, int[]> descExact,
+                            Vocabulary idTokens,
+                            Vocabulary textTokens,
+                            Vocabulary descTokens) {
+        this.size = size;
+        this.idExact = idExact;
+        this.textExact = textExact;
+        this.descExact = descExact;
+        this.idTokens = idTokens;
+        this.textTokens = textTokens;
+        this.descTokens = descTokens;
+    }
+
+    /**
+     * Build the index for a snapshot in one pass over its nodes.
+     */
+    static UiSnapshotIndex build(UiSnapshot snapshot) {
+        PostingsBuilder idExact = new PostingsBuilder();
+        PostingsBuilder textExact = new PostingsBuilder();
+        PostingsBuilder descExact = new PostingsBuilder();
+        PostingsBuilder idTokens = new PostingsBuilder();
+        PostingsBuilder textTokens = new PostingsBuilder();
+        PostingsBuilder descTokens = new PostingsBuilder();
+
+        for (int node = 0; node < snapshot.size(); node++) {
+            String id = snapshot.getViewId(node);
+            if (id != null) {
+                String foldedId = fold(id);
+                idExact.add(foldedId, node);
+                idExact.add(fold(snapshot.getSimpleId(node)), node);
+                // The simple id is a suffix of the full id, so tokens of the full id cover both.
+                addTokens(idTokens, foldedId, node);
+            }
+
+            String text = snapshot.getText(node);
+            if (text != null) {
+                String folded = fold(text);
+                textExact.add(folded, node);
+                addTokens(textTokens, folded, node);
+            }
+
+            String desc = snapshot.getContentDescription(node);
+            if (desc != null) {
+                String folded = fold(desc);
+                descExact.add(folded, node);
+                addTokens(descTokens, folded, node);
+            }
+        }
+
+        return new UiSnapshotIndex(snapshot.size(),
+                idExact.build(), textExact.build(), descExact.build(),
+                new Vocabulary(idTokens.build()), new Vocabulary(textTokens.build()), new Vocabulary(descTokens.build()));
+    }
+
+    /**
+     * Candidate nodes whose {@code field} may satisfy {@code matcher}.
+     *
+     * @return A superset of the matching nodes, or null if the index cannot answer this matcher
+     *         and the caller has to scan.
+     */
+    public BitSet candidates(Field field, StringMatcher matcher) {
+        if (matcher == null) {
+            return null;
+        }
+        String needle = matcher.getNeedle();
+        switch (matcher.getKind()) {
+            case EQUALS_IGNORE_CASE:
+                return toBitSet(exactMap(field).get(fold(needle)));
+
+            case CONTAINS_IGNORE_CASE:
+            case CONTAINS:
+            case STARTS_WITH_IGNORE_CASE:
+            case ENDS_WITH_IGNORE_CASE:
+                return containsCandidates(vocabulary(field), fold(needle));
+
+            case REGEX:
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * A node whose value contains {@code needle} must, for every alphanumeric run of the needle,
+     * have a token that contains that run. Intersecting those unions gives a superset of matches.
+     */
+    private BitSet containsCandidates(Vocabulary tokens, String needle) {
+        BitSet result = null;
+        int i = 0;
+        while (i < needle.length()) {
+            if (!Character.isLetterOrDigit(needle.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < needle.length() && Character.isLetterOrDigit(needle.charAt(i))) {
+                i++;
+            }
+            String part = needle.substring(start, i);
+
+            BitSet partNodes = new BitSet(size);
+            tokens.addNodesContaining(part, partNodes);
+
+            if (result == null) {
+                result = partNodes;
+            } else {
+                result.and(partNodes);
+            }
+            if (result.isEmpty()) {
+                return result;
+            }
+        }
+        // A needle without any letters or digits ("", " - ") cannot be answered from tokens.
+        return result;
+    }
+
+    private Map<String, int[]> exactMap(Field field) {
+        switch (field) {
+            case ID:   return idExact;
+            case TEXT: return textExact;
+            default:   return descExact;
+        }
+    }
+
+    private Vocabulary vocabulary(Field field) {
+        switch (field) {
+            case ID:   return idTokens;
+            case TEXT: return textTokens;
+            default:   return descTokens;
+        }
+    }
+
+    private BitSet toBitSet(int[] postings) {
+        BitSet bits = new BitSet(size);
+        if (postings != null) {
+            setAll(bits, postings);
+        }
+        return bits;
+    }
+
+    private static void setAll(BitSet bits, int[] postings) {
+        for (int node : postings) {
+            bits.set(node);
+        }
+    }
+
+    /**
+     * Case folding shared with {@link StringMatcher}, so index keys and matcher needles agree.
+     */
+    static String fold(String s) {
+        return StringMatcher.fold(s);
+    }
+
+    private static void addTokens(PostingsBuilder postings, String folded, int node) {
+        int i = 0;
+        while (i < folded.length()) {
+            if (!Character.isLetterOrDigit(folded.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < folded.length() && Character.isLetterOrDigit(folded.charAt(i))) {
+                i++;
+            }
+            postings.add(folded.substring(start, i), node);
+        }
+    }
+
+    /**
+     * One field's tokens with their postings, and a trigram index over the tokens for substring
+     * lookups.
+     */
+    private static final class Vocabulary {
+        private static final int GRAM = 3;
+
+        private final Map<String, int[]> postings;
+        private final String[] tokens;
+        private final int[][] tokenPostings;
+        // Built on the first contains lookup with a run of GRAM or more characters.
+        private volatile Map<String, int[]> grams;
+
+        Vocabulary(Map<String, int[]> postings) {
+            this.postings = postings;
+            this.tokens = postings.keySet().toArray(new String[0]);
+            this.tokenPostings = new int[tokens.length][];
+            for (int t = 0; t < tokens.length; t++) {
+                tokenPostings[t] = postings.get(tokens[t]);
+            }
+        }
+
+        /** Set the nodes that have a token containing {@code part} (letters and digits only). */
+        void addNodesContaining(String part, BitSet nodes) {
+            if (part.length() < GRAM) {
+                for (int t = 0; t < tokens.length; t++) {
+                    if (tokens[t].contains(part)) {
+                        setAll(nodes, tokenPostings[t]);
+                    }
+                }
+                return;
+            }
+            int[] exact = postings.get(part);
+            if (exact != null) {
+                setAll(nodes, exact);
+            }
+            int[] candidates = tokensWithGrams(part);
+            for (int t : candidates) {
+                if (tokens[t].length() > part.length() && tokens[t].contains(part)) {
+                    setAll(nodes, tokenPostings[t]);
+                }
+            }
+        }
+
+        /** Ids of the tokens that contain every trigram of {@code part}. */
+        private int[] tokensWithGrams(String part) {
+            Map<String, int[]> index = grams();
+            int[] result = null;
+            for (int i = 0; i + GRAM <= part.length(); i++) {
+                int[] list = index.get(part.substring(i, i + GRAM));
+                if (list == null) {
+                    return new int[0];
+                }
+                result = result == null ? list : intersect(result, list);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        private Map<String, int[]> grams() {
+            Map<String, int[]> result = grams;
+            if (result == null) {
+                PostingsBuilder builder = new PostingsBuilder();
+                for (int t = 0; t < tokens.length; t++) {
+                    String token = tokens[t];
+                    for (int i = 0; i + GRAM <= token.length(); i++) {
+                        builder.add(token.substring(i, i + GRAM), t);
+                    }
+                }
+                // Racing builders produce equal maps; either one may win.
+                result = builder.build();
+                grams = result;
+            }
+            return result;
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] out = new int[Math.min(a.length, b.length)];
+            int n = 0;
+            for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return n == out.length ? out : Arrays.copyOf(out, n);
+        }
+    }
+
+    /**
+     * Accumulates key → ascending, de-duplicated node lists.
+     */
+    private static final class PostingsBuilder {
+        private final Map<String, int[]> lists = new HashMap<>();
+        private final Map<String, Integer> counts = new HashMap<>();
+
+        void add(String key, int node) {
+            int[] list = lists.get(key);
+            int count = list == null ? 0 : counts.get(key);
+            if (count > 0 && list[count - 1] == node) {
+                return; // same node, same key (e.g. full id == simple id)
+            }
+            if (list == null) {
+                list = new int[2];
+            } else if (count == list.length) {
+                list = Arrays.copyOf(list, count * 2);
+            }
+            list[count] = node;
+            lists.put(key, list);
+            counts.put(key, count + 1);
+        }
+
+        Map<String, int[]> build() {
+            Map<String, int[]> result = new HashMap<>(lists.size() * 2);
+            for (Map.Entry<String, int[]> e : lists.entrySet()) {
+                result.put(e.getKey(), Arrays.copyOf(e.getValue(), counts.get(e.getKey())));
+            }
+            return result;
+        }
+    }
+}
@@ -11,6 +11,8 @@ import java.util.Deque;
 
 public class Utils {
 
+    private static final StringMatcher EDIT_TEXT_CLASS = StringMatcher.containsIgnoreCase("edittext");
+
     /**
      * Print the information of key features of a node
      * @param node the AccessibilityNodeInfo
@@ -39,6 +41,20 @@ public class Utils {
                 " } ";
     }
 
+    /**
+     * Logs details of a snapshot node. Reads only the snapshot, no binder calls.
+     */
+    public static String getNodeDetails(UiSnapshot snapshot, int node) {
+        if (snapshot == null || node < 0 || node >= snapshot.size()) return "null";
+        return "{ | packageName: " + snapshot.getPackageName(node) +
+                " | class name: " + snapshot.getClassName(node) +
+                " | text: " + snapshot.getText(node) +
+                " | content description: " + snapshot.getContentDescription(node) +
+                " | id : " + snapshot.getViewId(node) +
+                " | checked : " + snapshot.isChecked(node) +
+                " } ";
+    }
+
 
     /**
      * Given the root accessibilitynodeinfo, parse all of its valid sub-elements through using
@@ -88,4 +104,25 @@ public class Utils {
         }
         return false;
     }
+
+    /**
+     * Snapshot counterpart of {@link #checkIsValidNode(AccessibilityNodeInfo)}.
+     *
+     * @param snapshot the flattened UI tree
+     * @param node the node index
+     * @return true if valid
+     */
+    public static boolean checkIsValidNode(UiSnapshot snapshot, int node) {
+        if (snapshot.isVisibleToUser(node)) {
+            String text = snapshot.getText(node);
+            String id = snapshot.getViewId(node);
+            String desc = snapshot.getContentDescription(node);
+            String cls = snapshot.getClassName(node);
+            return text != null && text.length() > 0
+                    || id != null && !id.isEmpty()
+                    || desc != null && desc.length() > 0
+                    || EDIT_TEXT_CLASS.matches(cls);
+        }
+        return false;
+    }
 }
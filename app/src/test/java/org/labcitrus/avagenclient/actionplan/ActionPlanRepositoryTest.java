@@ -0,0 +1,178 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.accessibilityservice.AccessibilityService;
+import android.view.accessibility.AccessibilityEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loading, caching and reloading plan files from a temp directory. Background work (image
+ * writes, reloads) runs inline, and the change-check throttle runs on a fake clock.
+ */
+public class ActionPlanRepositoryTest {
+
+    private static final String APP = "com.example.app";
+
+    private File filesDir;
+    private File cacheDir;
+    private final AtomicInteger cacheDirFailures = new AtomicInteger();
+    private AccessibilityService service;
+    private long now = 1_000_000L;
+    private ActionPlanRepository repository;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = Files.createTempDirectory("files").toFile();
+        cacheDir = Files.createTempDirectory("cache").toFile();
+        service = new AccessibilityService() {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+
+            @Override
+            public File getCacheDir() {
+                if (cacheDirFailures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("storage not ready");
+                }
+                return cacheDir;
+            }
+
+            @Override
+            public void onAccessibilityEvent(AccessibilityEvent event) {}
+
+            @Override
+            public void onInterrupt() {}
+        };
+        repository = new ActionPlanRepository(() -> now, Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        delete(filesDir);
+        delete(cacheDir);
+    }
+
+    @Test
+    public void getPlan_failedLoadIsNotCached() throws IOException {
+        writePlanFile("{\"app_id\":\"" + APP + "\",\"action_plans\":{" + plan("pay", "Pay") + "}}");
+
+        cacheDirFailures.set(1);
+        assertThrows(IllegalStateException.class, () -> repository.getPlan(service, APP, "pay"));
+        assertEquals(0, repository.getStats().cachedApps);
+
+        CompiledPlan plan = repository.getPlan(service, APP, "pay");
+        assertNotNull(plan);
+        assertEquals("pay", plan.getMethodName());
+        ActionPlanRepository.Stats stats = repository.getStats();
+        assertEquals(1, stats.cachedApps);
+        assertEquals(1, stats.loads);
+    }
+
+    @Test
+    public void reload_touchOnlyKeepsThePlans() throws IOException {
+        File file = writePlanFile("{\"action_plans\":{" + plan("pay", "Pay") + "}}");
+        long wallClock = System.currentTimeMillis();
+        file.setLastModified(wallClock - 60_000L);
+        CompiledPlan plan = repository.getPlan(service, APP, "pay");
+
+        file.setLastModified(wallClock - 30_000L);
+        now += ActionPlanRepository.CHECK_INTERVAL_MS;
+        assertSame(plan, repository.getPlan(service, APP, "pay"));
+        now += ActionPlanRepository.CHECK_INTERVAL_MS;
+        assertSame(plan, repository.getPlan(service, APP, "pay"));
+
+        ActionPlanRepository.Stats stats = repository.getStats();
+        assertEquals(0, stats.reloads);
+        assertEquals(1, stats.loads);
+        assertEquals(1, stats.decodes);
+    }
+
+    @Test
+    public void reload_sameLengthRewriteWithinRacyWindowIsSeen() throws IOException {
+        File file = writePlanFile("{\"action_plans\":{" + plan("pay", "Pay") + "}}");
+        long mtime = file.lastModified();
+        CompiledPlan old = repository.getPlan(service, APP, "pay");
+        assertTrue(targetOf(old).contains("\"Pay\""));
+
+        // Same length, same mtime: only the content differs.
+        writePlanFile("{\"action_plans\":{" + plan("pay", "Pat") + "}}");
+        file.setLastModified(mtime);
+        now += ActionPlanRepository.CHECK_INTERVAL_MS;
+        // The access that notices the change still gets the version it found in the cache.
+        assertSame(old, repository.getPlan(service, APP, "pay"));
+        assertEquals(1, repository.getStats().reloads);
+
+        long decodes = repository.getStats().decodes;
+        CompiledPlan fresh = repository.getPlan(service, APP, "pay");
+        assertNotSame(old, fresh);
+        assertTrue(targetOf(fresh).contains("\"Pat\""));
+        // Decoded by the reload, before the swap.
+        assertEquals(decodes, repository.getStats().decodes);
+    }
+
+    @Test
+    public void reload_inFlightPlanSurvivesTheSwap() throws IOException {
+        writePlanFile("{\"action_plans\":{" + plan("pay", "Pay") + "," + plan("stop", "Stop") + "}}");
+        CompiledPlan running = repository.getPlan(service, APP, "pay");
+        String before = targetOf(running);
+
+        writePlanFile("{\"action_plans\":{" + plan("pay", "Send money") + "}}");
+        now += ActionPlanRepository.CHECK_INTERVAL_MS;
+        repository.getPlan(service, APP, "pay");
+        CompiledPlan next = repository.getPlan(service, APP, "pay");
+
+        assertEquals(1, repository.getStats().reloads);
+        assertTrue(targetOf(next).contains("\"Send money\""));
+        assertNull(repository.getPlan(service, APP, "stop"));
+        // The running plan is untouched: same steps, same compiled queries.
+        assertEquals(before, targetOf(running));
+        assertEquals(1, running.size());
+        assertNotNull(running.getSteps().get(0).getQueries());
+    }
+
+    /** The first step's compiled target. */
+    private static String targetOf(CompiledPlan plan) {
+        return Arrays.toString(plan.getSteps().get(0).getQueries());
+    }
+
+    static String plan(String methodName, String text) {
+        return "\"" + methodName + "\":{\"method_name\":\"" + methodName + "\",\"steps\":["
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"" + text + "\\\")\"}]}";
+    }
+
+    private File writePlanFile(String json) throws IOException {
+        File dir = new File(new File(filesDir, "workspace"), "actionplan");
+        dir.mkdirs();
+        File file = new File(dir, APP + "_actionplan.json");
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,311 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.labcitrus.avagenclient.core.CompiledQuery;
+import org.labcitrus.avagenclient.core.NodeQueryCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiled plans written to an image and restored from it must run exactly like the originals;
+ * a damaged image must fail with an IOException so the repository falls back to the JSON.
+ */
+public class CompiledPlanFileTest {
+
+    private static final PlanFileStamp SOURCE = new PlanFileStamp(1234L, 1_700_000_000_000L, 0xCAFEBABEL, 1_700_000_005_000L);
+
+    private final Gson gson = new Gson();
+    private File dir;
+    private Map<String, CompiledPlan> plans;
+    private Map<String, List<String>> rejected;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("planimage").toFile();
+        plans = new HashMap<>();
+        // Two page scrolls (with a sleep in between) that lead to a click: both search for its target.
+        plans.put("pay", compile("{\"method_name\":\"pay\",\"steps\":["
+                + "{\"action\":\"click\",\"node_query\":\"withParent(withId(\\\"toolbar\\\")), withContentDescription(\\\"Menu\\\")\"},"
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"sleep\",\"millis\":250},"
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(regex(\\\"^Pay [0-9]+ €$\\\")), isLastChild()\"},"
+                + "{\"action\":\"input_text\",\"node_query\":\"withId(\\\"amount\\\")\",\"text\":\"12,50 € \\\"Überweisung\\\"\",\"timeout_ms\":9000},"
+                + "{\"action\":\"scroll\",\"direction\":\"up\",\"position\":3,\"node_query\":\"withClassName(\\\"RecyclerView\\\")\"},"
+                + "{\"action\":\"global_back\"}]}"));
+        // Stored under its key, with another method_name.
+        plans.put("legacyKey", compile("{\"method_name\":\"renamed\",\"steps\":["
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"ok\\\"), isChecked()\"}]}"));
+        rejected = new HashMap<>();
+        rejected.put("broken", Arrays.asList("step[0] click: node_query x", "step[2] foo: unknown action"));
+        rejected.put("empty", Collections.emptyList());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void writeOpenRead_roundTrip() throws IOException {
+        File file = new File(new File(dir, "sub"), "plans.bin");
+        CompiledPlanFile.write(file, SOURCE, plans, rejected);
+        CompiledPlanFile image = CompiledPlanFile.open(file);
+
+        assertEquals(new HashSet<>(Arrays.asList("pay", "legacyKey", "broken", "empty")), image.getMethodNames());
+        PlanFileStamp stamp = image.getSourceStamp();
+        assertEquals(SOURCE.getLength(), stamp.getLength());
+        assertEquals(SOURCE.getLastModified(), stamp.getLastModified());
+        assertEquals(SOURCE.getCrc(), stamp.getCrc());
+        assertEquals(SOURCE.getHashedAtMs(), stamp.getHashedAtMs());
+
+        for (Map.Entry<String, CompiledPlan> e : plans.entrySet()) {
+            CompiledPlan restored = image.read(e.getKey());
+            assertEquals(e.getValue().getMethodName(), restored.getMethodName());
+            assertEquals(describe(e.getValue()), describe(restored));
+            assertTrue(image.getRecordLength(e.getKey()) > 0);
+        }
+        assertEquals("renamed", image.read("legacyKey").getMethodName());
+        assertNull(image.read("missing"));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void read_linkedSearchStepsShareTheirTargetQueries() throws IOException {
+        CompiledPlan original = plans.get("pay");
+        // The fixture must exercise the link.
+        assertSame(original.getSteps().get(4).getQueries(), original.getSteps().get(1).getSearchQueries());
+
+        CompiledPlan restored = writeAndOpen().read("pay");
+        List<CompiledPlan.CompiledStep> steps = restored.getSteps();
+        assertSame(steps.get(4).getQueries(), steps.get(1).getSearchQueries());
+        assertSame(steps.get(4).getQueries(), steps.get(3).getSearchQueries());
+        assertNull(steps.get(2).getSearchQueries());
+        assertNull(steps.get(6).getSearchQueries());
+        assertEquals(original.getSteps().get(1).getSearchScrolls(), steps.get(1).getSearchScrolls());
+    }
+
+    @Test
+    public void read_rejectedPlanThrowsItsProblems() throws IOException {
+        CompiledPlanFile image = writeAndOpen();
+        PlanCompilationException e = assertThrows(PlanCompilationException.class, () -> image.read("broken"));
+        assertEquals("broken", e.getMethodName());
+        assertEquals(rejected.get("broken"), e.getProblems());
+
+        e = assertThrows(PlanCompilationException.class, () -> image.read("empty"));
+        assertTrue(e.getProblems().isEmpty());
+    }
+
+    @Test
+    public void open_truncatedImageIsAnIOException() throws IOException {
+        byte[] bytes = imageBytes();
+        for (int length = 0; length < bytes.length; length++) {
+            File file = new File(dir, "truncated" + length + ".bin");
+            Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+            try {
+                readAll(CompiledPlanFile.open(file));
+                fail("truncated at " + length + " of " + bytes.length + " was read");
+            } catch (IOException expected) {
+                // The repository ignores the image and indexes the JSON.
+            }
+            file.delete();
+        }
+    }
+
+    @Test
+    public void open_corruptImageIsAnIOExceptionOrReadsSomething() throws IOException {
+        byte[] bytes = imageBytes();
+        int[] masks = {0x01, 0x80, 0xFF};
+        int failures = 0;
+        for (int position = 0; position < bytes.length; position++) {
+            for (int mask : masks) {
+                byte[] corrupt = bytes.clone();
+                corrupt[position] ^= (byte) mask;
+                File file = new File(dir, "corrupt.bin");
+                Files.write(file.toPath(), corrupt);
+                // A flipped byte may still decode (e.g. inside a string); it must never escape as
+                // anything but an IOException.
+                try {
+                    readAll(CompiledPlanFile.open(file));
+                } catch (IOException expected) {
+                    failures++;
+                } catch (RuntimeException e) {
+                    throw new AssertionError("byte " + position + " ^ " + mask + ": " + e, e);
+                }
+            }
+        }
+        assertTrue(failures > 0);
+
+        File notAnImage = new File(dir, "plans.json");
+        Files.write(notAnImage.toPath(), "{\"action_plans\":{\"pay\":{}}}                                              ".getBytes());
+        assertThrows(IOException.class, () -> CompiledPlanFile.open(notAnImage));
+    }
+
+    @Test
+    public void read_stepLinksTheCompilerNeverProducesAreAnIOException() throws IOException {
+        // One record: a scroll (no target, so a fixed-size step) that searches for a click.
+        plans.clear();
+        rejected.clear();
+        plans.put("p", compile("{\"method_name\":\"p\",\"steps\":[{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Pay\\\")\"}]}"));
+        byte[] bytes = imageBytes();
+        int record = ByteBuffer.wrap(bytes).getInt(64); // First directory entry's record offset.
+        int step0 = record + 1 + 4 + 2;
+        int searchTarget = step0 + 31;
+        int step1WaitAfter = step0 + 35 + 1;
+        assertEquals(1, ByteBuffer.wrap(bytes).getShort(searchTarget));
+        assertEquals(CompiledPlan.WaitPolicy.NONE.ordinal(), bytes[step1WaitAfter]);
+
+        for (int target : new int[] {0, 2, -2, Short.MAX_VALUE}) {
+            byte[] patched = bytes.clone();
+            ByteBuffer.wrap(patched).putShort(searchTarget, (short) target);
+            assertReadFails("search target " + target, patched);
+        }
+        byte[] patched = bytes.clone();
+        patched[step1WaitAfter] = (byte) CompiledPlan.WaitPolicy.SETTLE.ordinal();
+        assertReadFails("last step waits", patched);
+
+        // Unpatched, and with the link removed, the record reads.
+        patched = bytes.clone();
+        ByteBuffer.wrap(patched).putShort(searchTarget, (short) -1);
+        assertNull(open(patched).read("p").getSteps().get(0).getSearchQueries());
+        List<CompiledPlan.CompiledStep> steps = open(bytes).read("p").getSteps();
+        assertSame(steps.get(1).getQueries(), steps.get(0).getSearchQueries());
+    }
+
+    @Test
+    public void write_countsThatDoNotFitTheFormatAreAnIOException() throws IOException {
+        CompiledQuery query = NodeQueryCompiler.compile("withText(\"Pay\")");
+        File file = new File(dir, "plans.bin");
+
+        List<CompiledPlan.CompiledStep> many = new ArrayList<>();
+        for (int i = 0; i <= 0xFFFF; i++) {
+            many.add(step(i, ActionType.CLICK, query));
+        }
+        assertWriteFails(file, Collections.singletonMap("p", CompiledPlan.restore("p", many)), Collections.emptyMap());
+
+        List<String> problems = Collections.nCopies(0x10000, "step[0] foo: unknown action");
+        assertWriteFails(file, Collections.emptyMap(), Collections.singletonMap("broken", problems));
+
+        List<CompiledPlan.CompiledStep> scrolls = Arrays.asList(step(0, ActionType.SCROLL_DOWN, null),
+                step(1, ActionType.CLICK, query));
+        CompiledPlan.restoreSearch(scrolls.get(0), scrolls.get(1), 0x10000);
+        assertWriteFails(file, Collections.singletonMap("p", CompiledPlan.restore("p", scrolls)), Collections.emptyMap());
+
+        // Links are by query identity: only the last step has this one.
+        CompiledQuery farQuery = NodeQueryCompiler.compile("withText(\"Send\")");
+        List<CompiledPlan.CompiledStep> far = new ArrayList<>();
+        far.add(step(0, ActionType.SCROLL_DOWN, null));
+        for (int i = 1; i <= Short.MAX_VALUE; i++) {
+            far.add(step(i, ActionType.CLICK, query));
+        }
+        far.add(step(Short.MAX_VALUE + 1, ActionType.CLICK, farQuery));
+        CompiledPlan.restoreSearch(far.get(0), far.get(far.size() - 1), 1);
+        assertWriteFails(file, Collections.singletonMap("p", CompiledPlan.restore("p", far)), Collections.emptyMap());
+    }
+
+    private void assertReadFails(String what, byte[] image) throws IOException {
+        CompiledPlanFile opened = open(image);
+        assertThrows(what, IOException.class, () -> opened.read("p"));
+    }
+
+    private static void assertWriteFails(File file, Map<String, CompiledPlan> plans,
+                                         Map<String, List<String>> rejected) {
+        assertThrows(IOException.class, () -> CompiledPlanFile.write(file, SOURCE, plans, rejected));
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    private static CompiledPlan.CompiledStep step(int index, ActionType type, CompiledQuery target) {
+        return CompiledPlan.restoreStep(index, type, target, null, 0, CompiledPlan.DEFAULT_FIND_TIMEOUT_MS,
+                true, 0, CompiledPlan.WaitPolicy.NONE);
+    }
+
+    private CompiledPlanFile open(byte[] image) throws IOException {
+        File file = new File(dir, "patched.bin");
+        Files.write(file.toPath(), image);
+        return CompiledPlanFile.open(file);
+    }
+
+    /** Read every plan; rejected plans (a flipped record kind may reject one) count as read. */
+    private static void readAll(CompiledPlanFile image) throws IOException {
+        for (String methodName : new ArrayList<>(image.getMethodNames())) {
+            try {
+                image.read(methodName);
+            } catch (PlanCompilationException rejected) {
+                // Stored as rejected.
+            }
+        }
+    }
+
+    private CompiledPlanFile writeAndOpen() throws IOException {
+        File file = new File(dir, "plans.bin");
+        CompiledPlanFile.write(file, SOURCE, plans, rejected);
+        return CompiledPlanFile.open(file);
+    }
+
+    private byte[] imageBytes() throws IOException {
+        File file = new File(dir, "plans.bin");
+        CompiledPlanFile.write(file, SOURCE, plans, rejected);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        file.delete();
+        return bytes;
+    }
+
+    private CompiledPlan compile(String json) {
+        return CompiledPlan.compile(gson.fromJson(json, ActionPlan.class), null);
+    }
+
+    /** Everything a step does when it runs, with its search link as a step index. */
+    private static String describe(CompiledPlan plan) {
+        StringBuilder sb = new StringBuilder();
+        List<CompiledPlan.CompiledStep> steps = plan.getSteps();
+        for (CompiledPlan.CompiledStep s : steps) {
+            int searchTarget = -1;
+            for (int j = 0; j < steps.size(); j++) {
+                if (s.getSearchQueries() != null && steps.get(j).getQueries() == s.getSearchQueries()) {
+                    searchTarget = j;
+                }
+            }
+            sb.append(s.getIndex()).append(' ').append(s.getType())
+                    .append(" wait=").append(s.getWaitAfter())
+                    .append(" queries=").append(s.getQueries() != null ? Arrays.toString(s.getQueries()) : null)
+                    .append(" text=").append(s.getText())
+                    .append(" sleep=").append(s.getSleepMillis())
+                    .append(" timeout=").append(s.getFindTimeoutMs())
+                    .append(" forward=").append(s.isScrollForward())
+                    .append(" position=").append(s.getScrollPosition())
+                    .append(" search=").append(searchTarget).append('/').append(s.getSearchScrolls())
+                    .append('\n');
+        }
+        return sb.toString();
+    }
+}
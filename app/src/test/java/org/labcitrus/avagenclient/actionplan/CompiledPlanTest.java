@@ -0,0 +1,128 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * A plan with a step that cannot run is rejected with every problem listed, never with a stray
+ * runtime exception.
+ */
+public class CompiledPlanTest {
+
+    private final Gson gson = new Gson();
+
+    @Test
+    public void compile_invalidNodeQueriesRejectThePlan() {
+        PlanCompilationException e = assertThrows(PlanCompilationException.class, () -> compile(
+                "{\"method_name\":\"pay\",\"steps\":["
+                        + "{\"action\":\"click\",\"node_query\":\"withText(regex(\\\"([a-z\\\"))\"},"
+                        + "{\"action\":\"click\",\"node_query\":\"withParentIndex(99999999999)\"},"
+                        + "{\"action\":\"click\",\"node_query\":\"withFoo(\\\"x\\\")\"},"
+                        + "{\"action\":\"click\",\"node_query\":\"withText(\\\"ok\\\")\"}]}"));
+        assertEquals("pay", e.getMethodName());
+        assertEquals(3, e.getProblems().size());
+        assertTrue(e.getProblems().get(0), e.getProblems().get(0).startsWith("step[0] click: node_query "));
+        assertTrue(e.getProblems().get(1), e.getProblems().get(1).startsWith("step[1] click: node_query "));
+        assertTrue(e.getProblems().get(2), e.getProblems().get(2).startsWith("step[2] click: node_query "));
+    }
+
+    @Test
+    public void compile_invalidNodeQueryRejectsThePlanEvenWithMatchers() {
+        PlanCompilationException e = assertThrows(PlanCompilationException.class, () -> compile(
+                "{\"method_name\":\"pay\",\"steps\":["
+                        + "{\"action\":\"click\",\"node_query\":\"withText(regex(\\\"*\\\"))\","
+                        + "\"matchers\":[{\"type\":\"text\",\"value\":\"Pay\",\"mode\":\"equalsIgnoreCase\"}]}]}"));
+        assertEquals(1, e.getProblems().size());
+        assertTrue(e.getProblems().get(0), e.getProblems().get(0).startsWith("step[0] click: node_query "));
+    }
+
+    @Test
+    public void compile_matchersAreUsedWithoutNodeQuery() {
+        CompiledPlan plan = compile("{\"method_name\":\"pay\",\"steps\":["
+                + "{\"action\":\"click\",\"node_query\":\"  \","
+                + "\"matchers\":[{\"type\":\"text\",\"value\":\"Pay\",\"mode\":\"equalsIgnoreCase\"},"
+                + "{\"type\":\"id\",\"value\":\"pay\"}]}]}");
+        assertEquals(1, plan.size());
+        assertEquals(2, plan.getSteps().get(0).getQueries().length);
+    }
+
+    @Test
+    public void compile_invalidRegexMatcherIsSkipped() {
+        PlanCompilationException e = assertThrows(PlanCompilationException.class, () -> compile(
+                "{\"method_name\":\"pay\",\"steps\":[{\"action\":\"click\","
+                        + "\"matchers\":[{\"type\":\"text\",\"value\":\"(\",\"mode\":\"regex\"}]}]}"));
+        assertEquals(1, e.getProblems().size());
+        assertTrue(e.getProblems().get(0), e.getProblems().get(0).contains("no usable matchers"));
+    }
+
+    @Test
+    public void compile_pageScrollsSearchForTheNextTarget() {
+        CompiledPlan plan = compile("{\"method_name\":\"pay\",\"steps\":["
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"sleep\",\"millis\":100},"
+                + "{\"action\":\"scroll\",\"direction\":\"down\"},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Pay\\\")\"},"
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"input_text\",\"node_query\":\"withId(\\\"amount\\\")\",\"text\":\"5\"}]}");
+        List<CompiledPlan.CompiledStep> steps = plan.getSteps();
+
+        // Every scroll of the run searches for the click's target; the sleep does not search.
+        assertSame(steps.get(3).getQueries(), steps.get(0).getSearchQueries());
+        assertSame(steps.get(3).getQueries(), steps.get(2).getSearchQueries());
+        assertNull(steps.get(1).getSearchQueries());
+        assertEquals(CompiledPlan.DEFAULT_SEARCH_SCROLLS, steps.get(0).getSearchScrolls());
+        assertSame(steps.get(5).getQueries(), steps.get(4).getSearchQueries());
+        assertNull(steps.get(3).getSearchQueries());
+    }
+
+    @Test
+    public void compile_scrollWithoutFollowingTargetStaysBlind() {
+        CompiledPlan plan = compile("{\"method_name\":\"pay\",\"steps\":["
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"global_back\"},"
+                + "{\"action\":\"scroll\",\"direction\":\"up\"},"
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Pay\\\")\"},"
+                + "{\"action\":\"scroll\",\"direction\":\"down\",\"position\":3},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Send\\\")\"},"
+                + "{\"action\":\"scroll_down\"}]}");
+        List<CompiledPlan.CompiledStep> steps = plan.getSteps();
+
+        // Followed by a step without a target.
+        assertNull(steps.get(0).getSearchQueries());
+        assertEquals(0, steps.get(0).getSearchScrolls());
+        // A scroll in the other direction ends the run before the click.
+        assertNull(steps.get(2).getSearchQueries());
+        assertSame(steps.get(4).getQueries(), steps.get(3).getSearchQueries());
+        // Scrolling to a row is not a page scroll.
+        assertNull(steps.get(5).getSearchQueries());
+        // Last step.
+        assertNull(steps.get(7).getSearchQueries());
+    }
+
+    @Test
+    public void compile_searchBudgetGrowsWithTheScrollsTheGeneratorGuessed() {
+        StringBuilder json = new StringBuilder("{\"method_name\":\"pay\",\"steps\":[");
+        for (int i = 0; i < 8; i++) {
+            json.append("{\"action\":\"scroll_down\"},");
+        }
+        json.append("{\"action\":\"click\",\"node_query\":\"withText(\\\"Pay\\\")\"}]}");
+        CompiledPlan plan = compile(json.toString());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(16, plan.getSteps().get(i).getSearchScrolls());
+        }
+    }
+
+    private CompiledPlan compile(String json) {
+        return CompiledPlan.compile(gson.fromJson(json, ActionPlan.class), null);
+    }
+}
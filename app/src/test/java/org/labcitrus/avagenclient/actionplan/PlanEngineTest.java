@@ -0,0 +1,259 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import android.accessibilityservice.AccessibilityService;
+import android.view.accessibility.AccessibilityEvent;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.labcitrus.avagenclient.core.UiIdleDetector;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The handle state machine, cancellation of queued and running plans, and the bounded queue.
+ * Plans run on a fake executor whose behaviour is picked by the plan's method name:
+ *
+ * <pre>
+ *   "ok"     succeeds          "fail"   a step fails       "throw"  throws
+ *   "block"  runs until interrupted (cancelled), then fails like an interrupted wait does
+ * </pre>
+ */
+public class PlanEngineTest {
+
+    private static final String APP = "com.example.app";
+    private static final long TIMEOUT_S = 10;
+
+    private final Gson gson = new Gson();
+    private FakeExecutor executor;
+    private PlanEngine engine;
+
+    @Before
+    public void setUp() {
+        AccessibilityService service = new AccessibilityService() {
+            @Override
+            public File getFilesDir() {
+                return new File(System.getProperty("java.io.tmpdir"));
+            }
+
+            @Override
+            public void onAccessibilityEvent(AccessibilityEvent event) {}
+
+            @Override
+            public void onInterrupt() {}
+        };
+        executor = new FakeExecutor(service);
+        engine = new PlanEngine(executor, 1);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void handle_runsToItsOutcome() throws Exception {
+        PlanHandle ok = engine.submit(APP, plan("ok"));
+        assertTrue(ok.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(PlanHandle.State.SUCCEEDED, ok.getState());
+        assertEquals(2, ok.getCompletedSteps());
+        assertEquals(2, ok.getTotalSteps());
+        assertFalse(ok.cancel());
+
+        PlanHandle fail = engine.submit(APP, plan("fail"));
+        assertFalse(fail.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(PlanHandle.State.FAILED, fail.getState());
+        assertEquals(1, fail.getCompletedSteps());
+
+        PlanHandle threw = engine.submit(APP, plan("throw"));
+        assertFalse(threw.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(PlanHandle.State.FAILED, threw.getState());
+    }
+
+    @Test
+    public void handle_queuedThenRunning() throws Exception {
+        PlanHandle running = engine.submit(APP, plan("block"));
+        awaitStarted();
+        PlanHandle queued = engine.submit(APP, plan("ok"));
+
+        assertEquals(PlanHandle.State.RUNNING, running.getState());
+        assertEquals(PlanHandle.State.QUEUED, queued.getState());
+        assertSame(running, engine.getCurrent());
+
+        running.cancel();
+        assertTrue(queued.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertNull(engine.getCurrent());
+    }
+
+    @Test
+    public void cancel_queuedPlanNeverStarts() throws Exception {
+        PlanHandle running = engine.submit(APP, plan("block"));
+        awaitStarted();
+        PlanHandle queued = engine.submit(APP, plan("ok"));
+
+        assertTrue(queued.cancel());
+        // Settled at once, without waiting for the worker.
+        assertEquals(PlanHandle.State.CANCELLED, queued.getState());
+        assertTrue(queued.getCompletion().isCancelled());
+        assertTrue(queued.isCancelled());
+        assertFalse(queued.cancel());
+
+        running.cancel();
+        assertCancelled(running);
+        // The worker reaches the cancelled plan and skips it; a later plan still runs.
+        PlanHandle next = engine.submit(APP, plan("ok"));
+        assertTrue(next.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals("[block, ok]", executor.ran.toString());
+    }
+
+    @Test
+    public void cancel_runningPlanIsInterrupted() throws Exception {
+        PlanHandle running = engine.submit(APP, plan("block"));
+        awaitStarted();
+
+        assertTrue(running.cancel());
+        assertCancelled(running);
+        assertEquals(PlanHandle.State.CANCELLED, running.getState());
+        assertFalse(running.cancel());
+    }
+
+    @Test
+    public void cancelAll_cancelsRunningAndQueued() throws Exception {
+        engine.shutdown();
+        engine = new PlanEngine(executor, 2);
+        PlanHandle running = engine.submit(APP, plan("block"));
+        awaitStarted();
+        PlanHandle queued1 = engine.submit(APP, plan("ok"));
+        PlanHandle queued2 = engine.submit(APP, plan("ok"));
+
+        // Cancelling the running plan first would let the worker start queued1.
+        assertEquals(3, engine.cancelAll());
+        for (PlanHandle handle : new PlanHandle[] {running, queued1, queued2}) {
+            assertCancelled(handle);
+            assertEquals(PlanHandle.State.CANCELLED, handle.getState());
+        }
+        assertEquals(0, engine.cancelAll());
+        assertEquals("[block]", executor.ran.toString());
+    }
+
+    @Test
+    public void submit_fullQueueIsRejected() throws Exception {
+        PlanHandle running = engine.submit(APP, plan("block"));
+        awaitStarted();
+        PlanHandle queued = engine.submit(APP, plan("ok"));
+
+        PlanHandle rejected = engine.submit(APP, plan("ok"));
+        assertEquals(PlanHandle.State.FAILED, rejected.getState());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> rejected.getCompletion().get());
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertFalse(rejected.cancel());
+
+        // The plans already taken are unaffected.
+        running.cancel();
+        assertTrue(queued.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void submit_afterShutdownIsRejected() {
+        engine.shutdown();
+        PlanHandle handle = engine.submit(APP, plan("ok"));
+        assertEquals(PlanHandle.State.FAILED, handle.getState());
+        assertTrue(handle.getCompletion().isCompletedExceptionally());
+    }
+
+    @Test
+    public void complete_clearsTheInterruptOfALateCancel() throws Exception {
+        // On the test thread: a cancel that lands after the last step interrupts the runner.
+        PlanHandle handle = new PlanHandle(APP, plan("ok"));
+        assertTrue(handle.start());
+        assertTrue(handle.cancel());
+        assertTrue(Thread.currentThread().isInterrupted());
+        handle.complete(true);
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(PlanHandle.State.CANCELLED, handle.getState());
+        assertTrue(handle.getCompletion().isCancelled());
+
+        // On the worker: the plan after a cancelled one starts with a clear flag.
+        PlanHandle running = engine.submit(APP, plan("block"));
+        awaitStarted();
+        running.cancel();
+        assertCancelled(running);
+        PlanHandle next = engine.submit(APP, plan("ok"));
+        assertTrue(next.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals("[false, false]", executor.interruptedAtStart.toString());
+    }
+
+    private void awaitStarted() throws InterruptedException {
+        assertTrue(executor.blocking.await(TIMEOUT_S, TimeUnit.SECONDS));
+    }
+
+    private static void assertCancelled(PlanHandle handle) throws Exception {
+        try {
+            handle.getCompletion().get(TIMEOUT_S, TimeUnit.SECONDS);
+            throw new AssertionError(handle + " was not cancelled");
+        } catch (CancellationException expected) {
+            // Cancelled.
+        }
+    }
+
+    private CompiledPlan plan(String methodName) {
+        return CompiledPlan.compile(gson.fromJson("{\"method_name\":\"" + methodName + "\",\"steps\":["
+                + "{\"action\":\"global_back\"},{\"action\":\"global_back\"}]}", ActionPlan.class), null);
+    }
+
+    /** Runs no steps; reports progress and an outcome according to the method name. */
+    private static final class FakeExecutor extends ActionPlanExecutor {
+        final List<String> ran = new CopyOnWriteArrayList<>();
+        final List<Boolean> interruptedAtStart = new CopyOnWriteArrayList<>();
+        final CountDownLatch blocking = new CountDownLatch(1);
+
+        FakeExecutor(AccessibilityService service) {
+            super(service, new UiIdleDetector(APP));
+        }
+
+        @Override
+        boolean executePlan(String appId, CompiledPlan plan, PlanHandle handle) {
+            String name = plan.getMethodName();
+            ran.add(name);
+            interruptedAtStart.add(Thread.currentThread().isInterrupted());
+            switch (name) {
+                case "ok":
+                    handle.onStepCompleted(0);
+                    handle.onStepCompleted(1);
+                    return true;
+                case "fail":
+                    handle.onStepCompleted(0);
+                    return false;
+                case "throw":
+                    throw new IllegalStateException("step threw");
+                case "block":
+                    blocking.countDown();
+                    try {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_S * 2));
+                    } catch (InterruptedException e) {
+                        // Cancelled; the executor leaves the flag set, as its waits do.
+                        Thread.currentThread().interrupt();
+                    }
+                    return false;
+                default:
+                    throw new AssertionError(name);
+            }
+        }
+    }
+}
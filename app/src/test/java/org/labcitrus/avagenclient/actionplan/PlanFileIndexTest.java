@@ -0,0 +1,163 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The byte scan must find the same plans, under the same keys, as a full Gson parse of the file.
+ */
+public class PlanFileIndexTest {
+
+    private final Gson gson = new Gson();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("planindex").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void build_escapedQuotesAndBracesInsideStrings() throws IOException {
+        String json = "{\"meta\":{\"note\":\"a } or ] in \\\"quotes\\\" {\",\"list\":[\"[\",\"}\",1,true,null]},"
+                + "\"app_id\":\"com.example\\\"app\","
+                + "\"action_plans\":{"
+                + "\"pay\":{\"method_name\":\"pay\",\"steps\":[{\"action\":\"click\","
+                + "\"node_query\":\"withText(\\\"}{ ][ \\\\\\\\ \\\\\\\" \\\")\"}]},"
+                + "\"back\\\\slash\":{\"method_name\":\"back\",\"steps\":[{\"action\":\"input_text\","
+                + "\"node_query\":\"withId(\\\"field\\\")\",\"input_text\":\"\\\"},{\\\"\"}]}"
+                + "},\"version\":2}";
+        PlanFileIndex index = assertSameAsGson(json);
+        assertEquals("com.example\"app", index.getAppId());
+        assertEquals(new HashSet<>(Arrays.asList("pay", "back\\slash")), index.getMethodNames());
+    }
+
+    @Test
+    public void build_unicodeEscapesInKeys() throws IOException {
+        String json = "{\"app_id\":\"com.example\",\"action_plans\":{"
+                + "\"pa\\u0079\":" + plan("pay") + ","
+                + "\"\\u652f\\u4ed8\":" + plan("zhifu") + ","
+                + "\"\\ud83d\\udcb3card\":" + plan("card") + "}}";
+        PlanFileIndex index = assertSameAsGson(json);
+        assertTrue(index.contains("pay"));
+        assertTrue(index.contains("支付"));
+        assertTrue(index.contains("💳card"));
+        assertFalse(index.contains("pa\\u0079"));
+        assertEquals("zhifu", index.decode("支付", gson).getMethodName());
+    }
+
+    @Test
+    public void build_nonAsciiKeys() throws IOException {
+        String json = "{\"app_id\":\"com.example\",\"action_plans\":{"
+                + "\"zahlen€\":" + plan("zahlen€") + ","
+                + "\"Überweisung\":" + plan("Überweisung") + ","
+                + "\"支付\":" + plan("支付") + "}}";
+        PlanFileIndex index = assertSameAsGson(json);
+        assertEquals(3, index.getMethodNames().size());
+        // Spans are in bytes, not chars.
+        assertEquals(plan("zahlen€").getBytes(StandardCharsets.UTF_8).length, index.getSpanLength("zahlen€"));
+    }
+
+    @Test
+    public void build_emptyActionPlans() throws IOException {
+        PlanFileIndex index = PlanFileIndex.build(write("{ \"app_id\" : \"com.example\" , \"action_plans\" : { } }"));
+        assertEquals("com.example", index.getAppId());
+        assertTrue(index.getMethodNames().isEmpty());
+        assertNull(index.decode("pay", gson));
+
+        index = PlanFileIndex.build(write("{}"));
+        assertNull(index.getAppId());
+        assertTrue(index.getMethodNames().isEmpty());
+    }
+
+    @Test
+    public void build_truncatedFileIsAnIOException() throws IOException {
+        byte[] bytes = ("{\"app_id\":\"com.example\",\"n\":12,\"action_plans\":{"
+                + "\"pa\\u0079\":" + plan("pay") + ",\"支付\":" + plan("支付") + "}}")
+                .getBytes(StandardCharsets.UTF_8);
+        assertEquals(2, PlanFileIndex.build(write(bytes)).getMethodNames().size());
+        for (int length = 0; length < bytes.length; length++) {
+            File file = write(Arrays.copyOf(bytes, length));
+            assertThrows("truncated at " + length, IOException.class, () -> PlanFileIndex.build(file));
+        }
+    }
+
+    @Test
+    public void build_stampsTheWholeFile() throws IOException {
+        File file = write("{\"app_id\":\"com.example\",\"action_plans\":{\"pay\":" + plan("pay") + "}}  \n");
+        PlanFileIndex index = PlanFileIndex.build(file);
+        assertTrue(index.getStamp().sameContent(PlanFileStamp.of(file)));
+        assertFalse(index.isStale());
+    }
+
+    @Test
+    public void decode_rewrittenFileIsAnIOException() throws IOException {
+        File file = write("{\"action_plans\":{\"pay\":" + plan("pay") + "}}");
+        PlanFileIndex index = PlanFileIndex.build(file);
+        Files.write(file.toPath(), "{\"action_plans\":{}}".getBytes(StandardCharsets.UTF_8));
+        assertTrue(index.isStale());
+        assertThrows(IOException.class, () -> index.decode("pay", gson));
+    }
+
+    @Test
+    public void decode_malformedPlanIsAnIOException() throws IOException {
+        PlanFileIndex index = PlanFileIndex.build(write("{\"action_plans\":{\"pay\":[1,2],\"stop\":{\"steps\":7}}}"));
+        assertThrows(IOException.class, () -> index.decode("pay", gson));
+        assertThrows(IOException.class, () -> index.decode("stop", gson));
+    }
+
+    /** Index {@code json} and check every plan decodes exactly as Gson parses the whole file. */
+    private PlanFileIndex assertSameAsGson(String json) throws IOException {
+        PlanFileIndex index = PlanFileIndex.build(write(json));
+        JsonObject plans = gson.fromJson(json, JsonObject.class).getAsJsonObject("action_plans");
+        assertEquals(plans.keySet(), index.getMethodNames());
+        for (Map.Entry<String, com.google.gson.JsonElement> e : plans.entrySet()) {
+            String expected = gson.toJson(gson.fromJson(e.getValue(), ActionPlan.class));
+            assertEquals(e.getKey(), expected, gson.toJson(index.decode(e.getKey(), gson)));
+        }
+        return index;
+    }
+
+    private static String plan(String methodName) {
+        return "{\"method_name\":\"" + methodName + "\",\"steps\":[{\"action\":\"click\","
+                + "\"node_query\":\"withText(\\\"" + methodName + "\\\")\"}]}";
+    }
+
+    private File write(String json) throws IOException {
+        return write(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("plans", ".json", dir);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+}
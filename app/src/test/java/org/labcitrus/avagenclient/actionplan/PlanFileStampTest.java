@@ -0,0 +1,105 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+/**
+ * Change detection by metadata, and the racy-clean rule that falls back to hashing.
+ */
+public class PlanFileStampTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("plans", ".json");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void of_recordsLengthMtimeAndCrc() throws IOException {
+        byte[] bytes = write("{\"action_plans\":{}}");
+        long mtime = System.currentTimeMillis() - 60_000L;
+        assertTrue(file.setLastModified(mtime));
+
+        PlanFileStamp stamp = PlanFileStamp.of(file);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        assertEquals(bytes.length, stamp.getLength());
+        assertEquals(file.lastModified(), stamp.getLastModified());
+        assertEquals(crc.getValue(), stamp.getCrc());
+        assertTrue(stamp.getHashedAtMs() >= mtime);
+    }
+
+    @Test
+    public void touchOnly_changesMetadataButNotContent() throws IOException {
+        write("{\"action_plans\":{}}");
+        file.setLastModified(System.currentTimeMillis() - 60_000L);
+        PlanFileStamp stamp = PlanFileStamp.of(file);
+        assertTrue(stamp.isCleanFor(file));
+
+        file.setLastModified(System.currentTimeMillis() - 30_000L);
+        assertFalse(stamp.matchesMetadata(file));
+        assertFalse(stamp.isCleanFor(file));
+        // The repository then hashes the file and keeps its plans.
+        assertTrue(stamp.sameContent(PlanFileStamp.of(file)));
+    }
+
+    @Test
+    public void sameLengthRewriteWithinRacyWindow_isNotTrusted() throws IOException {
+        write("{\"action_plans\":{\"pay\":1}}");
+        long mtime = file.lastModified();
+        PlanFileStamp stamp = PlanFileStamp.of(file);
+        // Hashed right after the write: within the window, so metadata alone proves nothing.
+        assertTrue(stamp.getHashedAtMs() - stamp.getLastModified() < PlanFileStamp.RACY_WINDOW_MS);
+        assertTrue(stamp.matchesMetadata(file));
+        assertFalse(stamp.isCleanFor(file));
+
+        // Rewritten in the same mtime tick with the same length: only the hash tells.
+        write("{\"action_plans\":{\"pat\":1}}");
+        file.setLastModified(mtime);
+        assertTrue(stamp.matchesMetadata(file));
+        assertFalse(stamp.isCleanFor(file));
+        assertFalse(stamp.sameContent(PlanFileStamp.of(file)));
+    }
+
+    @Test
+    public void isCleanFor_trustsMetadataOutsideRacyWindow() {
+        long mtime = 1_000_000L;
+        PlanFileStamp racy = new PlanFileStamp(file.length(), mtime, 0, mtime + PlanFileStamp.RACY_WINDOW_MS);
+        PlanFileStamp clean = new PlanFileStamp(file.length(), mtime, 0, mtime + PlanFileStamp.RACY_WINDOW_MS + 1);
+        file.setLastModified(mtime);
+        assertFalse(racy.isCleanFor(file));
+        assertTrue(clean.isCleanFor(file));
+    }
+
+    @Test
+    public void sameContent_comparesLengthAndCrc() {
+        PlanFileStamp stamp = new PlanFileStamp(10, 1, 0xABCL, 2);
+        assertTrue(stamp.sameContent(new PlanFileStamp(10, 99, 0xABCL, 100)));
+        assertFalse(stamp.sameContent(new PlanFileStamp(11, 1, 0xABCL, 2)));
+        assertFalse(stamp.sameContent(new PlanFileStamp(10, 1, 0xABDL, 2)));
+        assertFalse(stamp.sameContent(null));
+    }
+
+    private byte[] write(String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), bytes);
+        return bytes;
+    }
+}
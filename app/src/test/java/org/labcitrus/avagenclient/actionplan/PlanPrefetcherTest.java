@@ -0,0 +1,146 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.accessibilityservice.AccessibilityService;
+import android.view.accessibility.AccessibilityEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which plans an app switch warms, and in what order. The worker is owned by the test, so it can
+ * be held back and drained.
+ */
+public class PlanPrefetcherTest {
+
+    private static final String APP = "com.example.app";
+
+    private File filesDir;
+    private AccessibilityService service;
+    private ActionPlanRepository repository;
+    private PlanUsageStats usage;
+    private ExecutorService worker;
+    private PlanPrefetcher prefetcher;
+    private long now = 1_000_000L;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = Files.createTempDirectory("files").toFile();
+        File cacheDir = new File(filesDir, "cache");
+        service = new AccessibilityService() {
+            @Override
+            public File getFilesDir() {
+                return filesDir;
+            }
+
+            @Override
+            public File getCacheDir() {
+                return cacheDir;
+            }
+
+            @Override
+            public void onAccessibilityEvent(AccessibilityEvent event) {}
+
+            @Override
+            public void onInterrupt() {}
+        };
+        repository = new ActionPlanRepository(() -> now, Runnable::run);
+        usage = new PlanUsageStats(null, () -> ++now);
+        worker = Executors.newSingleThreadExecutor();
+        prefetcher = new PlanPrefetcher(service, repository, usage, worker);
+
+        File dir = new File(new File(filesDir, "workspace"), "actionplan");
+        dir.mkdirs();
+        String json = "{\"action_plans\":{" + ActionPlanRepositoryTest.plan("help", "Help") + ","
+                + ActionPlanRepositoryTest.plan("pay", "Pay") + ","
+                + ActionPlanRepositoryTest.plan("send", "Send") + "}}";
+        Files.write(new File(dir, APP + "_actionplan.json").toPath(), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        worker.shutdownNow();
+        delete(filesDir);
+    }
+
+    @Test
+    public void prefetch_mostRunMethodsFirst() throws Exception {
+        usage.record(APP, "send");
+        for (int i = 0; i < 3; i++) {
+            usage.record(APP, "pay");
+        }
+        prefetcher.setMaxPlans(2);
+
+        prefetcher.onForegroundAppChanged(APP);
+        drain();
+
+        // pay and send were decoded by the prefetch; help, never run, was left out.
+        assertEquals(2, repository.getStats().decodes);
+        repository.getPlan(service, APP, "pay");
+        repository.getPlan(service, APP, "send");
+        assertEquals(2, repository.getStats().decodes);
+        repository.getPlan(service, APP, "help");
+        assertEquals(3, repository.getStats().decodes);
+    }
+
+    @Test
+    public void prefetch_fillsUpWithUnrankedMethods() throws Exception {
+        usage.record(APP, "send");
+        usage.record(APP, "removed"); // No longer in the plan file.
+
+        prefetcher.onForegroundAppChanged(APP);
+        drain();
+
+        assertEquals(3, repository.getStats().decodes);
+    }
+
+    @Test
+    public void onForegroundAppChanged_onlyTheNewestSwitchDoesWork() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        worker.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        prefetcher.onForegroundAppChanged("com.example.other");
+        prefetcher.onForegroundAppChanged(APP);
+        // Same app again: not queued.
+        prefetcher.onForegroundAppChanged(APP);
+        release.countDown();
+        drain();
+
+        ActionPlanRepository.Stats stats = repository.getStats();
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.cachedApps);
+        assertEquals(3, stats.decodes);
+    }
+
+    private void drain() throws InterruptedException {
+        worker.shutdown();
+        assertTrue(worker.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
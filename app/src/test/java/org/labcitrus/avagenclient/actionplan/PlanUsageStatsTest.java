@@ -0,0 +1,132 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Ranking, persistence and bounds of the per-plan run counters.
+ */
+public class PlanUsageStatsTest {
+
+    private File dir;
+    private long now = 1_000_000_000_000L;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("usage").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void topMethods_byRunsThenMostRecent() {
+        PlanUsageStats stats = stats(null);
+        run(stats, "app", "pay", 3);
+        run(stats, "app", "history", 1);
+        run(stats, "app", "send", 3);
+        run(stats, "app", "help", 1);
+        run(stats, "other", "pay", 9);
+
+        // pay and send tie on runs: send ran last.
+        assertEquals(Arrays.asList("send", "pay", "help", "history"), stats.topMethods("app", 10));
+        assertEquals(Arrays.asList("send", "pay"), stats.topMethods("app", 2));
+        assertEquals(Collections.emptyList(), stats.topMethods("app", 0));
+        assertEquals(Collections.emptyList(), stats.topMethods("unknown", 5));
+        assertEquals(5, stats.size());
+    }
+
+    @Test
+    public void record_ignoresNulls() {
+        PlanUsageStats stats = stats(null);
+        stats.record(null, "pay");
+        stats.record("app", null);
+        assertEquals(0, stats.size());
+    }
+
+    @Test
+    public void save_roundTripsAndExpiresOldMethods() {
+        File file = new File(dir, "usage.json");
+        PlanUsageStats stats = stats(file);
+        run(stats, "app", "pay", 2);
+        now += PlanUsageStats.MAX_AGE_MS / 2;
+        run(stats, "app", "send", 1);
+        run(stats, "other", "stop", 1);
+        assertTrue(stats.save());
+
+        PlanUsageStats reloaded = stats(file);
+        assertEquals(Arrays.asList("pay", "send"), reloaded.topMethods("app", 10));
+        assertEquals(3, reloaded.size());
+
+        // pay was last run MAX_AGE_MS / 2 before the others; it ages out first.
+        now += PlanUsageStats.MAX_AGE_MS / 2 + 1;
+        PlanUsageStats expired = stats(file);
+        assertEquals(Collections.singletonList("send"), expired.topMethods("app", 10));
+        assertEquals(2, expired.size());
+
+        now += PlanUsageStats.MAX_AGE_MS;
+        assertEquals(0, stats(file).size());
+    }
+
+    @Test
+    public void save_unchangedCountersAreNotWritten() {
+        File file = new File(dir, "usage.json");
+        PlanUsageStats stats = stats(file);
+        assertTrue(stats.save());
+        assertFalse(file.exists());
+
+        run(stats, "app", "pay", 1);
+        assertTrue(stats.save());
+        assertTrue(file.delete());
+        assertTrue(stats.save());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void record_keepsAtMostMaxKeys() {
+        PlanUsageStats stats = stats(null);
+        int methods = PlanUsageStats.MAX_KEYS * 3;
+        for (int m = 0; m < methods; m++) {
+            now++;
+            // Spread over a few apps; trimming must count all of them.
+            stats.record("app" + (m % 3), "method" + m);
+            assertTrue(stats.size() <= PlanUsageStats.MAX_KEYS);
+        }
+        // The least recently run go first, however often they ran.
+        String newest = "method" + (methods - 1);
+        assertEquals(newest, stats.topMethods("app" + ((methods - 1) % 3), 1).get(0));
+        for (int app = 0; app < 3; app++) {
+            assertFalse(stats.topMethods("app" + app, methods).contains("method" + app));
+        }
+    }
+
+    private PlanUsageStats stats(File file) {
+        return new PlanUsageStats(file, () -> now);
+    }
+
+    private void run(PlanUsageStats stats, String appId, String methodName, int times) {
+        for (int i = 0; i < times; i++) {
+            now++;
+            stats.record(appId, methodName);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.labcitrus.avagenclient.core.UiIdleDetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Estimates, fallbacks, clamps and bounds of the learned settle times.
+ */
+public class SettleTimeModelTest {
+
+    private static final long DEFAULT_QUIET = 300L;
+    private static final long DEFAULT_CAP = 3000L;
+
+    private List<CompiledPlan.CompiledStep> steps;
+    private File dir;
+    private long now = 1_000_000_000_000L;
+
+    @Before
+    public void setUp() throws IOException {
+        ActionPlan plan = new Gson().fromJson("{\"method_name\":\"pay\",\"steps\":["
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Pay\\\")\"},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Confirm\\\")\"},"
+                + "{\"action\":\"scroll_down\"},"
+                + "{\"action\":\"click\",\"node_query\":\"withText(\\\"Done\\\")\"}]}", ActionPlan.class);
+        steps = CompiledPlan.compile(plan, null).getSteps();
+        dir = Files.createTempDirectory("settle").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void estimate_exponentiallyWeightedMeanAndVariance() {
+        SettleTimeModel.Estimate e = new SettleTimeModel.Estimate();
+        e.add(100);
+        assertEquals(100, e.mean, 1e-9);
+        assertEquals(0, e.variance, 1e-9);
+        assertEquals(100, e.p95(), 1e-9);
+
+        e.add(200);
+        // mean += α·diff; var = (1 − α)(var + diff·α·diff)
+        assertEquals(120, e.mean, 1e-9);
+        assertEquals(1600, e.variance, 1e-9);
+        assertEquals(120 + 1.645 * 40, e.p95(), 1e-9);
+        assertEquals(2, e.count);
+
+        e.add(120);
+        assertEquals(120, e.mean, 1e-9);
+        assertEquals(0.8 * 1600, e.variance, 1e-9);
+    }
+
+    @Test
+    public void budgetFor_usesDefaultsUntilMinSamples() {
+        SettleTimeModel model = model();
+        for (int i = 0; i < SettleTimeModel.MIN_SAMPLES - 1; i++) {
+            model.record("app", "pay", steps.get(0), settled(400, 100), DEFAULT_QUIET, 0);
+        }
+        SettleTimeModel.Budget budget = model.budgetFor("app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP);
+        assertFalse(budget.isLearned());
+        assertEquals(DEFAULT_QUIET, budget.getQuietWindowMs());
+        assertEquals(DEFAULT_CAP, budget.getMaxWaitMs());
+
+        model.record("app", "pay", steps.get(0), settled(400, 100), DEFAULT_QUIET, 0);
+        budget = model.budgetFor("app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP);
+        assertTrue(budget.isLearned());
+        // quiet = 1.5 × 100; cap = 2 × 400 + quiet
+        assertEquals(150, budget.getQuietWindowMs());
+        assertEquals(950, budget.getMaxWaitMs());
+    }
+
+    @Test
+    public void budgetFor_fallsBackFromStepKeyToTypeKey() {
+        SettleTimeModel model = model();
+        // Three samples on two different click steps: neither step key has MIN_SAMPLES, the
+        // app's click key has.
+        model.record("app", "pay", steps.get(0), settled(400, 100), DEFAULT_QUIET, 0);
+        model.record("app", "pay", steps.get(0), settled(400, 100), DEFAULT_QUIET, 0);
+        model.record("app", "pay", steps.get(1), settled(400, 100), DEFAULT_QUIET, 0);
+
+        SettleTimeModel.Budget budget = model.budgetFor("app", "other", steps.get(3), DEFAULT_QUIET, DEFAULT_CAP);
+        assertTrue(budget.isLearned());
+        assertTrue(budget.toString(), budget.toString().contains("app/*:CLICK"));
+        assertEquals(150, budget.getQuietWindowMs());
+
+        // Other action types and other apps have learned nothing.
+        assertFalse(model.budgetFor("app", "pay", steps.get(2), DEFAULT_QUIET, DEFAULT_CAP).isLearned());
+        assertFalse(model.budgetFor("other.app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP).isLearned());
+
+        // Once the step key has enough samples of its own, it wins.
+        for (int i = 0; i < SettleTimeModel.MIN_SAMPLES; i++) {
+            model.record("app", "other", steps.get(3), settled(1000, 400), DEFAULT_QUIET, 0);
+        }
+        budget = model.budgetFor("app", "other", steps.get(3), DEFAULT_QUIET, DEFAULT_CAP);
+        assertTrue(budget.toString(), budget.toString().contains("app/other#3:CLICK"));
+        assertEquals(600, budget.getQuietWindowMs());
+        assertEquals(2600, budget.getMaxWaitMs());
+    }
+
+    @Test
+    public void budgetFor_clampsToBounds() {
+        SettleTimeModel model = model();
+        for (int i = 0; i < SettleTimeModel.MIN_SAMPLES; i++) {
+            model.record("app", "fast", steps.get(0), settled(5, 1), DEFAULT_QUIET, 0);
+            model.record("app", "slow", steps.get(0), settled(60_000, 5_000), DEFAULT_QUIET, 0);
+        }
+        SettleTimeModel.Budget fast = model.budgetFor("app", "fast", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP);
+        assertEquals(SettleTimeModel.MIN_QUIET_WINDOW_MS, fast.getQuietWindowMs());
+        assertEquals(SettleTimeModel.MIN_MAX_WAIT_MS, fast.getMaxWaitMs());
+
+        SettleTimeModel.Budget slow = model.budgetFor("app", "slow", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP);
+        assertEquals(SettleTimeModel.MAX_QUIET_WINDOW_MS, slow.getQuietWindowMs());
+        assertEquals(SettleTimeModel.MAX_MAX_WAIT_MS, slow.getMaxWaitMs());
+    }
+
+    @Test
+    public void record_lateTargetWidensTheSample() {
+        SettleTimeModel model = model();
+        for (int i = 0; i < SettleTimeModel.MIN_SAMPLES; i++) {
+            // Settled after 300 ms with a 200 ms window, but the target showed up 400 ms later:
+            // the app was silent for at least 600 ms and busy for 700 ms.
+            model.record("app", "pay", steps.get(0), new UiIdleDetector.Settle(true, 300, 100, 50, 2),
+                    200, 400);
+        }
+        SettleTimeModel.Budget budget = model.budgetFor("app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP);
+        assertEquals(900, budget.getQuietWindowMs());          // 1.5 × 600
+        assertEquals(2 * 700 + 900, budget.getMaxWaitMs());
+
+        // A wait that hit the cap counts in full.
+        SettleTimeModel busy = model();
+        for (int i = 0; i < SettleTimeModel.MIN_SAMPLES; i++) {
+            busy.record("app", "pay", steps.get(0), new UiIdleDetector.Settle(false, 3000, 2900, 100, 40),
+                    200, 0);
+        }
+        assertEquals(2 * 3000 + 150, busy.budgetFor("app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP).getMaxWaitMs());
+    }
+
+    @Test
+    public void save_roundTripsAndExpiresOldKeys() {
+        File file = new File(dir, "settle.json");
+        SettleTimeModel model = new SettleTimeModel(file, () -> now);
+        for (int i = 0; i < SettleTimeModel.MIN_SAMPLES; i++) {
+            model.record("app", "pay", steps.get(0), settled(400, 100), DEFAULT_QUIET, 0);
+        }
+        assertTrue(model.save());
+
+        now += SettleTimeModel.MAX_AGE_MS / 2;
+        SettleTimeModel reloaded = new SettleTimeModel(file, () -> now);
+        SettleTimeModel.Budget budget = reloaded.budgetFor("app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP);
+        assertTrue(budget.isLearned());
+        assertEquals(150, budget.getQuietWindowMs());
+
+        now += SettleTimeModel.MAX_AGE_MS;
+        SettleTimeModel expired = new SettleTimeModel(file, () -> now);
+        assertEquals(0, expired.size());
+        assertFalse(expired.budgetFor("app", "pay", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP).isLearned());
+    }
+
+    @Test
+    public void record_keepsAtMostMaxKeys() {
+        SettleTimeModel model = model();
+        int methods = SettleTimeModel.MAX_KEYS * 3;
+        for (int m = 0; m < methods; m++) {
+            now++;
+            for (int i = 0; i < SettleTimeModel.MIN_SAMPLES; i++) {
+                model.record("app", "method" + m, steps.get(0), settled(400, 100), DEFAULT_QUIET, 0);
+            }
+            assertTrue(model.size() <= SettleTimeModel.MAX_KEYS);
+        }
+        // The newest keys and the shared type key survive; the oldest are gone.
+        assertTrue(model.budgetFor("app", "method" + (methods - 1), steps.get(0), DEFAULT_QUIET, DEFAULT_CAP)
+                .toString().contains("#0:CLICK"));
+        assertTrue(model.budgetFor("app", "method0", steps.get(0), DEFAULT_QUIET, DEFAULT_CAP)
+                .toString().contains("app/*:CLICK"));
+    }
+
+    private SettleTimeModel model() {
+        return new SettleTimeModel(null, () -> now);
+    }
+
+    private static UiIdleDetector.Settle settled(long activityMs, long maxGapMs) {
+        return new UiIdleDetector.Settle(true, activityMs + 300, activityMs, maxGapMs, 3);
+    }
+}
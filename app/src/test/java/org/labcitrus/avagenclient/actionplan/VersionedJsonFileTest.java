@@ -0,0 +1,110 @@
+package org.labcitrus.avagenclient.actionplan;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Round trips, and files that must load as null instead of failing.
+ */
+public class VersionedJsonFileTest {
+
+    private static final Type TYPE = new TypeToken<Map<String, List<Integer>>>() {}.getType();
+
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("store").toFile();
+        file = new File(dir, "model.json");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void saveLoad_roundTrip() throws IOException {
+        Map<String, List<Integer>> value = new HashMap<>();
+        value.put("a", Arrays.asList(1, 2, 3));
+        value.put("b", Arrays.asList());
+        assertTrue(store(1).save(value));
+
+        assertEquals(value, store(1).load());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals("{\"version\":1,\"items\":", read().substring(0, 21));
+    }
+
+    @Test
+    public void load_readsFilesWrittenBeforeTheSharedStore() throws IOException {
+        // The layout SettleTimeModel and PlanUsageStats wrote with their own file classes.
+        write("{\"version\":1,\"items\":{\"a\":[4]}}");
+        assertEquals(Arrays.asList(4), store(1).load().get("a"));
+    }
+
+    @Test
+    public void load_unusableFilesAreNull() throws IOException {
+        assertNull(store(1).load());
+        String[] unusable = {
+                "{\"version\":2,\"items\":{}}",
+                "{\"items\":{}}",
+                "{\"version\":1}",
+                "{\"version\":1,\"items\":null}",
+                "{\"version\":\"one\",\"items\":{}}",
+                "{\"version\":[1],\"items\":{}}",
+                "{\"version\":1,\"items\":[1,2]}",
+                "{\"version\":1,\"items\":{\"a\":\"x\"}}",
+                "[1,2]",
+                "",
+                "{\"version\":1,\"items\":{\"a\":[",
+        };
+        for (String content : unusable) {
+            write(content);
+            assertNull(content, store(1).load());
+        }
+    }
+
+    @Test
+    public void save_failureIsReported() {
+        VersionedJsonFile<Map<String, List<Integer>>> missingDir = new VersionedJsonFile<>(
+                new File(new File(dir, "missing"), "model.json"), 1, "items", TYPE, "test");
+        assertFalse(missingDir.save(new HashMap<>()));
+    }
+
+    private VersionedJsonFile<Map<String, List<Integer>>> store(int version) {
+        return new VersionedJsonFile<>(file, version, "items", TYPE, "test");
+    }
+
+    private void write(String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String read() throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
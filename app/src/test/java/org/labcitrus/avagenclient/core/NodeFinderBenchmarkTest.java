@@ -0,0 +1,116 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Compares the per-node evaluation of structural queries against the single-pass evaluation
+ * used by {@link NodeFinder#findNodes(UiSnapshot, NodeQuery...)} on a synthetic 5k-node tree.
+ * Runs on the host JVM; no device required. The timing comparison is {@code @Ignore}d so the
+ * default test task stays quiet; remove the annotation to run it.
+ */
+public class NodeFinderBenchmarkTest {
+
+    private static final int WRAPPER_DEPTH = 40;
+    private static final int ROWS = 1209;
+    private static final int ITERATIONS = 5;
+
+    @Test
+    public void structuralQueries_singlePassMatchesPerNode() {
+        UiSnapshot snapshot = buildSyntheticTree();
+        assertEquals(5_000, snapshot.size(), 50);
+        for (NodeQuery[] queries : queries()) {
+            assertArrayEquals(perNode(snapshot, queries), NodeFinder.findNodes(snapshot, queries));
+        }
+    }
+
+    /** Timings of both strategies; run by hand; nothing is asserted. */
+    @Ignore("benchmark, run manually")
+    @Test
+    public void benchmark_singlePassVersusPerNode() {
+        UiSnapshot snapshot = buildSyntheticTree();
+        for (NodeQuery[] queries : queries()) {
+            long perNodeNanos = Long.MAX_VALUE;
+            long singlePassNanos = Long.MAX_VALUE;
+            int matches = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                perNode(snapshot, queries);
+                perNodeNanos = Math.min(perNodeNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                matches = NodeFinder.findNodes(snapshot, queries).length;
+                singlePassNanos = Math.min(singlePassNanos, System.nanoTime() - start);
+            }
+
+            System.out.println("NodeFinderBenchmark " + Arrays.toString(queries)
+                    + " nodes=" + snapshot.size()
+                    + " matches=" + matches
+                    + " perNode=" + perNodeNanos / 1_000 + "us"
+                    + " singlePass=" + singlePassNanos / 1_000 + "us");
+        }
+    }
+
+    private static List<NodeQuery[]> queries() {
+        NodeQuery[] withParentQuery = {
+                NodeQuery.withParent(NodeQuery.withId("Amount"), NodeQuery.hasDescendant(NodeQuery.withId("TaType")))
+        };
+        NodeQuery[] hasDescendantQuery = {
+                NodeQuery.hasDescendant(NodeQuery.withText("Row 989"))
+        };
+
+        // Expensive-first, as the generator often emits it; the plan defers hasDescendant to
+        // the survivors of the parent / child checks.
+        NodeQuery[] mixedOrderQuery = {
+                NodeQuery.hasDescendant(NodeQuery.withId("TaType")),
+                NodeQuery.withParent(NodeQuery.withId("list")),
+                NodeQuery.withChild(NodeQuery.withText("Row 98"))
+        };
+        return Arrays.asList(withParentQuery, hasDescendantQuery, mixedOrderQuery);
+    }
+
+    /**
+     * The previous strategy: test every node independently, re-scanning subtrees as needed.
+     */
+    private static int[] perNode(UiSnapshot snapshot, NodeQuery[] queries) {
+        return IntStream.range(0, snapshot.size())
+                .filter(node -> NodeQuery.matchesAll(queries, snapshot, node))
+                .toArray();
+    }
+
+    /**
+     * root FrameLayout
+     *   └ 40 nested LinearLayout wrappers
+     *       └ RecyclerView
+     *           └ 1209 rows: LinearLayout "Amount" → [TextView "Row i", LinearLayout → TextView "TaType"?, ImageView]
+     */
+    private static UiSnapshot buildSyntheticTree() {
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int parent = add(b, UiSnapshot.NO_NODE, "android.widget.FrameLayout", null, null);
+        for (int i = 0; i < WRAPPER_DEPTH; i++) {
+            parent = add(b, parent, "android.widget.LinearLayout", null, "app:id/wrapper" + i);
+        }
+        int list = add(b, parent, "androidx.recyclerview.widget.RecyclerView", null, "app:id/list");
+        for (int row = 0; row < ROWS; row++) {
+            int container = add(b, list, "android.widget.LinearLayout", null, "app:id/Amount");
+            add(b, container, "android.widget.TextView", "Row " + row, "app:id/label");
+            int detail = add(b, container, "android.widget.LinearLayout", null, "app:id/detail");
+            if (row % 10 == 0) {
+                add(b, detail, "android.widget.TextView", "Type", "app:id/TaType");
+            }
+            add(b, container, "android.widget.ImageView", null, "app:id/icon");
+        }
+        return b.build();
+    }
+
+    private static int add(UiSnapshot.Builder b, int parent, String cls, String text, String id) {
+        return b.addNode(parent, null, "app", cls, text, null, id, 0, 0, 0, 0, UiSnapshot.FLAG_VISIBLE);
+    }
+}
@@ -0,0 +1,93 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+/**
+ * Compilation of node_query ASTs into {@link NodeQuery} predicates, and the expression cache.
+ */
+public class NodeQueryCompilerTest {
+
+    @Test
+    public void compile_sameExpressionIsParsedOnce() {
+        NodeQueryCompiler.clearCache();
+        long hits = NodeQueryCompiler.getHitCount();
+        long misses = NodeQueryCompiler.getMissCount();
+
+        CompiledQuery first = NodeQueryCompiler.compile("withId(\"ok\"), withText(\"Save\")");
+        CompiledQuery second = NodeQueryCompiler.compile("  withId(\"ok\"), withText(\"Save\")\n");
+        CompiledQuery other = NodeQueryCompiler.compile("withId(\"cancel\")");
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(hits + 1, NodeQueryCompiler.getHitCount());
+        assertEquals(misses + 2, NodeQueryCompiler.getMissCount());
+        assertEquals("withId(\"ok\"), withText(\"Save\")", first.getSource());
+
+        NodeQueryCompiler.clearCache();
+        assertNotSame(first, NodeQueryCompiler.compile("withId(\"ok\"), withText(\"Save\")"));
+    }
+
+    @Test
+    public void compile_leastRecentlyUsedExpressionIsEvicted() {
+        NodeQueryCompiler.clearCache();
+        CompiledQuery kept = NodeQueryCompiler.compile("withDepth(0)");
+        CompiledQuery evicted = NodeQueryCompiler.compile("withDepth(1)");
+        for (int i = 2; i <= NodeQueryCompiler.MAX_CACHED_QUERIES; i++) {
+            NodeQueryCompiler.compile("withDepth(" + i + ")");
+            NodeQueryCompiler.compile("withDepth(0)"); // keep it recently used
+        }
+        assertSame(kept, NodeQueryCompiler.compile("withDepth(0)"));
+        assertNotSame(evicted, NodeQueryCompiler.compile("withDepth(1)"));
+    }
+
+    @Test
+    public void compile_queriesMatchLikeTheFactories() {
+        UiSnapshot snapshot = buildTree();
+        CompiledQuery query = NodeQueryCompiler.compile(
+                "withParent(withId(\"row\"), hasDescendant(withText(equals(\"Paid\")))), withParentIndex(0)");
+        int[] expected = NodeFinder.findNodes(snapshot,
+                NodeQuery.withParent(NodeQuery.withId("row"), NodeQuery.hasDescendant(NodeQuery.withText(StringMatcher.equalsIgnoreCase("Paid")))),
+                NodeQuery.withParentIndex(0));
+        assertArrayEquals(expected, NodeFinder.findNodes(snapshot, query.getQueries()));
+        assertEquals(1, expected.length);
+
+        assertArrayEquals(new int[] {2, 5}, NodeFinder.findNodes(snapshot,
+                NodeQueryCompiler.compile("withText(regex(\"^(Lunch|Rent)$\"))").getQueries()));
+    }
+
+    @Test
+    public void compile_invalidRegexIsSyntaxError() {
+        NodeQuerySyntaxException e = assertThrows(NodeQuerySyntaxException.class,
+                () -> NodeQueryCompiler.compile("withId(\"a\"), withText(regex(\"([a-z\"))"));
+        assertEquals(13, e.getPosition());
+        assertEquals(0, NodeQuery.parseList("withText(regex(\"*\"))").length);
+        assertEquals(0, NodeQuery.parseList("withDepth(12345678901)").length);
+    }
+
+    /**
+     * root
+     *   ├ row → [TextView "Lunch", TextView "Paid"]
+     *   └ row → [TextView "Rent", TextView "Due"]
+     */
+    private static UiSnapshot buildTree() {
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int root = add(b, UiSnapshot.NO_NODE, "android.widget.FrameLayout", null, "app:id/root");
+        int row = add(b, root, "android.widget.LinearLayout", null, "app:id/row");
+        add(b, row, "android.widget.TextView", "Lunch", "app:id/label");
+        add(b, row, "android.widget.TextView", "Paid", "app:id/state");
+        row = add(b, root, "android.widget.LinearLayout", null, "app:id/row");
+        add(b, row, "android.widget.TextView", "Rent", "app:id/label");
+        add(b, row, "android.widget.TextView", "Due", "app:id/state");
+        return b.build();
+    }
+
+    private static int add(UiSnapshot.Builder b, int parent, String cls, String text, String id) {
+        return b.addNode(parent, null, "app", cls, text, null, id, 0, 0, 0, 0, UiSnapshot.FLAG_VISIBLE);
+    }
+}
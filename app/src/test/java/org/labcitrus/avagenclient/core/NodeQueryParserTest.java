@@ -0,0 +1,94 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Grammar, error positions and nesting of the node_query parser.
+ */
+public class NodeQueryParserTest {
+
+    @Test
+    public void parse_blankExpressionIsEmptyConjunction() {
+        assertEquals(0, NodeQueryParser.parse("").size());
+        assertEquals(0, NodeQueryParser.parse("  \u00A0\u200B ").size());
+        assertEquals(0, NodeQueryParser.parse(null).size());
+    }
+
+    @Test
+    public void parse_attributesAndMatchers() {
+        List<NodeQueryParser.QueryExpr> ast = NodeQueryParser.parse(
+                "withText(\"Save\"), withId(equals(\"app:id/ok\")), withContentDescription(startsWithIgnoreCase(\"Nav\")),"
+                        + " withClassName(endsWithIgnoreCase(\"Button\")), withText(regex(\"\\\\d+\")),"
+                        + " isTextIgnoreCase(\"YES\"), withText(containsStringIgnoringCase(\"a\\\"b\"))");
+        assertEquals(7, ast.size());
+        assertEquals("TEXT(CONTAINS_IGNORE_CASE(\"Save\"))", ast.get(0).toString());
+        assertEquals("ID(EQUALS_IGNORE_CASE(\"app:id/ok\"))", ast.get(1).toString());
+        assertEquals("CONTENT_DESCRIPTION(STARTS_WITH_IGNORE_CASE(\"Nav\"))", ast.get(2).toString());
+        assertEquals("CLASS_NAME(ENDS_WITH_IGNORE_CASE(\"Button\"))", ast.get(3).toString());
+        assertEquals("TEXT(REGEX(\"\\d+\"))", ast.get(4).toString());
+        assertEquals("TEXT(EQUALS_IGNORE_CASE(\"YES\"))", ast.get(5).toString());
+        assertEquals("TEXT(CONTAINS_IGNORE_CASE(\"a\"b\"))", ast.get(6).toString());
+        assertEquals(0, ast.get(0).position);
+    }
+
+    @Test
+    public void parse_positionalAndCheckedPredicates() {
+        List<NodeQueryParser.QueryExpr> ast = NodeQueryParser.parse(
+                "withParentIndex(2), withIndexOfType(-1), withDepth(0), isLastChild(), isChecked(), isNotChecked()");
+        assertEquals("[PARENT_INDEX(2), INDEX_OF_TYPE(-1), DEPTH(0), LAST_CHILD, CHECKED, NOT_CHECKED]",
+                ast.toString());
+    }
+
+    @Test
+    public void parse_nestedStructuralFunctions() {
+        String source = "withParent(withId(\"Amount\"), hasDescendant(withChild(withText(\"Row\"), isLastChild()))),"
+                + " withDescendant(withId(\"TaType\"))";
+        List<NodeQueryParser.QueryExpr> ast = NodeQueryParser.parse(source);
+        assertEquals(2, ast.size());
+
+        NodeQueryParser.StructuralExpr parent = (NodeQueryParser.StructuralExpr) ast.get(0);
+        assertEquals(NodeQueryParser.Relation.PARENT, parent.relation);
+        assertEquals(2, parent.conditions.size());
+        NodeQueryParser.StructuralExpr descendant = (NodeQueryParser.StructuralExpr) parent.conditions.get(1);
+        assertEquals(NodeQueryParser.Relation.DESCENDANT, descendant.relation);
+        assertEquals(source.indexOf("hasDescendant"), descendant.position);
+        NodeQueryParser.StructuralExpr child = (NodeQueryParser.StructuralExpr) descendant.conditions.get(0);
+        assertEquals("CHILD[TEXT(CONTAINS_IGNORE_CASE(\"Row\")), LAST_CHILD]", child.toString());
+
+        assertEquals("DESCENDANT[ID(CONTAINS_IGNORE_CASE(\"TaType\"))]", ast.get(1).toString());
+    }
+
+    @Test
+    public void parse_errorsCarryTokenPosition() {
+        assertError("withText(\"a\"), withFoo(\"b\")", 15);   // unknown function
+        assertError("withText(startsWith(\"a\"))", 9);        // unknown matcher
+        assertError("withText(\"a\"", 12);                     // missing ')'
+        assertError("withText(\"a\"))", 13);                   // trailing ')'
+        assertError("withText(\"a)", 9);                       // unterminated string
+        assertError("withText(\"a\") withId(\"b\")", 14);      // missing ','
+        assertError("withParentIndex(\"1\")", 16);             // string where a number belongs
+        assertError("withId(#)", 7);                           // unexpected character
+        assertError("withParent()", 11);                       // relation without conditions
+        assertError("withText(\"a\"),", 14);                   // dangling ','
+    }
+
+    @Test
+    public void parse_oversizedNumberIsSyntaxError() {
+        assertError("withDepth(99999999999)", 10);
+        assertError("withText(\"a\"), withParentIndex(-2147483649)", 31);
+        assertEquals("[INDEX_OF_TYPE(2147483647)]", NodeQueryParser.parse("withIndexOfType(2147483647)").toString());
+    }
+
+    private static void assertError(String source, int position) {
+        NodeQuerySyntaxException e = assertThrows(NodeQuerySyntaxException.class, () -> NodeQueryParser.parse(source));
+        assertEquals(source + ": " + e.getMessage(), position, e.getPosition());
+        assertEquals(source, e.getExpression());
+        assertTrue(e.getMessage().contains(" at " + position + " in: "));
+    }
+}
@@ -0,0 +1,190 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scroll counts only once the app reports TYPE_VIEW_SCROLLED; a refused action or a missing
+ * event is the end of the content. The detector runs on a fake clock, so timeouts pass without
+ * waiting.
+ */
+public class NodeScrollerTest {
+
+    private static final String APP = "com.example.app";
+    private static final String OWN_PACKAGE = "org.labcitrus.avagenclient";
+
+    private long now = 1_000L;
+    /** Added to the clock on every read; 0 freezes it, so only an event ends a wait. */
+    private long step = NodeScroller.SCROLL_EVENT_TIMEOUT_MS;
+    private final UiIdleDetector detector = new UiIdleDetector(OWN_PACKAGE, () -> now += step);
+    private final NodeScroller scroller = new NodeScroller(detector);
+    private Thread events;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (events != null) {
+            events.join();
+        }
+        Thread.interrupted();
+    }
+
+    @Test
+    public void scrollBy_refusedActionIsEndOfContent() {
+        FakeContainer list = new FakeContainer(false, null);
+        long before = now;
+        assertFalse(scroller.scrollBy(list, true));
+        assertEquals("[" + AccessibilityNodeInfo.ACTION_SCROLL_FORWARD + "]", list.actions.toString());
+        // Refused: no wait for an event at all.
+        assertEquals(before, now);
+    }
+
+    @Test
+    public void scrollBy_noScrollEventIsEndOfContent() {
+        FakeContainer list = new FakeContainer(true, null);
+        long before = now;
+        assertFalse(scroller.scrollBy(list, false));
+        assertEquals("[" + AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD + "]", list.actions.toString());
+        assertTrue(now - before >= NodeScroller.SCROLL_EVENT_TIMEOUT_MS);
+    }
+
+    @Test
+    public void scrollBy_otherActivityIsNotAScroll() {
+        // The list only redraws: content changes, but nothing scrolled.
+        FakeContainer list = new FakeContainer(true, AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED);
+        assertFalse(scroller.scrollBy(list, true));
+        assertEquals(1, detector.getEventCount());
+    }
+
+    @Test
+    public void scrollBy_eventReportedBeforePerformActionReturnsCounts() {
+        FakeContainer list = new FakeContainer(true, AccessibilityEvent.TYPE_VIEW_SCROLLED);
+        assertTrue(scroller.scrollBy(list, true));
+    }
+
+    @Test
+    public void scrollBy_laterEventCounts() {
+        step = 0;
+        FakeContainer list = new FakeContainer(true, null);
+        events = new Thread(() -> {
+            sleep(20);
+            detector.onAccessibilityEvent(new FakeEvent(AccessibilityEvent.TYPE_VIEW_SCROLLED, APP));
+        });
+        events.start();
+        assertTrue(scroller.scrollBy(list, true));
+    }
+
+    @Test
+    public void scrollBy_earlierScrollDoesNotCount() {
+        detector.onAccessibilityEvent(new FakeEvent(AccessibilityEvent.TYPE_VIEW_SCROLLED, APP));
+        assertFalse(scroller.scrollBy(new FakeContainer(true, null), true));
+    }
+
+    @Test
+    public void scrollBy_ownPackageScrollDoesNotCount() {
+        FakeContainer list = new FakeContainer(true, null) {
+            @Override
+            public boolean performAction(int action) {
+                super.performAction(action);
+                detector.onAccessibilityEvent(new FakeEvent(AccessibilityEvent.TYPE_VIEW_SCROLLED, OWN_PACKAGE));
+                return true;
+            }
+        };
+        assertFalse(scroller.scrollBy(list, true));
+    }
+
+    @Test
+    public void scrollBy_interruptedWaitIsNotAScroll() {
+        step = 0;
+        Thread.currentThread().interrupt();
+        assertFalse(scroller.scrollBy(new FakeContainer(true, null), true));
+        assertTrue(Thread.currentThread().isInterrupted());
+    }
+
+    @Test
+    public void scrollBy_withoutContainerDoesNothing() {
+        assertFalse(scroller.scrollBy(null, true));
+    }
+
+    @Test
+    public void scrollToPosition_withoutCollectionInfoDoesNotAct() {
+        FakeContainer list = new FakeContainer(true, AccessibilityEvent.TYPE_VIEW_SCROLLED);
+        assertFalse(scroller.scrollToPosition(list, 3));
+        assertTrue(list.actions.isEmpty());
+        assertFalse(scroller.scrollToPosition(null, 3));
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** A container that accepts or refuses actions, and may report an event while acting. */
+    private class FakeContainer extends AccessibilityNodeInfo {
+        final List<Integer> actions = new ArrayList<>();
+        private final boolean accept;
+        private final Integer reportedEvent;
+
+        FakeContainer(boolean accept, Integer reportedEvent) {
+            this.accept = accept;
+            this.reportedEvent = reportedEvent;
+        }
+
+        @Override
+        public boolean performAction(int action) {
+            actions.add(action);
+            if (accept && reportedEvent != null) {
+                detector.onAccessibilityEvent(new FakeEvent(reportedEvent, APP));
+            }
+            return accept;
+        }
+
+        @Override
+        public boolean performAction(int action, Bundle args) {
+            return performAction(action);
+        }
+
+        @Override
+        public CharSequence getClassName() {
+            return "androidx.recyclerview.widget.RecyclerView";
+        }
+
+        @Override
+        public CollectionInfo getCollectionInfo() {
+            return null;
+        }
+    }
+
+    private static final class FakeEvent extends AccessibilityEvent {
+        private final int type;
+        private final String packageName;
+
+        FakeEvent(int type, String packageName) {
+            this.type = type;
+            this.packageName = packageName;
+        }
+
+        @Override
+        public int getEventType() {
+            return type;
+        }
+
+        @Override
+        public CharSequence getPackageName() {
+            return packageName;
+        }
+    }
+}
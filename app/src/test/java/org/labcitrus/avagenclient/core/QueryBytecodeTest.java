@@ -0,0 +1,114 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A stored query must decode to the AST and predicates it was encoded from, and malformed code
+ * must fail with the documented exceptions.
+ */
+public class QueryBytecodeTest {
+
+    private static final String[] QUERIES = {
+            "withText(\"Save\")",
+            "withText(\"Save\"), withId(equals(\"app:id/ok\")), withContentDescription(startsWithIgnoreCase(\"Nav\"))",
+            "withText(regex(\"^Row [0-9]+$\")), withClassName(endsWithIgnoreCase(\"Button\"))",
+            "withParentIndex(2), withIndexOfType(-1), withDepth(0), isLastChild(), isChecked(), isNotChecked()",
+            "withParent(withId(\"Amount\"), hasDescendant(withChild(withText(\"Row\"), isLastChild())))",
+            "withText(\"Überweisung 支付 \\\"quoted\\\"\")",
+    };
+
+    @Test
+    public void writeRead_roundTrip() throws IOException {
+        for (String source : QUERIES) {
+            List<NodeQueryParser.QueryExpr> ast = NodeQueryParser.parse(source);
+            List<String> strings = new ArrayList<>();
+            byte[] code = encode(ast, strings);
+
+            ByteBuffer in = ByteBuffer.allocate(code.length + 3);
+            in.put((byte) 7).put(code).put((byte) 8).put((byte) 9).flip();
+            in.position(1);
+            CompiledQuery restored = QueryBytecode.read(in, strings::get);
+
+            assertEquals(source, 1 + code.length, in.position());
+            assertEquals(source, ast.toString(), restored.getAst().toString());
+            assertEquals(source, Arrays.toString(NodeQueryCompiler.compile(source).getQueries()),
+                    Arrays.toString(restored.getQueries()));
+        }
+    }
+
+    @Test
+    public void write_sharesStringTableEntries() throws IOException {
+        List<String> strings = new ArrayList<>();
+        encode(NodeQueryParser.parse("withText(\"ok\"), withId(\"ok\"), withParent(withText(\"ok\"))"), strings);
+        assertEquals(Arrays.asList("ok"), strings);
+    }
+
+    @Test
+    public void read_truncatedCodeUnderflows() throws IOException {
+        List<String> strings = new ArrayList<>();
+        byte[] code = encode(NodeQueryParser.parse(QUERIES[4]), strings);
+        for (int length = 0; length < code.length; length++) {
+            ByteBuffer in = ByteBuffer.wrap(Arrays.copyOf(code, length));
+            assertThrows("truncated at " + length, BufferUnderflowException.class,
+                    () -> QueryBytecode.read(in, strings::get));
+        }
+    }
+
+    @Test
+    public void read_malformedCodeIsAnIllegalArgument() {
+        // count 1, opcode 9
+        assertThrows(IllegalArgumentException.class, () -> read(0, 1, 9));
+        // count 1, ATTR, attribute ordinal 100
+        assertThrows(IllegalArgumentException.class, () -> read(0, 1, 1, 100, 0, 0, 0, 0, 0));
+        // count 1, POSITION, kind ordinal -1
+        assertThrows(IllegalArgumentException.class, () -> read(0, 1, 3, 0xFF, 0, 0, 0, 0));
+        // An invalid stored regex.
+        int regex = NodeQueryParser.MatchMode.REGEX.ordinal();
+        assertThrows(IllegalArgumentException.class,
+                () -> QueryBytecode.read(ByteBuffer.wrap(bytes(0, 1, 1, 0, regex, 0, 0, 0, 0)), i -> "(["));
+    }
+
+    @Test
+    public void read_emptyProgram() {
+        CompiledQuery query = read(0, 0);
+        assertEquals(0, query.getAst().size());
+        assertEquals(0, query.getQueries().length);
+    }
+
+    private static byte[] encode(List<NodeQueryParser.QueryExpr> ast, List<String> strings) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        QueryBytecode.write(ast, value -> {
+            int index = strings.indexOf(value);
+            if (index < 0) {
+                index = strings.size();
+                strings.add(value);
+            }
+            return index;
+        }, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static CompiledQuery read(int... code) {
+        return QueryBytecode.read(ByteBuffer.wrap(bytes(code)), i -> "s" + i);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
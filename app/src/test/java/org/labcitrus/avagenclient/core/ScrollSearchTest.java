@@ -0,0 +1,336 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Scroll-until-found over a fake list: which rows count as new, when the search stops, and the
+ * full-scan fallback. The list shows {@link #VISIBLE} rows and moves {@link #PAGE} rows per
+ * accepted scroll; it refuses to scroll once its last row is shown.
+ *
+ * <pre>
+ *   FrameLayout
+ *   ├── TextView  title                 (outside the container)
+ *   └── RecyclerView  (scrollable)
+ *       └── LinearLayout id/row  ×VISIBLE
+ *           └── TextView id/label "Row n"
+ * </pre>
+ */
+public class ScrollSearchTest {
+
+    private static final String APP = "com.example.app";
+    private static final String LIST_CLASS = "androidx.recyclerview.widget.RecyclerView";
+    private static final int VISIBLE = 6;
+    private static final int PAGE = 4;
+
+    /** ScrollSearch's clock. */
+    private long now = 1_000L;
+    /** Added to {@link #now} by each accepted scroll. */
+    private long scrollMs;
+    /** The detector's clock: jumps past every quiet window and timeout, so no wait blocks. */
+    private long uptime;
+    private final UiIdleDetector detector = new UiIdleDetector(null, () -> uptime += 10_000L);
+
+    private List<String> rows = numbered(30);
+    private int first;
+    private String title = "Statistics";
+    private int listTop = 200;
+    private boolean windowGone;
+    /** Runs after each accepted scroll, to change the screen. */
+    private Runnable afterScroll = () -> {};
+    private int scrollCalls;
+
+    private final FakeList list = new FakeList();
+    private final ScrollSearch search = new ScrollSearch(this::capture, new NodeScroller(detector), detector, () -> now);
+
+    @After
+    public void tearDown() {
+        Thread.interrupted();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: subtreeHashes
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void subtreeHashes_contentNotPosition() {
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int root = b.addNode(UiSnapshot.NO_NODE, null, APP, "android.widget.FrameLayout", null, null, null, 0, 0, 100, 600, UiSnapshot.FLAG_VISIBLE);
+        int[] rowNodes = {
+                row(b, root, 0, "Row", null, "app:id/label"),
+                row(b, root, 100, "Row", null, "app:id/label"),   // same content, other place
+                row(b, root, 200, "Row 2", null, "app:id/label"), // text
+                row(b, root, 300, "Row", "Row", "app:id/label"),  // description
+                row(b, root, 400, "Row", null, "app:id/title"),   // id
+        };
+        int other = b.addNode(root, null, APP, "android.widget.FrameLayout", null, null, "app:id/row", 0, 500, 100, 600, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(other, null, APP, "android.widget.TextView", "Row", null, "app:id/label", 0, 500, 100, 600, UiSnapshot.FLAG_VISIBLE);
+        long[] hashes = ScrollSearch.subtreeHashes(b.build());
+
+        assertEquals(hashes[rowNodes[0]], hashes[rowNodes[1]]);
+        assertEquals(hashes[rowNodes[0] + 1], hashes[rowNodes[1] + 1]);
+        for (int i = 2; i < rowNodes.length; i++) {
+            assertNotEquals("row " + i, hashes[rowNodes[0]], hashes[rowNodes[i]]);
+        }
+        // Same child, other class of row.
+        assertNotEquals(hashes[rowNodes[0]], hashes[other]);
+    }
+
+    @Test
+    public void subtreeHashes_dependOnChildOrder() {
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int root = b.addNode(UiSnapshot.NO_NODE, null, APP, "android.widget.FrameLayout", null, null, null, 0, 0, 100, 200, UiSnapshot.FLAG_VISIBLE);
+        int ab = b.addNode(root, null, APP, "android.widget.LinearLayout", null, null, null, 0, 0, 100, 100, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(ab, null, APP, "android.widget.TextView", "A", null, null, 0, 0, 50, 100, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(ab, null, APP, "android.widget.TextView", "B", null, null, 50, 0, 100, 100, UiSnapshot.FLAG_VISIBLE);
+        int ba = b.addNode(root, null, APP, "android.widget.LinearLayout", null, null, null, 0, 100, 100, 200, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(ba, null, APP, "android.widget.TextView", "B", null, null, 0, 100, 50, 200, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(ba, null, APP, "android.widget.TextView", "A", null, null, 50, 100, 100, 200, UiSnapshot.FLAG_VISIBLE);
+        long[] hashes = ScrollSearch.subtreeHashes(b.build());
+
+        assertEquals(hashes[ab + 1], hashes[ba + 2]);
+        assertNotEquals(hashes[ab], hashes[ba]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: scrollUntilFound
+    // ---------------------------------------------------------------------------------------------
+
+    @Test
+    public void scrollUntilFound_alreadyOnScreen() {
+        ScrollSearch.Outcome outcome = find("Row 5", 10);
+        assertEquals("Row 5", label(outcome));
+        assertEquals(0, outcome.getScrolls());
+        assertEquals(0, scrollCalls);
+    }
+
+    @Test
+    public void scrollUntilFound_scrollsUntilTheTargetIsRevealed() {
+        // Rows 0-5, then 4-9, then 8-13.
+        ScrollSearch.Outcome outcome = find("Row 12", 10);
+        assertEquals("Row 12", label(outcome));
+        assertEquals(2, outcome.getScrolls());
+        assertTrue(outcome.toString(), outcome.toString().startsWith("found"));
+    }
+
+    @Test
+    public void scrollUntilFound_structuralQueryOnARevealedRow() {
+        ScrollSearch.Outcome outcome = search.scrollUntilFound(list, true, 10, now + 60_000L,
+                NodeQueryCompiler.compile("withId(\"label\"), withParent(withId(\"row\"), hasDescendant(withText(\"Row 9\")))")
+                        .getQueries());
+        assertEquals("Row 9", label(outcome));
+        assertEquals(1, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_onlyNewRowsAreTested() {
+        // After the first scroll the title (outside the list) shows the target text. The list is
+        // still found, so only its new rows are tested and the title is never seen.
+        afterScroll = () -> title = "Row 99";
+        ScrollSearch.Outcome outcome = find("Row 99", 10);
+        assertFalse(outcome.isFound());
+        assertTrue(outcome.toString(), outcome.toString().startsWith("end of content"));
+        assertEquals(6, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_containerNotFoundAfterScrollScansEverything() {
+        // A collapsing toolbar: the list moves up, so its bounds no longer match.
+        afterScroll = () -> {
+            listTop = 100;
+            title = "Row 99";
+        };
+        ScrollSearch.Outcome outcome = find("Row 99", 10);
+        assertEquals("Row 99", label(outcome));
+        assertEquals(1, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_containerNotFoundKeepsScrolling() {
+        afterScroll = () -> listTop = 100 + scrollCalls;
+        ScrollSearch.Outcome outcome = find("Row 12", 10);
+        assertEquals("Row 12", label(outcome));
+        assertEquals(2, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_identicalRowsStopWhenNothingNewAppears() {
+        // Every row looks the same, so a scroll reveals no row that was not seen already.
+        rows = new ArrayList<>(Collections.nCopies(30, "Item"));
+        ScrollSearch.Outcome outcome = find("Missing", 10);
+        assertFalse(outcome.isFound());
+        assertTrue(outcome.toString(), outcome.toString().startsWith("content stopped changing"));
+        assertEquals(1, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_refusedScrollIsEndOfContent() {
+        rows = numbered(10);
+        ScrollSearch.Outcome outcome = find("Missing", 10);
+        assertTrue(outcome.toString(), outcome.toString().startsWith("end of content"));
+        assertEquals(1, outcome.getScrolls());
+        assertEquals(2, scrollCalls);
+    }
+
+    @Test
+    public void scrollUntilFound_scrollBudget() {
+        ScrollSearch.Outcome outcome = find("Row 29", 2);
+        assertNull(outcome.getNode());
+        assertTrue(outcome.toString(), outcome.toString().startsWith("scroll budget used up"));
+        assertEquals(2, outcome.getScrolls());
+        assertEquals(2, scrollCalls);
+    }
+
+    @Test
+    public void scrollUntilFound_timeBudget() {
+        scrollMs = 400;
+        ScrollSearch.Outcome outcome = search.scrollUntilFound(list, true, 10, now + 1_000L, query("Row 29"));
+        assertFalse(outcome.isFound());
+        assertTrue(outcome.toString(), outcome.toString().startsWith("time budget used up"));
+        // Checked before each scroll: at +0, +400 and +800 ms there was time left.
+        assertEquals(3, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_noActiveWindow() {
+        windowGone = true;
+        ScrollSearch.Outcome outcome = find("Row 12", 10);
+        assertFalse(outcome.isFound());
+        assertTrue(outcome.toString(), outcome.toString().startsWith("no active window"));
+
+        windowGone = false;
+        afterScroll = () -> windowGone = true;
+        outcome = find("Row 12", 10);
+        assertTrue(outcome.toString(), outcome.toString().startsWith("no active window"));
+        assertEquals(1, outcome.getScrolls());
+    }
+
+    @Test
+    public void scrollUntilFound_interrupted() {
+        Thread.currentThread().interrupt();
+        ScrollSearch.Outcome outcome = find("Row 12", 10);
+        assertTrue(outcome.toString(), outcome.toString().startsWith("interrupted"));
+        assertEquals(0, scrollCalls);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // region: fixture
+    // ---------------------------------------------------------------------------------------------
+
+    private ScrollSearch.Outcome find(String text, int maxScrolls) {
+        return search.scrollUntilFound(list, true, maxScrolls, now + 60_000L, query(text));
+    }
+
+    private static NodeQuery[] query(String text) {
+        return NodeQueryCompiler.compile("withText(\"" + text + "\")").getQueries();
+    }
+
+    private static String label(ScrollSearch.Outcome outcome) {
+        AccessibilityNodeInfo node = outcome.getNode();
+        return node != null ? node.toString() : null;
+    }
+
+    private static List<String> numbered(int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            result.add("Row " + i);
+        }
+        return result;
+    }
+
+    private static int row(UiSnapshot.Builder b, int parent, int top, String text, String desc, String id) {
+        int row = b.addNode(parent, null, APP, "android.widget.LinearLayout", null, null, "app:id/row", 0, top, 100, top + 100, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(row, null, APP, "android.widget.TextView", text, desc, id, 0, top, 100, top + 100, UiSnapshot.FLAG_VISIBLE);
+        return row;
+    }
+
+    private UiSnapshot capture() {
+        if (windowGone) {
+            return null;
+        }
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int root = b.addNode(UiSnapshot.NO_NODE, null, APP, "android.widget.FrameLayout", null, null, null,
+                0, 0, 1080, 1920, UiSnapshot.FLAG_VISIBLE);
+        b.addNode(root, new Label(title), APP, "android.widget.TextView", title, null, "app:id/title",
+                0, 0, 1080, listTop, UiSnapshot.FLAG_VISIBLE);
+        int container = b.addNode(root, null, APP, LIST_CLASS, null, null, "app:id/list",
+                0, listTop, 1080, 1920, UiSnapshot.FLAG_VISIBLE | UiSnapshot.FLAG_SCROLLABLE);
+        for (int r = first; r < Math.min(first + VISIBLE, rows.size()); r++) {
+            int top = listTop + (r - first) * 200;
+            int row = b.addNode(container, null, APP, "android.widget.LinearLayout", null, null, "app:id/row",
+                    0, top, 1080, top + 200, UiSnapshot.FLAG_VISIBLE | UiSnapshot.FLAG_CLICKABLE);
+            b.addNode(row, new Label(rows.get(r)), APP, "android.widget.TextView", rows.get(r), null, "app:id/label",
+                    0, top, 1080, top + 200, UiSnapshot.FLAG_VISIBLE);
+        }
+        return b.build();
+    }
+
+    /** The list node the search scrolls; its bounds are those it had when the search started. */
+    private final class FakeList extends AccessibilityNodeInfo {
+        @Override
+        public boolean performAction(int action) {
+            scrollCalls++;
+            if (action != ACTION_SCROLL_FORWARD || first + VISIBLE >= rows.size()) {
+                return false;
+            }
+            first = Math.min(first + PAGE, rows.size() - VISIBLE);
+            now += scrollMs;
+            afterScroll.run();
+            detector.onAccessibilityEvent(new ScrollEvent());
+            return true;
+        }
+
+        @Override
+        public void getBoundsInScreen(Rect out) {
+            out.left = 0;
+            out.top = 200;
+            out.right = 1080;
+            out.bottom = 1920;
+        }
+
+        @Override
+        public CharSequence getClassName() {
+            return LIST_CLASS;
+        }
+    }
+
+    /** A live node that names its text, to tell which node a search returned. */
+    private static final class Label extends AccessibilityNodeInfo {
+        private final String text;
+
+        Label(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static final class ScrollEvent extends AccessibilityEvent {
+        @Override
+        public int getEventType() {
+            return TYPE_VIEW_SCROLLED;
+        }
+
+        @Override
+        public CharSequence getPackageName() {
+            return APP;
+        }
+    }
+}
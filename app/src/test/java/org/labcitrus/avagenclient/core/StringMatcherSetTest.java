@@ -0,0 +1,136 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The Aho–Corasick set must report exactly the nodes each of its matchers accepts on its own.
+ */
+public class StringMatcherSetTest {
+
+    // Few distinct letters, so needles overlap and share prefixes / suffixes (failure links).
+    private static final String ALPHABET = "abAB éÉßẞσςΣİıI中";
+
+    @Test
+    public void match_overlappingNeedles() {
+        // The textbook case: "she" ends in "he", "hers" starts with "he".
+        UiSnapshot snapshot = snapshotOf("ushers", "his", "sHe", "hershe");
+        StringMatcherSet set = StringMatcherSet.of(
+                StringMatcher.containsIgnoreCase("he"),
+                StringMatcher.containsIgnoreCase("she"),
+                StringMatcher.containsIgnoreCase("his"),
+                StringMatcher.containsIgnoreCase("hers"),
+                StringMatcher.equalsIgnoreCase("SHE"),
+                StringMatcher.startsWithIgnoreCase("he"),
+                StringMatcher.endsWithIgnoreCase("he"),
+                StringMatcher.containsString("He"),
+                StringMatcher.containsIgnoreCase("hershey"));
+        StringMatcherSet.Matches m = set.match(snapshot, UiSnapshotIndex.Field.TEXT);
+
+        assertArrayEquals(new int[] {1, 3, 4}, m.getNodes(0));
+        assertArrayEquals(new int[] {1, 3, 4}, m.getNodes(1));
+        assertArrayEquals(new int[] {2}, m.getNodes(2));
+        assertArrayEquals(new int[] {1, 4}, m.getNodes(3));
+        assertArrayEquals(new int[] {3}, m.getNodes(4));
+        assertArrayEquals(new int[] {4}, m.getNodes(5));
+        assertArrayEquals(new int[] {3, 4}, m.getNodes(6));
+        assertArrayEquals(new int[] {3}, m.getNodes(7));
+        assertFalse(m.isMatched(8));
+        assertEquals(8, m.matchedCount());
+        assertEquals(3, m.firstNode(4));
+        assertEquals(UiSnapshot.NO_NODE, m.firstNode(8));
+    }
+
+    @Test
+    public void match_sharedFoldedNeedlesRegexAndEmpty() {
+        UiSnapshot snapshot = snapshotOf("Pay", "PAY now", "Amount 12", null, "");
+        StringMatcherSet set = StringMatcherSet.of(
+                StringMatcher.equalsIgnoreCase("pay"),
+                StringMatcher.startsWithIgnoreCase("PAY"),
+                StringMatcher.regex("\\d+$"),
+                StringMatcher.containsIgnoreCase(""),
+                StringMatcher.equalsIgnoreCase(""));
+        StringMatcherSet.Matches m = set.match(snapshot, UiSnapshotIndex.Field.TEXT, UiSnapshotIndex.Field.ID);
+
+        assertEquals(5, set.size());
+        assertArrayEquals(new int[] {1}, m.getNodes(0));
+        assertArrayEquals(new int[] {1, 2}, m.getNodes(1));
+        assertArrayEquals(new int[] {3}, m.getNodes(2));
+        // Every non-null value contains "", including the root's id.
+        assertArrayEquals(new int[] {0, 1, 2, 3, 5}, m.getNodes(3));
+        assertArrayEquals(new int[] {5}, m.getNodes(4));
+    }
+
+    @Test
+    public void match_randomizedAgainstSingleMatchers() {
+        Random random = new Random(3);
+        for (int round = 0; round < 200; round++) {
+            String[] values = new String[30];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = random.nextInt(10) == 0 ? null : random(random, 10);
+            }
+            UiSnapshot snapshot = snapshotOf(values);
+
+            List<StringMatcher> matchers = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                String needle = random.nextInt(3) == 0 && values[i] != null ? slice(random, values[i]) : random(random, 4);
+                switch (random.nextInt(5)) {
+                    case 0:  matchers.add(StringMatcher.containsIgnoreCase(needle)); break;
+                    case 1:  matchers.add(StringMatcher.equalsIgnoreCase(needle)); break;
+                    case 2:  matchers.add(StringMatcher.startsWithIgnoreCase(needle)); break;
+                    case 3:  matchers.add(StringMatcher.endsWithIgnoreCase(needle)); break;
+                    default: matchers.add(StringMatcher.containsString(needle)); break;
+                }
+            }
+            StringMatcherSet set = StringMatcherSet.of(matchers);
+            StringMatcherSet.Matches m = set.match(snapshot, UiSnapshotIndex.Field.TEXT);
+
+            for (int i = 0; i < matchers.size(); i++) {
+                StringMatcher matcher = matchers.get(i);
+                int[] expected = IntStream.range(0, snapshot.size())
+                        .filter(node -> matcher.test(snapshot.getText(node)))
+                        .toArray();
+                assertTrue("round " + round + " " + matcher, Arrays.equals(expected, m.getNodes(i)));
+            }
+        }
+    }
+
+    private static String random(Random random, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static String slice(Random random, String value) {
+        if (value.isEmpty()) {
+            return value;
+        }
+        int start = random.nextInt(value.length());
+        return value.substring(start, start + 1 + random.nextInt(value.length() - start));
+    }
+
+    /** A root with one child per text; the root has an id and no text. */
+    private static UiSnapshot snapshotOf(String... texts) {
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int root = b.addNode(UiSnapshot.NO_NODE, null, "app", "android.widget.FrameLayout", null, null,
+                "app:id/root", 0, 0, 0, 0, UiSnapshot.FLAG_VISIBLE);
+        for (String text : texts) {
+            b.addNode(root, null, "app", "android.widget.TextView", text, null, null,
+                    0, 0, 0, 0, UiSnapshot.FLAG_VISIBLE);
+        }
+        return b.build();
+    }
+}
@@ -0,0 +1,132 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The folding matchers against the previous {@code toLowerCase().contains()} implementation.
+ * They agree on ASCII and on ordinary non-ASCII text; where Unicode casing is context- or
+ * locale-dependent, folding follows {@link String#equalsIgnoreCase(String)} instead.
+ */
+public class StringMatcherTest {
+
+    private static final String ALPHABET = "aAbBzZ09 _-:/.é";
+
+    @Test
+    public void asciiAgreesWithLowerCaseMatching() {
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            String value = random(random, 12);
+            String needle = random.nextInt(4) == 0 ? slice(random, value) : random(random, 3);
+            String low = needle.toLowerCase(Locale.ROOT);
+            String lowValue = value.toLowerCase(Locale.ROOT);
+            assertEquals(lowValue.contains(low), StringMatcher.containsIgnoreCase(needle).test(value));
+            assertEquals(lowValue.startsWith(low), StringMatcher.startsWithIgnoreCase(needle).test(value));
+            assertEquals(lowValue.endsWith(low), StringMatcher.endsWithIgnoreCase(needle).test(value));
+            assertEquals(value.equalsIgnoreCase(needle), StringMatcher.equalsIgnoreCase(needle).test(value));
+            assertEquals(value.contains(needle), StringMatcher.containsString(needle).test(value));
+            // CharSequence values are matched in place.
+            assertEquals(lowValue.contains(low), StringMatcher.containsIgnoreCase(needle).matches(new StringBuilder(value)));
+        }
+    }
+
+    @Test
+    public void sharpS() {
+        assertMatchesLikeLowerCase("Straße", "STRAßE");
+        assertMatchesLikeLowerCase("STRAẞE", "straße");  // capital sharp s folds to ß
+        assertMatchesLikeLowerCase("Straße", "ß");
+        // Neither folds ß to "ss": the lengths would no longer line up.
+        assertMatchesLikeLowerCase("Strasse", "ß");
+        assertMatchesLikeLowerCase("Straße", "SS");
+    }
+
+    @Test
+    public void greekSigma() {
+        assertMatchesLikeLowerCase("ΟΔΟΣ", "οδος");
+        assertMatchesLikeLowerCase("οδος", "ΟΔΟΣ");
+        assertMatchesLikeLowerCase("ΣΟΦΟΣ ΦΙΛΟΣ", "σοφος");
+
+        // toLowerCase() turns a word-final Σ into ς, so "οδοσ" used not to be found in "ΟΔΟΣ".
+        // Folding treats Σ, σ and ς as one letter, as equalsIgnoreCase does.
+        assertFalse("ΟΔΟΣ".toLowerCase(Locale.ROOT).contains("οδοσ"));
+        assertTrue(StringMatcher.containsIgnoreCase("οδοσ").test("ΟΔΟΣ"));
+        assertTrue(StringMatcher.equalsIgnoreCase("ΟΔΟΣ").test("οδοσ"));
+        assertTrue(StringMatcher.endsWithIgnoreCase("ς").test("ΟΔΟΣ"));
+        assertEquals("ΟΔΟΣ".equalsIgnoreCase("οδοσ"), StringMatcher.equalsIgnoreCase("οδοσ").test("ΟΔΟΣ"));
+    }
+
+    @Test
+    public void turkishDottedAndDotlessI() {
+        // Unchanged: plain I/i, and ı against ı.
+        assertMatchesLikeLowerCase("TITLE", "title");
+        assertMatchesLikeLowerCase("ılık", "ılı");
+
+        // toLowerCase() expands İ to "i̇" (i + combining dot above), so "istanbul" used not to be
+        // found in "İstanbul". Folding keeps one char per char: İ → i.
+        assertFalse("İstanbul".toLowerCase(Locale.ROOT).contains("istanbul"));
+        assertTrue(StringMatcher.containsIgnoreCase("istanbul").test("İstanbul"));
+        assertTrue(StringMatcher.startsWithIgnoreCase("İST").test("istanbul"));
+
+        // Dotless ı folds through I to i, as in "ı".equalsIgnoreCase("i").
+        assertEquals("ılık".equalsIgnoreCase("ILIK"), StringMatcher.equalsIgnoreCase("ILIK").test("ılık"));
+        assertTrue(StringMatcher.containsIgnoreCase("lik").test("ılık"));
+    }
+
+    @Test
+    public void foldingDoesNotDependOnTheDefaultLocale() {
+        Locale previous = Locale.getDefault();
+        try {
+            Locale.setDefault(new Locale("tr", "TR"));
+            // toLowerCase() in a Turkish locale maps I to ı, so "title" used not to match "TITLE".
+            assertFalse("TITLE".toLowerCase().contains("title"));
+            assertTrue(StringMatcher.containsIgnoreCase("title").test("TITLE"));
+            assertTrue(StringMatcher.equalsIgnoreCase("TITLE").test("title"));
+        } finally {
+            Locale.setDefault(previous);
+        }
+    }
+
+    @Test
+    public void foldKeepsLengthAndReturnsSameInstanceWhenUnchanged() {
+        String lower = "already lower 123";
+        assertTrue(StringMatcher.fold(lower) == lower);
+        for (String s : new String[] {"İstanbul", "STRAẞE", "ΟΔΟΣ", "MiXeD"}) {
+            assertEquals(s.length(), StringMatcher.fold(s).length());
+        }
+        assertEquals("mixed", StringMatcher.fold("MiXeD"));
+    }
+
+    /** Every ignore-case matcher gives the same answer as the previous toLowerCase() one. */
+    private static void assertMatchesLikeLowerCase(String value, String needle) {
+        String low = needle.toLowerCase(Locale.ROOT);
+        String lowValue = value.toLowerCase(Locale.ROOT);
+        assertEquals(value + " contains " + needle, lowValue.contains(low), StringMatcher.containsIgnoreCase(needle).test(value));
+        assertEquals(value + " startsWith " + needle, lowValue.startsWith(low), StringMatcher.startsWithIgnoreCase(needle).test(value));
+        assertEquals(value + " endsWith " + needle, lowValue.endsWith(low), StringMatcher.endsWithIgnoreCase(needle).test(value));
+        assertEquals(value + " equals " + needle, value.equalsIgnoreCase(needle), StringMatcher.equalsIgnoreCase(needle).test(value));
+    }
+
+    private static String random(Random random, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static String slice(Random random, String value) {
+        if (value.isEmpty()) {
+            return value;
+        }
+        int start = random.nextInt(value.length());
+        String slice = value.substring(start, start + random.nextInt(value.length() - start + 1));
+        return random.nextBoolean() ? slice.toUpperCase(Locale.ROOT) : slice;
+    }
+}
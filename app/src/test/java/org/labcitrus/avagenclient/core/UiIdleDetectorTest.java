@@ -0,0 +1,127 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Idle waits on the host JVM, with a real millisecond clock in place of SystemClock.
+ */
+public class UiIdleDetectorTest {
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000L;
+    }
+
+    @Test
+    public void awaitSettle_quietScreenSettlesAfterQuietWindow() {
+        UiIdleDetector detector = new UiIdleDetector(null, UiIdleDetectorTest::now);
+        UiIdleDetector.Settle settle = detector.awaitSettle(50, 2000, null);
+        assertTrue(settle.isSettled());
+        assertEquals(0, settle.getEvents());
+        assertTrue(settle.getWaitedMs() >= 50 && settle.getWaitedMs() < 1000);
+    }
+
+    @Test
+    public void awaitSettle_lastActivityCallbackFollowsLastEvent() throws Exception {
+        UiIdleDetector detector = new UiIdleDetector(null, UiIdleDetectorTest::now);
+        Thread events = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                sleep(10);
+                detector.onUiActivity();
+            }
+        });
+        AtomicInteger calls = new AtomicInteger();
+        AtomicReference<Long> seenAtLastCall = new AtomicReference<>();
+        events.start();
+        UiIdleDetector.Settle settle = detector.awaitSettle(80, 5000, () -> {
+            calls.incrementAndGet();
+            seenAtLastCall.set(detector.getEventCount());
+        });
+        events.join();
+
+        assertTrue(settle.isSettled());
+        assertEquals(5, settle.getEvents());
+        assertTrue(calls.get() >= 1);
+        assertEquals(Long.valueOf(detector.getEventCount()), seenAtLastCall.get());
+    }
+
+    @Test
+    public void awaitSettle_continuousEventsStopAtDeadline() throws Exception {
+        UiIdleDetector detector = new UiIdleDetector(null, UiIdleDetectorTest::now);
+        // A spinner: events keep coming, also while the callback captures a snapshot.
+        Thread spinner = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                detector.onUiActivity();
+                if (!sleep(1)) {
+                    return;
+                }
+            }
+        });
+        spinner.start();
+        AtomicInteger calls = new AtomicInteger();
+        long start = now();
+        UiIdleDetector.Settle settle;
+        try {
+            settle = detector.awaitSettle(300, 200, () -> {
+                detector.onUiActivity();
+                calls.incrementAndGet();
+                sleep(5);
+            });
+        } finally {
+            spinner.interrupt();
+            spinner.join();
+        }
+        long elapsed = now() - start;
+
+        assertFalse(settle.isSettled());
+        assertTrue("waited " + elapsed + " ms", elapsed >= 200 && elapsed < 1000);
+        assertTrue(calls.get() > 1);
+        int callsAtReturn = calls.get();
+        sleep(20);
+        assertEquals(callsAtReturn, calls.get());
+    }
+
+    @Test
+    public void awaitSettle_interruptStopsContinuousCapture() throws Exception {
+        UiIdleDetector detector = new UiIdleDetector(null, UiIdleDetectorTest::now);
+        AtomicReference<UiIdleDetector.Settle> result = new AtomicReference<>();
+        AtomicReference<Boolean> stillInterrupted = new AtomicReference<>();
+        Thread plan = new Thread(() -> {
+            // Every capture sees a new event, so the wait never finds a quiet moment.
+            result.set(detector.awaitSettle(300, 60_000, () -> {
+                detector.onUiActivity();
+                sleep(2);
+            }));
+            stillInterrupted.set(Thread.currentThread().isInterrupted());
+        });
+        plan.start();
+        sleep(100);
+        long start = now();
+        plan.interrupt();
+        plan.join(2000);
+
+        assertFalse("plan thread still waiting", plan.isAlive());
+        assertTrue(now() - start < 2000);
+        assertNotNull(result.get());
+        assertFalse(result.get().isSettled());
+        assertTrue(stillInterrupted.get());
+    }
+
+    /** Sleep, keeping the interrupt status; false if interrupted. */
+    private static boolean sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
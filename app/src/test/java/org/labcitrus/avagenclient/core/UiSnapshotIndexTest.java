@@ -0,0 +1,136 @@
+package org.labcitrus.avagenclient.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Candidate sets from {@link UiSnapshotIndex} must contain every node the matcher accepts, and
+ * exact lookups must be exact.
+ */
+public class UiSnapshotIndexTest {
+
+    private static final String[] WORDS = {
+            "Save", "save", "SAVED", "Cancel", "Row", "Rows", "Überweisung", "straße", "ΣΟΦΟΣ",
+            "Amount", "amount_total", "12.50", "€", "TaType", "Type", "a", "ab", "abc", "ΙΣ"
+    };
+
+    @Test
+    public void candidates_exactLookups() {
+        UiSnapshot snapshot = snapshotOf(new String[] {"Save", "save draft", "Saved", null, "SAVE"},
+                new String[] {"app:id/save", "app:id/draft", "android:id/save", "app:id/Save_all", null});
+        UiSnapshotIndex index = snapshot.getIndex();
+
+        assertEquals(bits(1, 5), index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.equalsIgnoreCase("save")));
+        // Full resource name and simple id are both keys.
+        assertEquals(bits(1, 3), index.candidates(UiSnapshotIndex.Field.ID, StringMatcher.equalsIgnoreCase("SAVE")));
+        assertEquals(bits(2), index.candidates(UiSnapshotIndex.Field.ID, StringMatcher.equalsIgnoreCase("app:id/draft")));
+        assertEquals(bits(), index.candidates(UiSnapshotIndex.Field.CONTENT_DESCRIPTION, StringMatcher.equalsIgnoreCase("save")));
+        assertNull(index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.regex("S.*")));
+    }
+
+    @Test
+    public void candidates_containsLookupsUseTokensAndTrigrams() {
+        UiSnapshot snapshot = snapshotOf(new String[] {"Total amount", "Amounts due", "mount", "Row 12", "Row 3", "ab"},
+                new String[6]);
+        UiSnapshotIndex index = snapshot.getIndex();
+
+        assertEquals(bits(1, 2, 3), index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.containsIgnoreCase("MOUNT")));
+        assertEquals(bits(1, 2), index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.containsIgnoreCase("amount")));
+        // Every run of the needle must be found in some token of the node.
+        assertEquals(bits(4), index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.containsIgnoreCase("ow 1")));
+        // Short runs scan the vocabulary.
+        assertEquals(bits(6), index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.containsIgnoreCase("b")));
+        assertEquals(bits(), index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.containsIgnoreCase("mounted")));
+        // Nothing to look up: the caller scans.
+        assertNull(index.candidates(UiSnapshotIndex.Field.TEXT, StringMatcher.containsIgnoreCase(" - ")));
+    }
+
+    @Test
+    public void candidates_areSupersetOfMatches() {
+        Random random = new Random(7);
+        int nodes = 400;
+        String[] texts = new String[nodes];
+        String[] ids = new String[nodes];
+        for (int i = 0; i < nodes; i++) {
+            texts[i] = random.nextInt(8) == 0 ? null : phrase(random);
+            ids[i] = random.nextInt(3) == 0 ? null : "app:id/" + WORDS[random.nextInt(WORDS.length)].toLowerCase() + "_" + random.nextInt(5);
+        }
+        UiSnapshot snapshot = snapshotOf(texts, ids);
+        UiSnapshotIndex index = snapshot.getIndex();
+
+        for (int i = 0; i < 2000; i++) {
+            String needle = needle(random, texts);
+            StringMatcher[] matchers = {
+                    StringMatcher.containsIgnoreCase(needle),
+                    StringMatcher.equalsIgnoreCase(needle),
+                    StringMatcher.startsWithIgnoreCase(needle),
+                    StringMatcher.endsWithIgnoreCase(needle),
+                    StringMatcher.containsString(needle),
+            };
+            for (StringMatcher matcher : matchers) {
+                for (UiSnapshotIndex.Field field : new UiSnapshotIndex.Field[] {UiSnapshotIndex.Field.TEXT, UiSnapshotIndex.Field.ID}) {
+                    BitSet candidates = index.candidates(field, matcher);
+                    if (candidates == null) {
+                        continue;
+                    }
+                    for (int node = 0; node < snapshot.size(); node++) {
+                        String value = field == UiSnapshotIndex.Field.TEXT ? snapshot.getText(node) : snapshot.getViewId(node);
+                        if (matcher.test(value)) {
+                            assertTrue(matcher + " on " + field + " missed node " + node + " '" + value + "'",
+                                    candidates.get(node));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String phrase(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int words = 1 + random.nextInt(4);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                sb.append(random.nextBoolean() ? " " : "-");
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /** A slice of an existing value (so there are matches), or a random word / fragment. */
+    private static String needle(Random random, String[] texts) {
+        String text = texts[random.nextInt(texts.length)];
+        if (text != null && random.nextBoolean()) {
+            int start = random.nextInt(text.length());
+            int end = start + 1 + random.nextInt(text.length() - start);
+            return random.nextBoolean() ? text.substring(start, end) : text.substring(start, end).toUpperCase();
+        }
+        String word = WORDS[random.nextInt(WORDS.length)];
+        return word.substring(random.nextInt(word.length()));
+    }
+
+    private static UiSnapshot snapshotOf(String[] texts, String[] ids) {
+        UiSnapshot.Builder b = new UiSnapshot.Builder();
+        int root = b.addNode(UiSnapshot.NO_NODE, null, "app", "android.widget.FrameLayout", null, null, null,
+                0, 0, 0, 0, UiSnapshot.FLAG_VISIBLE);
+        for (int i = 0; i < texts.length; i++) {
+            b.addNode(root, null, "app", "android.widget.TextView", texts[i], null, ids[i],
+                    0, 0, 0, 0, UiSnapshot.FLAG_VISIBLE);
+        }
+        return b.build();
+    }
+
+    private static BitSet bits(int... nodes) {
+        BitSet bits = new BitSet();
+        for (int node : nodes) {
+            bits.set(node);
+        }
+        return bits;
+    }
+}